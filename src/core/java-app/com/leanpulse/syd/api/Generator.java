@@ -6,6 +6,7 @@ package com.leanpulse.syd.api;
 
 import java.awt.Window;
 import java.io.File;
+import java.util.Collection;
 
 import com.leanpulse.syd.api.progress.IProgressMonitor;
 import com.leanpulse.syd.internal.GeneratorImpl;
@@ -36,6 +37,22 @@ import com.leanpulse.syd.internal.GeneratorImpl;
  */
 public abstract class Generator {
 	
+	/**
+	 * System property, or setting of <code>syd.conf</code>, giving the
+	 * maximum number of render requests of a batch generation being rendered
+	 * at once, across all its root models.
+	 * 
+	 * @see #generateAll(Collection, GenProfile, IProgressMonitor)
+	 */
+	public static final String MAXRENDERS_PROPERTY = "syd.generate.maxrenders";
+	
+	/**
+	 * System property, or setting of <code>syd.conf</code>, giving the file
+	 * of the index of the models generated, from which the generations are
+	 * planned before extracting the models.
+	 */
+	public static final String INDEX_PROPERTY = "syd.generate.index";
+	
 	private static Generator instance;
 	
 	/**
@@ -74,6 +91,35 @@ public abstract class Generator {
 	public abstract boolean generate(File mdlFile, GenProfile profile, IProgressMonitor monitor);
 	
 	
+	/**
+	 * Generates system documentation from several root models in a single
+	 * batch.
+	 * <p>
+	 * The renderer is prepared once for the whole batch, and the hierarchies
+	 * of the root models share a single graph of models: a model referenced by
+	 * several hierarchies, or being itself a root model, is only extracted
+	 * and rendered once. The hierarchies are generated in parallel, the number
+	 * of render requests posted at once being limited across all of them by
+	 * the setting {@value #MAXRENDERS_PROPERTY} (default: twice the number of
+	 * processors).
+	 * <p>
+	 * As for {@link #generate(File, GenProfile, IProgressMonitor)}, errors are
+	 * reported to the supplied <code>monitor</code>.
+	 * 
+	 * @param mdlFiles
+	 *            The root model files from which the system documentation
+	 *            will be generated.
+	 * @param profile
+	 *            The generation profile to apply to all the models.
+	 * @param monitor
+	 *            The progress monitor to which progress and errors are
+	 *            reported.
+	 * @return True if the generation fully succeeded or false if an error
+	 *         occurred.
+	 */
+	public abstract boolean generateAll(Collection<File> mdlFiles, GenProfile profile, IProgressMonitor monitor);
+	
+	
 	/**
 	 * Generate system documentation from a model without reporting progress.
 	 * <p>
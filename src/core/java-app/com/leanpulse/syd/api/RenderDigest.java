@@ -0,0 +1,261 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.api;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Computes digests identifying the content of the documents to render.
+ * <p>
+ * The digest of a stylesheet covers all the stylesheets it includes or
+ * imports, so that the change of any of them is detected. Digests of files
+ * are kept in memory as long as the files aren't modified.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+class RenderDigest {
+
+	private static final String XSL_NAMESPACE = "http://www.w3.org/1999/XSL/Transform";
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/*
+	 * Digest of a file, valid as long as the file isn't modified.
+	 */
+	private static class FileDigest {
+		private final long lastModified;
+		private final long length;
+		private final String digest;
+		private final List<File> includes;
+
+		private FileDigest(File file, String digest, List<File> includes) {
+			this.lastModified = file.lastModified();
+			this.length = file.length();
+			this.digest = digest;
+			this.includes = includes;
+		}
+
+		private boolean isValid(File file) {
+			return file.lastModified() == lastModified && file.length() == length;
+		}
+	}
+
+	private static final Map<String, FileDigest> digests = new HashMap<String, FileDigest>();
+
+	/**
+	 * Computes the digest of the content of a document.
+	 *
+	 * @param xmlFile
+	 *            The XML file rendered.
+	 * @param xslFile
+	 *            The stylesheet formatting the document.
+	 * @param xslParams
+	 *            The parameters passed to the XSLT processor.
+	 * @param ignoredParams
+	 *            The names of the parameters not taken into account.
+	 * @return The hexadecimal digest.
+	 * @throws IOException
+	 *             If one of the files can't be read.
+	 */
+	static String digestContent(File xmlFile, File xslFile, String[] xslParams, Collection<String> ignoredParams) throws IOException {
+		MessageDigest md = newMessageDigest();
+		update(md, getFileDigest(xmlFile, false).digest);
+		update(md, digestStylesheet(xslFile));
+		if(xslParams != null) {
+			for(int i=0; i<xslParams.length; i+=2) {
+				if(ignoredParams.contains(xslParams[i]))
+					continue;
+				update(md, xslParams[i]);
+				update(md, xslParams[i+1]);
+			}
+		}
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Computes the digest of a file.
+	 *
+	 * @param file
+	 *            The file.
+	 * @return The hexadecimal digest.
+	 * @throws IOException
+	 *             If the file can't be read.
+	 */
+	static String digestFile(File file) throws IOException {
+		return getFileDigest(file, false).digest;
+	}
+
+	/**
+	 * Computes the digest of a sequence of strings.
+	 *
+	 * @param strs
+	 *            The strings, possibly <code>null</code>.
+	 * @return The hexadecimal digest.
+	 */
+	static String digestStrings(String... strs) {
+		MessageDigest md = newMessageDigest();
+		for(String str : strs) {
+			if(str == null)
+				md.update((byte) 1);
+			else
+				update(md, str);
+		}
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Computes the digest of a stylesheet and of all the stylesheets it
+	 * includes or imports.
+	 *
+	 * @param xslFile
+	 *            The stylesheet.
+	 * @return The hexadecimal digest.
+	 * @throws IOException
+	 *             If one of the stylesheets can't be read.
+	 */
+	static String digestStylesheet(File xslFile) throws IOException {
+		MessageDigest md = newMessageDigest();
+		for(File file : getStylesheetClosure(xslFile)) {
+			update(md, file.getName());
+			update(md, getFileDigest(file, true).digest);
+		}
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Lists a stylesheet and all the stylesheets it includes or imports,
+	 * directly or not.
+	 *
+	 * @param xslFile
+	 *            The stylesheet.
+	 * @return The stylesheets, starting with the given one.
+	 * @throws IOException
+	 *             If one of the stylesheets can't be read.
+	 */
+	static List<File> getStylesheetClosure(File xslFile) throws IOException {
+		Map<String, File> closure = new LinkedHashMap<String, File>();
+		List<File> toVisit = new ArrayList<File>();
+		toVisit.add(xslFile.getAbsoluteFile());
+		while(!toVisit.isEmpty()) {
+			File file = toVisit.remove(toVisit.size() - 1);
+			if(closure.containsKey(file.getPath()))
+				continue;
+			closure.put(file.getPath(), file);
+			toVisit.addAll(getFileDigest(file, true).includes);
+		}
+		return new ArrayList<File>(closure.values());
+	}
+
+	/*
+	 * Returns the digest of a file, parsing the stylesheets it includes if required.
+	 */
+	private static FileDigest getFileDigest(File file, boolean stylesheet) throws IOException {
+		String path = file.getAbsolutePath();
+		synchronized(digests) {
+			FileDigest fileDigest = digests.get(path);
+			if(fileDigest != null && fileDigest.isValid(file))
+				return fileDigest;
+		}
+		MessageDigest md = newMessageDigest();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[65536];
+			int len;
+			while((len = in.read(buffer)) > 0)
+				md.update(buffer, 0, len);
+		} finally {
+			in.close();
+		}
+		List<File> includes = stylesheet && !file.getName().endsWith(".cxs") ? parseIncludes(file) : new ArrayList<File>(0);
+		FileDigest fileDigest = new FileDigest(file, toHex(md.digest()), includes);
+		synchronized(digests) {
+			digests.put(path, fileDigest);
+		}
+		return fileDigest;
+	}
+
+	/*
+	 * Parses the local stylesheets included or imported by a stylesheet.
+	 */
+	private static List<File> parseIncludes(final File xslFile) throws IOException {
+		final List<File> includes = new ArrayList<File>();
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(true);
+			factory.newSAXParser().parse(xslFile, new DefaultHandler() {
+				@Override
+				public void startElement(String uri, String localName, String qName, Attributes atts) {
+					if(XSL_NAMESPACE.equals(uri) && ("include".equals(localName) || "import".equals(localName))) {
+						String href = atts.getValue("href");
+						if(href == null)
+							return;
+						URI hrefUri = xslFile.getParentFile().toURI().resolve(href.replaceAll(" ", "%20"));
+						if("file".equalsIgnoreCase(hrefUri.getScheme()))
+							includes.add(new File(hrefUri));
+					}
+				}
+			});
+		} catch (SAXException e) {
+			throw new IOException("Can't parse the stylesheet " + xslFile.getPath(), e);
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e);
+		}
+		return includes;
+	}
+
+	/*
+	 * Creates the message digest algorithm used.
+	 */
+	private static MessageDigest newMessageDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Updates a message digest with a string, delimited from the next ones.
+	 */
+	private static void update(MessageDigest md, String str) {
+		try {
+			md.update(str.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {}
+		md.update((byte) 0);
+	}
+
+	/*
+	 * Encodes bytes in hexadecimal.
+	 */
+	private static String toHex(byte[] bytes) {
+		char[] hex = new char[2 * bytes.length];
+		for(int i=0; i<bytes.length; i++) {
+			hex[2*i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+			hex[2*i+1] = HEX_DIGITS[bytes[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+}
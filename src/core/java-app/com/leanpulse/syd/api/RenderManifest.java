@@ -0,0 +1,133 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.api;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Properties;
+
+/**
+ * Manifest of a rendered document, stored next to it.
+ * <p>
+ * The manifest records digests of everything the document was produced from:
+ * the XML data, the stylesheet with all the included ones, the parameters
+ * passed to the XSLT processor and the security options. It also records the
+ * digest of the document itself, so that a document modified or truncated
+ * since its rendering isn't considered as up to date.
+ * <p>
+ * The current date passed to the stylesheet isn't taken into account, so
+ * that an unchanged document keeps the date of its last actual rendering.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+class RenderManifest {
+
+	private static final String VERSION = "1";
+
+	private static final Collection<String> IGNORED_PARAMS = Arrays.asList("currentdate");
+
+	private static final String KEY_VERSION = "version";
+	private static final String KEY_CONTENT = "content";
+	private static final String KEY_SECURITY = "security";
+	private static final String KEY_OUTPUT = "output";
+
+	private final String contentDigest;
+	private final String securityDigest;
+
+	/**
+	 * Creates the manifest of a document to render.
+	 *
+	 * @param xmlFile
+	 *            The XML file to render.
+	 * @param xslFile
+	 *            The stylesheet to format the document.
+	 * @param xslParams
+	 *            The parameters to pass to the XSLT processor.
+	 * @param secOptions
+	 *            The security options to protect the PDF document.
+	 * @throws IOException
+	 *             If one of the files can't be read.
+	 */
+	RenderManifest(File xmlFile, File xslFile, String[] xslParams, PdfSecurityOptions secOptions) throws IOException {
+		contentDigest = RenderDigest.digestContent(xmlFile, xslFile, xslParams, IGNORED_PARAMS);
+		securityDigest = secOptions == null ? "" : RenderDigest.digestStrings(secOptions.getOwnerpass(), secOptions.getUserpass(),
+				Boolean.toString(secOptions.isNoprint()), Boolean.toString(secOptions.isNocopy()),
+				Boolean.toString(secOptions.isNoedit()), Boolean.toString(secOptions.isNoannot()));
+	}
+
+	/**
+	 * Checks if a document has already been rendered from the same data and
+	 * wasn't modified since.
+	 *
+	 * @param outFile
+	 *            The document.
+	 * @return <code>true</code> if the document is up to date,
+	 *         <code>false</code> otherwise.
+	 * @throws IOException
+	 *             If the document or its manifest can't be read.
+	 */
+	boolean isUpToDate(File outFile) throws IOException {
+		File manifestFile = getManifestFile(outFile);
+		if(!outFile.isFile() || !manifestFile.isFile())
+			return false;
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(manifestFile);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		return VERSION.equals(props.getProperty(KEY_VERSION))
+				&& contentDigest.equals(props.getProperty(KEY_CONTENT))
+				&& securityDigest.equals(props.getProperty(KEY_SECURITY))
+				&& RenderDigest.digestFile(outFile).equals(props.getProperty(KEY_OUTPUT));
+	}
+
+	/**
+	 * Writes the manifest of a document just rendered.
+	 *
+	 * @param outFile
+	 *            The document.
+	 * @throws IOException
+	 *             If the document can't be read or the manifest written.
+	 */
+	void write(File outFile) throws IOException {
+		Properties props = new Properties();
+		props.setProperty(KEY_VERSION, VERSION);
+		props.setProperty(KEY_CONTENT, contentDigest);
+		props.setProperty(KEY_SECURITY, securityDigest);
+		props.setProperty(KEY_OUTPUT, RenderDigest.digestFile(outFile));
+		OutputStream out = new FileOutputStream(getManifestFile(outFile));
+		try {
+			props.store(out, "SyD rendering manifest of " + outFile.getName());
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Deletes the manifest of a document, if any.
+	 *
+	 * @param outFile
+	 *            The document.
+	 */
+	static void delete(File outFile) {
+		getManifestFile(outFile).delete();
+	}
+
+	/*
+	 * Returns the manifest file of a document.
+	 */
+	private static File getManifestFile(File outFile) {
+		return new File(outFile.getParentFile(), "." + outFile.getName() + ".manifest");
+	}
+
+}
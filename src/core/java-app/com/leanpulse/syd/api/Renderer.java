@@ -5,8 +5,15 @@
 package com.leanpulse.syd.api;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.leanpulse.syd.api.progress.IProgressMonitor;
 
@@ -26,6 +33,13 @@ import com.leanpulse.syd.api.progress.IProgressMonitor;
  * This interface enables to render several documents at the same time and for
  * this purpose, only defines asynchronous methods. The report of the progress
  * is then done via progress monitors.
+ * <p>
+ * Render jobs posted with {@link #schedule(File, File, RenderTask)} don't run
+ * in the order they are posted: when all the rendering services are busy, the
+ * pending job with the highest estimated cost is started first. The cost is
+ * estimated from the size of the XML file and, when the same document has
+ * already been laid out, from the duration of its last layout. This way, the
+ * longest renderings don't delay the end of a generation by starting last.
  * 
  * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
  * 
@@ -33,9 +47,126 @@ import com.leanpulse.syd.api.progress.IProgressMonitor;
  */
 public abstract class Renderer {
 	
+	/*
+	 * Cost in milliseconds per byte of XML assumed until a first rendering has
+	 * been measured.
+	 */
+	private static final double DEFAULT_COST_RATE = 0.05;
+	
+	/*
+	 * Weight of the last measure in the average cost per byte of XML.
+	 */
+	private static final double COST_RATE_WEIGHT = 0.3;
+	
+	/*
+	 * Size of the XML file and duration of the last rendering of each document,
+	 * indexed by the path of the document.
+	 */
+	private static final Map<String, long[]> renderHistory = new HashMap<String, long[]>();
+	
+	/*
+	 * Average rendering cost in milliseconds per byte of XML.
+	 */
+	private static double costRate = DEFAULT_COST_RATE;
+	
+	/*
+	 * Orders the pending jobs by decreasing cost, then by posting order.
+	 */
+	private static final Comparator<Runnable> JOB_ORDER = new Comparator<Runnable>() {
+		public int compare(Runnable r1, Runnable r2) {
+			double cost1 = r1 instanceof ScheduledJob ? ((ScheduledJob) r1).cost : 0.0;
+			double cost2 = r2 instanceof ScheduledJob ? ((ScheduledJob) r2).cost : 0.0;
+			if(cost1 != cost2)
+				return cost1 > cost2 ? -1 : 1;
+			long seq1 = r1 instanceof ScheduledJob ? ((ScheduledJob) r1).seqNum : Long.MAX_VALUE;
+			long seq2 = r2 instanceof ScheduledJob ? ((ScheduledJob) r2).seqNum : Long.MAX_VALUE;
+			return seq1 < seq2 ? -1 : (seq1 == seq2 ? 0 : 1);
+		}
+	};
+	
+	/*
+	 * Sequence number of the last job posted.
+	 */
+	private static long lastSeqNum = 0;
+	
+	/**
+	 * A render job reporting if it actually laid out its document, so that
+	 * the cost of the next renderings is only estimated from real layouts, and
+	 * not from documents skipped or whose layout is reused.
+	 */
+	protected interface RenderTask {
+		
+		/**
+		 * Renders the document, or skips it if it is up to date.
+		 * 
+		 * @return <code>true</code> if the document was laid out,
+		 *         <code>false</code> if it was skipped, if its layout was
+		 *         reused or if the rendering failed.
+		 */
+		boolean render();
+	}
+	
+	/*
+	 * A render job with its estimated cost, recording its duration once executed if it laid out its document.
+	 */
+	private static class ScheduledJob implements Runnable {
+		private final RenderTask job;
+		private final String docPath;
+		private final long xmlSize;
+		private final double cost;
+		private final long seqNum;
+		
+		ScheduledJob(File xmlFile, File outFile, RenderTask job) {
+			this.job = job;
+			this.docPath = outFile.getAbsolutePath();
+			this.xmlSize = xmlFile.length();
+			this.cost = estimateCost(docPath, xmlSize);
+			this.seqNum = nextSeqNum();
+		}
+		
+		public void run() {
+			long startTime = System.currentTimeMillis();
+			if(job.render())
+				recordDuration(docPath, xmlSize, System.currentTimeMillis() - startTime);
+		}
+	}
+	
+	/*
+	 * Returns the sequence number of a newly posted job.
+	 */
+	private static synchronized long nextSeqNum() {
+		return ++lastSeqNum;
+	}
+	
+	/*
+	 * Estimates in milliseconds the duration of the rendering of a document.
+	 */
+	private static double estimateCost(String docPath, long xmlSize) {
+		synchronized(renderHistory) {
+			long[] last = renderHistory.get(docPath);
+			if(last != null && last[0] > 0)
+				return (double) last[1] * xmlSize / last[0];
+			return costRate * xmlSize;
+		}
+	}
+	
+	/*
+	 * Records the duration of the rendering of a document.
+	 */
+	private static void recordDuration(String docPath, long xmlSize, long duration) {
+		synchronized(renderHistory) {
+			renderHistory.put(docPath, new long[] {xmlSize, duration});
+			if(xmlSize > 0)
+				costRate = (1.0 - COST_RATE_WEIGHT) * costRate + COST_RATE_WEIGHT * duration / xmlSize;
+		}
+	}
+	
 	/**
 	 * A pool of services to be able to execute simultaneously a given number of
 	 * renderings.
+	 * <p>
+	 * The pending jobs are ordered by decreasing estimated cost, so they must be
+	 * posted with {@link #schedule(File, File, RenderTask)}.
 	 */
 	protected ExecutorService service = null;
 	
@@ -45,7 +176,118 @@ public abstract class Renderer {
 	 */
 	protected Renderer() {
 		int numProcs = Runtime.getRuntime().availableProcessors();
-		service = Executors.newFixedThreadPool(numProcs > 1 ? numProcs-1 : 1);
+		int poolSize = numProcs > 1 ? numProcs-1 : 1;
+		service = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(11, JOB_ORDER));
+	}
+	
+	/**
+	 * Constructor for the renderers which don't render the documents in this
+	 * JVM, or which provide their own pool of rendering services.
+	 * 
+	 * @param service
+	 *            The pool of rendering services, <code>null</code> if the
+	 *            renderer doesn't post render jobs with
+	 *            {@link #schedule(File, File, RenderTask)}.
+	 */
+	protected Renderer(ExecutorService service) {
+		this.service = service;
+	}
+	
+	/**
+	 * Posts a render job to the pool of rendering services.
+	 * <p>
+	 * The job is started as soon as a service is available and no other
+	 * pending job is estimated to be longer.
+	 * 
+	 * @param xmlFile
+	 *            The XML file rendered by the job.
+	 * @param outFile
+	 *            The document generated by the job.
+	 * @param job
+	 *            The render job.
+	 */
+	protected void schedule(File xmlFile, File outFile, RenderTask job) {
+		service.execute(new ScheduledJob(xmlFile, outFile, job));
+	}
+
+	/**
+	 * Computes a digest identifying the content of a document, i.e. its XML
+	 * data, its stylesheet and all the stylesheets included, and the parameters
+	 * passed to the XSLT processor.
+	 * 
+	 * @param xmlFile
+	 *            The XML file to render.
+	 * @param xslFile
+	 *            The stylesheet to format the document.
+	 * @param xslParams
+	 *            The parameters to pass to the XSLT processor.
+	 * @return The hexadecimal digest.
+	 * @throws IOException
+	 *             If one of the files can't be read.
+	 */
+	protected static String digestContent(File xmlFile, File xslFile, String[] xslParams) throws IOException {
+		return RenderDigest.digestContent(xmlFile, xslFile, xslParams, Collections.<String>emptySet());
+	}
+
+	/**
+	 * Checks if a document has already been rendered with the same XML data,
+	 * stylesheets, parameters and security options, and wasn't modified since,
+	 * according to the manifest written next to it.
+	 * 
+	 * @param xmlFile
+	 *            The XML file to render.
+	 * @param xslFile
+	 *            The stylesheet to format the document.
+	 * @param xslParams
+	 *            The parameters to pass to the XSLT processor.
+	 * @param outFile
+	 *            The file in which the document is generated.
+	 * @param secOptions
+	 *            The security options to protect the PDF document.
+	 * @return <code>true</code> if the document doesn't need to be rendered
+	 *         again, <code>false</code> otherwise.
+	 */
+	protected static boolean isUpToDate(File xmlFile, File xslFile, String[] xslParams, File outFile, PdfSecurityOptions secOptions) {
+		try {
+			return new RenderManifest(xmlFile, xslFile, xslParams, secOptions).isUpToDate(outFile);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Writes the manifest of a document just rendered, so that it won't be
+	 * rendered again as long as its data don't change.
+	 * 
+	 * @param xmlFile
+	 *            The XML file rendered.
+	 * @param xslFile
+	 *            The stylesheet used to format the document.
+	 * @param xslParams
+	 *            The parameters passed to the XSLT processor.
+	 * @param outFile
+	 *            The file in which the document has been generated.
+	 * @param secOptions
+	 *            The security options protecting the PDF document.
+	 */
+	protected static void writeManifest(File xmlFile, File xslFile, String[] xslParams, File outFile, PdfSecurityOptions secOptions) {
+		try {
+			new RenderManifest(xmlFile, xslFile, xslParams, secOptions).write(outFile);
+		} catch (IOException e) {
+			RenderManifest.delete(outFile);
+		}
+	}
+
+	/**
+	 * Deletes the manifest of a document, so that it is rendered again even if
+	 * its data didn't change.
+	 * 
+	 * @param outFile
+	 *            The file in which the document is generated.
+	 */
+	protected static void discardManifest(File outFile) {
+		RenderManifest.delete(outFile);
 	}
 
 	/**
@@ -68,5 +310,61 @@ public abstract class Renderer {
 	 *            reported.
 	 */
 	public abstract void asyncRender(File xmlFile, File xslFile, String[] xslParams, File outFile, PdfSecurityOptions secOptions, boolean open, IProgressMonitor mon);
+	
+	/**
+	 * Posts a request to render the given XML file to several outputs sharing
+	 * the same content and only differing by their security options.
+	 * <p>
+	 * The default implementation posts a request per output, implementations
+	 * should override it to transform and lay out the document only once.
+	 * 
+	 * @param xmlFile
+	 *            The XML file to render.
+	 * @param xslFile
+	 *            The stylesheet to format the document.
+	 * @param xslParams
+	 *            The parameters to pass to the XSLT processor.
+	 * @param outFiles
+	 *            The files in which the documents will be generated.
+	 * @param secOptions
+	 *            The security options to protect each PDF document.
+	 * @param open
+	 *            If each document must be opened after the generation
+	 *            succeeded.
+	 * @param mons
+	 *            The progress monitors to which progress and errors are
+	 *            reported for each document.
+	 */
+	public void asyncRender(File xmlFile, File xslFile, String[] xslParams, File[] outFiles, PdfSecurityOptions[] secOptions, boolean[] open, IProgressMonitor[] mons) {
+		for(int i=0; i<outFiles.length; i++)
+			asyncRender(xmlFile, xslFile, xslParams, outFiles[i], secOptions[i], open[i], mons[i]);
+	}
+
+	/**
+	 * Starts buffering the requests posted, so that they are submitted
+	 * together by {@link #endBatch()}.
+	 * <p>
+	 * Batches may be nested, the requests being submitted at the end of the
+	 * outermost one. The default implementation doesn't buffer the requests.
+	 */
+	public void beginBatch() {
+	}
+	
+	/**
+	 * Ends a batch started by {@link #beginBatch()}, submitting the requests
+	 * buffered.
+	 */
+	public void endBatch() {
+	}
+	
+	/**
+	 * Submits the requests buffered by the current batch without ending it,
+	 * so that their renderings start while other requests are still posted.
+	 * <p>
+	 * Has no effect if no batch is started. The default implementation
+	 * doesn't buffer the requests.
+	 */
+	public void flushBatch() {
+	}
 
 }
@@ -5,8 +5,10 @@
 package com.leanpulse.syd.api;
 
 import com.leanpulse.syd.api.progress.IProgressMonitor;
+import com.leanpulse.syd.internal.RendererImplEmbedded;
 import com.leanpulse.syd.internal.RendererImplExternal;
 import com.leanpulse.syd.internal.RendererImplRemote;
+import com.leanpulse.syd.internal.Utils;
 
 /**
  * Manager to get the {@link Renderer} to use to render documents.
@@ -30,6 +32,13 @@ import com.leanpulse.syd.internal.RendererImplRemote;
  * will always try to first return this implementation. If no connection can be
  * established and the server can't be started, then the default implementation
  * is returned.
+ * <p>
+ * For batch generations run without user interface, the documents can
+ * instead be rendered in the JVM of the caller by setting the system property
+ * or the setting of <code>syd.conf</code> {@value #RENDERER_PROPERTY} to
+ * {@value #RENDERER_EMBEDDED}. The embedded renderer spares the start of a
+ * server and the communication with it, at the cost of the heap of the
+ * caller. It is given the priority over the server.
  * 
  * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
  * 
@@ -37,6 +46,18 @@ import com.leanpulse.syd.internal.RendererImplRemote;
  */
 public class RendererManager {
 	
+	/**
+	 * System property, or setting of <code>syd.conf</code>, selecting the
+	 * renderer given the priority.
+	 */
+	public static final String RENDERER_PROPERTY = "syd.renderer";
+	
+	/**
+	 * Value of {@link #RENDERER_PROPERTY} selecting the renderer embedded in
+	 * the JVM of the caller.
+	 */
+	public static final String RENDERER_EMBEDDED = "embedded";
+	
 	/**
 	 * Retrieves a usable renderer to render documents.
 	 * 
@@ -50,9 +71,10 @@ public class RendererManager {
 	
 	/**
 	 * Retrieves a usable renderer to render documents.<br>
-	 * The priority is given to the rendering server but if no connection can be
-	 * established and a new server can't be started, a default implementation
-	 * is returned.
+	 * The priority is given to the rendering server, or to the embedded
+	 * renderer if selected, but if no connection can be established and a new
+	 * server can't be started, or if the embedded renderer can't be loaded, a
+	 * default implementation is returned.
 	 * 
 	 * @param mon
 	 *            The monitor to indicate the progress of the connection to the
@@ -63,6 +85,17 @@ public class RendererManager {
 	 */
 	public static Renderer getRenderer(IProgressMonitor mon) {
 		Renderer renderer = null;
+		String selected = System.getProperty(RENDERER_PROPERTY);
+		if(selected == null)
+			selected = Utils.loadConfig().getProperty(RENDERER_PROPERTY);
+		if(RENDERER_EMBEDDED.equals(selected)) {
+			RendererImplEmbedded embedRenderer = RendererImplEmbedded.getDefault();
+			if(embedRenderer.prepareRendering(mon))
+				renderer = embedRenderer;
+			else
+				renderer = RendererImplExternal.getDefault();
+			return renderer;
+		}
 		RendererImplRemote rmRenderer = RendererImplRemote.getDefault();
 		if(rmRenderer.prepareRendering(mon))
 			renderer = rmRenderer;
@@ -101,6 +101,25 @@ public abstract class Snapper {
 		return rootEl;
 	}
 	
+	/**
+	 * Reads the version of the model recorded in the root element of an XML
+	 * file extracted from it.
+	 * 
+	 * @param xmlFile
+	 *            The XML file.
+	 * @return The version of the model, or <code>null</code> if the file
+	 *         can't be read or doesn't record it.
+	 */
+	public static String readVersionFromXml(File xmlFile) {
+		String rootEl = readRootFromXml(xmlFile);
+		if(rootEl != null) {
+			Matcher verMatcher = XML_VERSION_PATTERN.matcher(rootEl);
+			if(verMatcher.find())
+				return verMatcher.group(1);
+		}
+		return null;
+	}
+	
 	/**
 	 * Extracts XML data from a model.
 	 * <p>
@@ -139,6 +158,23 @@ public abstract class Snapper {
 		return refMdls;
 	}
 	
+	/**
+	 * Checks if several models can be extracted simultaneously by different
+	 * threads.
+	 * <p>
+	 * The default implementation returns <code>false</code>, all the
+	 * extractions of a generation being then performed one after the other by
+	 * the thread of the generation. Implementations which don't depend on the
+	 * thread of the modeling tool should override it, so that the independent
+	 * models of a hierarchy are extracted concurrently.
+	 * 
+	 * @return True if {@link #snap(File, boolean, boolean, Map, File, IProgressMonitor)}
+	 *         can be called concurrently.
+	 */
+	public boolean isThreadSafe() {
+		return false;
+	}
+	
 	/**
 	 * Gets a default XML output file for the given model.
 	 * 
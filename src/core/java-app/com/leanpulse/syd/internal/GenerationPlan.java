@@ -0,0 +1,336 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.leanpulse.syd.api.GenProfileRenderConf;
+import com.leanpulse.syd.internal.ModelIndex.DocumentEntry;
+import com.leanpulse.syd.internal.ModelIndex.ModelEntry;
+
+/**
+ * Plan of a generation, computed from the {@link ModelIndex} before any model
+ * is extracted.
+ * <p>
+ * The hierarchies are walked through the references recorded by the last
+ * extraction of each model, the documents being computed as the scheduler
+ * would. A model is stale if it isn't indexed, or if its file or its XML file
+ * changed since it was indexed; the modeling tool still decides if it must be
+ * extracted again. A document can be skipped if none of the models it is
+ * rendered from is stale and if it wasn't modified since it was rendered
+ * after its XML files and its stylesheet; the renderer still checks its
+ * manifest before skipping it.
+ * <p>
+ * The cost of each extraction and rendering is estimated from the durations
+ * recorded in the index, and gives its share of the progress of the
+ * generation. The wall time is estimated from the costs and the number of
+ * extractions and renderings running at once.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see ModelIndex
+ * @see GenerationScheduler#setPlan(GenerationPlan, double)
+ */
+class GenerationPlan {
+
+	/*
+	 * Estimated cost of an extraction never measured, in milliseconds.
+	 */
+	private static final long DEFAULT_SNAP_MILLIS = 2000;
+
+	/*
+	 * Estimated cost of the reuse of an XML file already extracted, in milliseconds.
+	 */
+	private static final long REUSE_MILLIS = 20;
+
+	/*
+	 * Estimated cost of a document skipped, mostly the digest of its data, in milliseconds.
+	 */
+	private static final long SKIP_MILLIS = 50;
+
+	/*
+	 * Estimated cost in milliseconds per byte of XML of a document never rendered, as assumed by the
+	 * renderers until they measure their first rendering.
+	 */
+	private static final double DEFAULT_COST_RATE = 0.05;
+
+	private final Map<File, Long> snapCosts = new HashMap<File, Long>();
+	private final Map<File, Long> renderCosts = new HashMap<File, Long>();
+	private final Set<File> staleModels = new LinkedHashSet<File>();
+	private final Set<File> unknownModels = new LinkedHashSet<File>();
+	private final Set<File> skippedDocs = new LinkedHashSet<File>();
+	private final long totalCost;
+	private final long estimatedMillis;
+
+	/**
+	 * Plans the generation of root models. The lock of the index must be
+	 * held.
+	 *
+	 * @param index
+	 *            The index of the models.
+	 * @param mdlFiles
+	 *            The root model files.
+	 * @param renderConfs
+	 *            The render configurations of the profile.
+	 * @param snapThreads
+	 *            The number of models extracted simultaneously.
+	 * @param renderThreads
+	 *            The number of documents rendered simultaneously.
+	 */
+	GenerationPlan(ModelIndex index, Collection<File> mdlFiles, GenProfileRenderConf[] renderConfs, int snapThreads, int renderThreads) {
+		long meanSnapMillis = index.getMeanSnapMillis();
+		long defaultSnapMillis = meanSnapMillis >= 0 ? meanSnapMillis : DEFAULT_SNAP_MILLIS;
+		for(File mdlFile : mdlFiles) {
+			File rootFile = Utils.getCanonicalFile(mdlFile);
+			for(GenProfileRenderConf renderConf : renderConfs)
+				planDocument(index, renderConf, rootFile, rootFile.getParentFile(), defaultSnapMillis);
+		}
+
+		long snapCost = 0;
+		for(long cost : snapCosts.values())
+			snapCost += cost;
+		long renderCost = 0;
+		long longestRender = 0;
+		for(long cost : renderCosts.values()) {
+			renderCost += cost;
+			longestRender = Math.max(longestRender, cost);
+		}
+		totalCost = snapCost + renderCost;
+		// The documents are rendered while the other models are extracted, the last one at worst after all of them.
+		estimatedMillis = Math.max(snapCost / Math.max(snapThreads, 1) + longestRender, renderCost / Math.max(renderThreads, 1));
+	}
+
+	/**
+	 * Gets the models to extract again.
+	 *
+	 * @return The canonical files of the models, unknown ones included.
+	 */
+	Set<File> getStaleModels() {
+		return Collections.unmodifiableSet(staleModels);
+	}
+
+	/**
+	 * Gets the models which aren't indexed yet, their references being
+	 * unknown.
+	 *
+	 * @return The canonical files of the models.
+	 */
+	Set<File> getUnknownModels() {
+		return Collections.unmodifiableSet(unknownModels);
+	}
+
+	/**
+	 * Gets the documents to generate.
+	 *
+	 * @return The canonical files of the documents.
+	 */
+	Set<File> getDocuments() {
+		return Collections.unmodifiableSet(renderCosts.keySet());
+	}
+
+	/**
+	 * Gets the documents which can be skipped, being up to date.
+	 *
+	 * @return The canonical files of the documents.
+	 */
+	Set<File> getSkippedDocuments() {
+		return Collections.unmodifiableSet(skippedDocs);
+	}
+
+	/**
+	 * Checks if the whole hierarchies are known, i.e. if all the models
+	 * planned are indexed.
+	 *
+	 * @return True if no model is unknown.
+	 */
+	boolean isComplete() {
+		return unknownModels.isEmpty();
+	}
+
+	/**
+	 * Gets the estimated wall time of the generation.
+	 *
+	 * @return The duration in milliseconds.
+	 */
+	long getEstimatedMillis() {
+		return estimatedMillis;
+	}
+
+	/**
+	 * Gets the share of the extraction of a model in the cost of the
+	 * generation.
+	 *
+	 * @param mdlFile
+	 *            The model file.
+	 * @return The share between 0 and 1, 0 if the model isn't planned.
+	 */
+	double getSnapShare(File mdlFile) {
+		return getShare(snapCosts.get(Utils.getCanonicalFile(mdlFile)));
+	}
+
+	/**
+	 * Gets the share of the rendering of a document in the cost of the
+	 * generation.
+	 *
+	 * @param outFile
+	 *            The document.
+	 * @return The share between 0 and 1, 0 if the document isn't planned.
+	 */
+	double getRenderShare(File outFile) {
+		return getShare(renderCosts.get(Utils.getCanonicalFile(outFile)));
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder summary = new StringBuilder();
+		summary.append(snapCosts.size()).append(" model(s), ").append(staleModels.size()).append(" to extract");
+		if(!unknownModels.isEmpty())
+			summary.append(" (").append(unknownModels.size()).append(" not indexed yet)");
+		summary.append(", ").append(renderCosts.size()).append(" document(s), ").append(skippedDocs.size()).append(" up to date");
+		summary.append(", estimated time ").append((estimatedMillis + 500) / 1000).append("s");
+		if(!unknownModels.isEmpty())
+			summary.append(" at least");
+		return summary.toString();
+	}
+
+	/*
+	 * Gets the share of a cost in the total cost.
+	 */
+	private double getShare(Long cost) {
+		return cost != null && totalCost > 0 ? (double) cost / totalCost : 0.0;
+	}
+
+	/*
+	 * Plans a document of a model with a render configuration, and the documents of the models it references if required.
+	 */
+	private void planDocument(ModelIndex index, GenProfileRenderConf renderConf, File mdlFile, File parDir, long defaultSnapMillis) {
+		File outFile = Utils.getCanonicalFile(renderConf.computeOutput(mdlFile, parDir));
+		if(renderCosts.containsKey(outFile))
+			return;
+		renderCosts.put(outFile, 0L); // Claimed before planning the references, as done by the scheduler.
+		File subParDir = renderConf.getSubParentDir(outFile, parDir);
+		ModelEntry entry = planModel(index, mdlFile, defaultSnapMillis);
+
+		List<File> coveredMdls;
+		switch(renderConf.getGenDependencies()) {
+			case GenProfileRenderConf.GENDEP_SEPDOCS:
+				coveredMdls = Collections.singletonList(mdlFile);
+				if(entry != null) {
+					for(String refPath : entry.refPaths) {
+						File refMdlFile = new File(refPath);
+						planDocument(index, renderConf.getSubRenderConf(refMdlFile), refMdlFile, subParDir, defaultSnapMillis);
+					}
+				}
+				break;
+
+			case GenProfileRenderConf.GENDEP_EMBED:
+				coveredMdls = planSubtree(index, mdlFile, defaultSnapMillis);
+				break;
+
+			default:
+				coveredMdls = Collections.singletonList(mdlFile);
+		}
+
+		if(isUpToDate(index, renderConf, outFile, coveredMdls)) {
+			skippedDocs.add(outFile);
+			renderCosts.put(outFile, SKIP_MILLIS);
+		} else {
+			DocumentEntry docEntry = index.getDocument(outFile);
+			if(docEntry != null) {
+				renderCosts.put(outFile, docEntry.renderMillis);
+			} else {
+				long xmlSize = 0;
+				for(File coveredMdl : coveredMdls) {
+					ModelEntry coveredEntry = index.getModel(coveredMdl);
+					if(coveredEntry != null)
+						xmlSize += new File(coveredEntry.xmlPath).length();
+				}
+				renderCosts.put(outFile, (long) (xmlSize * DEFAULT_COST_RATE));
+			}
+		}
+	}
+
+	/*
+	 * Plans the extraction of a model, returning its entry or null if it isn't indexed.
+	 */
+	private ModelEntry planModel(ModelIndex index, File mdlFile, long defaultSnapMillis) {
+		ModelEntry entry = index.getModel(mdlFile);
+		if(snapCosts.containsKey(mdlFile))
+			return entry;
+		if(entry == null) {
+			unknownModels.add(mdlFile);
+			staleModels.add(mdlFile);
+			snapCosts.put(mdlFile, defaultSnapMillis);
+		} else if(isStale(mdlFile, entry)) {
+			staleModels.add(mdlFile);
+			snapCosts.put(mdlFile, entry.snapMillis >= 0 ? entry.snapMillis : defaultSnapMillis);
+		} else {
+			snapCosts.put(mdlFile, REUSE_MILLIS);
+		}
+		return entry;
+	}
+
+	/*
+	 * Plans the extraction of the whole hierarchy below a model, returning its models.
+	 */
+	private List<File> planSubtree(ModelIndex index, File mdlFile, long defaultSnapMillis) {
+		List<File> subtree = new ArrayList<File>();
+		Set<File> visited = new HashSet<File>();
+		LinkedList<File> stack = new LinkedList<File>();
+		visited.add(mdlFile);
+		stack.push(mdlFile);
+		while(!stack.isEmpty()) {
+			File subMdlFile = stack.pop();
+			subtree.add(subMdlFile);
+			ModelEntry entry = planModel(index, subMdlFile, defaultSnapMillis);
+			if(entry != null) {
+				for(String refPath : entry.refPaths) {
+					File refMdlFile = new File(refPath);
+					if(visited.add(refMdlFile))
+						stack.push(refMdlFile);
+				}
+			}
+		}
+		return subtree;
+	}
+
+	/*
+	 * Checks if a model changed since it was indexed.
+	 */
+	private static boolean isStale(File mdlFile, ModelEntry entry) {
+		File xmlFile = new File(entry.xmlPath);
+		return mdlFile.lastModified() != entry.mdlModified || !xmlFile.isFile() || xmlFile.lastModified() != entry.xmlModified;
+	}
+
+	/*
+	 * Checks if a document was rendered after the XML files of its models and its stylesheet, none of the models being stale.
+	 */
+	private boolean isUpToDate(ModelIndex index, GenProfileRenderConf renderConf, File outFile, List<File> coveredMdls) {
+		DocumentEntry docEntry = index.getDocument(outFile);
+		if(docEntry == null || !outFile.isFile() || outFile.lastModified() != docEntry.outModified
+				|| renderConf.getStyle().lastModified() > docEntry.outModified)
+			return false;
+		for(File coveredMdl : coveredMdls) {
+			ModelEntry entry = index.getModel(coveredMdl);
+			if(staleModels.contains(coveredMdl) || entry == null || entry.xmlModified > docEntry.outModified)
+				return false;
+		}
+		return true;
+	}
+
+}
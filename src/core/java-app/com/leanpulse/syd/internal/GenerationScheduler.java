@@ -0,0 +1,897 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.leanpulse.syd.api.GenProfileRenderConf;
+import com.leanpulse.syd.api.GenProfileSnapConf;
+import com.leanpulse.syd.api.PdfSecurityOptions;
+import com.leanpulse.syd.api.Renderer;
+import com.leanpulse.syd.api.Snapper;
+import com.leanpulse.syd.api.progress.IProgressMonitor;
+
+/**
+ * Schedules the extractions and the renderings of the models of a hierarchy.
+ * <p>
+ * The hierarchy is built as a dependency graph while it is discovered: a
+ * model is extracted as soon as the extraction of a model referencing it
+ * returned its <code>mdldep</code> list, and each document is posted to the
+ * renderer as soon as the XML files it needs are extracted, without waiting
+ * for the other branches of the hierarchy.
+ * <p>
+ * The models are identified by their canonical file, so that a model
+ * referenced several times is only extracted once, and each document is only
+ * rendered once. The progress weight of a model is shared between the models
+ * it references for the first time, the others being already accounted for.
+ * A reference closing a cycle in the graph stops the generation with an
+ * error, as neither the documents embedding their references nor the
+ * modeling tools support them.
+ * <p>
+ * If the snapper is thread-safe, the independent models are extracted
+ * concurrently by a pool of threads. Otherwise, the extractions are performed
+ * one after the other by the thread waiting for the scheduler, in the order
+ * they were requested.
+ * <p>
+ * Several root models can be scheduled, sharing the graph, the extractions
+ * and the documents, the number of documents being rendered at once being
+ * possibly limited across all of them. The requests beyond the limit are
+ * queued, and posted as the previous ones finish, so that the extractions
+ * never wait for the renderings.
+ * <p>
+ * The models extracted and the documents rendered may be recorded in a
+ * {@link ModelIndex}. If the generation was planned from the index, the
+ * progress weight of each extraction and rendering is its share of the
+ * estimated cost of the generation instead.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see Snapper#isThreadSafe()
+ */
+class GenerationScheduler {
+
+	/* Period in milliseconds at which the requests buffered by the renderer are submitted while waiting. */
+	private static final long BATCH_FLUSH_PERIOD = 200L;
+
+	private static final List<GenProfileRenderConf> NO_VARIANTS = Collections.emptyList();
+	private static final List<File> NO_FILES = Collections.emptyList();
+
+	/*
+	 * Notified once a model is extracted.
+	 */
+	private interface SnapListener {
+		void snapped(ModelNode node);
+	}
+
+	/*
+	 * A model of the graph, with the models it references once extracted.
+	 */
+	private static class ModelNode {
+		private final File mdlFile;
+		private File xmlFile = null;
+		private boolean requested = false;
+		private List<File> refMdls = null;
+		private List<ModelNode> refNodes = null;
+		private List<SnapListener> listeners = new ArrayList<SnapListener>(); // Null once extracted.
+
+		ModelNode(File mdlFile) {
+			this.mdlFile = mdlFile;
+		}
+	}
+
+	/*
+	 * Extracts the whole hierarchy below a model, each model once, then runs a task.
+	 */
+	private class SubtreeSnap {
+		private final Set<ModelNode> visited = new HashSet<ModelNode>();
+		private final Runnable task;
+		private int remaining = 0;
+
+		SubtreeSnap(Runnable task) {
+			this.task = task;
+		}
+
+		/*
+		 * Extracts the given models and their references, the models not already visited sharing the given weight.
+		 */
+		void snapAll(List<File> mdlFiles, double waitInc) {
+			List<File> newMdls = new ArrayList<File>(mdlFiles.size());
+			synchronized(GenerationScheduler.this) {
+				for(File mdlFile : mdlFiles)
+					if(visited.add(getNode(mdlFile)))
+						newMdls.add(mdlFile);
+				remaining += newMdls.size();
+			}
+			if(newMdls.isEmpty()) {
+				progress(waitInc);
+				return;
+			}
+			final double mdlWaitInc = waitInc / newMdls.size();
+			for(File mdlFile : newMdls) {
+				snap(mdlFile, mdlWaitInc/3, new SnapListener() {
+					public void snapped(ModelNode node) {
+						snapAll(node.refMdls, 2*mdlWaitInc/3);
+						boolean done;
+						synchronized(GenerationScheduler.this) {
+							done = --remaining == 0;
+						}
+						if(done)
+							task.run();
+					}
+				});
+			}
+		}
+	}
+
+	/*
+	 * The monitor of a document, releasing the permit of its request once all
+	 * the documents of the request finished if the renderings are limited, which
+	 * posts the next request queued, and
+	 * recording the duration of its rendering in the index if any.
+	 */
+	private class DocumentMonitor implements IProgressMonitor {
+		private final IProgressMonitor delegate;
+		private final File outFile;
+		private final long outModified; // To only record the documents actually written, not the ones skipped.
+		private final int[] remaining; // Documents of the request not finished, shared by their monitors, null if not limited.
+		private long startTime = System.currentTimeMillis();
+		private boolean finished = false;
+		DocumentMonitor(IProgressMonitor delegate, File outFile, int[] remaining) {
+			this.delegate = delegate;
+			this.outFile = outFile;
+			this.outModified = outFile.lastModified();
+			this.remaining = remaining;
+		}
+		public void start(String message, double totalWork) {
+			startTime = System.currentTimeMillis();
+			delegate.start(message, totalWork);
+		}
+		public void progress(double work) {
+			delegate.progress(work);
+		}
+		public void progress(String description) {
+			delegate.progress(description);
+		}
+		public void progress(String description, double work) {
+			delegate.progress(description, work);
+		}
+		public void requestCancel() {
+			delegate.requestCancel();
+		}
+		public boolean isRunning() {
+			return delegate.isRunning();
+		}
+		public void checkCanceled() throws CancellationException {
+			delegate.checkCanceled();
+		}
+		public boolean isCanceled() {
+			return delegate.isCanceled();
+		}
+		public boolean isFinished() {
+			return delegate.isFinished();
+		}
+		public boolean hasError() {
+			return delegate.hasError();
+		}
+		public void finish(String message) {
+			finish(message, null);
+		}
+		public void finish(String message, Exception e) {
+			if(index != null && e == null && outFile.lastModified() != outModified)
+				index.updateDocument(outFile, System.currentTimeMillis() - startTime);
+			delegate.finish(message, e);
+			release();
+		}
+		public void waitFinish() throws InterruptedException {
+			delegate.waitFinish();
+		}
+		public IProgressMonitor createSubProgress(String name, double parentWorkUnits) {
+			return delegate.createSubProgress(name, parentWorkUnits);
+		}
+		public void waitSubProgessFinish() throws InterruptedException {
+			delegate.waitSubProgessFinish();
+		}
+		private void release() {
+			if(remaining == null)
+				return;
+			synchronized(remaining) {
+				if(finished)
+					return;
+				finished = true;
+				if(--remaining[0] > 0)
+					return;
+			}
+			releaseRender();
+		}
+	}
+
+	private final Snapper snapper;
+	private final GenProfileSnapConf snapConf;
+	private final Renderer renderer;
+	private final IProgressMonitor mon;
+	private final ExecutorService service; // Null if the snapper isn't thread-safe.
+	private final Map<File, ModelNode> nodes = new HashMap<File, ModelNode>();
+	private final Set<File> documents = new HashSet<File>();
+	private final LinkedList<Runnable> queue = new LinkedList<Runnable>(); // Extractions run by await() if the snapper isn't thread-safe.
+	private int pending = 0;
+	private volatile boolean failed = false;
+	private RuntimeException error = null;
+	private int renderPermits = -1; // Render requests which can still be posted, -1 if the renderings aren't limited.
+	private final LinkedList<Runnable> pendingRenders = new LinkedList<Runnable>(); // Render requests waiting for a permit.
+	private ModelIndex index = null;
+	private GenerationPlan plan = null;
+	private double planWaitInc = 0.0; // Work units shared by the extractions and renderings planned.
+
+	/**
+	 * Creates a scheduler for the generation of a hierarchy.
+	 *
+	 * @param snapper
+	 *            The snapper extracting the models.
+	 * @param snapConf
+	 *            The extraction configuration of the generation profile.
+	 * @param renderer
+	 *            The renderer to which the documents are posted.
+	 * @param mon
+	 *            The progress monitor of the generation, from which the
+	 *            extractions and the renderings create their sub-monitors.
+	 * @param snapThreads
+	 *            The number of models extracted simultaneously if the snapper
+	 *            is thread-safe.
+	 */
+	GenerationScheduler(Snapper snapper, GenProfileSnapConf snapConf, Renderer renderer, IProgressMonitor mon, int snapThreads) {
+		this.snapper = snapper;
+		this.snapConf = snapConf;
+		this.renderer = renderer;
+		this.mon = mon;
+		if(snapper.isThreadSafe()) {
+			service = Executors.newFixedThreadPool(snapThreads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "SydSnapThread");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		} else {
+			service = null;
+		}
+	}
+
+	/**
+	 * Limits the number of render requests posted and not finished yet, the
+	 * requests beyond the limit being queued until requests finish.
+	 * <p>
+	 * Must be called before any generation is scheduled. If the renderer
+	 * buffers the requests in a batch, the batch must be flushed by
+	 * {@link #await()} for the requests posted to finish.
+	 *
+	 * @param maxRenders
+	 *            The maximum number of requests, no limit if 0.
+	 */
+	synchronized void setMaxRenders(int maxRenders) {
+		renderPermits = maxRenders > 0 ? maxRenders : -1;
+	}
+
+	/**
+	 * Records the models extracted and the documents rendered in an index.
+	 * <p>
+	 * Must be called before any generation is scheduled.
+	 *
+	 * @param index
+	 *            The index of the models.
+	 */
+	void setIndex(ModelIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Weights the extractions and the renderings by their share of the
+	 * estimated cost of the generation, instead of sharing the weight of each
+	 * model between the models it references.
+	 * <p>
+	 * Must be called before any generation is scheduled. The models and
+	 * documents which weren't planned aren't weighted.
+	 *
+	 * @param plan
+	 *            The plan of the generation, which must be complete.
+	 * @param waitInc
+	 *            The work units of the extractions and renderings planned
+	 *            in the progress monitor.
+	 */
+	void setPlan(GenerationPlan plan, double waitInc) {
+		this.plan = plan;
+		this.planWaitInc = waitInc;
+	}
+
+	/**
+	 * Adds a model already extracted to the graph, so that it isn't extracted
+	 * again if it is referenced by the hierarchy.
+	 *
+	 * @param mdlFile
+	 *            The model file.
+	 * @param xmlFile
+	 *            The XML file extracted from the model.
+	 * @param refMdls
+	 *            The models referenced by the model.
+	 * @return False if the references of the model close a cycle, the error
+	 *         being reported to the progress monitor, true otherwise.
+	 */
+	boolean addModel(File mdlFile, File xmlFile, List<File> refMdls) {
+		List<ModelNode> cycle;
+		synchronized(this) {
+			ModelNode node = getNode(mdlFile);
+			node.requested = true;
+			node.xmlFile = xmlFile;
+			node.refMdls = refMdls;
+			node.listeners = null;
+			cycle = link(node, refMdls);
+		}
+		if(cycle != null) {
+			reportCycle(cycle);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Schedules the generation of a root model with the render configurations
+	 * of a profile, the model being extracted by the scheduler.
+	 *
+	 * @param mdlFile
+	 *            The model file.
+	 * @param renderConfs
+	 *            The render configurations of the profile.
+	 * @param snapWaitInc
+	 *            The work units of the extraction of the model in the
+	 *            progress monitor.
+	 * @param renderWaitInc
+	 *            The work units of the generation of the hierarchy in the
+	 *            progress monitor.
+	 */
+	void scheduleRoot(final File mdlFile, final GenProfileRenderConf[] renderConfs, double snapWaitInc, final double renderWaitInc) {
+		snap(mdlFile, snapWaitInc, new SnapListener() {
+			public void snapped(ModelNode node) {
+				scheduleConfs(mdlFile, node.xmlFile, node.refMdls, renderConfs, renderWaitInc);
+			}
+		});
+	}
+
+	/**
+	 * Schedules the generation of an extracted model with the render
+	 * configurations of a profile.
+	 * <p>
+	 * The configurations rendering the same content, only with other security
+	 * options or outputs, share a single render request.
+	 *
+	 * @param mdlFile
+	 *            The model file.
+	 * @param xmlFile
+	 *            The XML file extracted from the model.
+	 * @param refMdls
+	 *            The models referenced by the model.
+	 * @param renderConfs
+	 *            The render configurations of the profile.
+	 * @param waitInc
+	 *            The work units of the generation in the progress monitor.
+	 */
+	void scheduleConfs(File mdlFile, File xmlFile, List<File> refMdls, GenProfileRenderConf[] renderConfs, double waitInc) {
+		boolean[] shared = new boolean[renderConfs.length];
+		for(int i=0; i<renderConfs.length; i++) { // Iterate through the rendering confs defined by the profile.
+			if(shared[i])
+				continue;
+			GenProfileRenderConf renderConf = renderConfs[i];
+			File parDir = mdlFile.getParentFile();
+			File outFile = renderConf.computeOutput(mdlFile, parDir);
+			File refParDir = renderConf.getSubParentDir(outFile, parDir);
+			
+			// Looks for the following confs rendering the same content, only with other security options or outputs.
+			List<GenProfileRenderConf> variantConfs = new ArrayList<GenProfileRenderConf>();
+			List<File> variantOutFiles = new ArrayList<File>();
+			if(renderConf.getGenDependencies() != GenProfileRenderConf.GENDEP_SEPDOCS) {
+				String[] xslParams = renderConf.getStyleParams(xmlFile, outFile, refMdls, refParDir, null);
+				for(int j=i+1; j<renderConfs.length; j++) {
+					GenProfileRenderConf otherConf = renderConfs[j];
+					File otherOutFile = otherConf.computeOutput(mdlFile, parDir);
+					if(!shared[j] && isSameContent(renderConf, outFile, xslParams, otherConf, otherOutFile, xmlFile, refMdls, parDir)) {
+						shared[j] = true;
+						variantConfs.add(otherConf);
+						variantOutFiles.add(otherOutFile);
+					}
+				}
+			}
+			
+			schedule(renderConf, variantConfs, xmlFile, outFile, variantOutFiles, refMdls, refParDir,
+					(1 + variantConfs.size()) * waitInc / renderConfs.length);
+		}
+	}
+
+	/**
+	 * Schedules the generation of an extracted model with a render
+	 * configuration, and of the models it references if required by the
+	 * configuration.
+	 * <p>
+	 * The document of the model is posted right away, unless it embeds the
+	 * referenced models or it is already generated. The referenced models are
+	 * extracted by the scheduler.
+	 *
+	 * @param renderConf
+	 *            The render configuration.
+	 * @param variantConfs
+	 *            The render configurations producing the same content as
+	 *            <code>renderConf</code>, only with other security options or
+	 *            outputs.
+	 * @param xmlFile
+	 *            The XML file extracted from the model.
+	 * @param outFile
+	 *            The document to generate.
+	 * @param variantOutFiles
+	 *            The documents to generate with the variant configurations.
+	 * @param refMdls
+	 *            The models referenced by the model.
+	 * @param subParDir
+	 *            The parent directory of the generation of the referenced
+	 *            models.
+	 * @param waitInc
+	 *            The work units of the generation in the progress monitor.
+	 */
+	void schedule(GenProfileRenderConf renderConf, List<GenProfileRenderConf> variantConfs, File xmlFile, File outFile,
+			List<File> variantOutFiles, List<File> refMdls, File subParDir, double waitInc) {
+		if(claim(outFile))
+			generate(renderConf, variantConfs, xmlFile, outFile, variantOutFiles, refMdls, subParDir, waitInc);
+		else
+			progress(waitInc);
+	}
+
+	/**
+	 * Waits for all the models scheduled to be extracted and their documents
+	 * to be posted to the renderer, performing the extractions if the snapper
+	 * isn't thread-safe. The requests queued by the limit of renderings are
+	 * waited for until they are posted.
+	 * <p>
+	 * If a batch of the renderer is started, the requests it buffers are
+	 * submitted before each extraction performed, and periodically while
+	 * waiting, so that the renderings start while the hierarchy is still
+	 * extracted. The batch is left open, the requests posted last being
+	 * submitted when it ends.
+	 * <p>
+	 * The scheduler can't be used anymore once this method returned.
+	 *
+	 * @return False if an extraction failed, a cycle was found or the
+	 *         generation was canceled, true otherwise.
+	 */
+	boolean await() {
+		try {
+			long nextFlush = System.currentTimeMillis() + BATCH_FLUSH_PERIOD;
+			while(true) {
+				Runnable task;
+				synchronized(this) {
+					task = queue.poll();
+					if(task == null) {
+						if(pending == 0)
+							break;
+						long delay = nextFlush - System.currentTimeMillis();
+						if(delay > 0) {
+							try {
+								wait(delay);
+							} catch (InterruptedException e) {
+								failed = true;
+								Thread.currentThread().interrupt();
+								break;
+							}
+						}
+					}
+				}
+				// The documents posted so far don't wait for the next extraction.
+				if(task != null || System.currentTimeMillis() >= nextFlush) {
+					renderer.flushBatch();
+					nextFlush = System.currentTimeMillis() + BATCH_FLUSH_PERIOD;
+				}
+				if(task != null)
+					task.run();
+			}
+		} finally {
+			if(service != null)
+				service.shutdown();
+		}
+		synchronized(this) {
+			if(error != null)
+				throw error;
+		}
+		return !failed && !mon.isCanceled();
+	}
+
+	/*
+	 * Generates an extracted model whose document was claimed, and the models it references if required.
+	 */
+	private void generate(GenProfileRenderConf renderConf, final List<GenProfileRenderConf> variantConfs, final File xmlFile, final File outFile,
+			final List<File> variantOutFiles, List<File> refMdls, final File subParDir, double waitInc) {
+		if(isStopped())
+			return;
+
+		// Prepare the rendering.
+		List<File> subOutFiles = new ArrayList<File>(refMdls.size());
+		final String[] xslParams = renderConf.getStyleParams(xmlFile, outFile, refMdls, subParDir, subOutFiles);
+
+		switch(renderConf.getGenDependencies()) {
+			case GenProfileRenderConf.GENDEP_SEPDOCS:
+				// Only the documents not generated yet share the weight of the model.
+				List<Integer> newRefs = new ArrayList<Integer>(refMdls.size());
+				for(int i=0; i<refMdls.size(); i++)
+					if(claim(subOutFiles.get(i)))
+						newRefs.add(i);
+				double newWaitInc = waitInc / (1.0 + 3.0*newRefs.size());
+				asyncRender(renderConf, variantConfs, xmlFile, xslParams, outFile, variantOutFiles, newWaitInc);
+				final double subWaitInc = 2.0*newWaitInc;
+				for(int i : newRefs) { // The referenced models are generated as soon as they are extracted.
+					File subMdlFile = refMdls.get(i);
+					final GenProfileRenderConf subRenderConf = renderConf.getSubRenderConf(subMdlFile);
+					final File subOutFile = subOutFiles.get(i);
+					final File subRefParDir = subRenderConf.getSubParentDir(subOutFile, subParDir);
+					snap(subMdlFile, newWaitInc, new SnapListener() {
+						public void snapped(ModelNode node) {
+							generate(subRenderConf, NO_VARIANTS, node.xmlFile, subOutFile, NO_FILES, node.refMdls, subRefParDir, subWaitInc);
+						}
+					});
+				}
+				break;
+
+			case GenProfileRenderConf.GENDEP_EMBED:
+				if(refMdls.isEmpty()) {
+					asyncRender(renderConf, variantConfs, xmlFile, xslParams, outFile, variantOutFiles, waitInc);
+					break;
+				}
+				newWaitInc = waitInc / (1.0 + refMdls.size());
+				final GenProfileRenderConf embedConf = renderConf;
+				final double renderWaitInc = newWaitInc;
+				new SubtreeSnap(new Runnable() { // The document is rendered once the whole hierarchy is extracted.
+					public void run() {
+						asyncRender(embedConf, variantConfs, xmlFile, xslParams, outFile, variantOutFiles, renderWaitInc);
+					}
+				}).snapAll(refMdls, refMdls.size()*newWaitInc);
+				break;
+
+			default:
+				asyncRender(renderConf, variantConfs, xmlFile, xslParams, outFile, variantOutFiles, waitInc);
+		}
+	}
+
+	/*
+	 * Checks if two rendering confs produce the same content from a model, i.e. if they only differ by
+	 * the security options or the output of their documents.
+	 */
+	private static boolean isSameContent(GenProfileRenderConf renderConf, File outFile, String[] xslParams,
+			GenProfileRenderConf otherConf, File otherOutFile, File xmlFile, List<File> refMdls, File parDir) {
+		if(otherConf.getGenDependencies() != renderConf.getGenDependencies()
+				|| !otherConf.getStyle().equals(renderConf.getStyle())
+				|| otherOutFile.equals(outFile)
+				|| !getExtension(otherOutFile).equals(getExtension(outFile)))
+			return false;
+		String[] otherXslParams = otherConf.getStyleParams(xmlFile, otherOutFile, refMdls, otherConf.getSubParentDir(otherOutFile, parDir), null);
+		return Arrays.equals(xslParams, otherXslParams);
+	}
+	
+	/*
+	 * Returns the extension of a file, giving the format of the document.
+	 */
+	private static String getExtension(File file) {
+		String fileName = file.getName();
+		return fileName.substring(fileName.lastIndexOf('.') + 1);
+	}
+
+	/*
+	 * Checks if the scheduling must stop, after an extraction failed or a cancellation.
+	 */
+	private boolean isStopped() {
+		return failed || mon.isCanceled();
+	}
+
+	/*
+	 * Reports the weight of a model or document already accounted for, unless the weights are given by the plan.
+	 */
+	private void progress(double waitInc) {
+		if(plan == null)
+			mon.progress(waitInc);
+	}
+
+	/*
+	 * Gets the weight of the extraction of a model, its share of the plan if any.
+	 */
+	private double getSnapWaitInc(File mdlFile, double waitInc) {
+		return plan != null ? planWaitInc * plan.getSnapShare(mdlFile) : waitInc;
+	}
+
+	/*
+	 * Gets the node of a model, adding it to the graph if needed. Must be called with the lock held.
+	 */
+	private ModelNode getNode(File mdlFile) {
+		File canonicalFile = Utils.getCanonicalFile(mdlFile);
+		ModelNode node = nodes.get(canonicalFile);
+		if(node == null) {
+			node = new ModelNode(canonicalFile);
+			nodes.put(canonicalFile, node);
+		}
+		return node;
+	}
+
+	/*
+	 * Claims the generation of a document, returning false if it is already generated.
+	 */
+	private synchronized boolean claim(File outFile) {
+		return documents.add(Utils.getCanonicalFile(outFile));
+	}
+
+	/*
+	 * Adds the references of an extracted model to the graph, returning the cycle they close or null.
+	 * Must be called with the lock held.
+	 */
+	private List<ModelNode> link(ModelNode node, List<File> refMdls) {
+		node.refNodes = new ArrayList<ModelNode>(refMdls.size());
+		for(File refMdlFile : refMdls) {
+			ModelNode refNode = getNode(refMdlFile);
+			node.refNodes.add(refNode);
+			List<ModelNode> path = findPath(refNode, node);
+			if(path != null) {
+				path.add(0, node);
+				return path;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Finds a path of references from a model to another one in the graph extracted so far.
+	 */
+	private static List<ModelNode> findPath(ModelNode from, ModelNode to) {
+		Map<ModelNode, ModelNode> parents = new HashMap<ModelNode, ModelNode>();
+		LinkedList<ModelNode> stack = new LinkedList<ModelNode>();
+		parents.put(from, null);
+		stack.push(from);
+		while(!stack.isEmpty()) {
+			ModelNode node = stack.pop();
+			if(node == to) {
+				LinkedList<ModelNode> path = new LinkedList<ModelNode>();
+				for(ModelNode pathNode = node; pathNode != null; pathNode = parents.get(pathNode))
+					path.addFirst(pathNode);
+				return path;
+			}
+			if(node.refNodes != null) {
+				for(ModelNode refNode : node.refNodes) {
+					if(!parents.containsKey(refNode)) {
+						parents.put(refNode, node);
+						stack.push(refNode);
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Reports a cycle of references as an error of the generation.
+	 */
+	private void reportCycle(List<ModelNode> cycle) {
+		failed = true;
+		StringBuilder path = new StringBuilder();
+		for(ModelNode node : cycle) {
+			if(path.length() > 0)
+				path.append(" > ");
+			path.append(node.mdlFile.getName());
+		}
+		IProgressMonitor cycleMon = mon.createSubProgress("Checking model references...", 0.0);
+		cycleMon.start("Checking model references...", 1.0);
+		cycleMon.finish(null, new Exception("Models reference each other in a cycle: " + path));
+	}
+
+	/*
+	 * Extracts a model, unless it is already or being extracted, and notifies the listener once it is extracted.
+	 */
+	private synchronized void snap(File mdlFile, final double waitInc, final SnapListener listener) {
+		final ModelNode node = getNode(mdlFile);
+		if(!node.requested) {
+			node.requested = true;
+			node.xmlFile = snapper.getDefaultSnapFile(node.mdlFile);
+			node.listeners.add(listener);
+			submit(new Runnable() {
+				public void run() {
+					long startTime = System.currentTimeMillis();
+					List<File> refMdls = snapper.snap(node.mdlFile, snapConf.isFollowingLinks(), snapConf.isLookingUnderMasks(), snapConf.getParams(), node.xmlFile,
+							mon.createSubProgress("Extracting data from model \"" + node.mdlFile.getName() + "\"...", getSnapWaitInc(node.mdlFile, waitInc)));
+					if(refMdls == null) {
+						failed = true;
+						return;
+					}
+					if(index != null)
+						index.updateModel(node.mdlFile, node.xmlFile, refMdls, System.currentTimeMillis() - startTime);
+					List<SnapListener> listeners;
+					List<ModelNode> cycle;
+					synchronized(GenerationScheduler.this) {
+						node.refMdls = refMdls;
+						listeners = node.listeners;
+						node.listeners = null;
+						cycle = link(node, refMdls);
+					}
+					if(cycle != null) {
+						reportCycle(cycle);
+						return;
+					}
+					for(SnapListener listener : listeners)
+						listener.snapped(node);
+				}
+			});
+		} else {
+			final SnapListener reuseListener = new SnapListener() { // The weight of the extraction is reported without extracting again.
+				public void snapped(ModelNode node) {
+					progress(waitInc);
+					listener.snapped(node);
+				}
+			};
+			if(node.refMdls == null) {
+				if(node.listeners != null)
+					node.listeners.add(reuseListener);
+			} else {
+				submit(new Runnable() {
+					public void run() {
+						reuseListener.snapped(node);
+					}
+				});
+			}
+		}
+	}
+
+	/*
+	 * Submits a task to the pool of extraction threads, or to the queue run by await() if the snapper isn't thread-safe.
+	 */
+	private synchronized void submit(final Runnable task) {
+		pending++;
+		Runnable job = new Runnable() {
+			public void run() {
+				try {
+					if(!isStopped())
+						task.run();
+				} catch (RuntimeException e) {
+					synchronized(GenerationScheduler.this) {
+						if(error == null)
+							error = e;
+					}
+					failed = true;
+				} finally {
+					synchronized(GenerationScheduler.this) {
+						pending--;
+						GenerationScheduler.this.notifyAll();
+					}
+				}
+			}
+		};
+		if(service != null)
+			service.execute(job);
+		else
+			queue.add(job);
+	}
+
+	/*
+	 * Posts a render request if the concurrency limit allows it, or queues it until a request finishes otherwise.
+	 */
+	private void acquireRender(Runnable request) {
+		synchronized(this) {
+			if(renderPermits == 0) {
+				pending++; // Awaited until posted.
+				pendingRenders.add(request);
+				return;
+			}
+			renderPermits--;
+		}
+		request.run();
+	}
+
+	/*
+	 * Releases the permit of a finished render request, handing it over to the first request queued if any, which is
+	 * submitted right away if the renderer buffers the requests in a batch. The requests queued are dropped if the
+	 * generation stopped.
+	 */
+	private void releaseRender() {
+		while(true) {
+			Runnable request;
+			synchronized(this) {
+				request = pendingRenders.poll();
+				if(request == null) {
+					renderPermits++;
+					return;
+				}
+			}
+			boolean posted = false;
+			try {
+				if(!isStopped()) {
+					request.run();
+					renderer.flushBatch();
+					posted = true;
+				}
+			} catch (RuntimeException e) {
+				synchronized(this) {
+					if(error == null)
+						error = e;
+				}
+				failed = true;
+			} finally {
+				synchronized(this) {
+					pending--;
+					notifyAll();
+				}
+			}
+			if(posted)
+				return;
+		}
+	}
+
+	/*
+	 * Creates the monitor of a document of a render request, releasing the permit of the request if the renderings are limited
+	 * and recording the rendering in the index if any.
+	 */
+	private IProgressMonitor createRenderMonitor(File outFile, double waitInc, int[] remaining) {
+		double docWaitInc = plan != null ? planWaitInc * plan.getRenderShare(outFile) : waitInc;
+		IProgressMonitor docMon = mon.createSubProgress("Rendering document \"" + outFile.getName() + "\"...", docWaitInc);
+		return remaining != null || index != null ? new DocumentMonitor(docMon, outFile, remaining) : docMon;
+	}
+
+	/*
+	 * Posts the request to render a document and the variants sharing its content.
+	 */
+	private void asyncRender(final GenProfileRenderConf renderConf, final List<GenProfileRenderConf> variantConfs,
+			final File xmlFile, final String[] xslParams, final File outFile, final List<File> variantOutFiles, final double waitInc) {
+		boolean limited;
+		synchronized(this) {
+			limited = renderPermits >= 0;
+		}
+		if(limited) {
+			final int[] remaining = new int[] {1 + variantConfs.size()};
+			acquireRender(new Runnable() {
+				public void run() {
+					postRender(renderConf, variantConfs, xmlFile, xslParams, outFile, variantOutFiles, waitInc, remaining);
+				}
+			});
+		} else {
+			postRender(renderConf, variantConfs, xmlFile, xslParams, outFile, variantOutFiles, waitInc, null);
+		}
+	}
+
+	/*
+	 * Posts the request to render a document and the variants sharing its content, with the count of the documents of the
+	 * request not finished if the renderings are limited.
+	 */
+	private void postRender(GenProfileRenderConf renderConf, List<GenProfileRenderConf> variantConfs,
+			File xmlFile, String[] xslParams, File outFile, List<File> variantOutFiles, double waitInc, int[] remaining) {
+		if(variantConfs.isEmpty()) {
+			renderer.asyncRender(xmlFile, renderConf.getStyle(), xslParams, outFile, renderConf.getSecurityOptions(),
+					renderConf.getPostGenAction() == GenProfileRenderConf.ACTION_OPEN,
+					createRenderMonitor(outFile, waitInc, remaining));
+		} else {
+			int numDocs = 1 + variantConfs.size();
+			File[] outFiles = new File[numDocs];
+			PdfSecurityOptions[] secOptions = new PdfSecurityOptions[numDocs];
+			boolean[] open = new boolean[numDocs];
+			IProgressMonitor[] mons = new IProgressMonitor[numDocs];
+			for(int i=0; i<numDocs; i++) {
+				GenProfileRenderConf docConf = i == 0 ? renderConf : variantConfs.get(i-1);
+				outFiles[i] = i == 0 ? outFile : variantOutFiles.get(i-1);
+				secOptions[i] = docConf.getSecurityOptions();
+				open[i] = docConf.getPostGenAction() == GenProfileRenderConf.ACTION_OPEN;
+				mons[i] = createRenderMonitor(outFiles[i], waitInc / numDocs, remaining);
+			}
+			renderer.asyncRender(xmlFile, renderConf.getStyle(), xslParams, outFiles, secOptions, open, mons);
+		}
+	}
+
+}
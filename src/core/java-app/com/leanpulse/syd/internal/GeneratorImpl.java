@@ -7,13 +7,13 @@ package com.leanpulse.syd.internal;
 import java.awt.Toolkit;
 import java.awt.Window;
 import java.io.File;
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import javax.swing.JOptionPane;
 
 import com.leanpulse.syd.api.GenProfile;
-import com.leanpulse.syd.api.GenProfileRenderConf;
 import com.leanpulse.syd.api.GenProfileSnapConf;
 import com.leanpulse.syd.api.Generator;
 import com.leanpulse.syd.api.Renderer;
@@ -59,19 +59,28 @@ public class GeneratorImpl extends Generator {
 		if(snapper != null) { // SyD may have been started outside a modeling environment.
 			File xmlFile = snapper.getDefaultSnapFile(mdlFile);
 			GenProfileSnapConf snapConf = profile.getSnapConf();
+			long snapStartTime = System.currentTimeMillis();
 			List<File> refMdls = snapper.snap(mdlFile, snapConf.isFollowingLinks(), snapConf.isLookingUnderMasks(), snapConf.getParams(), xmlFile, snapSubMon);
 			
 			if(refMdls != null) { // The XML data extraction from the model succeed.
+				ModelIndex index = ModelIndex.getDefault();
+				index.updateModel(mdlFile, xmlFile, refMdls, System.currentTimeMillis() - snapStartTime);
+				
 				Renderer renderer = RendererManager.getRenderer(mon.createSubProgress("Preparing to render documents...", 5.0));
 				
-				if(!mon.isCanceled()) {
-					GenProfileRenderConf[] rendererConfs = profile.getRenderConfs();
-					for(GenProfileRenderConf renderConf : rendererConfs) { // Iterate through the rendering confs defined by the profile.
-						File parDir = mdlFile.getParentFile();
-						File outFile = renderConf.computeOutput(mdlFile, parDir);
-						File refParDir = renderConf.getSubParentDir(outFile, parDir);
-						if(!render(snapConf, renderer, renderConf, xmlFile, outFile, refMdls, refParDir, mon, 70.0 / rendererConfs.length))
-							break;
+				int numProcs = Runtime.getRuntime().availableProcessors();
+				GenerationScheduler scheduler = new GenerationScheduler(snapper, snapConf, renderer, mon, numProcs);
+				scheduler.setIndex(index);
+				plan(scheduler, index, Collections.singleton(mdlFile), profile, snapper.isThreadSafe() ? numProcs : 1, numProcs, 70.0, mon);
+				if(scheduler.addModel(mdlFile, xmlFile, refMdls) && !mon.isCanceled()) {
+					renderer.beginBatch(); // Submits the documents in batches, flushed while the scheduler runs.
+					try {
+						scheduler.scheduleConfs(mdlFile, xmlFile, refMdls, profile.getRenderConfs(), 70.0);
+						
+						// Extracts the referenced models, their documents being posted as soon as their XML is ready.
+						scheduler.await();
+					} finally {
+						renderer.endBatch();
 					}
 				}
 				
@@ -79,12 +88,119 @@ public class GeneratorImpl extends Generator {
 				try {
 					mon.waitSubProgessFinish();
 				} catch (InterruptedException e) {}
+				index.save(ModelIndex.getIndexFile());
 			}
 		} else {
 			mon.finish(null, new Exception("Current classpath doesn't include any implementation of MdlSnapper !!"));
 		}
 		
-		// Checks if one of the main or sub-tasks finished with an error.
+		return finish(mon, startTime);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Generator#generateAll(java.util.Collection, com.leanpulse.syd.api.GenProfile, com.leanpulse.syd.api.progress.IProgressMonitor)
+	 */
+	@Override
+	public boolean generateAll(Collection<File> mdlFiles, GenProfile profile, IProgressMonitor mon) {
+		mon.start("Initializing...", 100.0);
+		long startTime = System.currentTimeMillis();
+		
+		Snapper snapper = SnapperManager.getSnapper();
+		if(snapper != null) {
+			Renderer renderer = RendererManager.getRenderer(mon.createSubProgress("Preparing to render documents...", 5.0));
+			scheduleAll(snapper, renderer, mdlFiles, profile, Runtime.getRuntime().availableProcessors(), getMaxRenders(), mon);
+		} else {
+			mon.finish(null, new Exception("Current classpath doesn't include any implementation of MdlSnapper !!"));
+		}
+		
+		return finish(mon, startTime);
+	}
+	
+	/**
+	 * Generates the hierarchies of several root models in a single batch,
+	 * and waits for their documents to be rendered.
+	 * <p>
+	 * The monitor must be started, 95 work units being reported for the
+	 * extractions and the renderings. It isn't finished.
+	 * <p>
+	 * The generation is planned from the index of the models, which is
+	 * updated and saved once the documents are rendered.
+	 * 
+	 * @param snapper
+	 *            The snapper extracting the models.
+	 * @param renderer
+	 *            The renderer to which the documents are posted.
+	 * @param mdlFiles
+	 *            The root model files.
+	 * @param profile
+	 *            The generation profile.
+	 * @param snapThreads
+	 *            The number of models extracted simultaneously if the snapper
+	 *            is thread-safe.
+	 * @param maxRenders
+	 *            The maximum number of render requests posted at once, no
+	 *            limit if 0.
+	 * @param mon
+	 *            The progress monitor of the generation.
+	 */
+	static void scheduleAll(Snapper snapper, Renderer renderer, Collection<File> mdlFiles, GenProfile profile, int snapThreads, int maxRenders, IProgressMonitor mon) {
+		ModelIndex index = ModelIndex.getDefault();
+		if(!mon.isCanceled() && !mdlFiles.isEmpty()) {
+			// The extractions and documents shared by the hierarchies are only generated once.
+			GenerationScheduler scheduler = new GenerationScheduler(snapper, profile.getSnapConf(), renderer, mon, snapThreads);
+			scheduler.setMaxRenders(maxRenders);
+			scheduler.setIndex(index);
+			plan(scheduler, index, mdlFiles, profile, snapper.isThreadSafe() ? snapThreads : 1,
+					maxRenders > 0 ? maxRenders : Runtime.getRuntime().availableProcessors(), 95.0, mon);
+			renderer.beginBatch(); // Submits the documents in batches, flushed while the scheduler runs.
+			try {
+				for(File mdlFile : mdlFiles)
+					scheduler.scheduleRoot(mdlFile, profile.getRenderConfs(), 25.0 / mdlFiles.size(), 70.0 / mdlFiles.size());
+				scheduler.await();
+			} finally {
+				renderer.endBatch();
+			}
+		}
+		
+		// Waits for document renderings started asynchronously to finish.
+		try {
+			mon.waitSubProgessFinish();
+		} catch (InterruptedException e) {}
+		index.save(ModelIndex.getIndexFile());
+	}
+	
+	/*
+	 * Plans a generation from the index and reports the plan, the scheduler being weighted with it if it is complete.
+	 */
+	private static void plan(GenerationScheduler scheduler, ModelIndex index, Collection<File> mdlFiles, GenProfile profile,
+			int snapThreads, int renderThreads, double waitInc, IProgressMonitor mon) {
+		GenerationPlan plan = index.plan(mdlFiles, profile.getRenderConfs(), snapThreads, renderThreads);
+		IProgressMonitor planMon = mon.createSubProgress("Planning the generation...", 0.0);
+		planMon.start("Planning the generation...", 1.0);
+		planMon.finish("Generation plan: " + plan + ".");
+		if(plan.isComplete())
+			scheduler.setPlan(plan, waitInc);
+	}
+	
+	/*
+	 * Gets the maximum number of render requests of a batch generation posted at once.
+	 */
+	static int getMaxRenders() {
+		String maxRenders = System.getProperty(MAXRENDERS_PROPERTY);
+		if(maxRenders == null)
+			maxRenders = Utils.loadConfig().getProperty(MAXRENDERS_PROPERTY);
+		if(maxRenders != null) {
+			try {
+				return Integer.parseInt(maxRenders.trim());
+			} catch (NumberFormatException e) {}
+		}
+		return 2 * Runtime.getRuntime().availableProcessors();
+	}
+	
+	/*
+	 * Finishes the monitor of a generation, checking if one of the main or sub-tasks finished with an error.
+	 */
+	static boolean finish(IProgressMonitor mon, long startTime) {
 		if(mon.hasError()) {
 			mon.finish("Generation finished with error...");
 			return false;
@@ -144,74 +260,5 @@ public class GeneratorImpl extends Generator {
 		}, "SydGenerationThread");
 		genThread.start();
 	}
-	
-	/*
-	 * Renders the model just extracted and loops in the children if required by the profile.
-	 */
-	private boolean render(GenProfileSnapConf snapConf, Renderer renderer, GenProfileRenderConf renderConf,
-			File xmlFile, File outFile, List<File> refMdls, File subParDir, IProgressMonitor mon, double waitInc) {
-		if(mon.isCanceled())
-			return false;
-		
-		// Prepare the rendering.
-		List<File> subOutFiles = new ArrayList<File>(refMdls.size());
-		String[] xslParams = renderConf.getStyleParams(xmlFile, outFile, refMdls, subParDir, subOutFiles);
-		
-		switch(renderConf.getGenDependencies()) {	
-			case GenProfileRenderConf.GENDEP_SEPDOCS:
-				double newWaitInc = waitInc / (1.0 + 3.0*refMdls.size());
-				renderer.asyncRender(xmlFile, renderConf.getStyle(), xslParams, outFile, renderConf.getSecurityOptions(),
-						renderConf.getPostGenAction() == GenProfileRenderConf.ACTION_OPEN,
-						mon.createSubProgress("Rendering document \"" + outFile.getName() + "\"...", newWaitInc));
-				Snapper snapper = SnapperManager.getSnapper();
-				for(int i=0; i<refMdls.size(); i++) { // Loops in the referenced models.
-					File subMdlFile = refMdls.get(i);
-					File subXmlFile = snapper.getDefaultSnapFile(subMdlFile);
-					List<File> subRefMdls = snapper.snap(subMdlFile, snapConf.isFollowingLinks(), snapConf.isLookingUnderMasks(), snapConf.getParams(), subXmlFile,
-							mon.createSubProgress("Extracting data from model \"" + subMdlFile.getName() + "\"...", newWaitInc));
-					if(subRefMdls == null)
-						return false;
-					GenProfileRenderConf subRenderConf = renderConf.getSubRenderConf(subMdlFile);
-					File subOutFile = subOutFiles.get(i);
-					File subRefParDir = subRenderConf.getSubParentDir(subOutFile, subParDir);
-					if(!render(snapConf, renderer, subRenderConf, subXmlFile, subOutFile, subRefMdls, subRefParDir, mon, 2.0*newWaitInc))
-						return false;
-				}
-				return true;
-				
-			case GenProfileRenderConf.GENDEP_EMBED:
-				newWaitInc = waitInc / (1.0 + refMdls.size());
-				snapper = SnapperManager.getSnapper();
-				double snapWaitInc = newWaitInc;
-				while(refMdls.size() > 0) { // Loops in the referenced models.
-					List<File> subRefMdls = new ArrayList<File>();
-					for(int i=0; i<refMdls.size(); i++) {
-						File subMdlFile = refMdls.get(i);
-						File subXmlFile = snapper.getDefaultSnapFile(subMdlFile);
-						List<File> tmpRefMdls = snapper.snap(subMdlFile, snapConf.isFollowingLinks(), snapConf.isLookingUnderMasks(), snapConf.getParams(), subXmlFile,
-								mon.createSubProgress("Extracting data from model \"" + subMdlFile.getName() + "\"...", snapWaitInc/3));
-						if(tmpRefMdls == null)
-							return false;
-						subRefMdls.addAll(tmpRefMdls);
-					}
-					if(subRefMdls.size() > 0)
-						snapWaitInc = 2*snapWaitInc/(3*subRefMdls.size());
-					else
-						mon.progress(2*snapWaitInc/3);
-					refMdls = subRefMdls;
-				}
-				renderer.asyncRender(xmlFile, renderConf.getStyle(), xslParams, outFile, renderConf.getSecurityOptions(),
-						renderConf.getPostGenAction() == GenProfileRenderConf.ACTION_OPEN,
-						mon.createSubProgress("Rendering document \"" + outFile.getName() + "\"...", newWaitInc));
-				return true;
-				
-			default:
-				renderer.asyncRender(xmlFile, renderConf.getStyle(), xslParams, outFile, renderConf.getSecurityOptions(),
-						renderConf.getPostGenAction() == GenProfileRenderConf.ACTION_OPEN,
-						mon.createSubProgress("Rendering document \"" + outFile.getName() + "\"...", waitInc));
-				return true;
-		}
-	}
-	
-	
+
 }
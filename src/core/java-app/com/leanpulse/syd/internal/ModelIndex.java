@@ -0,0 +1,288 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.leanpulse.syd.api.GenProfileRenderConf;
+import com.leanpulse.syd.api.Generator;
+import com.leanpulse.syd.api.Snapper;
+
+/**
+ * Persistent index of the models generated, shared by all the generations.
+ * <p>
+ * The index maps each model, identified by its canonical path, to its XML
+ * file, the version recorded in it, the models it references and the
+ * duration of its last extraction. It also records the duration of the last
+ * rendering of each document. It is updated as the models are extracted and
+ * the documents rendered, and saved at the end of each generation.
+ * <p>
+ * From the index, a {@link GenerationPlan} of a generation is computed before
+ * any model is extracted: the hierarchies are walked through the references
+ * recorded, without the modeling tool.
+ * <p>
+ * The index is stored in the file given by the setting
+ * {@value Generator#INDEX_PROPERTY} or, by default, in the installation
+ * directory of SyD.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see GenerationPlan
+ */
+class ModelIndex implements Serializable {
+
+	private static final long serialVersionUID = -6120468342907715327L;
+
+	/**
+	 * Name of the file in which the index is stored by default.
+	 */
+	static final String INDEX_FILE_NAME = "syd-models.index";
+
+	private static ModelIndex instance;
+
+	/*
+	 * A model as it was when last extracted.
+	 */
+	static class ModelEntry implements Serializable {
+		private static final long serialVersionUID = 2210960485013470625L;
+		String xmlPath;
+		String version;
+		long mdlModified;
+		long xmlModified;
+		String[] refPaths;
+		long snapMillis = -1; // Duration of the last extraction actually performed, -1 if unknown.
+	}
+
+	/*
+	 * A document as it was when last rendered.
+	 */
+	static class DocumentEntry implements Serializable {
+		private static final long serialVersionUID = -3871250294766151874L;
+		long outModified;
+		long renderMillis;
+	}
+
+	private Map<String, ModelEntry> models = new HashMap<String, ModelEntry>();
+	private Map<String, DocumentEntry> documents = new HashMap<String, DocumentEntry>();
+
+	private transient boolean changed;
+
+	/**
+	 * Gets the index of this installation, loading it the first time.
+	 *
+	 * @return The index.
+	 */
+	static synchronized ModelIndex getDefault() {
+		if(instance == null)
+			instance = load(getIndexFile());
+		return instance;
+	}
+
+	/**
+	 * Gets the file in which the index is stored.
+	 * <p>
+	 * If no file is configured and the installation directory isn't
+	 * writable, the temporary directory is used.
+	 *
+	 * @return The index file.
+	 */
+	static File getIndexFile() {
+		String indexFile = System.getProperty(Generator.INDEX_PROPERTY);
+		if(indexFile == null)
+			indexFile = Utils.loadConfig().getProperty(Generator.INDEX_PROPERTY);
+		if(indexFile != null && indexFile.trim().length() > 0)
+			return new File(indexFile.trim());
+		File dir = new File(Utils.getRootPath());
+		if(!dir.canWrite())
+			dir = new File(System.getProperty("java.io.tmpdir"));
+		return new File(dir, INDEX_FILE_NAME);
+	}
+
+	/**
+	 * Loads the index from the given file.
+	 * <p>
+	 * An empty index is returned if the file doesn't exist or can't be read,
+	 * for instance because it was written by an incompatible version.
+	 *
+	 * @param indexFile
+	 *            The index file.
+	 * @return The index.
+	 */
+	static ModelIndex load(File indexFile) {
+		if(indexFile.exists()) {
+			ObjectInputStream in = null;
+			try {
+				in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+				return (ModelIndex) in.readObject();
+			} catch (Exception e) {
+				System.err.println("Model index \"" + indexFile + "\" can't be read and will be rebuilt.");
+			} finally {
+				try {
+					if(in != null) in.close();
+				} catch (IOException e) {}
+			}
+		}
+		return new ModelIndex();
+	}
+
+	/**
+	 * Saves the index to the given file if it changed since it was loaded.
+	 *
+	 * @param indexFile
+	 *            The index file.
+	 */
+	synchronized void save(File indexFile) {
+		if(!changed)
+			return;
+		File tmpFile = new File(indexFile.getPath() + ".tmp");
+		ObjectOutputStream out = null;
+		try {
+			out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			out.writeObject(this);
+			out.close();
+			out = null;
+			indexFile.delete();
+			if(tmpFile.renameTo(indexFile))
+				changed = false;
+		} catch (IOException e) {
+			System.err.println("Model index \"" + indexFile + "\" can't be saved: " + e.getMessage());
+		} finally {
+			try {
+				if(out != null) out.close();
+			} catch (IOException e) {}
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Records a model just extracted.
+	 * <p>
+	 * The duration is only recorded if the XML file was written by the
+	 * extraction, and not reused from a previous one.
+	 *
+	 * @param mdlFile
+	 *            The model file.
+	 * @param xmlFile
+	 *            The XML file extracted from the model.
+	 * @param refMdls
+	 *            The models referenced by the model.
+	 * @param snapMillis
+	 *            The duration of the extraction in milliseconds.
+	 */
+	synchronized void updateModel(File mdlFile, File xmlFile, List<File> refMdls, long snapMillis) {
+		String mdlPath = Utils.getCanonicalFile(mdlFile).getPath();
+		ModelEntry entry = models.get(mdlPath);
+		String xmlPath = Utils.getCanonicalFile(xmlFile).getPath();
+		long xmlModified = xmlFile.lastModified();
+		boolean extracted = entry == null || !xmlPath.equals(entry.xmlPath) || xmlModified != entry.xmlModified;
+		if(entry == null) {
+			entry = new ModelEntry();
+			models.put(mdlPath, entry);
+		}
+		entry.xmlPath = xmlPath;
+		entry.version = Snapper.readVersionFromXml(xmlFile);
+		entry.mdlModified = mdlFile.lastModified();
+		entry.xmlModified = xmlModified;
+		entry.refPaths = new String[refMdls.size()];
+		for(int i=0; i<refMdls.size(); i++)
+			entry.refPaths[i] = Utils.getCanonicalFile(refMdls.get(i)).getPath();
+		if(extracted)
+			entry.snapMillis = snapMillis;
+		changed = true;
+	}
+
+	/**
+	 * Records a document just rendered.
+	 *
+	 * @param outFile
+	 *            The document.
+	 * @param renderMillis
+	 *            The duration of the rendering in milliseconds.
+	 */
+	synchronized void updateDocument(File outFile, long renderMillis) {
+		String outPath = Utils.getCanonicalFile(outFile).getPath();
+		DocumentEntry entry = documents.get(outPath);
+		if(entry == null) {
+			entry = new DocumentEntry();
+			documents.put(outPath, entry);
+		}
+		entry.outModified = outFile.lastModified();
+		entry.renderMillis = renderMillis;
+		changed = true;
+	}
+
+	/**
+	 * Plans the generation of root models with the render configurations of
+	 * a profile.
+	 *
+	 * @param mdlFiles
+	 *            The root model files.
+	 * @param renderConfs
+	 *            The render configurations of the profile.
+	 * @param snapThreads
+	 *            The number of models extracted simultaneously, 1 if the
+	 *            snapper isn't thread-safe.
+	 * @param renderThreads
+	 *            The number of documents rendered simultaneously.
+	 * @return The plan.
+	 */
+	synchronized GenerationPlan plan(Collection<File> mdlFiles, GenProfileRenderConf[] renderConfs, int snapThreads, int renderThreads) {
+		return new GenerationPlan(this, mdlFiles, renderConfs, snapThreads, renderThreads);
+	}
+
+	/**
+	 * Gets the entry of a model. Must be called with the lock held.
+	 *
+	 * @param mdlFile
+	 *            The model file.
+	 * @return The entry, or <code>null</code> if the model isn't indexed.
+	 */
+	ModelEntry getModel(File mdlFile) {
+		return models.get(Utils.getCanonicalFile(mdlFile).getPath());
+	}
+
+	/**
+	 * Gets the entry of a document. Must be called with the lock held.
+	 *
+	 * @param outFile
+	 *            The document.
+	 * @return The entry, or <code>null</code> if the document was never
+	 *         rendered.
+	 */
+	DocumentEntry getDocument(File outFile) {
+		return documents.get(Utils.getCanonicalFile(outFile).getPath());
+	}
+
+	/**
+	 * Gets the mean duration of the extractions recorded. Must be called with
+	 * the lock held.
+	 *
+	 * @return The duration in milliseconds, or -1 if none is recorded.
+	 */
+	long getMeanSnapMillis() {
+		long total = 0;
+		int count = 0;
+		for(ModelEntry entry : models.values()) {
+			if(entry.snapMillis >= 0) {
+				total += entry.snapMillis;
+				count++;
+			}
+		}
+		return count > 0 ? total / count : -1;
+	}
+
+}
@@ -0,0 +1,212 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.internal;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.leanpulse.syd.api.progress.IProgressMonitor;
+import com.leanpulse.syd.remote.IProgressChannelRm;
+import com.leanpulse.syd.remote.IRendererRm;
+import com.leanpulse.syd.remote.ProgressEventRm;
+
+/**
+ * The channel through which the rendering server reports the progress of all
+ * the jobs of this client.
+ * <p>
+ * A single remote object is exported while jobs are running and unexported
+ * once the last one finished. The monitors of the jobs are checked
+ * periodically to push their cancellation to the server.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+class ProgressChannelServer extends UnicastRemoteObject implements IProgressChannelRm {
+
+	private static final long serialVersionUID = 2217405393517232381L;
+
+	/* Period in milliseconds at which the cancellation of the jobs is checked. */
+	private static final long CANCEL_CHECK_PERIOD = 250L;
+
+	private static ProgressChannelServer instance = null;
+
+	/**
+	 * Registers the monitors of jobs on the channel, exporting it if
+	 * required.
+	 *
+	 * @param mons
+	 *            The monitors of the jobs.
+	 * @param monIds
+	 *            The array filled with the identifiers of the monitors.
+	 * @param server
+	 *            The server rendering the jobs, to which their cancellation
+	 *            is pushed.
+	 * @return The channel.
+	 * @throws RemoteException
+	 *             If the channel can't be exported.
+	 */
+	static synchronized ProgressChannelServer register(IProgressMonitor[] mons, String[] monIds, IRendererRm server) throws RemoteException {
+		if(instance == null)
+			instance = new ProgressChannelServer();
+		synchronized(instance) {
+			for(int i=0; i<mons.length; i++) {
+				monIds[i] = Integer.toString(instance.nextId++);
+				instance.monitors.put(monIds[i], mons[i]);
+				instance.jobServers.put(monIds[i], server);
+			}
+		}
+		return instance;
+	}
+
+	/*
+	 * Unexports the channel if no more jobs are running.
+	 */
+	private static synchronized void release(ProgressChannelServer channel) {
+		synchronized(channel) {
+			if(!channel.jobServers.isEmpty())
+				return;
+			channel.cancelCheckTimer.cancel();
+			try {
+				unexportObject(channel, true);
+			} catch (NoSuchObjectException e) {}
+		}
+		if(instance == channel)
+			instance = null;
+	}
+
+	private final Map<String, IProgressMonitor> monitors = new HashMap<String, IProgressMonitor>();
+	private final Map<String, IRendererRm> jobServers = new HashMap<String, IRendererRm>();
+	private final Set<String> canceledIds = new HashSet<String>();
+	private final Timer cancelCheckTimer;
+	private int nextId = 0;
+
+	private ProgressChannelServer() throws RemoteException {
+		super();
+		cancelCheckTimer = new Timer("Render Cancel Check", true);
+		cancelCheckTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				checkCanceled();
+			}
+		}, CANCEL_CHECK_PERIOD, CANCEL_CHECK_PERIOD);
+	}
+
+	/**
+	 * Unregisters the monitors of jobs that couldn't be started.
+	 *
+	 * @param monIds
+	 *            The identifiers of the monitors.
+	 */
+	void unregister(String[] monIds) {
+		synchronized(this) {
+			for(String monId : monIds) {
+				monitors.remove(monId);
+				jobServers.remove(monId);
+			}
+		}
+		release(this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.IProgressChannelRm#update(com.leanpulse.syd.remote.ProgressEventRm[])
+	 */
+	public void update(ProgressEventRm[] events) {
+		boolean jobFinished = false;
+		for(ProgressEventRm event : events) {
+			IProgressMonitor mon;
+			synchronized(this) {
+				mon = monitors.get(event.getMonitorId());
+			}
+			if(mon == null)
+				continue;
+			switch(event.getType()) {
+			case ProgressEventRm.START:
+				mon.start(event.getDescription(), event.getWork());
+				break;
+			case ProgressEventRm.PROGRESS:
+				if(event.getDescription() != null)
+					mon.progress(event.getDescription(), event.getWork());
+				else
+					mon.progress(event.getWork());
+				break;
+			case ProgressEventRm.SUB_PROGRESS:
+				IProgressMonitor subMon = mon.createSubProgress(event.getDescription(), event.getWork());
+				synchronized(this) {
+					monitors.put(event.getSubMonitorId(), subMon);
+				}
+				break;
+			case ProgressEventRm.CANCEL:
+				mon.requestCancel();
+				break;
+			case ProgressEventRm.FINISH:
+				if(event.getError() != null)
+					mon.finish(event.getDescription(), event.getError());
+				else
+					mon.finish(event.getDescription());
+				jobFinished |= finished(event.getMonitorId());
+				break;
+			}
+		}
+		if(jobFinished)
+			release(this);
+	}
+
+	/*
+	 * Forgets a finished monitor and, if it is the one of a job, all its sub-monitors.
+	 */
+	private synchronized boolean finished(String monId) {
+		monitors.remove(monId);
+		if(jobServers.remove(monId) == null)
+			return false;
+		canceledIds.remove(monId);
+		String subPrefix = monId + ".";
+		for(Iterator<String> it = monitors.keySet().iterator(); it.hasNext(); ) {
+			if(it.next().startsWith(subPrefix))
+				it.remove();
+		}
+		return true;
+	}
+
+	/*
+	 * Pushes to the server the cancellation of the jobs requested since the last check.
+	 */
+	private void checkCanceled() {
+		Map<IRendererRm, List<String>> newCanceledIds = new HashMap<IRendererRm, List<String>>();
+		synchronized(this) {
+			for(Map.Entry<String, IRendererRm> job : jobServers.entrySet()) {
+				String jobId = job.getKey();
+				if(!canceledIds.contains(jobId) && monitors.get(jobId).isCanceled()) {
+					List<String> serverIds = newCanceledIds.get(job.getValue());
+					if(serverIds == null) {
+						serverIds = new ArrayList<String>();
+						newCanceledIds.put(job.getValue(), serverIds);
+					}
+					serverIds.add(jobId);
+					canceledIds.add(jobId);
+				}
+			}
+		}
+		for(Map.Entry<IRendererRm, List<String>> serverIds : newCanceledIds.entrySet()) {
+			try {
+				serverIds.getKey().cancel(this, serverIds.getValue().toArray(new String[serverIds.getValue().size()]));
+			} catch (RemoteException e) { // Pushed again at the next check.
+				synchronized(this) {
+					canceledIds.removeAll(serverIds.getValue());
+				}
+			}
+		}
+	}
+
+}
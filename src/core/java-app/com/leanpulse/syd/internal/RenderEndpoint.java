@@ -0,0 +1,445 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.leanpulse.syd.remote.IRendererRm;
+import com.leanpulse.syd.remote.RenderLoad;
+
+/**
+ * A rendering server to which the documents can be dispatched, identified by
+ * the host and the port of its RMI registry.
+ * <p>
+ * The files to render are shipped to the servers running on other hosts,
+ * unless the file system is declared shared, and the documents rendered are
+ * fetched back once finished.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+class RenderEndpoint {
+
+	/* Delay in milliseconds during which a server found dead isn't used. */
+	private static final long DEAD_DELAY = 60000L;
+
+	/* Delay in milliseconds after a reply of a server during which its stub is used without checking it. */
+	private static final long HEARTBEAT_DELAY = 5000L;
+
+	/* Delay in milliseconds during which the load of a server is reused, counting the jobs posted since. */
+	private static final long LOAD_DELAY = 2000L;
+
+	/* Size in bytes of the parts in which the files are shipped. */
+	private static final int CHUNK_SIZE = 1024 * 1024;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Parses a list of endpoints.
+	 *
+	 * @param endpoints
+	 *            The endpoints "host[:port]" separated by commas or spaces,
+	 *            possibly <code>null</code>.
+	 * @param sharedPaths
+	 *            If the servers on other hosts have access to the files of
+	 *            this host with the same paths.
+	 * @return The endpoints, the local server on the default port if none is
+	 *         given.
+	 */
+	static RenderEndpoint[] parse(String endpoints, boolean sharedPaths) {
+		List<RenderEndpoint> list = new ArrayList<RenderEndpoint>();
+		if(endpoints != null) {
+			for(String endpoint : endpoints.trim().split("[,\\s]+")) {
+				if(endpoint.length() == 0)
+					continue;
+				int colon = endpoint.lastIndexOf(':');
+				try {
+					if(colon < 0)
+						list.add(new RenderEndpoint(endpoint, Registry.REGISTRY_PORT, sharedPaths));
+					else
+						list.add(new RenderEndpoint(endpoint.substring(0, colon), Integer.parseInt(endpoint.substring(colon + 1)), sharedPaths));
+				} catch (NumberFormatException e) {
+					System.err.println("Invalid render endpoint: " + endpoint);
+				}
+			}
+		}
+		if(list.isEmpty())
+			list.add(new RenderEndpoint("localhost", Registry.REGISTRY_PORT, true));
+		return list.toArray(new RenderEndpoint[list.size()]);
+	}
+
+	private final String host;
+	private final int port;
+	private final boolean local;
+	private final boolean sharedPaths;
+	private long deadUntil = 0;
+	private IRendererRm server = null;
+	private long lastReply = 0;
+	private RenderLoad load = null;
+	private long loadTime = 0;
+	private int postedSince = 0;
+
+	private RenderEndpoint(String host, int port, boolean sharedPaths) {
+		this.host = host;
+		this.port = port;
+		this.local = isLocalHost(host);
+		this.sharedPaths = sharedPaths || local;
+	}
+
+	/**
+	 * Tells if the server runs on this host, and can therefore be started by
+	 * the client.
+	 *
+	 * @return <code>true</code> if the server is local.
+	 */
+	boolean isLocal() {
+		return local;
+	}
+
+	/**
+	 * Gets the port of the RMI registry of the server.
+	 *
+	 * @return The port.
+	 */
+	int getPort() {
+		return port;
+	}
+
+	/**
+	 * Looks up the server in its RMI registry.
+	 *
+	 * @return The server.
+	 * @throws Exception
+	 *             If the server can't be reached.
+	 */
+	IRendererRm lookup() throws Exception {
+		return (IRendererRm) LocateRegistry.getRegistry(host, port).lookup(IRendererRm.SERVICE_NAME);
+	}
+
+	/**
+	 * Gets the server, reusing the stub of the last connection.
+	 * <p>
+	 * The stub is checked with a heartbeat if the server didn't reply for a
+	 * while, and the server is looked up again if it doesn't reply anymore.
+	 *
+	 * @return The server.
+	 * @throws Exception
+	 *             If the server can't be reached.
+	 */
+	IRendererRm connect() throws Exception {
+		IRendererRm cached;
+		synchronized(this) {
+			cached = server;
+			if(cached != null && System.currentTimeMillis() - lastReply < HEARTBEAT_DELAY)
+				return cached;
+		}
+		if(cached != null) {
+			try {
+				cached.isAlive();
+				replied(cached);
+				return cached;
+			} catch (RemoteException e) { // Restarted or dead.
+				invalidate(cached);
+			}
+		}
+		IRendererRm found = lookup();
+		found.isAlive();
+		replied(found);
+		return found;
+	}
+
+	/**
+	 * Records a reply of the server, so that its stub isn't checked before
+	 * being used for a while.
+	 *
+	 * @param stub
+	 *            The stub of the server which replied.
+	 */
+	synchronized void replied(IRendererRm stub) {
+		server = stub;
+		lastReply = System.currentTimeMillis();
+	}
+
+	/**
+	 * Records jobs posted to the server, counted in its load until it is
+	 * queried again.
+	 *
+	 * @param jobCount
+	 *            The number of jobs posted.
+	 */
+	synchronized void posted(int jobCount) {
+		postedSince += jobCount;
+	}
+
+	/**
+	 * Gets the load of the server, queried again only if the last one is too
+	 * old, marking the server dead if it can't be reached.
+	 *
+	 * @return The load, or <code>null</code> if the server is dead.
+	 */
+	RenderLoad getLoad() {
+		if(isDead())
+			return null;
+		synchronized(this) {
+			if(load != null && System.currentTimeMillis() - loadTime < LOAD_DELAY) {
+				if(postedSince == 0)
+					return load;
+				return new RenderLoad(load.getJobCount() + postedSince, load.getProcessors(), load.getHeapHeadroom(),
+						load.getRetainedHeap(), load.getMaxHeap());
+			}
+		}
+		try {
+			IRendererRm stub = connect();
+			RenderLoad fresh = stub.getLoad();
+			synchronized(this) {
+				load = fresh;
+				loadTime = System.currentTimeMillis();
+				postedSince = 0;
+			}
+			replied(stub);
+			return fresh;
+		} catch (Exception e) {
+			markDead();
+			return null;
+		}
+	}
+
+	/**
+	 * Checks that a server to which jobs were posted is alive, marking it
+	 * dead otherwise.
+	 *
+	 * @param stub
+	 *            The stub to which the jobs were posted.
+	 * @return <code>true</code> if the server replied.
+	 */
+	boolean checkAlive(IRendererRm stub) {
+		try {
+			stub.isAlive();
+		} catch (RemoteException e) {
+			invalidate(stub);
+			markDead();
+			return false;
+		}
+		synchronized(this) {
+			if(stub == server)
+				lastReply = System.currentTimeMillis();
+		}
+		return true;
+	}
+
+	/**
+	 * Tells if the server has been recently found dead.
+	 *
+	 * @return <code>true</code> if the server must not be used.
+	 */
+	synchronized boolean isDead() {
+		return System.currentTimeMillis() < deadUntil;
+	}
+
+	/**
+	 * Marks the server as dead for a while.
+	 */
+	synchronized void markDead() {
+		deadUntil = System.currentTimeMillis() + DEAD_DELAY;
+		server = null;
+		load = null;
+	}
+
+	/*
+	 * Forgets the stub of a server which doesn't reply anymore.
+	 */
+	private synchronized void invalidate(IRendererRm stub) {
+		if(server == stub) {
+			server = null;
+			load = null;
+		}
+	}
+
+	/**
+	 * Tells if the files must be shipped to the server.
+	 *
+	 * @return <code>true</code> if the server doesn't share the file system of
+	 *         the client.
+	 */
+	boolean isShipping() {
+		return !sharedPaths;
+	}
+
+	/**
+	 * Ships the files to render to the server.
+	 * <p>
+	 * The stylesheet is shipped with all the files of its directory, so that
+	 * the stylesheets it includes and the resources it refers to are found.
+	 * A directory already staged with the same files isn't shipped again.
+	 *
+	 * @param server
+	 *            The server.
+	 * @param xmlFile
+	 *            The XML file to render.
+	 * @param xslFile
+	 *            The stylesheet.
+	 * @return The XML file and the stylesheet on the server.
+	 * @throws IOException
+	 *             If the files can't be shipped.
+	 */
+	File[] stage(IRendererRm server, File xmlFile, File xslFile) throws IOException {
+		File xslDir = xslFile.getAbsoluteFile().getParentFile();
+		List<String> xslPaths = new ArrayList<String>();
+		listFiles(xslDir, "", xslPaths);
+		File stagedXslDir = stageBundle(server, xslDir, xslPaths);
+		File xmlDir = xmlFile.getAbsoluteFile().getParentFile();
+		List<String> xmlPaths = new ArrayList<String>(1);
+		xmlPaths.add(xmlFile.getName());
+		File stagedXmlDir = stageBundle(server, xmlDir, xmlPaths);
+		return new File[] {new File(stagedXmlDir, xmlFile.getName()), new File(stagedXslDir, xslFile.getName())};
+	}
+
+	/**
+	 * Fetches a document rendered on the server and deletes it from the
+	 * server.
+	 *
+	 * @param server
+	 *            The server.
+	 * @param stagedFile
+	 *            The document on the server.
+	 * @param outFile
+	 *            The document to write.
+	 * @throws IOException
+	 *             If the document can't be fetched.
+	 */
+	void fetch(IRendererRm server, File stagedFile, File outFile) throws IOException {
+		outFile.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(outFile);
+		try {
+			long offset = 0;
+			byte[] data;
+			while((data = server.fetch(stagedFile, offset, CHUNK_SIZE)).length > 0) {
+				out.write(data);
+				offset += data.length;
+			}
+		} finally {
+			out.close();
+		}
+		server.discard(stagedFile);
+	}
+
+	/*
+	 * Ships files of a directory unless already staged.
+	 */
+	private File stageBundle(IRendererRm server, File dir, List<String> paths) throws IOException {
+		String bundle = computeBundleKey(dir, paths);
+		File stagedDir = server.getStaged(bundle);
+		if(stagedDir != null)
+			return stagedDir;
+		byte[] buffer = new byte[CHUNK_SIZE];
+		for(String path : paths) {
+			InputStream in = new FileInputStream(new File(dir, path));
+			try {
+				long offset = 0;
+				int len;
+				while((len = in.read(buffer)) > 0) {
+					byte[] data = new byte[len];
+					System.arraycopy(buffer, 0, data, 0, len);
+					server.stage(bundle, path, offset, data);
+					offset += len;
+				}
+				if(offset == 0)
+					server.stage(bundle, path, 0, new byte[0]);
+			} finally {
+				in.close();
+			}
+		}
+		return server.commitStaged(bundle);
+	}
+
+	/*
+	 * Lists recursively the files of a directory, with paths relative to the directory.
+	 */
+	private static void listFiles(File dir, String prefix, List<String> paths) {
+		File[] files = dir.listFiles();
+		if(files == null)
+			return;
+		for(File file : files) {
+			if(file.isDirectory())
+				listFiles(file, prefix + file.getName() + "/", paths);
+			else
+				paths.add(prefix + file.getName());
+		}
+	}
+
+	/*
+	 * Computes the key of a bundle from the location, size and date of its files.
+	 */
+	private static String computeBundleKey(File dir, List<String> paths) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(getLocalHostName().getBytes("UTF-8"));
+			md.update(dir.getPath().getBytes("UTF-8"));
+			for(String path : paths) {
+				File file = new File(dir, path);
+				md.update((path + "|" + file.length() + "|" + file.lastModified() + "\n").getBytes("UTF-8"));
+			}
+			byte[] digest = md.digest();
+			char[] hex = new char[2 * digest.length];
+			for(int i=0; i<digest.length; i++) {
+				hex[2*i] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+				hex[2*i+1] = HEX_DIGITS[digest[i] & 0xF];
+			}
+			return new String(hex);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Tells if a host name designates this host.
+	 */
+	private static boolean isLocalHost(String host) {
+		if(host.equalsIgnoreCase("localhost") || host.equals("127.0.0.1") || host.equalsIgnoreCase(getLocalHostName()))
+			return true;
+		try {
+			return InetAddress.getByName(host).isLoopbackAddress();
+		} catch (UnknownHostException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Gets the name of this host.
+	 */
+	private static String getLocalHostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "localhost";
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return host + ":" + port;
+	}
+
+}
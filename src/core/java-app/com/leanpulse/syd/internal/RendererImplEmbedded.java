@@ -0,0 +1,127 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.internal;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Properties;
+
+import com.leanpulse.syd.api.PdfSecurityOptions;
+import com.leanpulse.syd.api.Renderer;
+import com.leanpulse.syd.api.progress.IProgressMonitor;
+
+/**
+ * Embedded <code>Renderer</code> implementation.
+ * <p>
+ * This implementation renders the documents in the JVM of the caller with the
+ * FOP renderer of the rendering server, without starting any process nor
+ * going through RMI. The stylesheets cached and the FOP factory are shared by
+ * all the documents rendered in the JVM.<br>
+ * The renderer is loaded from the library of the rendering server, unless
+ * already in the classpath. The <code>syd.rmrender.*</code> settings of
+ * <code>syd.conf</code> apply as system properties, unless already set.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+public class RendererImplEmbedded extends Renderer {
+
+	/*
+	 * Class of the renderer of the rendering server.
+	 */
+	private static final String RENDERER_CLASS = "com.leanpulse.syd.remote.internal.EmbedFopRenderer";
+
+	private static RendererImplEmbedded instance;
+
+	/**
+	 * Returns the unique instance of the embedded renderer.
+	 *
+	 * @return The singleton.
+	 */
+	public static synchronized RendererImplEmbedded getDefault() {
+		if(instance == null)
+			instance = new RendererImplEmbedded();
+		return instance;
+	}
+
+	private Renderer renderer = null;
+
+	private RendererImplEmbedded() {
+		super(null); // The documents are rendered by the pool of the renderer loaded.
+	}
+
+	/**
+	 * Prepares the rendering in the JVM, loading the renderer the first time.
+	 *
+	 * @param mon
+	 *            The progress monitor to which progress and errors are
+	 *            reported.
+	 * @return <code>true</code> if the renderer could be loaded,
+	 *         <code>false</code> otherwise.
+	 */
+	public synchronized boolean prepareRendering(IProgressMonitor mon) {
+		if(mon != null) {
+			mon.start("Preparing to render documents...", 100.0);
+		}
+		if(renderer == null) {
+			try {
+				renderer = loadRenderer();
+			} catch (Throwable e) { // Missing library or linkage error.
+				if(mon != null) {
+					mon.finish("Can't load the embedded renderer !", e instanceof Exception ? (Exception) e : new Exception(e));
+				}
+				return false;
+			}
+		}
+		if(mon != null) {
+			mon.finish("Embedded renderer ready.");
+		}
+		return true;
+	}
+
+	/*
+	 * Loads the renderer of the rendering server, applying the settings of the server first.
+	 */
+	private static Renderer loadRenderer() throws Exception {
+		Properties configFile = Utils.loadConfig();
+		for(String key : configFile.stringPropertyNames()) {
+			if(key.startsWith("syd.rmrender.") && System.getProperty(key) == null)
+				System.setProperty(key, configFile.getProperty(key));
+		}
+		Class<?> rendererClass;
+		try {
+			rendererClass = Class.forName(RENDERER_CLASS);
+		} catch (ClassNotFoundException e) { // The classes of the API are still the ones of the caller.
+			File libFile = new File(Utils.getAbsolutePath("lib" + File.separator + "syd-rmrender.jar"));
+			ClassLoader loader = new URLClassLoader(new URL[] {libFile.toURI().toURL()}, RendererImplEmbedded.class.getClassLoader());
+			rendererClass = Class.forName(RENDERER_CLASS, true, loader);
+		}
+		return (Renderer) rendererClass.newInstance();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Renderer#asyncRender(java.io.File, java.io.File, java.lang.String[], java.io.File, com.leanpulse.syd.api.PdfSecurityOptions, boolean, com.leanpulse.syd.api.progress.IProgressMonitor)
+	 */
+	@Override
+	public void asyncRender(File xmlFile, File xslFile, String[] xslParams, File outFile, PdfSecurityOptions secOptions,
+			boolean open, IProgressMonitor mon) {
+		mon.start("Rendering \"" + outFile.getName() + "\"...", 1.0);
+		renderer.asyncRender(xmlFile, xslFile, xslParams, outFile, secOptions, open, mon);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Renderer#asyncRender(java.io.File, java.io.File, java.lang.String[], java.io.File[], com.leanpulse.syd.api.PdfSecurityOptions[], boolean[], com.leanpulse.syd.api.progress.IProgressMonitor[])
+	 */
+	@Override
+	public void asyncRender(File xmlFile, File xslFile, String[] xslParams, File[] outFiles, PdfSecurityOptions[] secOptions,
+			boolean[] open, IProgressMonitor[] mons) {
+		for(int i=0; i<mons.length; i++)
+			mons[i].start("Rendering \"" + outFiles[i].getName() + "\"...", 1.0);
+		renderer.asyncRender(xmlFile, xslFile, xslParams, outFiles, secOptions, open, mons);
+	}
+
+}
@@ -42,9 +42,9 @@ public class RendererImplExternal extends Renderer {
 	}
 	
 	/*
-	 * Runnable class to asynchronously run FOP.
+	 * Render job to asynchronously run FOP, unless the document is up to date.
 	 */
-	private static class ExtFopRunnable implements Runnable {
+	private static class ExtFopRunnable implements RenderTask {
 		
 		private File xmlFile;
 		private File xslFile;
@@ -65,7 +65,13 @@ public class RendererImplExternal extends Renderer {
 			this.mon = mon;
 		}
 
-		public void run() {
+		public boolean render() {
+			// Skips the document if already rendered from the same data.
+			if(isUpToDate(xmlFile, xslFile, xslParams, outFile, secOptions)) {
+				finish("Document " + outFile.getName() + " unchanged.");
+				return false;
+			}
+			
 			// Computes the command line to execute.
 			String relLibPath = "lib" + File.separator;
 			ArrayList<String> cmdList = new ArrayList<String>(10);
@@ -119,12 +125,21 @@ public class RendererImplExternal extends Renderer {
 				// FOP exited with errors.
 				if(p.exitValue() != 0) {
 					mon.finish(null, new ExecutionException(error.toString(), null));
-					return;
+					return false;
 				}
 			} catch (IOException e) {
 				mon.finish("Can't start the external renderer program...", e);
-				return;
+				return false;
 			}
+			writeManifest(xmlFile, xslFile, xslParams, outFile, secOptions);
+			finish("Document " + outFile.getName() + " generated successfully.");
+			return true;
+		}
+		
+		/*
+		 * Opens the document if required and reports the success.
+		 */
+		private void finish(String message) {
 			if(open) {
 				mon.progress("Opening \"" + outFile.getName() + "\" ...", 0.95);
 				try {
@@ -140,7 +155,7 @@ public class RendererImplExternal extends Renderer {
 				} catch (Exception e) {}
 			}
 			if(!mon.isFinished())
-				mon.finish("Document " + outFile.getName() + " generated successfully.");
+				mon.finish(message);
 		}
 	}
 	
@@ -152,7 +167,7 @@ public class RendererImplExternal extends Renderer {
 	public void asyncRender(File xmlFile, File xslFile, String[] xslParams, File outFile, PdfSecurityOptions secOptions,
 			boolean open, IProgressMonitor mon) {
 		mon.start("Rendering \"" + outFile.getName() + "\"...", 1.0);
-		service.submit(new ExtFopRunnable(xmlFile, xslFile, xslParams, outFile, secOptions, open, mon));
+		schedule(xmlFile, outFile, new ExtFopRunnable(xmlFile, xslFile, xslParams, outFile, secOptions, open, mon));
 	}
 
 }
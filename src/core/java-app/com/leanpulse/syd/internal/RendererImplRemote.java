@@ -4,43 +4,89 @@
  *********************************************/
 package com.leanpulse.syd.internal;
 
+import java.awt.Desktop;
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
-import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import com.leanpulse.syd.api.PdfSecurityOptions;
 import com.leanpulse.syd.api.Renderer;
 import com.leanpulse.syd.api.progress.IProgressMonitor;
-import com.leanpulse.syd.remote.IProgressMonitorRm;
 import com.leanpulse.syd.remote.IRendererRm;
+import com.leanpulse.syd.remote.RenderJob;
+import com.leanpulse.syd.remote.RenderJobStatus;
+import com.leanpulse.syd.remote.RenderLoad;
 
 /**
  * <code>Renderer</code> implementation as a client connecting to the rendering
- * server.
+ * servers.
  * <p>
- * This implementation tries first to connect to an already running rendering
- * server and if no connection is available, try to start a new server.<br>
- * Requests to render documents are then posted to the server, this class then
+ * This implementation tries first to connect to already running rendering
+ * servers and if no connection is available, try to start new servers on this
+ * host.<br>
+ * Requests to render documents are then posted to the servers, this class then
  * acting as a simple client.
  * <p>
- * The communication between the server and the client relies on the Java Remote
- * Method Invocation (RMI) technology.
+ * The servers are listed in the "syd.rmrender.endpoints" key of the
+ * configuration, the local server on the default port being used if none is
+ * listed. Each document is posted to the least loaded server and posted again
+ * to another one if its server dies. The files to render are shipped to the
+ * servers of other hosts, unless "syd.rmrender.sharedpaths" tells they access
+ * the files with the same paths.
+ * <p>
+ * If "syd.rmrender.polling" is set, the documents are submitted to the queue
+ * of the servers, the requests of a batch in a single call, and their state
+ * is polled instead of being reported to a progress channel.
+ * <p>
+ * The stub of each server is kept between the generations and reused without
+ * being checked as long as the server replied recently, so that posting a
+ * document takes a single remote call. If no server is available anymore
+ * during a generation, the documents not posted yet are rendered by a
+ * fallback renderer in this JVM, or by starting FOP if it can't be loaded.
+ * <p>
+ * The communication between the servers and the client relies on the Java
+ * Remote Method Invocation (RMI) technology.
  * 
  * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
  */
 public class RendererImplRemote extends Renderer {
 	
 	/*
-	 * Delay in seconds to wait for the server to reply after it has been started.
+	 * Delay in seconds to wait for the server to tell it is ready after it has been started.
 	 */
 	private static final int START_WAIT_DELAY = 20;
 	
+	/*
+	 * Delay in seconds to wait for the server to warm up, if requested.
+	 */
+	private static final int WARM_WAIT_DELAY = 60;
+	
+	/*
+	 * Period in milliseconds at which the servers rendering documents are checked alive.
+	 */
+	private static final long LIVENESS_CHECK_PERIOD = 5000L;
+	
+	/*
+	 * Period in milliseconds at which the state of the jobs submitted to the queue of the servers is polled.
+	 */
+	private static final long POLL_PERIOD = 500L;
+	
 	
 	private static RendererImplRemote instance;
 	
@@ -56,166 +102,412 @@ public class RendererImplRemote extends Renderer {
 	}
 	
 	/**
-	 * Sends a command to the rendering server to shut down.<br>
-	 * Has no effect if the server wasn't started at first.
+	 * Sends a command to the rendering servers of this host to shut down.<br>
+	 * Has no effect if the servers weren't started at first.
 	 */
 	public static void killServer() {
-		try {
-        	Registry registry = LocateRegistry.getRegistry();
-            IRendererRm renderer = (IRendererRm) registry.lookup(IRendererRm.SERVICE_NAME);
-			renderer.shutDown();
-		} catch (Exception e) {}
+		for(RenderEndpoint endpoint : getDefault().endpoints) {
+			if(!endpoint.isLocal())
+				continue;
+			try {
+				endpoint.lookup().shutDown();
+			} catch (Exception e) {}
+		}
 	}
 	
 	/*
-	 * A default implementation to remotely report progress to the client.
-	 * This class actually only delegates all the calls to the local implementation
-	 * of the progress monitor.
+	 * A request to render documents, kept until the documents are rendered to
+	 * post it again if its server dies.
 	 */
-	private static class ProgressMonitorServer extends UnicastRemoteObject implements IProgressMonitorRm {
-		private static final long serialVersionUID = -5223911042231972707L;
-		
-		private IProgressMonitor delegate;
-		public ProgressMonitorServer(IProgressMonitor delegate) throws RemoteException {
-			super();
+	private static class RenderRequest {
+		private final File xmlFile;
+		private final File xslFile;
+		private final String[] xslParams;
+		private final File[] outFiles;
+		private final PdfSecurityOptions[] secOptions;
+		private final boolean[] open;
+		private final IProgressMonitor[] mons;
+		private RenderEndpoint endpoint;
+		private ProgressChannelServer channel;
+		private String[] monIds;
+		private IProgressMonitor[] postedMons;
+		private IRendererRm server;
+		private String jobId;
+		private double reported = 0.0;
+		private boolean cancelSent = false;
+		private RenderRequest(File xmlFile, File xslFile, String[] xslParams, File[] outFiles, PdfSecurityOptions[] secOptions,
+				boolean[] open, IProgressMonitor[] mons) {
+			this.xmlFile = xmlFile;
+			this.xslFile = xslFile;
+			this.xslParams = xslParams;
+			this.outFiles = outFiles;
+			this.secOptions = secOptions;
+			this.open = open;
+			this.mons = mons;
+		}
+		/* Tells if all the documents are rendered. */
+		private boolean isFinished() {
+			for(IProgressMonitor mon : mons)
+				if(!mon.isFinished())
+					return false;
+			return true;
+		}
+		/* Builds the request of the documents the server didn't finish. */
+		private RenderRequest getUnfinished() {
+			List<Integer> unfinished = new ArrayList<Integer>(mons.length);
+			for(int i=0; i<mons.length; i++)
+				if(!postedMons[i].isFinished())
+					unfinished.add(i);
+			if(unfinished.isEmpty())
+				return null;
+			int n = unfinished.size();
+			RenderRequest request = new RenderRequest(xmlFile, xslFile, xslParams, new File[n], new PdfSecurityOptions[n], new boolean[n], new IProgressMonitor[n]);
+			for(int i=0; i<n; i++) {
+				int j = unfinished.get(i);
+				request.outFiles[i] = outFiles[j];
+				request.secOptions[i] = secOptions[j];
+				request.open[i] = open[j];
+				request.mons[i] = mons[j];
+			}
+			return request;
+		}
+	}
+	
+	/*
+	 * A monitor of a document already started by this renderer, handed to the
+	 * fallback renderer which starts it again.
+	 */
+	private static class StartedMonitor implements IProgressMonitor {
+		private final IProgressMonitor delegate;
+		StartedMonitor(IProgressMonitor delegate) {
 			this.delegate = delegate;
 		}
-		public void start(String message, double totalWork) throws RemoteException {
-			delegate.start(message, totalWork);
+		public void start(String message, double totalWork) {
+			if(message != null)
+				delegate.progress(message);
 		}
-		public void progress(double work) throws RemoteException {
+		public void progress(double work) {
 			delegate.progress(work);
 		}
-		public void progress(String description) throws RemoteException {
+		public void progress(String description) {
 			delegate.progress(description);
 		}
-		public void progress(String description, double work)
-				throws RemoteException {
+		public void progress(String description, double work) {
 			delegate.progress(description, work);
 		}
-		public void requestCancel() throws RemoteException {
+		public void requestCancel() {
 			delegate.requestCancel();
 		}
-		public boolean isRunning() throws RemoteException {
+		public boolean isRunning() {
 			return delegate.isRunning();
 		}
-		public void checkCanceled() throws CancellationException, RemoteException {
+		public void checkCanceled() throws CancellationException {
 			delegate.checkCanceled();
 		}
-		public boolean isCanceled() throws RemoteException {
+		public boolean isCanceled() {
 			return delegate.isCanceled();
 		}
-		public boolean isFinished() throws RemoteException {
+		public boolean isFinished() {
 			return delegate.isFinished();
 		}
-		public boolean hasError() throws RemoteException {
+		public boolean hasError() {
 			return delegate.hasError();
 		}
-		public void finish(String message) throws RemoteException {
+		public void finish(String message) {
 			delegate.finish(message);
 		}
-		public void finish(String message, Exception e) throws RemoteException {
+		public void finish(String message, Exception e) {
 			delegate.finish(message, e);
 		}
-		public void waitFinish() throws InterruptedException, RemoteException {
+		public void waitFinish() throws InterruptedException {
 			delegate.waitFinish();
 		}
-		public IProgressMonitorRm createSubProgress(String name, double parentWorkUnits) throws RemoteException {
-			return new ProgressMonitorServer(delegate.createSubProgress(name, parentWorkUnits));
+		public IProgressMonitor createSubProgress(String name, double parentWorkUnits) {
+			return delegate.createSubProgress(name, parentWorkUnits);
 		}
-		public void waitSubProgressFinish() throws InterruptedException, RemoteException {
+		public void waitSubProgessFinish() throws InterruptedException {
 			delegate.waitSubProgessFinish();
 		}
 	}
 	
-	private RendererImplRemote() {}
+	/*
+	 * A monitor of a document rendered on a server of another host, fetching
+	 * the document once rendered before finishing the monitor of the client.
+	 */
+	private static class FetchingMonitor implements IProgressMonitor {
+		private final IProgressMonitor delegate;
+		private final RenderEndpoint endpoint;
+		private final IRendererRm server;
+		private final File stagedFile;
+		private final File outFile;
+		private final boolean open;
+		private boolean finished = false;
+		FetchingMonitor(IProgressMonitor delegate, RenderEndpoint endpoint, IRendererRm server, File stagedFile, File outFile, boolean open) {
+			this.delegate = delegate;
+			this.endpoint = endpoint;
+			this.server = server;
+			this.stagedFile = stagedFile;
+			this.outFile = outFile;
+			this.open = open;
+		}
+		public void start(String message, double totalWork) {
+			delegate.start(message, totalWork);
+		}
+		public void progress(double work) {
+			delegate.progress(work);
+		}
+		public void progress(String description) {
+			delegate.progress(description);
+		}
+		public void progress(String description, double work) {
+			delegate.progress(description, work);
+		}
+		public void requestCancel() {
+			delegate.requestCancel();
+		}
+		public boolean isRunning() {
+			return delegate.isRunning();
+		}
+		public void checkCanceled() throws CancellationException {
+			delegate.checkCanceled();
+		}
+		public boolean isCanceled() {
+			return delegate.isCanceled();
+		}
+		public synchronized boolean isFinished() {
+			return finished;
+		}
+		public boolean hasError() {
+			return delegate.hasError();
+		}
+		public void finish(final String message) {
+			synchronized(this) {
+				finished = true;
+			}
+			// Fetches the document outside of the thread notifying the progress.
+			Thread fetchThread = new Thread(new Runnable() {
+				public void run() {
+					delegate.progress("Fetching \"" + outFile.getName() + "\" from " + endpoint + "...");
+					try {
+						endpoint.fetch(server, stagedFile, outFile);
+					} catch (IOException e) {
+						delegate.finish("Can't fetch the document from the remote renderer server !", e);
+						return;
+					}
+					if(open) {
+						try {
+							Desktop.getDesktop().open(outFile);
+						} catch (IOException e) {
+							delegate.finish(null, e);
+							return;
+						}
+					}
+					delegate.finish(message);
+				}
+			}, "Rendered Document Fetch");
+			fetchThread.setDaemon(true);
+			fetchThread.start();
+		}
+		public void finish(String message, Exception e) {
+			synchronized(this) {
+				finished = true;
+			}
+			try {
+				server.discard(stagedFile);
+			} catch (RemoteException re) {}
+			delegate.finish(message, e);
+		}
+		public void waitFinish() throws InterruptedException {
+			delegate.waitFinish();
+		}
+		public IProgressMonitor createSubProgress(String name, double parentWorkUnits) {
+			return delegate.createSubProgress(name, parentWorkUnits);
+		}
+		public void waitSubProgessFinish() throws InterruptedException {
+			delegate.waitSubProgessFinish();
+		}
+	}
+	
+	
+	private final RenderEndpoint[] endpoints;
+	private final boolean polling;
+	private final List<RenderRequest> requests = new ArrayList<RenderRequest>();
+	private Timer livenessTimer = null;
+	private Timer pollTimer = null;
+	private List<RenderRequest> batch = null;
+	private int batchDepth = 0;
+	
+	private RendererImplRemote() {
+		super(null); // The documents are rendered by the servers.
+		Properties configFile = Utils.loadConfig();
+		endpoints = RenderEndpoint.parse(configFile.getProperty("syd.rmrender.endpoints"),
+				Boolean.parseBoolean(configFile.getProperty("syd.rmrender.sharedpaths")));
+		polling = Boolean.parseBoolean(configFile.getProperty("syd.rmrender.polling"));
+	}
 	
 	/**
-	 * Prepares the rendering with the server.
+	 * Prepares the rendering with the servers.
 	 * <p>
-	 * This method must be called before posting rendering request to the server
-	 * in order to ensure a connection to the server can be established.<br>
+	 * This method must be called before posting rendering request to the servers
+	 * in order to ensure a connection to the servers can be established.<br>
 	 * A connection to an already running server will first try to be opened and
-	 * if unsuccessful, a new server will be started and a new connection
-	 * opened.
+	 * if unsuccessful, a new server will be started if the server is local and
+	 * a new connection opened.
 	 * 
 	 * @param mon
 	 *            The progress monitor to which progress and errors are
 	 *            reported.
-	 * @return <code>true</code> if the preparation to use the rendering server
-	 *         Succeed, <code>false</code> otherwise.
+	 * @return <code>true</code> if the preparation to use at least one
+	 *         rendering server Succeed, <code>false</code> otherwise.
 	 */
 	public synchronized boolean prepareRendering(IProgressMonitor mon) {
 		if(mon != null) {
 			mon.start("Preparing to render documents...", 100.0);
 		}
+		Properties configFile = Utils.loadConfig();
+		boolean waitWarm = Boolean.parseBoolean(configFile.getProperty("syd.rmrender.waitwarm"));
+		
+		int available = 0;
+		Exception lastError = null;
+		for(RenderEndpoint endpoint : endpoints) {
+			Exception error = prepareEndpoint(endpoint, configFile, waitWarm, mon, 1.0 / endpoints.length);
+			if(error == null)
+				available++;
+			else
+				lastError = error;
+		}
+		if(mon != null) {
+			if(available == 0)
+				mon.finish("Can't connect to the remote renderer server !", lastError);
+			else if(endpoints.length > 1)
+				mon.finish(available + " remote renderer servers available out of " + endpoints.length + ".");
+			else
+				mon.finish("Remote renderer server ready.");
+		}
+		return available > 0;
+	}
+	
+	/*
+	 * Connects to a server, starting it if local and not running. Returns the error if the server isn't available.
+	 */
+	private static Exception prepareEndpoint(RenderEndpoint endpoint, Properties configFile, boolean waitWarm, IProgressMonitor mon, double scale) {
 		Registry registry = null;
 		try { // Try first to connect to an already running server.
-			registry = LocateRegistry.getRegistry();
-			IRendererRm renderer = (IRendererRm) registry.lookup(IRendererRm.SERVICE_NAME);
-			renderer.isAlive();
+			registry = LocateRegistry.getRegistry(endpoint.getPort());
+			IRendererRm renderer = endpoint.connect();
+			if(waitWarm)
+				waitWarm(renderer, mon);
 			if(mon != null) {
-				mon.finish("Remote renderer server already started.");
+				mon.progress("Remote renderer server " + endpoint + " already started.", 100.0 * scale);
 			}
-			return true;
+			return null;
 		} catch (Exception e) { // No server running.
+			if(!endpoint.isLocal()) {
+				endpoint.markDead();
+				if(mon != null) {
+					mon.progress("Remote renderer server " + endpoint + " not available.", 100.0 * scale);
+				}
+				return e;
+			}
 			if(registry != null)
 				try {
 					registry.unbind(IRendererRm.SERVICE_NAME); // Cleans up the registry
 				} catch (Exception e3) {}
 			if(mon != null) {
-				mon.progress(20.0);
+				mon.progress(20.0 * scale);
 			}
 			
-			String maxMem = null;
-			Properties configFile = new Properties();
-			try {
-				configFile.load(new FileInputStream(new File(Utils.getAbsolutePath("syd.conf"))));
-				maxMem = configFile.getProperty("syd.rmrender.maxmem");
-			} catch (IOException ce) {}
+			String maxMem = configFile.getProperty("syd.rmrender.maxmem");
 			
-			String[] startServerCmd = new String[] {System.getProperty("java.home") + "\\bin\\javaw",
-					"-Xmx" + (maxMem == null ? "1024m" : maxMem),
-					"-Djavax.xml.transform.TransformerFactory=com.leanpulse.syd.remote.internal.CachingTransformerFactory",
-					"-Dorg.apache.commons.logging.Log=org.apache.commons.logging.impl.NoOpLog",
-					"-jar", Utils.getAbsolutePath("lib" + File.separator + "syd-rmrender.jar")};
+			List<String> cmdList = new ArrayList<String>(8);
+			cmdList.add(getJavaLauncher());
+			cmdList.add("-Xmx" + (maxMem == null ? "1024m" : maxMem));
+			cmdList.add("-XX:MinHeapFreeRatio=10"); // Lets the JVM uncommit the heap freed between the jobs.
+			cmdList.add("-XX:MaxHeapFreeRatio=30");
+			cmdList.add("-Djavax.xml.transform.TransformerFactory=com.leanpulse.syd.remote.internal.CachingTransformerFactory");
+			cmdList.add("-Dorg.apache.commons.logging.Log=org.apache.commons.logging.impl.NoOpLog");
+			for(String key : configFile.stringPropertyNames()) { // Other server settings are passed as system properties.
+				if(key.startsWith("syd.rmrender.") && !key.equals("syd.rmrender.maxmem"))
+					cmdList.add("-D" + key + "=" + configFile.getProperty(key));
+			}
+			if(endpoint.getPort() != Registry.REGISTRY_PORT)
+				cmdList.add("-Dsyd.rmrender.port=" + endpoint.getPort());
+			cmdList.add("-jar");
+			cmdList.add(Utils.getAbsolutePath("lib" + File.separator + "syd-rmrender.jar"));
+			final CountDownLatch ready = new CountDownLatch(1);
 			try {
-				Runtime.getRuntime().exec(startServerCmd); // Starts a new server.
+				ProcessBuilder builder = new ProcessBuilder(cmdList); // Starts a new server.
+				builder.redirectErrorStream(true);
+				final Process process = builder.start();
+				Thread outputThread = new Thread("Remote Renderer Output " + endpoint) {
+					@Override
+					public void run() {
+						try {
+							BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+							String line;
+							while((line = reader.readLine()) != null) { // Keeps draining the output so that the server never blocks on it.
+								if(line.equals(IRendererRm.READY_MESSAGE))
+									ready.countDown();
+							}
+						} catch (IOException e) {
+						} finally {
+							ready.countDown(); // The server exited.
+						}
+					}
+				};
+				outputThread.setDaemon(true);
+				outputThread.start();
 			} catch (IOException se) {
 				if(mon != null) {
-					mon.finish("Can't start the remote renderer server !", se);
+					mon.progress("Can't start the remote renderer server " + endpoint + " !", 80.0 * scale);
 				}
-				return false;
+				return se;
 			}
 			if(mon != null) {
-				mon.progress(40.0);
+				mon.progress(40.0 * scale);
 			}
-			int count = 0;
-			Exception lastError = null;
-			while(count < START_WAIT_DELAY) { // Loop for a given delay and try to connect to the server.
-				try {
-					registry = LocateRegistry.getRegistry();
-					IRendererRm renderer = (IRendererRm) registry.lookup(IRendererRm.SERVICE_NAME);
-					renderer.isAlive();
-					if(mon != null) {
-						mon.finish("Remote renderer server succesfully started.");
-					}
-					return true;
-				} catch (Exception e1) {
-					lastError = e1;
-					try {
-						Thread.sleep(1000);
-						if(mon != null) {
-							mon.progress(40.0 / START_WAIT_DELAY);
-						}
-					} catch (InterruptedException e2) {}
-					count++;
+			try { // Connects as soon as the server tells it is bound, or exits.
+				ready.await(START_WAIT_DELAY, TimeUnit.SECONDS);
+			} catch (InterruptedException e1) {}
+			try {
+				IRendererRm renderer = endpoint.connect();
+				if(waitWarm)
+					waitWarm(renderer, mon);
+				if(mon != null) {
+					mon.progress("Remote renderer server " + endpoint + " succesfully started.", 40.0 * scale);
 				}
+				return null;
+			} catch (Exception e1) {
+				endpoint.markDead();
+				return e1;
 			}
-			if(mon != null) {
-				mon.finish("Can't connect to the remote renderer server !", lastError);
+		}
+	}
+	
+	/*
+	 * Gets the Java launcher of the running JVM, without console on Windows.
+	 */
+	private static String getJavaLauncher() {
+		File binDir = new File(System.getProperty("java.home"), "bin");
+		File javaw = new File(binDir, "javaw.exe");
+		return javaw.isFile() ? javaw.getPath() : new File(binDir, "java").getPath();
+	}
+	
+	/*
+	 * Waits for the server to be warmed up, for a given delay at most.
+	 */
+	private static void waitWarm(IRendererRm renderer, IProgressMonitor mon) throws RemoteException {
+		int count = 0;
+		while(count < WARM_WAIT_DELAY && IRendererRm.STATUS_WARMING.equals(renderer.getStatus())) {
+			if(mon != null && count == 0) {
+				mon.progress("Warming up the remote renderer server...");
+			}
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				return;
 			}
-			return false;
+			count++;
 		}
 	}
 	
@@ -226,15 +518,416 @@ public class RendererImplRemote extends Renderer {
 	@Override
 	public void asyncRender(File xmlFile, File xslFile, String[] xslParams, File outFile, PdfSecurityOptions secOptions,
 			boolean open, IProgressMonitor mon) {
+		mon.start("Rendering \"" + outFile.getName() + "\"...", 1.0);
+		submit(new RenderRequest(xmlFile, xslFile, xslParams, new File[] {outFile}, new PdfSecurityOptions[] {secOptions},
+				new boolean[] {open}, new IProgressMonitor[] {mon}));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Renderer#asyncRender(java.io.File, java.io.File, java.lang.String[], java.io.File[], com.leanpulse.syd.api.PdfSecurityOptions[], boolean[], com.leanpulse.syd.api.progress.IProgressMonitor[])
+	 */
+	@Override
+	public void asyncRender(File xmlFile, File xslFile, String[] xslParams, File[] outFiles, PdfSecurityOptions[] secOptions,
+			boolean[] open, IProgressMonitor[] mons) {
+		for(int i=0; i<mons.length; i++)
+			mons[i].start("Rendering \"" + outFiles[i].getName() + "\"...", 1.0);
+		submit(new RenderRequest(xmlFile, xslFile, xslParams, outFiles, secOptions, open, mons));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Renderer#beginBatch()
+	 */
+	@Override
+	public void beginBatch() {
+		if(!polling)
+			return;
+		synchronized(this) {
+			if(batchDepth++ == 0)
+				batch = new ArrayList<RenderRequest>();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Renderer#endBatch()
+	 */
+	@Override
+	public void endBatch() {
+		List<RenderRequest> batchRequests;
+		synchronized(this) {
+			if(batchDepth == 0 || --batchDepth > 0)
+				return;
+			batchRequests = batch;
+			batch = null;
+		}
+		if(!batchRequests.isEmpty())
+			dispatchBatch(batchRequests, null);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Renderer#flushBatch()
+	 */
+	@Override
+	public void flushBatch() {
+		List<RenderRequest> batchRequests;
+		synchronized(this) {
+			if(batch == null || batch.isEmpty())
+				return;
+			batchRequests = batch;
+			batch = new ArrayList<RenderRequest>();
+		}
+		dispatchBatch(batchRequests, null);
+	}
+	
+	/*
+	 * Dispatches a request, or buffers it if a batch is started.
+	 */
+	private void submit(RenderRequest request) {
+		synchronized(this) {
+			if(batch != null) {
+				batch.add(request);
+				return;
+			}
+		}
+		if(polling)
+			dispatchBatch(Collections.singletonList(request), null);
+		else
+			dispatch(request, null);
+	}
+	
+	/*
+	 * Posts a request to the least loaded server, trying the next ones if it fails.
+	 */
+	private void dispatch(RenderRequest request, RenderEndpoint excluded) {
+		Exception lastError = null;
+		List<RenderEndpoint> tried = new ArrayList<RenderEndpoint>();
+		if(excluded != null)
+			tried.add(excluded);
+		RenderEndpoint endpoint;
+		while((endpoint = selectEndpoint(tried)) != null) {
+			try {
+				post(request, endpoint);
+				track(Collections.singletonList(request));
+				return;
+			} catch (Exception e) {
+				lastError = e;
+				endpoint.markDead();
+				tried.add(endpoint);
+			}
+		}
+		fallBack(request, lastError);
+	}
+	
+	/*
+	 * Submits requests to the queue of the least loaded server in a single call, trying the next ones if it fails.
+	 */
+	private void dispatchBatch(List<RenderRequest> batchRequests, RenderEndpoint excluded) {
+		Exception lastError = null;
+		List<RenderEndpoint> tried = new ArrayList<RenderEndpoint>();
+		if(excluded != null)
+			tried.add(excluded);
+		RenderEndpoint endpoint;
+		while((endpoint = selectEndpoint(tried)) != null) {
+			try {
+				postBatch(batchRequests, endpoint);
+				track(batchRequests);
+				return;
+			} catch (Exception e) {
+				lastError = e;
+				endpoint.markDead();
+				tried.add(endpoint);
+			}
+		}
+		for(RenderRequest request : batchRequests)
+			fallBack(request, lastError);
+	}
+	
+	/*
+	 * Renders a request with the fallback renderer when no server is available, reporting the error if it can't.
+	 */
+	private static void fallBack(RenderRequest request, Exception error) {
+		List<Integer> unfinished = new ArrayList<Integer>(request.mons.length);
+		for(int i=0; i<request.mons.length; i++)
+			if(!request.mons[i].isFinished())
+				unfinished.add(i);
+		if(unfinished.isEmpty())
+			return;
+		Renderer fallback = getFallback();
+		if(fallback == null) {
+			for(int i : unfinished)
+				request.mons[i].finish("Can't connect to the remote renderer server !", error);
+			return;
+		}
+		int n = unfinished.size();
+		File[] outFiles = new File[n];
+		PdfSecurityOptions[] secOptions = new PdfSecurityOptions[n];
+		boolean[] open = new boolean[n];
+		IProgressMonitor[] mons = new IProgressMonitor[n];
+		for(int i=0; i<n; i++) {
+			int j = unfinished.get(i);
+			outFiles[i] = request.outFiles[j];
+			secOptions[i] = request.secOptions[j];
+			open[i] = request.open[j];
+			mons[i] = new StartedMonitor(request.mons[j]);
+			mons[i].progress("No remote renderer server available, rendering \"" + outFiles[i].getName() + "\" locally...");
+		}
+		fallback.asyncRender(request.xmlFile, request.xslFile, request.xslParams, outFiles, secOptions, open, mons);
+	}
+	
+	/*
+	 * Gets the renderer used when no server is available, the embedded one if it can be loaded.
+	 */
+	private static Renderer getFallback() {
+		RendererImplEmbedded embedded = RendererImplEmbedded.getDefault();
+		if(embedded.prepareRendering(null))
+			return embedded;
+		return RendererImplExternal.getDefault();
+	}
+	
+	/*
+	 * Keeps the requests posted until finished, checking their servers alive and polling their state.
+	 */
+	private void track(List<RenderRequest> posted) {
+		synchronized(requests) {
+			requests.addAll(posted);
+			if(livenessTimer == null) {
+				livenessTimer = new Timer("Render Servers Liveness Check", true);
+				livenessTimer.schedule(new TimerTask() {
+					@Override
+					public void run() {
+						checkServers();
+					}
+				}, LIVENESS_CHECK_PERIOD, LIVENESS_CHECK_PERIOD);
+			}
+			if(polling && pollTimer == null) {
+				pollTimer = new Timer("Render Jobs Polling", true);
+				pollTimer.schedule(new TimerTask() {
+					@Override
+					public void run() {
+						pollServers();
+					}
+				}, POLL_PERIOD, POLL_PERIOD);
+			}
+		}
+	}
+	
+	/*
+	 * Selects the least loaded server among the ones not tried yet.
+	 */
+	private RenderEndpoint selectEndpoint(List<RenderEndpoint> tried) {
+		if(endpoints.length == 1) // No load to compare, the server may have been restarted.
+			return tried.isEmpty() ? endpoints[0] : null;
+		RenderEndpoint best = null;
+		RenderLoad bestLoad = null;
+		for(RenderEndpoint endpoint : endpoints) {
+			if(tried.contains(endpoint))
+				continue;
+			RenderLoad load = endpoint.getLoad();
+			if(load != null && (bestLoad == null || load.compareTo(bestLoad) < 0)) {
+				best = endpoint;
+				bestLoad = load;
+			}
+		}
+		return best;
+	}
+	
+	/*
+	 * Posts a request to a server, shipping the files if required.
+	 */
+	private static void post(RenderRequest request, RenderEndpoint endpoint) throws Exception {
+		IRendererRm server = endpoint.connect();
+		RenderJob job = stage(request, endpoint, server);
+		IProgressMonitor[] mons = request.postedMons;
+		String[] monIds = new String[mons.length];
+		ProgressChannelServer channel = ProgressChannelServer.register(mons, monIds, server);
 		try {
-            Registry registry = LocateRegistry.getRegistry();
-            IRendererRm renderer = (IRendererRm) registry.lookup(IRendererRm.SERVICE_NAME);
-            IProgressMonitorRm rmMon = new ProgressMonitorServer(mon);
-        	mon.start("Rendering \"" + outFile.getName() + "\"...", 1.0);
-            renderer.startRendering(xmlFile, xslFile, xslParams, outFile, secOptions, open, rmMon);
-        } catch (Exception e) {
-        	mon.finish("Can't connect to the remote renderer server !", e);
-        }
+			if(mons.length == 1)
+				server.startRendering(job.getXmlFile(), job.getXslFile(), job.getXslParams(), job.getOutFiles()[0], job.getSecOptions()[0],
+						job.getOpen()[0], channel, monIds[0]);
+			else
+				server.startRendering(job.getXmlFile(), job.getXslFile(), job.getXslParams(), job.getOutFiles(), job.getSecOptions(),
+						job.getOpen(), channel, monIds);
+		} catch (RemoteException e) {
+			channel.unregister(monIds);
+			throw e;
+		}
+		endpoint.replied(server);
+		endpoint.posted(1);
+		request.endpoint = endpoint;
+		request.server = server;
+		request.channel = channel;
+		request.monIds = monIds;
+	}
+	
+	/*
+	 * Submits requests to the queue of a server in a single call, shipping the files if required.
+	 */
+	private static void postBatch(List<RenderRequest> batchRequests, RenderEndpoint endpoint) throws Exception {
+		IRendererRm server = endpoint.connect();
+		List<RenderJob> jobs = new ArrayList<RenderJob>(batchRequests.size());
+		for(RenderRequest request : batchRequests)
+			jobs.add(stage(request, endpoint, server));
+		String[] jobIds = server.submitBatch(jobs);
+		endpoint.replied(server);
+		endpoint.posted(jobs.size());
+		for(int i=0; i<jobIds.length; i++) {
+			RenderRequest request = batchRequests.get(i);
+			request.endpoint = endpoint;
+			request.server = server;
+			request.jobId = jobIds[i];
+		}
+	}
+	
+	/*
+	 * Builds the job of a request as seen by a server, shipping the files if required.
+	 */
+	private static RenderJob stage(RenderRequest request, RenderEndpoint endpoint, IRendererRm server) throws IOException {
+		File xmlFile = request.xmlFile;
+		File xslFile = request.xslFile;
+		File[] outFiles = request.outFiles;
+		boolean[] open = request.open;
+		IProgressMonitor[] mons = request.mons;
+		if(endpoint.isShipping()) {
+			for(IProgressMonitor mon : mons)
+				mon.progress("Shipping \"" + request.xmlFile.getName() + "\" to " + endpoint + "...");
+			File[] stagedFiles = endpoint.stage(server, request.xmlFile, request.xslFile);
+			xmlFile = stagedFiles[0];
+			xslFile = stagedFiles[1];
+			outFiles = new File[mons.length];
+			open = new boolean[mons.length];
+			mons = new IProgressMonitor[mons.length];
+			for(int i=0; i<mons.length; i++) {
+				outFiles[i] = server.createOutputFile(request.outFiles[i].getName());
+				mons[i] = new FetchingMonitor(request.mons[i], endpoint, server, outFiles[i], request.outFiles[i], request.open[i]);
+			}
+		}
+		request.postedMons = mons;
+		return new RenderJob(xmlFile, xslFile, request.xslParams, outFiles, request.secOptions, open);
+	}
+	
+	/*
+	 * Polls the state of the jobs submitted to the queue of the servers, one call per server.
+	 */
+	private void pollServers() {
+		Map<RenderEndpoint, List<RenderRequest>> polled = new HashMap<RenderEndpoint, List<RenderRequest>>();
+		synchronized(requests) {
+			for(RenderRequest request : requests) {
+				if(request.jobId == null || request.isFinished())
+					continue;
+				List<RenderRequest> endpointRequests = polled.get(request.endpoint);
+				if(endpointRequests == null) {
+					endpointRequests = new ArrayList<RenderRequest>();
+					polled.put(request.endpoint, endpointRequests);
+				}
+				endpointRequests.add(request);
+			}
+		}
+		for(List<RenderRequest> endpointRequests : polled.values()) {
+			IRendererRm server = endpointRequests.get(0).server;
+			String[] jobIds = new String[endpointRequests.size()];
+			for(int i=0; i<jobIds.length; i++)
+				jobIds[i] = endpointRequests.get(i).jobId;
+			try {
+				RenderJobStatus[] statuses = server.queryStatus(jobIds);
+				for(int i=0; i<statuses.length; i++)
+					applyStatus(endpointRequests.get(i), statuses[i]);
+				for(RenderRequest request : endpointRequests) {
+					if(!request.cancelSent && !request.isFinished() && isCanceled(request)) {
+						request.cancelSent = true;
+						server.cancel(request.jobId);
+					}
+				}
+			} catch (RemoteException e) {} // Dead servers are found by the liveness check.
+		}
+	}
+	
+	/*
+	 * Tells if the cancellation of one of the documents of a request was requested.
+	 */
+	private static boolean isCanceled(RenderRequest request) {
+		for(IProgressMonitor mon : request.postedMons)
+			if(mon.isCanceled())
+				return true;
+		return false;
+	}
+	
+	/*
+	 * Reports the state of a job polled to the monitors of its documents.
+	 */
+	private static void applyStatus(RenderRequest request, RenderJobStatus status) {
+		IProgressMonitor[] mons = request.postedMons;
+		double work = status.getProgress() - request.reported;
+		if(work > 0.0) {
+			request.reported = status.getProgress();
+			for(IProgressMonitor mon : mons)
+				if(!mon.isFinished())
+					mon.progress(status.getDescription(), work);
+		}
+		// The documents are finished in order.
+		for(int i=0; i<mons.length; i++) {
+			if(mons[i].isFinished())
+				continue;
+			if(i < status.getRenderedCount()) {
+				mons[i].finish("Document \"" + request.outFiles[i].getName() + "\" rendered.");
+			} else {
+				switch(status.getState()) {
+				case RenderJobStatus.DONE:
+				case RenderJobStatus.CANCELED:
+					mons[i].finish(status.getDescription());
+					break;
+				case RenderJobStatus.FAILED:
+					mons[i].finish(status.getDescription(), status.getError());
+					break;
+				case RenderJobStatus.UNKNOWN:
+					mons[i].finish("Can't render the document !",
+							new IOException("The job " + status.getJobId() + " is unknown to the remote renderer server " + request.endpoint));
+					break;
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Posts again to another server the documents of the servers found dead.
+	 */
+	private void checkServers() {
+		List<RenderRequest> lost = new ArrayList<RenderRequest>();
+		synchronized(requests) {
+			for(Iterator<RenderRequest> it = requests.iterator(); it.hasNext(); ) {
+				if(it.next().isFinished())
+					it.remove();
+			}
+			List<IRendererRm> alive = new ArrayList<IRendererRm>();
+			List<IRendererRm> dead = new ArrayList<IRendererRm>();
+			for(Iterator<RenderRequest> it = requests.iterator(); it.hasNext(); ) {
+				RenderRequest request = it.next();
+				if(alive.contains(request.server))
+					continue;
+				if(dead.contains(request.server) || !request.endpoint.checkAlive(request.server)) {
+					dead.add(request.server);
+					lost.add(request);
+					it.remove();
+				} else {
+					alive.add(request.server);
+				}
+			}
+		}
+		for(RenderRequest request : lost) {
+			if(request.channel != null)
+				request.channel.unregister(request.monIds);
+			RenderRequest unfinished = request.getUnfinished();
+			if(unfinished == null)
+				continue;
+			for(IProgressMonitor mon : unfinished.mons)
+				mon.progress("Remote renderer server " + request.endpoint + " lost, rendering again...");
+			if(polling)
+				dispatchBatch(Collections.singletonList(unfinished), request.endpoint);
+			else
+				dispatch(unfinished, request.endpoint);
+		}
 	}
 	
 
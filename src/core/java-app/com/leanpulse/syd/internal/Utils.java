@@ -5,8 +5,10 @@
 package com.leanpulse.syd.internal;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Properties;
 
 import javax.swing.SwingUtilities;
 
@@ -37,6 +39,14 @@ public class Utils {
 		return getRootPath() + File.separator + relPath;
 	}
 	
+	public static Properties loadConfig() {
+		Properties configFile = new Properties();
+		try {
+			configFile.load(new FileInputStream(new File(getAbsolutePath("syd.conf"))));
+		} catch (IOException ce) {}
+		return configFile;
+	}
+	
 	
 	public static String getDefinedAttribute(Element element, String name) throws IOException {
 		if(!element.hasAttribute(name))
@@ -79,6 +89,14 @@ public class Utils {
 			return fileName;
 	}
 	
+	public static File getCanonicalFile(File file) {
+		try {
+			return file.getCanonicalFile();
+		} catch (IOException e) {
+			return file.getAbsoluteFile();
+		}
+	}
+	
 	public static void runInEdt(Runnable runnable) {
 		if(SwingUtilities.isEventDispatchThread())
 			runnable.run();
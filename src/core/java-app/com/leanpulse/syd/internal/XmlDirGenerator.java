@@ -0,0 +1,272 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.internal;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.leanpulse.syd.api.GenProfile;
+import com.leanpulse.syd.api.Generator;
+import com.leanpulse.syd.api.PdfSecurityOptions;
+import com.leanpulse.syd.api.Renderer;
+import com.leanpulse.syd.api.RendererManager;
+import com.leanpulse.syd.api.progress.IProgressMonitor;
+import com.leanpulse.syd.internal.progress.ConsoleMonitor;
+
+/**
+ * Command line generation of the documents of model hierarchies from the XML
+ * files already extracted in a directory, without any modeling tool nor user
+ * interface.
+ * <p>
+ * The hierarchies are rebuilt from the <code>mdldep</code> attribute of the
+ * XML files, and generated in a single batch with a generation profile, so
+ * that the models shared by several hierarchies are only rendered once. The
+ * root models are the ones given on the command line, or by default the
+ * models of the directory not referenced by any other one.
+ * <p>
+ * Unless selected otherwise by the setting {@value RendererManager#RENDERER_PROPERTY},
+ * the documents are rendered by the embedded renderer, which spares the start
+ * of a rendering server. The documents are never opened once generated.
+ * <p>
+ * The process exits with the status 0 if all the documents were generated,
+ * 1 if a generation failed and 2 if the command line is invalid.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see XmlDirSnapper
+ */
+public class XmlDirGenerator {
+
+	private static final String USAGE =
+			"Usage: java -jar syd-core.jar [options] <xmldir> [<model> ...]\n" +
+			"Options:\n" +
+			"  -profile <id>     ID of the generation profile (required)\n" +
+			"  -profiles <file>  Profiles definition file (default: sydProfiles.xml of SyD)\n" +
+			"  -out <dir>        Root of the documents generated relatively to the models\n" +
+			"                    (default: the XML directory)\n" +
+			"  -jobs <n>         Number of documents rendered at once (default: " + Generator.MAXRENDERS_PROPERTY + ")\n" +
+			"  -skip-unchanged   Skips the documents already rendered from the same data\n";
+
+	/*
+	 * Renderer posting the documents to another one, never opening them, and either skipping the documents
+	 * up to date or forcing their rendering.
+	 */
+	private static class BatchRenderer extends Renderer {
+		private final Renderer renderer;
+		private final boolean skipUnchanged;
+
+		BatchRenderer(Renderer renderer, boolean skipUnchanged) {
+			super(null);
+			this.renderer = renderer;
+			this.skipUnchanged = skipUnchanged;
+		}
+
+		public void asyncRender(File xmlFile, File xslFile, String[] xslParams, File outFile, PdfSecurityOptions secOptions, boolean open, IProgressMonitor mon) {
+			if(!prepare(xmlFile, xslFile, xslParams, outFile, secOptions, mon))
+				renderer.asyncRender(xmlFile, xslFile, xslParams, outFile, secOptions, false, mon);
+		}
+
+		public void asyncRender(File xmlFile, File xslFile, String[] xslParams, File[] outFiles, PdfSecurityOptions[] secOptions, boolean[] open, IProgressMonitor[] mons) {
+			List<Integer> toRender = new ArrayList<Integer>(outFiles.length);
+			for(int i=0; i<outFiles.length; i++) {
+				if(!prepare(xmlFile, xslFile, xslParams, outFiles[i], secOptions[i], mons[i]))
+					toRender.add(i);
+			}
+			if(toRender.isEmpty())
+				return;
+			File[] renderOutFiles = new File[toRender.size()];
+			PdfSecurityOptions[] renderSecOptions = new PdfSecurityOptions[toRender.size()];
+			IProgressMonitor[] renderMons = new IProgressMonitor[toRender.size()];
+			for(int i=0; i<toRender.size(); i++) {
+				int j = toRender.get(i);
+				renderOutFiles[i] = outFiles[j];
+				renderSecOptions[i] = secOptions[j];
+				renderMons[i] = mons[j];
+			}
+			renderer.asyncRender(xmlFile, xslFile, xslParams, renderOutFiles, renderSecOptions, new boolean[toRender.size()], renderMons);
+		}
+
+		public void beginBatch() {
+			renderer.beginBatch();
+		}
+
+		public void endBatch() {
+			renderer.endBatch();
+		}
+
+		public void flushBatch() {
+			renderer.flushBatch();
+		}
+
+		/*
+		 * Finishes the monitor of a document up to date if the unchanged documents are skipped, or discards
+		 * its manifest otherwise. Returns true if the document is skipped.
+		 */
+		private boolean prepare(File xmlFile, File xslFile, String[] xslParams, File outFile, PdfSecurityOptions secOptions, IProgressMonitor mon) {
+			if(!skipUnchanged) {
+				discardManifest(outFile);
+				return false;
+			}
+			if(!isUpToDate(xmlFile, xslFile, xslParams, outFile, secOptions))
+				return false;
+			mon.start("Rendering document \"" + outFile.getName() + "\"...", 1.0);
+			mon.finish("Document " + outFile.getName() + " unchanged.");
+			return true;
+		}
+	}
+
+	/**
+	 * Generates the documents of the model hierarchies extracted in a
+	 * directory.
+	 *
+	 * @param args
+	 *            The command line arguments, see the usage.
+	 */
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+
+		String profileId = null;
+		File profilesFile = null;
+		File outDir = null;
+		int jobs = 0;
+		boolean skipUnchanged = false;
+		File xmlDir = null;
+		List<String> rootNames = new ArrayList<String>();
+		try {
+			for(int i=0; i<args.length; i++) {
+				String arg = args[i];
+				if(arg.equals("-profile"))
+					profileId = args[++i];
+				else if(arg.equals("-profiles"))
+					profilesFile = new File(args[++i]);
+				else if(arg.equals("-out"))
+					outDir = new File(args[++i]);
+				else if(arg.equals("-jobs"))
+					jobs = Integer.parseInt(args[++i]);
+				else if(arg.equals("-skip-unchanged"))
+					skipUnchanged = true;
+				else if(arg.startsWith("-"))
+					throw new IllegalArgumentException("Unknown option " + arg);
+				else if(xmlDir == null)
+					xmlDir = new File(arg);
+				else
+					rootNames.add(arg);
+			}
+			if(profileId == null || xmlDir == null || jobs < 0)
+				throw new IllegalArgumentException("Missing or invalid arguments");
+		} catch (RuntimeException e) { // Missing option value, invalid number or argument.
+			System.err.print(USAGE);
+			System.exit(2);
+		}
+		if(!xmlDir.isDirectory())
+			exit("XML directory " + xmlDir.getPath() + " not found.");
+
+		GenProfile profile = findProfile(profileId, profilesFile);
+		if(profile == null)
+			exit("Generation profile \"" + profileId + "\" not found.");
+
+		if(rootNames.isEmpty())
+			rootNames.addAll(findRoots(xmlDir));
+		if(rootNames.isEmpty())
+			exit("No root model found in " + xmlDir.getPath() + ".");
+
+		// The embedded renderer is the fastest when no rendering server is already running.
+		if(System.getProperty(RendererManager.RENDERER_PROPERTY) == null
+				&& Utils.loadConfig().getProperty(RendererManager.RENDERER_PROPERTY) == null)
+			System.setProperty(RendererManager.RENDERER_PROPERTY, RendererManager.RENDERER_EMBEDDED);
+
+		System.exit(generate(xmlDir, outDir != null ? outDir : xmlDir, rootNames, profile, jobs, skipUnchanged) ? 0 : 1);
+	}
+
+	/**
+	 * Generates the documents of model hierarchies extracted in a directory.
+	 *
+	 * @param xmlDir
+	 *            The directory of the XML files.
+	 * @param outDir
+	 *            The root of the documents generated relatively to the
+	 *            models.
+	 * @param rootNames
+	 *            The names of the root models.
+	 * @param profile
+	 *            The generation profile.
+	 * @param jobs
+	 *            The number of documents rendered at once, the default limit
+	 *            of the batch generations if 0.
+	 * @param skipUnchanged
+	 *            If the documents already rendered from the same data are
+	 *            skipped, otherwise they are rendered again.
+	 * @return True if all the documents were generated, false otherwise.
+	 */
+	static boolean generate(File xmlDir, File outDir, List<String> rootNames, GenProfile profile, int jobs, boolean skipUnchanged) {
+		ConsoleMonitor mon = new ConsoleMonitor();
+		mon.start("Generating " + rootNames.size() + " model hierarchies of " + xmlDir.getPath() + " with profile " + profile.getName() + "...", 100.0);
+		long startTime = System.currentTimeMillis();
+
+		XmlDirSnapper snapper = new XmlDirSnapper(xmlDir, outDir);
+		List<File> mdlFiles = new ArrayList<File>(rootNames.size());
+		for(String rootName : rootNames)
+			mdlFiles.add(snapper.getModel(rootName));
+
+		Renderer renderer = new BatchRenderer(RendererManager.getRenderer(mon.createSubProgress("Preparing to render documents...", 5.0)), skipUnchanged);
+		GeneratorImpl.scheduleAll(snapper, renderer, mdlFiles, profile, jobs > 0 ? jobs : Runtime.getRuntime().availableProcessors(),
+				jobs > 0 ? jobs : GeneratorImpl.getMaxRenders(), mon);
+
+		return GeneratorImpl.finish(mon, startTime) && !mon.isCanceled();
+	}
+
+	/*
+	 * Finds the models of a directory which aren't referenced by any other model, in the alphabetical order.
+	 */
+	private static Set<String> findRoots(File xmlDir) {
+		File[] xmlFiles = xmlDir.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(".xml");
+			}
+		});
+		Set<String> roots = new TreeSet<String>();
+		Set<String> referenced = new HashSet<String>();
+		for(File xmlFile : xmlFiles) {
+			String[] refNames = XmlDirSnapper.readDependencies(xmlFile);
+			if(refNames != null) { // Other XML files of the directory are ignored.
+				roots.add(Utils.getFileNameWithoutExtension(xmlFile));
+				referenced.addAll(Arrays.asList(refNames));
+			}
+		}
+		roots.removeAll(referenced);
+		return roots;
+	}
+
+	/*
+	 * Finds a generation profile among the profiles of SyD or of a definition file.
+	 */
+	private static GenProfile findProfile(String profileId, File profilesFile) {
+		if(profilesFile == null)
+			return GenProfile.getGenProfile(profileId);
+		GenProfile[] profiles = GenProfile.getGenProfiles(profilesFile);
+		if(profiles != null) {
+			for(GenProfile profile : profiles) {
+				if(profile.getId().equals(profileId))
+					return profile;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Prints an error and exits with a failure status.
+	 */
+	private static void exit(String message) {
+		System.err.println("ERROR: " + message);
+		System.exit(1);
+	}
+
+}
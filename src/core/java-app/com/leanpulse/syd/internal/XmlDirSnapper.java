@@ -0,0 +1,145 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+import com.leanpulse.syd.api.Snapper;
+import com.leanpulse.syd.api.progress.IProgressMonitor;
+
+/**
+ * Snapper reading the XML files already extracted in a directory, without any
+ * modeling tool.
+ * <p>
+ * The models are only known by their name: each model is given a file of the
+ * output directory, so that the documents generated relatively to the models
+ * are written in this directory. The XML file of a model is the file of the
+ * same name in the XML directory, and the models it references are read from
+ * the <code>mdldep</code> attribute of its root element.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see XmlDirGenerator
+ */
+class XmlDirSnapper extends Snapper {
+
+	private final File xmlDir;
+	private final File outDir;
+
+	/**
+	 * Creates a snapper reading the XML files of a directory.
+	 *
+	 * @param xmlDir
+	 *            The directory of the XML files.
+	 * @param outDir
+	 *            The directory standing for the directory of the models.
+	 */
+	XmlDirSnapper(File xmlDir, File outDir) {
+		this.xmlDir = xmlDir;
+		this.outDir = Utils.getCanonicalFile(outDir);
+	}
+
+	/**
+	 * Gets the file standing for a model.
+	 *
+	 * @param mdlName
+	 *            The name of the model.
+	 * @return The model file, in the output directory.
+	 */
+	File getModel(String mdlName) {
+		return new File(outDir, mdlName + ".mdl");
+	}
+
+	/**
+	 * Reads the names of the models referenced by an XML file.
+	 *
+	 * @param xmlFile
+	 *            The XML file.
+	 * @return The names of the models, or <code>null</code> if the file isn't
+	 *         an XML file extracted by SyD.
+	 */
+	static String[] readDependencies(File xmlFile) {
+		String rootEl = readRootFromXml(xmlFile);
+		if(rootEl == null)
+			return null;
+		Matcher depsMatcher = XML_DEPS_PATTERN.matcher(rootEl);
+		return depsMatcher.find() ? depsMatcher.group(1).split("\\|") : new String[0];
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Snapper#isThreadSafe()
+	 */
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Snapper#getDefaultSnapFile(java.io.File)
+	 */
+	@Override
+	public File getDefaultSnapFile(File mdlFile) {
+		return new File(xmlDir, Utils.getFileNameWithoutExtension(mdlFile) + ".xml");
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Snapper#getCurDir()
+	 */
+	@Override
+	public String getCurDir() {
+		return System.getProperty("user.dir");
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Snapper#resnap(java.io.File, boolean, boolean, java.util.Map, java.io.File, com.leanpulse.syd.api.progress.IProgressMonitor)
+	 */
+	@Override
+	protected List<File> resnap(File mdlFile, boolean followLinks, boolean lookUnderMasks, Map<String, String> params, File xmlFile, IProgressMonitor mon) {
+		String mdlName = Utils.getFileNameWithoutExtension(mdlFile);
+		if(!xmlFile.isFile()) {
+			mon.finish(null, new Exception("No XML file extracted from model \"" + mdlName + "\" in " + xmlDir.getPath()));
+			return null;
+		}
+		String[] refNames = readDependencies(xmlFile);
+		if(refNames == null) {
+			mon.finish(null, new Exception("File " + xmlFile.getPath() + " wasn't extracted by SyD"));
+			return null;
+		}
+		mon.finish("Model \"" + mdlName + "\" read from " + xmlFile.getName() + ".");
+		return locateModels(refNames);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Snapper#isDirty(java.io.File)
+	 */
+	@Override
+	protected boolean isDirty(File mdlFile) {
+		return true; // The XML file is always read, it is the only source of the hierarchy.
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Snapper#getVersion(java.io.File)
+	 */
+	@Override
+	protected String getVersion(File mdlFile) {
+		return null;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Snapper#locateModels(java.lang.String[])
+	 */
+	@Override
+	protected List<File> locateModels(String[] mdlNames) {
+		List<File> mdlFiles = new ArrayList<File>(mdlNames.length);
+		for(String mdlName : mdlNames)
+			mdlFiles.add(getModel(mdlName));
+		return mdlFiles;
+	}
+
+}
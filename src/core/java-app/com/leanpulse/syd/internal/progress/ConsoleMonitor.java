@@ -0,0 +1,254 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.internal.progress;
+
+import java.io.PrintStream;
+import java.util.concurrent.CancellationException;
+
+import com.leanpulse.syd.api.progress.IProgressMonitor;
+
+/**
+ * Progress monitor printing the tasks finished on the console, for the
+ * generations run without user interface.
+ * <p>
+ * Each message is prefixed by the progress of the whole generation, which
+ * only accounts for the work reported to the root monitor and for the
+ * sub-monitors of the root once finished. The errors are printed on the error
+ * stream and don't cancel the generation, so that all the failing documents
+ * are reported.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+public class ConsoleMonitor implements IProgressMonitor {
+
+	private final ConsoleMonitor root;
+	private final double parentWorkUnits;
+	private final boolean tracked; // If the monitor is a sub-monitor of the root, waited for by waitSubProgessFinish().
+	private final PrintStream out;
+	private final PrintStream err;
+	private boolean finished = false;
+	private boolean error = false;
+
+	// State of the root monitor, guarded by the root.
+	private double totalWork = 0.0;
+	private double doneWork = 0.0;
+	private int runningSubs = 0;
+	private int errors = 0;
+	private volatile boolean canceled = false;
+
+	/**
+	 * Creates a root monitor printing on the standard streams.
+	 */
+	public ConsoleMonitor() {
+		this(System.out, System.err);
+	}
+
+	/**
+	 * Creates a root monitor printing on the given streams.
+	 *
+	 * @param out
+	 *            The stream on which the messages are printed.
+	 * @param err
+	 *            The stream on which the errors are printed.
+	 */
+	public ConsoleMonitor(PrintStream out, PrintStream err) {
+		this.root = this;
+		this.parentWorkUnits = 0.0;
+		this.tracked = false;
+		this.out = out;
+		this.err = err;
+	}
+
+	private ConsoleMonitor(ConsoleMonitor parent, double parentWorkUnits) {
+		this.root = parent.root;
+		this.parentWorkUnits = parentWorkUnits;
+		this.tracked = parent == root;
+		this.out = root.out;
+		this.err = root.err;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.progress.IProgressMonitor#start(java.lang.String, double)
+	 */
+	public void start(String description, double totalWork) {
+		if(this == root) {
+			synchronized(root) {
+				this.totalWork = totalWork;
+			}
+			print(description, null);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.progress.IProgressMonitor#progress(double)
+	 */
+	public void progress(double work) {
+		if(this == root) {
+			synchronized(root) {
+				doneWork += work;
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.progress.IProgressMonitor#progress(java.lang.String)
+	 */
+	public void progress(String description) {
+		progress(description, 0.0);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.progress.IProgressMonitor#progress(java.lang.String, double)
+	 */
+	public void progress(String description, double work) {
+		if(this == root) {
+			progress(work);
+			print(description, null);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.progress.IProgressMonitor#requestCancel()
+	 */
+	public void requestCancel() {
+		root.canceled = true;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.progress.IProgressMonitor#checkCanceled()
+	 */
+	public void checkCanceled() throws CancellationException {
+		if(root.canceled)
+			throw new CancellationException();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.progress.IProgressMonitor#isRunning()
+	 */
+	public boolean isRunning() {
+		synchronized(root) {
+			return !finished;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.progress.IProgressMonitor#isCanceled()
+	 */
+	public boolean isCanceled() {
+		return root.canceled;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.progress.IProgressMonitor#isFinished()
+	 */
+	public boolean isFinished() {
+		synchronized(root) {
+			return finished;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.progress.IProgressMonitor#finish(java.lang.String)
+	 */
+	public void finish(String description) {
+		finish(description, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.progress.IProgressMonitor#finish(java.lang.String, java.lang.Exception)
+	 */
+	public void finish(String description, Exception ex) {
+		synchronized(root) {
+			if(finished)
+				return;
+			finished = true;
+			if(ex != null) {
+				error = true;
+				root.errors++;
+			}
+			if(tracked) {
+				root.runningSubs--;
+				root.doneWork += parentWorkUnits;
+			}
+			root.notifyAll();
+		}
+		print(description, ex);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.progress.IProgressMonitor#hasError()
+	 */
+	public boolean hasError() {
+		synchronized(root) {
+			return this == root ? errors > 0 : error;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.progress.IProgressMonitor#waitFinish()
+	 */
+	public void waitFinish() throws InterruptedException {
+		synchronized(root) {
+			while(!finished)
+				root.wait();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.progress.IProgressMonitor#createSubProgress(java.lang.String, double)
+	 */
+	public IProgressMonitor createSubProgress(String name, double parentWorkUnits) {
+		ConsoleMonitor subMon = new ConsoleMonitor(this, parentWorkUnits);
+		if(subMon.tracked) {
+			synchronized(root) {
+				root.runningSubs++;
+			}
+		}
+		return subMon;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.progress.IProgressMonitor#waitSubProgessFinish()
+	 */
+	public void waitSubProgessFinish() throws InterruptedException {
+		if(this == root) {
+			synchronized(root) {
+				while(runningSubs > 0)
+					root.wait();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of tasks which finished with an error.
+	 *
+	 * @return The number of errors.
+	 */
+	public int getErrorCount() {
+		synchronized(root) {
+			return root.errors;
+		}
+	}
+
+	/*
+	 * Prints a message prefixed by the progress of the generation, or an error on the error stream.
+	 */
+	private void print(String description, Exception ex) {
+		if(description == null && ex == null)
+			return;
+		String percent;
+		synchronized(root) {
+			int done = root.totalWork > 0.0 ? (int) Math.min(100.0, 100.0 * root.doneWork / root.totalWork) : 0;
+			percent = String.format("[%3d%%] ", done);
+		}
+		if(ex != null) {
+			String reason = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+			err.println(percent + "ERROR: " + (description != null ? description + " " : "") + reason);
+		} else {
+			out.println(percent + description);
+		}
+	}
+
+}
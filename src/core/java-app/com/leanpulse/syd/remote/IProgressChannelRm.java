@@ -0,0 +1,35 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Channel exported by a client of the rendering server to receive the
+ * progress of all its jobs.
+ * <p>
+ * The server sends the notifications in batches at a bounded rate, merging
+ * the successive progress of a same monitor, while the cancellation requests
+ * are pushed by the client to the server.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see IRendererRm#cancel(IProgressChannelRm, String[])
+ */
+public interface IProgressChannelRm extends Remote {
+
+	/**
+	 * Applies notifications to the progress monitors of the client.
+	 *
+	 * @param events
+	 *            The notifications, in the order they occurred.
+	 * @throws RemoteException
+	 *             If a communication-related exceptions occurred during the
+	 *             execution of the remote method call.
+	 */
+	void update(ProgressEventRm[] events) throws RemoteException;
+
+}
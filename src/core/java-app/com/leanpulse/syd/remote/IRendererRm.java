@@ -5,8 +5,11 @@
 package com.leanpulse.syd.remote;
 
 import java.io.File;
+import java.io.IOException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
 
 import com.leanpulse.syd.api.PdfSecurityOptions;
 import com.leanpulse.syd.api.Renderer;
@@ -22,6 +25,23 @@ public interface IRendererRm extends Remote {
 	
 	public static String SERVICE_NAME = "rmi://localhost/SydRemoteRenderer";
 	
+	/**
+	 * Line printed by a server on its standard output once bound, so that the
+	 * process starting it connects at once.
+	 */
+	public static String READY_MESSAGE = "SydRemoteRenderer ready";
+	
+	/**
+	 * Status of a server bound but still compiling the stylesheets and loading
+	 * the fonts. Documents can already be rendered, more slowly.
+	 */
+	public static String STATUS_WARMING = "warming";
+	
+	/**
+	 * Status of a server ready to render documents at full speed.
+	 */
+	public static String STATUS_WARM = "warm";
+	
 	/**
 	 * Checks the rendering server is alive.
 	 * 
@@ -32,13 +52,250 @@ public interface IRendererRm extends Remote {
 	 *             execution of the remote method call.
 	 */
 	boolean isAlive() throws RemoteException;
+	
+	/**
+	 * Gets the status of the rendering server.
+	 * 
+	 * @return {@link #STATUS_WARMING} or {@link #STATUS_WARM}.
+	 * @throws RemoteException
+	 *             If a communication-related exceptions occurred during the
+	 *             execution of the remote method call.
+	 */
+	String getStatus() throws RemoteException;
+	
+	/**
+	 * Gets the load of the rendering server.
+	 * 
+	 * @return The load.
+	 * @throws RemoteException
+	 *             If a communication-related exceptions occurred during the
+	 *             execution of the remote method call.
+	 */
+	RenderLoad getLoad() throws RemoteException;
+	
+	/**
+	 * Reports the heap of the rendering server and the cost of the caches
+	 * keeping it warm.
+	 * <p>
+	 * The keys are <code>heap.used</code>, <code>heap.committed</code>,
+	 * <code>heap.max</code>, <code>heap.retained</code> (after the last
+	 * garbage collection) and, for each tier of caches (<code>templates</code>,
+	 * <code>images</code>, <code>fonts</code>), <code>&lt;tier&gt;.size</code>,
+	 * <code>&lt;tier&gt;.rebuildtime</code> and <code>&lt;tier&gt;.freed</code>
+	 * (the heap freed when last released). Sizes are in bytes, times in
+	 * milliseconds, and negative if unknown. The keys of the worker processes
+	 * of a server are prefixed by the identifier of the worker.
+	 * 
+	 * @return The values by key.
+	 * @throws RemoteException
+	 *             If a communication-related exceptions occurred during the
+	 *             execution of the remote method call.
+	 */
+	Map<String, Long> getMemoryUsage() throws RemoteException;
+	
+	/**
+	 * Gets a bundle of files previously staged on the server.
+	 * <p>
+	 * Bundles let clients not sharing their file system with the server ship
+	 * the files to render, each bundle being identified by a key computed by
+	 * the client from the files it contains.
+	 * 
+	 * @param bundle
+	 *            The key of the bundle, made of hexadecimal digits.
+	 * @return The directory of the bundle on the server, or <code>null</code>
+	 *         if not staged.
+	 * @throws RemoteException
+	 *             If a communication-related exceptions occurred during the
+	 *             execution of the remote method call.
+	 */
+	File getStaged(String bundle) throws RemoteException;
+	
+	/**
+	 * Writes a part of a file of a bundle being staged.
+	 * 
+	 * @param bundle
+	 *            The key of the bundle.
+	 * @param path
+	 *            The path of the file in the bundle, with '/' separators.
+	 * @param offset
+	 *            The position of the data in the file.
+	 * @param data
+	 *            The data.
+	 * @throws IOException
+	 *             If the file can't be written.
+	 * @throws RemoteException
+	 *             If a communication-related exceptions occurred during the
+	 *             execution of the remote method call.
+	 */
+	void stage(String bundle, String path, long offset, byte[] data) throws IOException, RemoteException;
+	
+	/**
+	 * Ends the staging of a bundle, once all its files written.
+	 * 
+	 * @param bundle
+	 *            The key of the bundle.
+	 * @return The directory of the bundle on the server.
+	 * @throws IOException
+	 *             If the bundle can't be stored.
+	 * @throws RemoteException
+	 *             If a communication-related exceptions occurred during the
+	 *             execution of the remote method call.
+	 */
+	File commitStaged(String bundle) throws IOException, RemoteException;
+	
+	/**
+	 * Creates a location on the server where to render a document to fetch
+	 * afterwards.
+	 * 
+	 * @param name
+	 *            The name of the document.
+	 * @return The document file on the server.
+	 * @throws IOException
+	 *             If the location can't be created.
+	 * @throws RemoteException
+	 *             If a communication-related exceptions occurred during the
+	 *             execution of the remote method call.
+	 * @see #fetch(File, long, int)
+	 */
+	File createOutputFile(String name) throws IOException, RemoteException;
+	
+	/**
+	 * Reads a part of a document rendered in a location created by
+	 * {@link #createOutputFile(String)}.
+	 * 
+	 * @param file
+	 *            The document file on the server.
+	 * @param offset
+	 *            The position of the data to read.
+	 * @param length
+	 *            The maximum number of bytes to read.
+	 * @return The data read, empty at the end of the file.
+	 * @throws IOException
+	 *             If the file can't be read.
+	 * @throws RemoteException
+	 *             If a communication-related exceptions occurred during the
+	 *             execution of the remote method call.
+	 */
+	byte[] fetch(File file, long offset, int length) throws IOException, RemoteException;
+	
+	/**
+	 * Deletes a location created by {@link #createOutputFile(String)}.
+	 * 
+	 * @param file
+	 *            The document file on the server.
+	 * @throws RemoteException
+	 *             If a communication-related exceptions occurred during the
+	 *             execution of the remote method call.
+	 */
+	void discard(File file) throws RemoteException;
 
-	/*
-	 * (non-Javadoc)
-	 * @see com.leanpulse.syd.api.Renderer#asyncRender(java.io.File, java.io.File, java.lang.String[], java.io.File, com.leanpulse.syd.api.PdfSecurityOptions, boolean, com.leanpulse.syd.api.progress.IProgressMonitor)
+	/**
+	 * Starts rendering a document.
+	 * 
+	 * @param xmlFile
+	 *            The XML file to render.
+	 * @param xslFile
+	 *            The stylesheet formatting the document.
+	 * @param xslParams
+	 *            The parameters passed to the XSLT processor.
+	 * @param outFile
+	 *            The document to produce.
+	 * @param secOptions
+	 *            The security options of the document.
+	 * @param open
+	 *            If the document is opened once rendered.
+	 * @param channel
+	 *            The channel to which progress is reported.
+	 * @param monId
+	 *            The identifier of the monitor of the job on the channel.
+	 * @throws RemoteException
+	 *             If a communication-related exceptions occurred during the
+	 *             execution of the remote method call.
+	 * @see Renderer#asyncRender(File, File, String[], File, PdfSecurityOptions, boolean, com.leanpulse.syd.api.progress.IProgressMonitor)
 	 */
 	void startRendering(File xmlFile, File xslFile, String[] xslParams, File outFile, PdfSecurityOptions secOptions,
-			boolean open, IProgressMonitorRm mon) throws RemoteException;
+			boolean open, IProgressChannelRm channel, String monId) throws RemoteException;
+	
+	/**
+	 * Starts rendering several documents from the same content.
+	 * 
+	 * @param xmlFile
+	 *            The XML file to render.
+	 * @param xslFile
+	 *            The stylesheet formatting the documents.
+	 * @param xslParams
+	 *            The parameters passed to the XSLT processor.
+	 * @param outFiles
+	 *            The documents to produce.
+	 * @param secOptions
+	 *            The security options of each document.
+	 * @param open
+	 *            If each document is opened once rendered.
+	 * @param channel
+	 *            The channel to which progress is reported.
+	 * @param monIds
+	 *            The identifiers of the monitors of each document on the
+	 *            channel.
+	 * @throws RemoteException
+	 *             If a communication-related exceptions occurred during the
+	 *             execution of the remote method call.
+	 * @see Renderer#asyncRender(File, File, String[], File[], PdfSecurityOptions[], boolean[], com.leanpulse.syd.api.progress.IProgressMonitor[])
+	 */
+	void startRendering(File xmlFile, File xslFile, String[] xslParams, File[] outFiles, PdfSecurityOptions[] secOptions,
+			boolean[] open, IProgressChannelRm channel, String[] monIds) throws RemoteException;
+	
+	/**
+	 * Requests the cancellation of jobs.
+	 * 
+	 * @param channel
+	 *            The channel to which the progress of the jobs is reported.
+	 * @param monIds
+	 *            The identifiers of the monitors of the jobs on the channel.
+	 * @throws RemoteException
+	 *             If a communication-related exceptions occurred during the
+	 *             execution of the remote method call.
+	 */
+	void cancel(IProgressChannelRm channel, String[] monIds) throws RemoteException;
+	
+	/**
+	 * Submits jobs to the queue of the server in a single call.
+	 * <p>
+	 * The state of the jobs is then polled with
+	 * {@link #queryStatus(String[])}, no progress channel being required.
+	 * 
+	 * @param jobs
+	 *            The jobs.
+	 * @return The identifiers of the jobs, in the order of the jobs.
+	 * @throws RemoteException
+	 *             If a communication-related exceptions occurred during the
+	 *             execution of the remote method call.
+	 */
+	String[] submitBatch(List<RenderJob> jobs) throws RemoteException;
+	
+	/**
+	 * Gets the state of jobs submitted with {@link #submitBatch(List)}.
+	 * 
+	 * @param jobIds
+	 *            The identifiers of the jobs.
+	 * @return The state of each job, in the order of the identifiers.
+	 * @throws RemoteException
+	 *             If a communication-related exceptions occurred during the
+	 *             execution of the remote method call.
+	 */
+	RenderJobStatus[] queryStatus(String[] jobIds) throws RemoteException;
+	
+	/**
+	 * Requests the cancellation of a job submitted with
+	 * {@link #submitBatch(List)}.
+	 * 
+	 * @param jobId
+	 *            The identifier of the job.
+	 * @return <code>false</code> if the job is unknown or already ended.
+	 * @throws RemoteException
+	 *             If a communication-related exceptions occurred during the
+	 *             execution of the remote method call.
+	 */
+	boolean cancel(String jobId) throws RemoteException;
 	
 	/**
 	 * Requests the rendering server to shut down.
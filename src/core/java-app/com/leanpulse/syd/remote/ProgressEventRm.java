@@ -0,0 +1,152 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * A notification sent by the rendering server to update a progress monitor of
+ * the client.
+ * <p>
+ * Monitors are identified by strings unique for a client: the identifiers of
+ * the monitors of the jobs are chosen by the client while the identifiers of
+ * their sub-monitors are chosen by the server, appending a number to the
+ * identifier of their parent.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see IProgressChannelRm
+ */
+public class ProgressEventRm implements Serializable {
+
+	private static final long serialVersionUID = 4682014457395827711L;
+
+	/**
+	 * The task of the monitor starts.
+	 */
+	public static final int START = 0;
+
+	/**
+	 * Work units are completed and/or the description is updated.
+	 */
+	public static final int PROGRESS = 1;
+
+	/**
+	 * A sub-monitor is created.
+	 */
+	public static final int SUB_PROGRESS = 2;
+
+	/**
+	 * Cancellation is requested by the server.
+	 */
+	public static final int CANCEL = 3;
+
+	/**
+	 * The task of the monitor finished, with an error or not.
+	 */
+	public static final int FINISH = 4;
+
+	private int type;
+	private String monitorId;
+	private String description;
+	private double work;
+	private String subMonitorId;
+	private IOException error;
+
+	/**
+	 * Creates a notification.
+	 *
+	 * @param type
+	 *            The type of notification.
+	 * @param monitorId
+	 *            The identifier of the monitor notified.
+	 * @param description
+	 *            The message or description, possibly <code>null</code>.
+	 * @param work
+	 *            The number of work units.
+	 * @param subMonitorId
+	 *            The identifier of the sub-monitor created, if any.
+	 * @param error
+	 *            The error that made the task fail, if any.
+	 */
+	public ProgressEventRm(int type, String monitorId, String description, double work, String subMonitorId, IOException error) {
+		this.type = type;
+		this.monitorId = monitorId;
+		this.description = description;
+		this.work = work;
+		this.subMonitorId = subMonitorId;
+		this.error = error;
+	}
+
+	/**
+	 * Merges a progress notification of the same monitor into this one.
+	 *
+	 * @param description
+	 *            The updated description, or <code>null</code> if unchanged.
+	 * @param work
+	 *            The number of work units completed.
+	 */
+	public void addProgress(String description, double work) {
+		if(description != null)
+			this.description = description;
+		this.work += work;
+	}
+
+	/**
+	 * Gets the type of notification.
+	 *
+	 * @return One of the type constants of this class.
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the identifier of the monitor notified.
+	 *
+	 * @return The identifier.
+	 */
+	public String getMonitorId() {
+		return monitorId;
+	}
+
+	/**
+	 * Gets the message or description.
+	 *
+	 * @return The description, or <code>null</code> if none.
+	 */
+	public String getDescription() {
+		return description;
+	}
+
+	/**
+	 * Gets the number of work units, total or completed according to the type.
+	 *
+	 * @return The number of work units.
+	 */
+	public double getWork() {
+		return work;
+	}
+
+	/**
+	 * Gets the identifier of the sub-monitor created.
+	 *
+	 * @return The identifier, or <code>null</code> if none.
+	 */
+	public String getSubMonitorId() {
+		return subMonitorId;
+	}
+
+	/**
+	 * Gets the error that made the task fail.
+	 *
+	 * @return The error, or <code>null</code> if none.
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+}
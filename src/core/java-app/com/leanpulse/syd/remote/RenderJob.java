@@ -0,0 +1,111 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote;
+
+import java.io.File;
+import java.io.Serializable;
+
+import com.leanpulse.syd.api.PdfSecurityOptions;
+
+/**
+ * A job submitted to the queue of a rendering server: one or several
+ * documents rendered from the same content, whose state is polled by the
+ * client instead of being reported to a progress channel.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see IRendererRm#submitBatch(java.util.List)
+ */
+public class RenderJob implements Serializable {
+
+	private static final long serialVersionUID = 7380364176251983409L;
+
+	private File xmlFile;
+	private File xslFile;
+	private String[] xslParams;
+	private File[] outFiles;
+	private PdfSecurityOptions[] secOptions;
+	private boolean[] open;
+
+	/**
+	 * Creates a job.
+	 *
+	 * @param xmlFile
+	 *            The XML file to render.
+	 * @param xslFile
+	 *            The stylesheet formatting the documents.
+	 * @param xslParams
+	 *            The parameters passed to the XSLT processor.
+	 * @param outFiles
+	 *            The documents to produce.
+	 * @param secOptions
+	 *            The security options of each document.
+	 * @param open
+	 *            If each document is opened once rendered.
+	 */
+	public RenderJob(File xmlFile, File xslFile, String[] xslParams, File[] outFiles, PdfSecurityOptions[] secOptions, boolean[] open) {
+		this.xmlFile = xmlFile;
+		this.xslFile = xslFile;
+		this.xslParams = xslParams;
+		this.outFiles = outFiles;
+		this.secOptions = secOptions;
+		this.open = open;
+	}
+
+	/**
+	 * Gets the XML file to render.
+	 *
+	 * @return The XML file.
+	 */
+	public File getXmlFile() {
+		return xmlFile;
+	}
+
+	/**
+	 * Gets the stylesheet formatting the documents.
+	 *
+	 * @return The stylesheet.
+	 */
+	public File getXslFile() {
+		return xslFile;
+	}
+
+	/**
+	 * Gets the parameters passed to the XSLT processor.
+	 *
+	 * @return The parameters.
+	 */
+	public String[] getXslParams() {
+		return xslParams;
+	}
+
+	/**
+	 * Gets the documents to produce.
+	 *
+	 * @return The documents.
+	 */
+	public File[] getOutFiles() {
+		return outFiles;
+	}
+
+	/**
+	 * Gets the security options of each document.
+	 *
+	 * @return The security options.
+	 */
+	public PdfSecurityOptions[] getSecOptions() {
+		return secOptions;
+	}
+
+	/**
+	 * Tells if each document is opened once rendered.
+	 *
+	 * @return The flags.
+	 */
+	public boolean[] getOpen() {
+		return open;
+	}
+
+}
@@ -0,0 +1,153 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * The state of a job of the queue of a rendering server, as polled by the
+ * client.
+ * <p>
+ * The documents of a job are finished in order, so the number of documents
+ * rendered tells which ones are ready while the job is still running.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see IRendererRm#queryStatus(String[])
+ */
+public class RenderJobStatus implements Serializable {
+
+	private static final long serialVersionUID = -5120684539370581735L;
+
+	/**
+	 * State of a job waiting to be rendered.
+	 */
+	public static final int QUEUED = 0;
+
+	/**
+	 * State of a job being rendered.
+	 */
+	public static final int RUNNING = 1;
+
+	/**
+	 * State of a job whose documents are all rendered.
+	 */
+	public static final int DONE = 2;
+
+	/**
+	 * State of a job which finished with an error.
+	 */
+	public static final int FAILED = 3;
+
+	/**
+	 * State of a job canceled.
+	 */
+	public static final int CANCELED = 4;
+
+	/**
+	 * State of a job unknown to the server, never submitted or finished for
+	 * too long.
+	 */
+	public static final int UNKNOWN = 5;
+
+	private String jobId;
+	private int state;
+	private String description;
+	private double progress;
+	private int renderedCount;
+	private IOException error;
+
+	/**
+	 * Creates the status of a job.
+	 *
+	 * @param jobId
+	 *            The identifier of the job.
+	 * @param state
+	 *            The state of the job.
+	 * @param description
+	 *            The last progress message, possibly <code>null</code>.
+	 * @param progress
+	 *            The fraction of the job done, between 0 and 1.
+	 * @param renderedCount
+	 *            The number of documents of the job rendered successfully.
+	 * @param error
+	 *            The error if the job failed, <code>null</code> otherwise.
+	 */
+	public RenderJobStatus(String jobId, int state, String description, double progress, int renderedCount, IOException error) {
+		this.jobId = jobId;
+		this.state = state;
+		this.description = description;
+		this.progress = progress;
+		this.renderedCount = renderedCount;
+		this.error = error;
+	}
+
+	/**
+	 * Gets the identifier of the job.
+	 *
+	 * @return The identifier.
+	 */
+	public String getJobId() {
+		return jobId;
+	}
+
+	/**
+	 * Gets the state of the job.
+	 *
+	 * @return One of {@link #QUEUED}, {@link #RUNNING}, {@link #DONE},
+	 *         {@link #FAILED}, {@link #CANCELED} or {@link #UNKNOWN}.
+	 */
+	public int getState() {
+		return state;
+	}
+
+	/**
+	 * Tells if the job ended, successfully or not.
+	 *
+	 * @return <code>true</code> if the job won't change anymore.
+	 */
+	public boolean isEnded() {
+		return state != QUEUED && state != RUNNING;
+	}
+
+	/**
+	 * Gets the last progress message of the job.
+	 *
+	 * @return The message, possibly <code>null</code>.
+	 */
+	public String getDescription() {
+		return description;
+	}
+
+	/**
+	 * Gets the fraction of the job done.
+	 *
+	 * @return The progress between 0 and 1.
+	 */
+	public double getProgress() {
+		return progress;
+	}
+
+	/**
+	 * Gets the number of documents of the job rendered successfully, the
+	 * documents being finished in order.
+	 *
+	 * @return The number of documents.
+	 */
+	public int getRenderedCount() {
+		return renderedCount;
+	}
+
+	/**
+	 * Gets the error of a job which failed.
+	 *
+	 * @return The error, or <code>null</code> if none.
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+}
@@ -0,0 +1,121 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote;
+
+import java.io.Serializable;
+
+/**
+ * The load of a rendering server, used by the clients to dispatch their jobs
+ * to the least loaded server.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see IRendererRm#getLoad()
+ */
+public class RenderLoad implements Serializable, Comparable<RenderLoad> {
+
+	private static final long serialVersionUID = -3154829906014322173L;
+
+	private int jobCount;
+	private int processors;
+	private long heapHeadroom;
+	private long retainedHeap;
+	private long maxHeap;
+
+	/**
+	 * Creates the load of a server.
+	 *
+	 * @param jobCount
+	 *            The number of jobs running or waiting on the server.
+	 * @param processors
+	 *            The number of processors of the server.
+	 * @param heapHeadroom
+	 *            The heap in bytes not reserved by the jobs running.
+	 * @param retainedHeap
+	 *            The heap in bytes retained after the last garbage collection.
+	 * @param maxHeap
+	 *            The maximum heap in bytes of the server.
+	 */
+	public RenderLoad(int jobCount, int processors, long heapHeadroom, long retainedHeap, long maxHeap) {
+		this.jobCount = jobCount;
+		this.processors = Math.max(1, processors);
+		this.heapHeadroom = heapHeadroom;
+		this.retainedHeap = retainedHeap;
+		this.maxHeap = maxHeap;
+	}
+
+	/**
+	 * Gets the number of jobs running or waiting on the server.
+	 *
+	 * @return The number of jobs.
+	 */
+	public int getJobCount() {
+		return jobCount;
+	}
+
+	/**
+	 * Gets the number of processors of the server.
+	 *
+	 * @return The number of processors.
+	 */
+	public int getProcessors() {
+		return processors;
+	}
+
+	/**
+	 * Gets the heap not reserved by the jobs running on the server.
+	 *
+	 * @return The heap headroom in bytes.
+	 */
+	public long getHeapHeadroom() {
+		return heapHeadroom;
+	}
+
+	/**
+	 * Gets the heap retained by long lived objects after the last garbage
+	 * collection on the server.
+	 *
+	 * @return The heap retained in bytes.
+	 */
+	public long getRetainedHeap() {
+		return retainedHeap;
+	}
+
+	/**
+	 * Gets the maximum heap of the server.
+	 *
+	 * @return The maximum heap in bytes.
+	 */
+	public long getMaxHeap() {
+		return maxHeap;
+	}
+
+	/**
+	 * Compares the load of two servers: the server having the less jobs per
+	 * processor is the least loaded, then the one having the most heap
+	 * headroom.
+	 *
+	 * @param other
+	 *            The load of the other server.
+	 * @return A negative integer if this server is less loaded than the other
+	 *         one, a positive one if more loaded, zero otherwise.
+	 */
+	public int compareTo(RenderLoad other) {
+		long diff = (long) jobCount * other.processors - (long) other.jobCount * processors;
+		if(diff == 0)
+			diff = other.heapHeadroom - heapHeadroom;
+		return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return jobCount + " jobs on " + processors + " processors, " + (heapHeadroom / (1024L * 1024L)) + " MB free";
+	}
+
+}
@@ -0,0 +1,284 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.leanpulse.syd.api.progress.IProgressMonitor;
+
+/**
+ * Controls the admission of the render jobs according to the heap available
+ * to the rendering server.
+ * <p>
+ * The peak of heap needed by a job is estimated from the size of its input
+ * XML, with a ratio calibrated from the peaks observed while jobs were
+ * rendered alone. A job is started only if the sum of the estimates of the
+ * running jobs leaves enough heap for it, otherwise it waits in a queue until
+ * enough running jobs finished. A job is always started when no other job is
+ * running, whatever its estimate.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+class AdmissionController {
+
+	/* Initial ratio between the heap needed by a job and the size of its input XML. */
+	private static final double DEFAULT_HEAP_RATIO = 20.0;
+
+	/* Minimal ratio between the heap needed by a job and the size of its input XML. */
+	private static final double MIN_HEAP_RATIO = 4.0;
+
+	/* Heap needed by any job, whatever the size of its input XML. */
+	private static final long JOB_HEAP_OVERHEAD = 16L * 1024L * 1024L;
+
+	/* Heap kept for the factories, caches and RMI layer of the server. */
+	private static final long SERVER_HEAP_RESERVE = 64L * 1024L * 1024L;
+
+	/* Period in milliseconds at which the heap is sampled while jobs are running. */
+	private static final long SAMPLING_PERIOD = 200L;
+
+	/**
+	 * A render job waiting for or holding a part of the heap budget.
+	 */
+	static class Ticket {
+		private final String name;
+		private final long xmlSize;
+		private final IProgressMonitor mon;
+		private final Runnable job;
+		private long estimate;
+		private boolean admitted = false;
+		private boolean released = false;
+		private boolean alone = false;
+		private long baseline;
+
+		/**
+		 * Creates the ticket of a render job.
+		 *
+		 * @param name
+		 *            The name of the document rendered by the job.
+		 * @param xmlSize
+		 *            The size of the input XML of the job.
+		 * @param mon
+		 *            The progress monitor of the job to which the queued state
+		 *            is reported.
+		 * @param job
+		 *            The runnable starting the job once admitted.
+		 */
+		Ticket(String name, long xmlSize, IProgressMonitor mon, Runnable job) {
+			this.name = name;
+			this.xmlSize = xmlSize;
+			this.mon = mon;
+			this.job = job;
+		}
+	}
+
+	private final long budget;
+	private long reserved = 0;
+	private double heapRatio = DEFAULT_HEAP_RATIO;
+	private final List<Ticket> running = new ArrayList<Ticket>();
+	private final LinkedList<Ticket> pending = new LinkedList<Ticket>();
+	private long peakHeap = 0;
+
+	/**
+	 * Creates an admission controller sharing the maximum heap of the current
+	 * virtual machine between the jobs.
+	 */
+	AdmissionController() {
+		this(Math.max(Runtime.getRuntime().maxMemory() / 2, Runtime.getRuntime().maxMemory() - SERVER_HEAP_RESERVE));
+	}
+
+	/**
+	 * Creates an admission controller sharing the given heap budget between
+	 * the jobs.
+	 *
+	 * @param budget
+	 *            The heap available to the jobs in bytes.
+	 */
+	AdmissionController(long budget) {
+		this.budget = budget;
+		Timer sampler = new Timer("Heap Sampling", true);
+		sampler.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				sampleHeap();
+			}
+		}, SAMPLING_PERIOD, SAMPLING_PERIOD);
+	}
+
+	/**
+	 * Submits a job, starting it immediately if enough heap is available or
+	 * queuing it otherwise.
+	 *
+	 * @param ticket
+	 *            The ticket of the job.
+	 */
+	void submit(Ticket ticket) {
+		boolean admitted;
+		synchronized(this) {
+			ticket.estimate = JOB_HEAP_OVERHEAD + (long) (heapRatio * ticket.xmlSize);
+			admitted = pending.isEmpty() && tryAdmit(ticket);
+			if(!admitted)
+				pending.add(ticket);
+		}
+		if(admitted)
+			ticket.job.run();
+		else
+			ticket.mon.progress("Waiting for memory to render \"" + ticket.name + "\"...");
+	}
+
+	/**
+	 * Releases the heap held by a job when it finished and starts the queued
+	 * jobs that then fit in the budget.
+	 * <p>
+	 * Has no effect if the ticket has already been released.
+	 *
+	 * @param ticket
+	 *            The ticket of the job.
+	 * @param outOfMemory
+	 *            If the job failed because the heap was exhausted.
+	 */
+	void release(Ticket ticket, boolean outOfMemory) {
+		List<Ticket> started = new ArrayList<Ticket>();
+		synchronized(this) {
+			if(ticket.released)
+				return;
+			ticket.released = true;
+			if(!ticket.admitted) { // Finished (cancelled) while still queued.
+				pending.remove(ticket);
+				return;
+			}
+			running.remove(ticket);
+			reserved -= ticket.estimate;
+
+			// Calibrates the heap ratio with the jobs having been rendered alone.
+			if(outOfMemory) {
+				heapRatio *= 2.0;
+			} else if(ticket.alone && ticket.xmlSize > 0) {
+				double ratio = (double) (peakHeap - ticket.baseline - JOB_HEAP_OVERHEAD) / ticket.xmlSize;
+				heapRatio = Math.max(MIN_HEAP_RATIO, (heapRatio + ratio) / 2.0);
+			}
+
+			Iterator<Ticket> it = pending.iterator();
+			while(it.hasNext()) {
+				Ticket next = it.next();
+				if(tryAdmit(next)) {
+					it.remove();
+					started.add(next);
+				} else {
+					break; // Keeps the order of submission.
+				}
+			}
+		}
+		for(Ticket next : started) {
+			next.mon.progress("Rendering \"" + next.name + "\"...");
+			next.job.run();
+		}
+	}
+
+	/**
+	 * Gets the number of jobs admitted or waiting for memory.
+	 *
+	 * @return The number of jobs.
+	 */
+	synchronized int getJobCount() {
+		return running.size() + pending.size();
+	}
+
+	/**
+	 * Gets the number of jobs waiting for memory.
+	 *
+	 * @return The number of jobs.
+	 */
+	synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Gets the heap not reserved by the jobs admitted.
+	 *
+	 * @return The heap headroom in bytes.
+	 */
+	synchronized long getHeadroom() {
+		return budget - reserved;
+	}
+
+	/*
+	 * Admits the job if its estimate fits in the remaining budget or if no
+	 * other job is running.
+	 */
+	private boolean tryAdmit(Ticket ticket) {
+		if(!running.isEmpty() && reserved + ticket.estimate > budget)
+			return false;
+		if(running.isEmpty()) {
+			ticket.alone = true;
+			ticket.baseline = getUsedHeap();
+			peakHeap = ticket.baseline;
+		} else {
+			for(Ticket other : running)
+				other.alone = false;
+		}
+		ticket.admitted = true;
+		running.add(ticket);
+		reserved += ticket.estimate;
+		return true;
+	}
+
+	/*
+	 * Records the peak of heap used while jobs are running.
+	 */
+	private synchronized void sampleHeap() {
+		if(!running.isEmpty())
+			peakHeap = Math.max(peakHeap, getUsedHeap());
+	}
+
+	/**
+	 * Gets the heap retained by long lived objects after the last garbage
+	 * collection, which grows if objects leak from one job to the next.
+	 *
+	 * @return The heap retained in bytes.
+	 */
+	static long getRetainedHeap() {
+		long retained = 0;
+		boolean found = false;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			String name = pool.getName();
+			if(pool.getType() == MemoryType.HEAP && !name.contains("Eden") && !name.contains("Survivor") && pool.getCollectionUsage() != null) {
+				retained += pool.getCollectionUsage().getUsed();
+				found = true;
+			}
+		}
+		return found ? retained : getUsedHeap();
+	}
+
+	/*
+	 * Returns the heap used by long lived objects, i.e. in the tenured pools,
+	 * as an approximation of the heap actually held by the jobs. Falls back on
+	 * the whole heap used if the pools can't be distinguished.
+	 */
+	private static long getUsedHeap() {
+		long used = 0;
+		boolean found = false;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			String name = pool.getName();
+			if(pool.getType() == MemoryType.HEAP && !name.contains("Eden") && !name.contains("Survivor")) {
+				used += pool.getUsage().getUsed();
+				found = true;
+			}
+		}
+		if(!found) {
+			Runtime runtime = Runtime.getRuntime();
+			used = runtime.totalMemory() - runtime.freeMemory();
+		}
+		return used;
+	}
+
+}
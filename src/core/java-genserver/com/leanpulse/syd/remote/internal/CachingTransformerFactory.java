@@ -9,8 +9,17 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
@@ -31,6 +40,15 @@ import net.sf.saxon.trans.XPathException;
  * This implementation caches templates that were loaded from local files so
  * that consequent calls to local stylesheets require stylesheet reparsing only
  * if stylesheet was changed. It also allows to load compiled stylesheets.
+ * <p>
+ * All the local files included or imported while compiling a stylesheet are
+ * recorded with the templates. A background thread periodically checks those
+ * files and evicts the templates of which one of the files changed, so that
+ * getting cached templates doesn't require any access to the file system.
+ * <p>
+ * Stylesheets are compiled concurrently, each one only once at a time, and
+ * the least recently used templates are evicted when the total size of the
+ * stylesheets cached exceeds a maximum.
  * 
  * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
  */
@@ -50,61 +68,303 @@ public class CachingTransformerFactory extends TransformerFactoryImpl {
 					int pathidx = href.indexOf("!/");
 					URL baseURL = new URL(base);
 		            URL absoluteURL = new URL(baseURL, href.substring(9,pathidx));
+		            recordDependency(absoluteURL.toString());
 		            href = "jar:" + absoluteURL.toString().replaceAll(" ", "%20") + href.substring(pathidx);
 				} catch (MalformedURLException err) {
 					throw new XPathException("Invalid URI " + Err.wrap(href) + " - base " + Err.wrap(base), err);
 		        }
+				return super.resolve(href, base);
 			}
-			return super.resolve(href, base);
+			Source source = super.resolve(href, base);
+			if(source != null)
+				recordDependency(source.getSystemId());
+			return source;
 		}
 
 	}
 	
 	public static final String COMPILED_STYLESHEET_EXT = ".cxs";
 	
+	/* Period in milliseconds at which the files of the cached templates are checked. */
+	private static final long CHECK_PERIOD = 2000L;
+	
+	/* Files included while compiling a stylesheet in the current thread. */
+	private static final ThreadLocal<List<File>> compiledDependencies = new ThreadLocal<List<File>>();
+	
 	public CachingTransformerFactory() {
 		super();
 		setURIResolver(new ZxsURIResolver(getConfiguration()));
 	}
+	
+	/*
+	 * Records a file included by the stylesheet being compiled in the current thread.
+	 */
+	private static void recordDependency(String systemId) {
+		List<File> dependencies = compiledDependencies.get();
+		if(dependencies == null || systemId == null)
+			return;
+		try {
+			URI uri = new URI(systemId.replaceAll(" ", "%20"));
+			if("file".equalsIgnoreCase(uri.getScheme()))
+				dependencies.add(new File(uri));
+		} catch (URISyntaxException e) {
+		} catch (IllegalArgumentException e) {}
+	}
 
 	/**
 	 * Private class to hold templates cache entry.
 	 */
 	private static class TemplatesCacheEntry {
-		/** When was the cached entry last modified. */
-		private long lastModified;
+		/** Files from which the templates were loaded, including the templates file itself. */
+		private File[] dependencies;
+		
+		/** When were the files last modified, -1 if possibly modified while the templates were loaded. */
+		private long[] lastModified;
 
 		/** Cached templates object. */
 		private Templates templates;
-
-		/** Templates file object. */
-		private File templatesFile;
+		
+		/** Weight of the templates in the cache, i.e. the size of the files they were loaded from. */
+		private long weight;
+		
+		/** Time in milliseconds it took to load the templates. */
+		private long loadTime;
 
 		/**
 		 * Constructs a new cache entry.
 		 * 
 		 * @param templates
 		 *            templates to cache.
-		 * @param templatesFile
-		 *            file, from which this transformer was loaded.
+		 * @param dependencies
+		 *            files from which this transformer was loaded.
+		 * @param loadStart
+		 *            time at which the loading of the templates started.
 		 */
 		private TemplatesCacheEntry(final Templates templates,
-				final File templatesFile) {
+				final List<File> dependencies, final long loadStart) {
 			this.templates = templates;
-			this.templatesFile = templatesFile;
-			this.lastModified = templatesFile.lastModified();
+			this.dependencies = dependencies.toArray(new File[dependencies.size()]);
+			this.lastModified = new long[this.dependencies.length];
+			for(int i=0; i<this.dependencies.length; i++) {
+				// The dates are read once the files are loaded: a file modified meanwhile makes the templates obsolete.
+				long fileModified = this.dependencies[i].lastModified();
+				this.lastModified[i] = fileModified > loadStart - CompiledStylesheetCache.MODIFICATION_RESOLUTION ? -1L : fileModified;
+				this.weight += this.dependencies[i].length();
+			}
+		}
+		
+		/**
+		 * Checks if one of the files from which the templates were loaded changed.
+		 * 
+		 * @return <code>true</code> if the templates are obsolete.
+		 */
+		private boolean isObsolete() {
+			for(int i=0; i<dependencies.length; i++) {
+				if(dependencies[i].lastModified() != lastModified[i])
+					return true;
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * Private class to hold a slot of the templates cache, the templates being
+	 * possibly still loading.
+	 */
+	private static class TemplatesCacheSlot {
+		/** Task loading the templates. */
+		private final FutureTask<TemplatesCacheEntry> task;
+		
+		/** When was the slot last accessed, in ticks of the cache. */
+		private volatile long lastAccess;
+		
+		private TemplatesCacheSlot(FutureTask<TemplatesCacheEntry> task) {
+			this.task = task;
+			this.lastAccess = accessTicks.incrementAndGet();
+		}
+		
+		/**
+		 * Returns the entry of the slot if loaded successfully.
+		 * 
+		 * @return The entry, or <code>null</code> if still loading or failed to load.
+		 */
+		private TemplatesCacheEntry getLoadedEntry() {
+			if(!task.isDone())
+				return null;
+			try {
+				return task.get();
+			} catch (Exception e) {
+				return null;
+			}
 		}
 	}
+	
+	/** Default maximum weight of the cache, in megabytes of stylesheets. */
+	private static final long DEFAULT_MAX_WEIGHT = 16L;
+	
+	/** System property giving the maximum weight of the cache, in megabytes of stylesheets. */
+	public static final String MAX_WEIGHT_PROPERTY = "syd.rmrender.templatescache.maxsize";
+	
+	/** Maximum weight of the cache. */
+	private static long maxWeight = Long.getLong(MAX_WEIGHT_PROPERTY, DEFAULT_MAX_WEIGHT).longValue() * 1024L * 1024L;
 
-	/** Map to hold templates cache. */
-	private static Map<String, TemplatesCacheEntry> templatesCache = new HashMap<String, TemplatesCacheEntry>();
+	/** Map to hold templates cache, indexed by the path of the templates file. */
+	private static ConcurrentMap<String, TemplatesCacheSlot> templatesCache = new ConcurrentHashMap<String, TemplatesCacheSlot>();
+	
+	/** Clock of the accesses to the cache. */
+	private static final AtomicLong accessTicks = new AtomicLong();
+	
+	/** Counters of the transformers created from cached templates and of the templates loaded. */
+	private static final AtomicLong templatesHits = new AtomicLong();
+	private static final AtomicLong templatesMisses = new AtomicLong();
+	
+	/** Thread checking the files of the cached templates. */
+	private static Thread checkThread = null;
+	
+	/*
+	 * Starts the thread evicting the obsolete templates, if not already started.
+	 */
+	private static synchronized void startCheckThread() {
+		if(checkThread != null)
+			return;
+		checkThread = new Thread(new Runnable() {
+			public void run() {
+				while(true) {
+					try {
+						Thread.sleep(CHECK_PERIOD);
+					} catch (InterruptedException e) {
+						return;
+					}
+					for(Map.Entry<String, TemplatesCacheSlot> slot : templatesCache.entrySet()) {
+						TemplatesCacheEntry entry = slot.getValue().getLoadedEntry();
+						if(entry != null && entry.isObsolete())
+							templatesCache.remove(slot.getKey(), slot.getValue());
+					}
+				}
+			}
+		}, "Stylesheets Check");
+		checkThread.setDaemon(true);
+		checkThread.start();
+	}
+	
+	/*
+	 * Evicts the least recently used templates until the weight of the cache
+	 * fits in its maximum, the templates just loaded being kept whatever
+	 * their weight.
+	 */
+	private static synchronized void evictTemplates(TemplatesCacheSlot keptSlot) {
+		long weight = 0;
+		List<Map.Entry<String, TemplatesCacheSlot>> slots = new ArrayList<Map.Entry<String, TemplatesCacheSlot>>();
+		for(Map.Entry<String, TemplatesCacheSlot> slot : templatesCache.entrySet()) {
+			TemplatesCacheEntry entry = slot.getValue().getLoadedEntry();
+			if(entry != null) {
+				weight += entry.weight;
+				if(slot.getValue() != keptSlot)
+					slots.add(slot);
+			}
+		}
+		if(weight <= maxWeight)
+			return;
+		Collections.sort(slots, new Comparator<Map.Entry<String, TemplatesCacheSlot>>() {
+			public int compare(Map.Entry<String, TemplatesCacheSlot> s1, Map.Entry<String, TemplatesCacheSlot> s2) {
+				long diff = s1.getValue().lastAccess - s2.getValue().lastAccess;
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		for(int i=0; i<slots.size() && weight > maxWeight; i++) {
+			Map.Entry<String, TemplatesCacheSlot> slot = slots.get(i);
+			if(templatesCache.remove(slot.getKey(), slot.getValue()))
+				weight -= slot.getValue().getLoadedEntry().weight;
+		}
+	}
+	
+	/**
+	 * Changes the maximum weight of the templates cached, the templates
+	 * exceeding it being evicted when the next ones are loaded.
+	 * 
+	 * @param weight
+	 *            The maximum weight in bytes.
+	 */
+	static synchronized void setMaxWeight(long weight) {
+		maxWeight = weight;
+	}
+	
+	/**
+	 * Gets the maximum weight of the templates cached.
+	 * 
+	 * @return The maximum weight in bytes.
+	 */
+	static synchronized long getMaxWeight() {
+		return maxWeight;
+	}
+	
+	/**
+	 * Gets the weight of the templates cached, i.e. the size of the files they
+	 * were loaded from.
+	 * 
+	 * @return The weight in bytes.
+	 */
+	static long getTemplatesWeight() {
+		long weight = 0;
+		for(TemplatesCacheSlot slot : templatesCache.values()) {
+			TemplatesCacheEntry entry = slot.getLoadedEntry();
+			if(entry != null)
+				weight += entry.weight;
+		}
+		return weight;
+	}
+	
+	/**
+	 * Gets the time it took to load the templates cached, i.e. the time to
+	 * load them again if released.
+	 * 
+	 * @return The time in milliseconds.
+	 */
+	static long getTemplatesLoadTime() {
+		long loadTime = 0;
+		for(TemplatesCacheSlot slot : templatesCache.values()) {
+			TemplatesCacheEntry entry = slot.getLoadedEntry();
+			if(entry != null)
+				loadTime += entry.loadTime;
+		}
+		return loadTime;
+	}
+	
+	/**
+	 * Gets the number of transformers created from templates already cached
+	 * or being loaded by another thread.
+	 * 
+	 * @return The number of cache hits.
+	 */
+	static long getTemplatesHits() {
+		return templatesHits.get();
+	}
+	
+	/**
+	 * Gets the number of transformers for which the templates were loaded.
+	 * 
+	 * @return The number of cache misses.
+	 */
+	static long getTemplatesMisses() {
+		return templatesMisses.get();
+	}
+	
+	/**
+	 * Releases all the templates cached, the ones still loading being kept.
+	 */
+	static void clearTemplates() {
+		for(Map.Entry<String, TemplatesCacheSlot> slot : templatesCache.entrySet()) {
+			if(slot.getValue().getLoadedEntry() != null)
+				templatesCache.remove(slot.getKey(), slot.getValue());
+		}
+	}
 	
 	
 	/**
 	 * Process the source into a Transformer object. If source is a StreamSource
 	 * with <code>systemID</code> pointing to a file, transformer is produced
-	 * from a cached templates object. Cache is done in soft references; cached
-	 * objects are reloaded, when file's date of last modification changes.
+	 * from a cached templates object. Cached objects are reloaded, when the date
+	 * of last modification of one of the files they were loaded from changes.
 	 * 
 	 * @param source
 	 *            An object that holds a URI, input stream, etc.
@@ -135,6 +395,10 @@ public class CachingTransformerFactory extends TransformerFactoryImpl {
 	/**
 	 * Creates a transformer from a file (and caches templates) or from cached
 	 * templates object.
+	 * <p>
+	 * A same file is loaded only once at a time: concurrent requests for the
+	 * file wait for it to be loaded, while requests for other files aren't
+	 * blocked.
 	 * 
 	 * @param file
 	 *            file to load transformer from.
@@ -142,43 +406,94 @@ public class CachingTransformerFactory extends TransformerFactoryImpl {
 	 * @throws TransformerConfigurationException
 	 *             if there was a problem loading transformer from the file.
 	 */
-	protected synchronized Transformer newTransformer(final File file) throws TransformerConfigurationException {
-		// Search the cache for the templates entry
-		TemplatesCacheEntry templatesCacheEntry = templatesCache.get(file.getAbsolutePath());
-
-		// If entry found
-		if (templatesCacheEntry != null) {
-			// Check timestamp of modification
-			if (templatesCacheEntry.lastModified < templatesCacheEntry.templatesFile
-					.lastModified())
-				templatesCacheEntry = null;
-		}
-		// If no templatesEntry is found or this entry was obsolete
-		if (templatesCacheEntry == null) {
-			// If this file does not exists, throw the exception
-			if (!file.exists()) {
-				throw new TransformerConfigurationException(
-						"Requested transformation [" + file.getAbsolutePath()
-								+ "] does not exist.");
+	protected Transformer newTransformer(final File file) throws TransformerConfigurationException {
+		// Search the cache for the templates slot, obsolete entries being evicted by the check thread
+		String key = file.getAbsolutePath();
+		TemplatesCacheSlot slot = templatesCache.get(key);
+		
+		// If no slot is found or this entry was obsolete
+		boolean loading = false;
+		if (slot == null) {
+			TemplatesCacheSlot newSlot = new TemplatesCacheSlot(new FutureTask<TemplatesCacheEntry>(new Callable<TemplatesCacheEntry>() {
+				public TemplatesCacheEntry call() throws TransformerConfigurationException {
+					long startTime = System.currentTimeMillis();
+					TemplatesCacheEntry entry = loadTemplates(file);
+					entry.loadTime = System.currentTimeMillis() - startTime;
+					return entry;
+				}
+			}));
+			slot = templatesCache.putIfAbsent(key, newSlot);
+			if(slot == null) { // Load the templates in the current thread
+				slot = newSlot;
+				loading = true;
+				slot.task.run();
 			}
-			
-			Templates templates = null;
-			if (file.getName().endsWith(COMPILED_STYLESHEET_EXT)) {
+		} else {
+			slot.lastAccess = accessTicks.incrementAndGet();
+		}
+		
+		TemplatesCacheEntry templatesCacheEntry;
+		try {
+			templatesCacheEntry = slot.task.get();
+		} catch (InterruptedException e) {
+			throw new TransformerConfigurationException(e);
+		} catch (ExecutionException e) {
+			templatesCache.remove(key, slot); // Do not cache the failure
+			if(e.getCause() instanceof TransformerConfigurationException)
+				throw (TransformerConfigurationException) e.getCause();
+			throw new TransformerConfigurationException(e.getCause());
+		}
+		
+		if(loading) {
+			templatesMisses.incrementAndGet();
+			evictTemplates(slot);
+			startCheckThread();
+		} else {
+			templatesHits.incrementAndGet();
+		}
+		return templatesCacheEntry.templates.newTransformer();
+	}
+	
+	/*
+	 * Loads the templates from a file, recording the files it includes.
+	 */
+	private TemplatesCacheEntry loadTemplates(File file) throws TransformerConfigurationException {
+		// If this file does not exists, throw the exception
+		if (!file.exists()) {
+			throw new TransformerConfigurationException(
+					"Requested transformation [" + file.getAbsolutePath()
+							+ "] does not exist.");
+		}
+		
+		long loadStart = System.currentTimeMillis();
+		List<File> dependencies = new ArrayList<File>();
+		dependencies.add(file);
+		Templates templates = null;
+		if (file.getName().endsWith(COMPILED_STYLESHEET_EXT)) {
+			try {
+				templates = PreparedStylesheet.loadCompiledStylesheet(getConfiguration(), file.getPath());
+			} catch (Exception e) {
+				throw new TransformerConfigurationException("Error while loading the compiled stylesheet.",e);
+			}
+		} else {
+			// Reloads the stylesheet compiled by a previous server if none of its files changed
+			CompiledStylesheetCache compiledCache = CompiledStylesheetCache.getDefault();
+			templates = compiledCache.load(file, getConfiguration(), dependencies);
+			if(templates == null) {
+				// Records the files included while compiling
+				long compileTime = System.currentTimeMillis();
+				compiledDependencies.set(dependencies);
 				try {
-					templates = PreparedStylesheet.loadCompiledStylesheet(getConfiguration(), file.getPath());
-				} catch (Exception e) {
-					throw new TransformerConfigurationException("Error while loading the compiled stylesheet.",e);
+					templates = newTemplates(new StreamSource(file));
+				} finally {
+					compiledDependencies.remove();
 				}
-			} else
-				templates = newTemplates(new StreamSource(file));
-
-			// Create new cache entry
-			templatesCacheEntry = new TemplatesCacheEntry(templates, file);
-
-			// Save this entry to the cache
-			templatesCache.put(file.getAbsolutePath(), templatesCacheEntry);
+				compiledCache.store(file, new ArrayList<File>(dependencies), templates, compileTime);
+			}
 		}
-		return templatesCacheEntry.templates.newTransformer();
+
+		// Create new cache entry
+		return new TemplatesCacheEntry(templates, dependencies, loadStart);
 	}
 
 }
@@ -0,0 +1,292 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.xml.transform.Templates;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.PreparedStylesheet;
+import net.sf.saxon.Version;
+
+/**
+ * A cache on disk of compiled stylesheets, shared by the successive rendering
+ * server processes.
+ * <p>
+ * Each stylesheet compiled is serialized in a file named after the digest of
+ * all the stylesheets it includes and of the version of Saxon, so that it is
+ * only reloaded by a compatible processor and as long as none of the files it
+ * was compiled from changed. An index per stylesheet records the files it
+ * includes, to compute this digest without compiling it.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+class CompiledStylesheetCache {
+
+	/**
+	 * System property giving the directory of the cache.
+	 */
+	static final String CACHE_DIR_PROPERTY = "syd.rmrender.xslcache";
+
+	private static final String CACHE_DIR_NAME = "xslcache";
+	private static final String INDEX_EXT = ".idx";
+	private static final String KEY_PROPERTY = "key";
+	private static final String DEPENDENCY_PROPERTY = "dependency.";
+
+	/*
+	 * Resolution in milliseconds of the modification dates of the files on the coarsest file systems.
+	 */
+	static final long MODIFICATION_RESOLUTION = 2000L;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private static CompiledStylesheetCache instance = null;
+
+	/**
+	 * Returns the cache located according to the system properties: in the
+	 * directory given by {@link #CACHE_DIR_PROPERTY} if defined, next to the
+	 * remote renderer library otherwise.
+	 *
+	 * @return The cache.
+	 */
+	static synchronized CompiledStylesheetCache getDefault() {
+		if(instance == null) {
+			String cacheDir = System.getProperty(CACHE_DIR_PROPERTY);
+			File dir = null;
+			if(cacheDir != null && cacheDir.length() > 0) {
+				dir = new File(cacheDir);
+			} else {
+				File libFile = FopRendererServer.getLibFile();
+				if(libFile != null && libFile.getParentFile().canWrite())
+					dir = new File(libFile.getParentFile(), CACHE_DIR_NAME);
+				else
+					dir = new File(System.getProperty("java.io.tmpdir"), "syd-" + CACHE_DIR_NAME);
+			}
+			instance = new CompiledStylesheetCache(dir);
+		}
+		return instance;
+	}
+
+	private final File dir;
+
+	private CompiledStylesheetCache(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Loads a stylesheet previously compiled from the same files.
+	 *
+	 * @param xslFile
+	 *            The stylesheet.
+	 * @param config
+	 *            The configuration of the processor loading the stylesheet.
+	 * @param dependencies
+	 *            The list filled with the files the stylesheet was compiled
+	 *            from, if loaded.
+	 * @return The compiled stylesheet, or <code>null</code> if not cached or
+	 *         obsolete.
+	 */
+	Templates load(File xslFile, Configuration config, List<File> dependencies) {
+		File indexFile = getIndexFile(xslFile);
+		if(!indexFile.isFile())
+			return null;
+		try {
+			Properties index = loadIndex(indexFile);
+			List<File> indexDependencies = new ArrayList<File>();
+			for(int i=0; index.getProperty(DEPENDENCY_PROPERTY + i) != null; i++)
+				indexDependencies.add(new File(index.getProperty(DEPENDENCY_PROPERTY + i)));
+			File compiledFile = new File(dir, computeKey(indexDependencies) + CachingTransformerFactory.COMPILED_STYLESHEET_EXT);
+			if(!compiledFile.isFile())
+				return null;
+			try {
+				Templates templates = PreparedStylesheet.loadCompiledStylesheet(config, compiledFile.getPath());
+				dependencies.clear();
+				dependencies.addAll(indexDependencies);
+				return templates;
+			} catch (Exception e) { // Corrupted or incompatible file.
+				compiledFile.delete();
+				return null;
+			}
+		} catch (IOException e) { // One of the files included was deleted.
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a stylesheet just compiled.
+	 * <p>
+	 * The key of the stylesheet is computed in the current thread from the
+	 * files it was compiled from, and the stylesheet is only stored if none of
+	 * them was modified since its compilation started: it is never stored
+	 * under the key of files which differ from the ones it was compiled from.
+	 * The stylesheet is then written in a background thread.
+	 *
+	 * @param xslFile
+	 *            The stylesheet.
+	 * @param dependencies
+	 *            The files the stylesheet was compiled from, starting with the
+	 *            stylesheet itself.
+	 * @param templates
+	 *            The compiled stylesheet.
+	 * @param compileTime
+	 *            The time at which the compilation started.
+	 */
+	void store(final File xslFile, final List<File> dependencies, final Templates templates, long compileTime) {
+		final String key;
+		try {
+			key = computeKey(dependencies);
+		} catch (IOException e) {
+			System.err.println("Can't store the compiled stylesheet " + xslFile.getName() + ": " + e.getMessage());
+			return;
+		}
+		// Checked once the files are read, so that the key is the one of the content compiled.
+		for(File file : dependencies) {
+			if(file.lastModified() > compileTime - MODIFICATION_RESOLUTION)
+				return; // Possibly modified while compiling.
+		}
+		Thread storeThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					write(xslFile, key, dependencies, templates);
+				} catch (IOException e) {
+					System.err.println("Can't store the compiled stylesheet " + xslFile.getName() + ": " + e.getMessage());
+				}
+			}
+		}, "Compiled Stylesheet Storage");
+		storeThread.setDaemon(true);
+		storeThread.start();
+	}
+
+	/*
+	 * Writes a compiled stylesheet and its index under the given key, deleting the previous version if any.
+	 */
+	private synchronized void write(File xslFile, String key, List<File> dependencies, Templates templates) throws IOException {
+		dir.mkdirs();
+		File compiledFile = new File(dir, key + CachingTransformerFactory.COMPILED_STYLESHEET_EXT);
+		File tmpFile = File.createTempFile("syd", ".tmp", dir);
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			try {
+				out.writeObject(templates);
+			} finally {
+				out.close();
+			}
+			compiledFile.delete();
+			if(!tmpFile.renameTo(compiledFile))
+				throw new IOException("Can't rename " + tmpFile.getPath());
+		} finally {
+			tmpFile.delete();
+		}
+
+		File indexFile = getIndexFile(xslFile);
+		if(indexFile.isFile()) { // Deletes the version compiled from the previous files.
+			String oldKey = loadIndex(indexFile).getProperty(KEY_PROPERTY);
+			if(oldKey != null && !oldKey.equals(key))
+				new File(dir, oldKey + CachingTransformerFactory.COMPILED_STYLESHEET_EXT).delete();
+		}
+		Properties index = new Properties();
+		index.setProperty(KEY_PROPERTY, key);
+		for(int i=0; i<dependencies.size(); i++)
+			index.setProperty(DEPENDENCY_PROPERTY + i, dependencies.get(i).getAbsolutePath());
+		OutputStream out = new FileOutputStream(indexFile);
+		try {
+			index.store(out, "Files included by " + xslFile.getAbsolutePath());
+		} finally {
+			out.close();
+		}
+	}
+
+	/*
+	 * Loads the index of a stylesheet.
+	 */
+	private static Properties loadIndex(File indexFile) throws IOException {
+		Properties index = new Properties();
+		InputStream in = new FileInputStream(indexFile);
+		try {
+			index.load(in);
+		} finally {
+			in.close();
+		}
+		return index;
+	}
+
+	/*
+	 * Returns the index file of a stylesheet.
+	 */
+	private File getIndexFile(File xslFile) {
+		MessageDigest md = newMessageDigest();
+		update(md, xslFile.getAbsolutePath());
+		return new File(dir, toHex(md.digest()) + INDEX_EXT);
+	}
+
+	/*
+	 * Computes the key of a stylesheet from the content of the files it was compiled from and the version of Saxon.
+	 */
+	private static String computeKey(List<File> dependencies) throws IOException {
+		MessageDigest md = newMessageDigest();
+		update(md, Version.getProductVersion());
+		byte[] buffer = new byte[65536];
+		for(File file : dependencies) {
+			update(md, file.getAbsolutePath());
+			InputStream in = new FileInputStream(file);
+			try {
+				int len;
+				while((len = in.read(buffer)) > 0)
+					md.update(buffer, 0, len);
+			} finally {
+				in.close();
+			}
+		}
+		return toHex(md.digest());
+	}
+
+	/*
+	 * Creates the message digest algorithm used.
+	 */
+	private static MessageDigest newMessageDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Updates a message digest with a string, delimited from the next ones.
+	 */
+	private static void update(MessageDigest md, String str) {
+		try {
+			md.update(str.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {}
+		md.update((byte) 0);
+	}
+
+	/*
+	 * Encodes bytes in hexadecimal.
+	 */
+	private static String toHex(byte[] bytes) {
+		char[] hex = new char[2 * bytes.length];
+		for(int i=0; i<bytes.length; i++) {
+			hex[2*i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+			hex[2*i+1] = HEX_DIGITS[bytes[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+}
@@ -5,12 +5,17 @@
 package com.leanpulse.syd.remote.internal;
 
 import java.awt.Desktop;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import javax.swing.SwingUtilities;
 import javax.xml.transform.Result;
@@ -18,12 +23,23 @@ import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
+import org.apache.avalon.framework.configuration.Configuration;
+import org.apache.avalon.framework.configuration.ConfigurationException;
+import org.apache.avalon.framework.configuration.DefaultConfigurationBuilder;
 import org.apache.fop.apps.FOUserAgent;
 import org.apache.fop.apps.Fop;
 import org.apache.fop.apps.FopFactory;
+import org.apache.fop.apps.MimeConstants;
 import org.apache.fop.pdf.PDFEncryptionParams;
+import org.apache.fop.render.intermediate.IFContext;
+import org.apache.fop.render.intermediate.IFDocumentHandler;
+import org.apache.fop.render.intermediate.IFParser;
+import org.apache.fop.render.intermediate.IFSerializer;
+import org.apache.fop.render.intermediate.IFUtil;
+import org.apache.xmlgraphics.image.loader.cache.ImageCacheStatistics;
 import org.xml.sax.SAXException;
 
 import com.leanpulse.syd.api.PdfSecurityOptions;
@@ -39,126 +55,391 @@ public class EmbedFopRenderer extends Renderer {
 	
 	private static final String SYD_VER = /*@SYDVER@*/"3.0"/*@SYDVER@*/;
 	
+	/*
+	 * If the XSLT transformation and the FO layout of a document run in two
+	 * separate threads.
+	 */
+	private static final boolean PIPELINED = Boolean.getBoolean("syd.rmrender.pipelined");
+	
 	private static FopFactory fopFactory = null;
+	private static long fopFactoryLoadTime = 0;
+	private static int fontCount = 0;
+	private static FontCatalog fontCatalog = null;
+	private static ImageCacheStatistics imageStatistics = null;
 	
-	private static synchronized FopFactory getFopFactory() throws SAXException, IOException {
+	static synchronized FopFactory getFopFactory() throws SAXException, IOException, ConfigurationException {
 		if(fopFactory == null) {
+			long factoryStartTime = System.currentTimeMillis();
 			FopFactory tmpFactory = FopFactory.newInstance();
 			tmpFactory.setStrictValidation(false);
 			File configFile = new File(FopRendererServer.getLibFile().getParent() + File.separator + "fop.xconf");
-	        tmpFactory.setUserConfig(configFile);
+			Configuration config = new DefaultConfigurationBuilder().buildFromFile(configFile);
+			
+			// Replaces the fonts auto-detection by the fonts from the persistent catalogue.
+			long startTime = System.currentTimeMillis();
+			File catalogFile = FontCatalog.getCatalogFile();
+			FontCatalog catalog = FontCatalog.load(catalogFile);
+			Configuration fontsConfig = catalog.declareFonts(config);
+			fontCount = catalog.getFontCount();
+			fontCatalog = fontsConfig != null ? catalog : null;
+			if(fontsConfig != null) {
+				catalog.save(catalogFile);
+				config = fontsConfig;
+				System.out.println("Font catalogue loaded in " + (System.currentTimeMillis() - startTime) + "ms: " + catalog.getStatistics());
+			}
+			
+	        tmpFactory.setUserConfig(config);
+	        imageStatistics = new ImageCacheStatistics(true);
+	        tmpFactory.getImageManager().getCache().setCacheListener(imageStatistics);
 	        fopFactory = tmpFactory;
+	        fopFactoryLoadTime = System.currentTimeMillis() - factoryStartTime;
 		}
 		return fopFactory;
 	}
 	
+	/*
+	 * Gets the time it took to set up the FOP factory, zero if not set up.
+	 */
+	static synchronized long getFopFactoryLoadTime() {
+		return fopFactory != null ? fopFactoryLoadTime : 0;
+	}
+	
+	/*
+	 * Clears the cache of the images loaded by FOP, including the SVG
+	 * documents parsed.
+	 */
+	static synchronized void clearImageCache() {
+		if(fopFactory != null) {
+			fopFactory.getImageManager().getCache().clearCache();
+			imageStatistics.reset();
+		}
+	}
+	
+	/*
+	 * Gets the number of fonts of the catalogue declared to the FOP factory, zero if not set up.
+	 */
+	static synchronized int getFontCount() {
+		return fopFactory != null ? fontCount : 0;
+	}
+	
+	/*
+	 * Gets the font catalogue declared to the FOP factory, null if not set up or if the fonts aren't auto-detected.
+	 */
+	static synchronized FontCatalog getFontCatalog() {
+		return fopFactory != null ? fontCatalog : null;
+	}
+	
+	/*
+	 * Gets the statistics of the cache of the images loaded by FOP, null if not set up.
+	 */
+	static synchronized ImageCacheStatistics getImageStatistics() {
+		return fopFactory != null ? imageStatistics : null;
+	}
+	
+	/*
+	 * Releases the FOP factory and the fonts it loaded, a new factory being
+	 * set up for the next document. The documents being rendered keep the
+	 * previous one.
+	 */
+	static synchronized void releaseFopFactory() {
+		fopFactory = null;
+	}
+	
 	/*
 	 * Runnable class to asynchronously render documents with FOP.
+	 * <p>
+	 * When several outputs are requested, the document is transformed and laid
+	 * out only once to the FOP intermediate format, from which each PDF is then
+	 * produced with its own security options. If the cache of intermediate
+	 * documents is enabled, documents are always laid out to the intermediate
+	 * format, and only when their content changed.
+	 * <p>
+	 * Documents already rendered from the same data, according to their
+	 * manifest, aren't rendered again.
 	 */
-	private static class EmbedFopRunnable implements Runnable {
+	private static class EmbedFopRunnable implements RenderTask {
 		
 		private File xmlFile;
 		private File xslFile;
 		private String[] xslParams;
-		private File outFile;
-		private PdfSecurityOptions secOptions;
-		private boolean open;
-		private IProgressMonitor mon;
+		private File[] outFiles;
+		private PdfSecurityOptions[] secOptions;
+		private boolean[] open;
+		private IProgressMonitor[] mons;
 
-		public EmbedFopRunnable(File xmlFile, File xslFile, String[] xslParams, File outFile, PdfSecurityOptions secOptions,
-				boolean open, IProgressMonitor mon) {
+		public EmbedFopRunnable(File xmlFile, File xslFile, String[] xslParams, File[] outFiles, PdfSecurityOptions[] secOptions,
+				boolean[] open, IProgressMonitor[] mons) {
 			this.xmlFile = xmlFile;
 			this.xslFile = xslFile;
 			this.xslParams = xslParams;
-			this.outFile = outFile;
+			this.outFiles = outFiles;
 			this.secOptions = secOptions;
 			this.open = open;
-			this.mon = mon;
+			this.mons = mons;
 		}
 		
-		@SuppressWarnings("unchecked")
-		public void run() {
+		public boolean render() {
+			// Skips the documents already rendered from the same data, reporting them once the others are rendered.
+			File[] allOutFiles = outFiles;
+			boolean[] allOpen = open;
+			IProgressMonitor[] allMons = mons;
+			List<Integer> toRender = new ArrayList<Integer>(allOutFiles.length);
+			for(int i=0; i<allOutFiles.length; i++) {
+				if(!isUpToDate(xmlFile, xslFile, xslParams, allOutFiles[i], secOptions[i]))
+					toRender.add(i);
+			}
+			if(toRender.size() < allOutFiles.length) {
+				PdfSecurityOptions[] allSecOptions = secOptions;
+				outFiles = new File[toRender.size()];
+				secOptions = new PdfSecurityOptions[toRender.size()];
+				open = new boolean[toRender.size()];
+				mons = new IProgressMonitor[toRender.size()];
+				for(int i=0; i<toRender.size(); i++) {
+					int j = toRender.get(i);
+					outFiles[i] = allOutFiles[j];
+					secOptions[i] = allSecOptions[j];
+					open[i] = allOpen[j];
+					mons[i] = allMons[j];
+				}
+			}
+			boolean laidOut = false;
+			try {
+				if(outFiles.length > 0) {
+					long startTime = System.currentTimeMillis();
+					laidOut = renderAll();
+					RenderMetrics.getDefault().recordStage(RenderMetrics.STAGE_DOCUMENT, System.currentTimeMillis() - startTime);
+				}
+			} finally {
+				for(int i=0; i<allOutFiles.length; i++) {
+					if(!toRender.contains(i))
+						succeed(allOutFiles[i], allOpen[i], allMons[i], "Document " + allOutFiles[i].getName() + " unchanged.");
+				}
+			}
+			return laidOut;
+		}
+		
+		/*
+		 * Renders the documents, returning true if they were laid out, false if their layout was reused or failed.
+		 */
+		private boolean renderAll() {
 	        FopFactory fopFactory = null;
 	        try {
 				fopFactory = getFopFactory();
 			} catch (Exception e) {
-				mon.finish("Renderer factory configuration error...", e);
-				return;
+				for(IProgressMonitor mon : mons)
+					mon.finish("Renderer factory configuration error...", e);
+				return false;
+			}
+			
+			IntermediateCache cache = IntermediateCache.getDefault();
+			if(outFiles.length == 1 && cache == null) {
+				// Transforms and lays out the document directly to the PDF.
+				OutputStream out = openOutput(outFiles[0], mons[0]);
+				if(out == null)
+					return false;
+				int pages;
+				try {
+					FOUserAgent foUserAgent = newUserAgent(fopFactory, secOptions[0]);
+					pages = transform(fopFactory.newFop(MimeConstants.MIME_PDF, foUserAgent, out), mons[0]);
+				} catch (Throwable e) {
+					fail(e, outFiles[0], mons[0]);
+					return false;
+				} finally {
+					try {
+		        		out.close();
+		        	} catch(IOException e) {}
+				}
+				writeManifest(xmlFile, xslFile, xslParams, outFiles[0], secOptions[0]);
+				RenderMetrics.getDefault().recordDocument(xmlFile.length(), pages);
+				succeed(outFiles[0], open[0], mons[0], "Document " + outFiles[0].getName() + " rendered successfully.");
+				return true;
 			}
 			
-			// Configure the user agent
+			// Transforms and lays out the document once to the intermediate format, unless already cached.
+			File ifFile = null;
+			boolean cached = false;
+			boolean laidOut = false;
+			int pages = 0; // Unknown if the layout is reused.
+			try {
+				String key = null;
+				if(cache != null) {
+					key = digestContent(xmlFile, xslFile, xslParams);
+					ifFile = cache.lookup(key);
+					cached = ifFile != null;
+				}
+				if(cached) {
+					mons[0].progress("Reusing the layout of \"" + xmlFile.getName() + "\"...", 0.7);
+				} else {
+					ifFile = cache != null ? cache.createTempFile() : File.createTempFile("syd", ".if");
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(ifFile));
+					try {
+						FOUserAgent ifUserAgent = newUserAgent(fopFactory, null);
+						IFSerializer serializer = new IFSerializer();
+						serializer.setContext(new IFContext(ifUserAgent));
+						serializer.mimicDocumentHandler(fopFactory.getRendererFactory().createDocumentHandler(ifUserAgent, MimeConstants.MIME_PDF));
+						ifUserAgent.setDocumentHandlerOverride(serializer);
+						pages = transform(fopFactory.newFop(MimeConstants.MIME_FOP_IF, ifUserAgent, out), mons[0]);
+						laidOut = true;
+					} finally {
+						out.close();
+					}
+					if(cache != null) {
+						File tmpFile = ifFile;
+						ifFile = cache.store(key, tmpFile);
+						if(ifFile == null)
+							throw new IOException("Can't store the layout of \"" + xmlFile.getName() + "\" in the cache.");
+						cached = true;
+					}
+				}
+			} catch (Throwable e) {
+				if(ifFile != null && !cached)
+					ifFile.delete();
+				for(int i=0; i<outFiles.length; i++)
+					fail(e, outFiles[i], mons[i]);
+				return false;
+			}
+			
+			// Produces each PDF from the intermediate format.
+			try {
+				for(int i=0; i<outFiles.length; i++) {
+					OutputStream out = openOutput(outFiles[i], mons[i]);
+					if(out == null)
+						continue;
+					long writeStartTime = System.currentTimeMillis();
+					try {
+						mons[i].progress("Writing \"" + outFiles[i].getName() + "\"...");
+						FOUserAgent foUserAgent = newUserAgent(fopFactory, secOptions[i]);
+						IFDocumentHandler handler = fopFactory.getRendererFactory().createDocumentHandler(foUserAgent, MimeConstants.MIME_PDF);
+						handler.setResult(new StreamResult(out));
+						IFUtil.setupFonts(handler);
+						new IFParser().parse(new StreamSource(ifFile), handler, foUserAgent);
+					} catch (Throwable e) {
+						fail(e, outFiles[i], mons[i]);
+						continue;
+					} finally {
+						try {
+			        		out.close();
+			        	} catch(IOException e) {}
+					}
+					writeManifest(xmlFile, xslFile, xslParams, outFiles[i], secOptions[i]);
+					RenderMetrics.getDefault().recordStage(RenderMetrics.STAGE_WRITE, System.currentTimeMillis() - writeStartTime);
+					RenderMetrics.getDefault().recordDocument(xmlFile.length(), pages);
+					succeed(outFiles[i], open[i], mons[i], "Document " + outFiles[i].getName() + " rendered successfully.");
+				}
+			} finally {
+				if(!cached)
+					ifFile.delete();
+			}
+			return laidOut;
+		}
+		
+		/*
+		 * Creates and configures a user agent, protecting the PDF with the given security options if any.
+		 */
+		@SuppressWarnings("unchecked")
+		private FOUserAgent newUserAgent(FopFactory fopFactory, PdfSecurityOptions secOptions) {
 			String producer = "LeanPulse System Document Generator (SyD) v" + SYD_VER;
 			FOUserAgent foUserAgent = fopFactory.newFOUserAgent();
 	        foUserAgent.setCreator(producer);
 	        foUserAgent.setProducer(producer);
 	        foUserAgent.setBaseURL(xmlFile.getParentFile().toURI().toString());
-	        if(secOptions.getUserpass() != null || secOptions.getOwnerpass() != null || secOptions.isNoprint()
-	        		|| secOptions.isNocopy() || secOptions.isNoedit() || secOptions.isNoannot())
+	        if(secOptions != null && (secOptions.getUserpass() != null || secOptions.getOwnerpass() != null || secOptions.isNoprint()
+	        		|| secOptions.isNocopy() || secOptions.isNoedit() || secOptions.isNoannot()))
 		        foUserAgent.getRendererOptions().put("encryption-params", new PDFEncryptionParams(secOptions.getUserpass(),
 		        		secOptions.getOwnerpass(), !secOptions.isNoprint(), !secOptions.isNocopy(), !secOptions.isNoedit(), !secOptions.isNoannot()));
-	        
+	        return foUserAgent;
+		}
+		
+		/*
+		 * Opens the output stream to a document, reporting the error to the monitor on failure.
+		 */
+		private OutputStream openOutput(File outFile, IProgressMonitor mon) {
 	        outFile.getParentFile().mkdirs();
-			OutputStream out = null;
 			try {
-				out = new java.io.FileOutputStream(outFile);
+				return new BufferedOutputStream(new FileOutputStream(outFile));
 			} catch (FileNotFoundException e) {
 				mon.finish(null, e);
-				return;
+				return null;
 			}
-			out = new java.io.BufferedOutputStream(out);
-	        
-	        try {
-	            // Construct fop with desired output format
-	            Fop fop = fopFactory.newFop(org.apache.xmlgraphics.util.MimeConstants.MIME_PDF, foUserAgent, out);
-
-	            // Setup XSLT
-	            TransformerFactory factory = TransformerFactory.newInstance();
-	            Transformer transformer = factory.newTransformer(new StreamSource(xslFile));
-	            if (xslParams != null) {
-	                for (int i = 0; i < xslParams.length; i += 2) {
-	                    transformer.setParameter(xslParams[i], xslParams[i+1]);
-	                }
-	            }
+		}
+		
+		/*
+		 * Transforms the XML file with the stylesheet and lays out the result with FOP, returning the number of pages.
+		 */
+		private int transform(Fop fop, IProgressMonitor mon) throws Exception {
+            // Setup XSLT
+            RenderMetrics metrics = RenderMetrics.getDefault();
+            long startTime = System.currentTimeMillis();
+            TransformerFactory factory = newTransformerFactory();
+            Transformer transformer = factory.newTransformer(new StreamSource(xslFile));
+            metrics.recordStage(RenderMetrics.STAGE_STYLESHEET, System.currentTimeMillis() - startTime);
+            if (xslParams != null) {
+                for (int i = 0; i < xslParams.length; i += 2) {
+                    transformer.setParameter(xslParams[i], xslParams[i+1]);
+                }
+            }
 
-	            // Setup input for XSLT transformation
-	            Source src = new StreamSource(new ProgressInputStream(new FileInputStream(xmlFile), mon, 10L *xmlFile.length() / 7L));
+            // Setup input for XSLT transformation
+            ProgressInputStream in = new ProgressInputStream(new FileInputStream(xmlFile), mon, 10L *xmlFile.length() / 7L);
+            Source src = new StreamSource(in);
+            startTime = System.currentTimeMillis();
 
+            if(PIPELINED) {
+            	// Resulting SAX events (the generated FO) are piped to FOP running in another thread
+            	SaxEventPipe pipe = new SaxEventPipe(fop.getDefaultHandler(), "FOP Layout - " + xmlFile.getName());
+            	try {
+            		// Start XSLT transformation while FOP processes its result
+            		transformer.transform(src, new SAXResult(pipe));
+            	} finally {
+            		pipe.close();
+            	}
+            } else {
 	            // Resulting SAX events (the generated FO) must be piped through to FOP
 	            Result res = new SAXResult(fop.getDefaultHandler());
 
 	            // Start XSLT transformation and FOP processing
 	            transformer.transform(src, res);
-	            
-	        } catch (Throwable e) {
-	        	Throwable rootCause = e.getCause();
-	        	if(rootCause != null) {
-		        	Throwable parCause = rootCause;
-		        	while((parCause = parCause.getCause()) != null) {
-		        		rootCause = parCause;
-		        	}
-	        	}
-	        	if(rootCause instanceof CancellationException) {
-	        		mon.finish("Document " + outFile.getName() + " rendering cancelled by user.");
-	        	} else {
-	        		if(e instanceof Exception) {
-	        			mon.finish(null, (Exception) e);
-	        		} else {
-	        			if(e instanceof OutOfMemoryError) {
-	        				mon.finish(null, new IOException("The remote render ran out of memory !\n"
-	        						+ "Please try to increase the maximum memory allocated to the process by editing \"syd.conf\"."));
-	        				System.exit(0);
-	        			} else {
-	        				mon.finish(null, new IOException(e));
-	        			}
-	        		}
+            }
+            
+            // The input is fully parsed before being transformed, then laid out as transformed
+            long endTime = System.currentTimeMillis();
+            long parseEndTime = in.getEndTime() > 0 ? in.getEndTime() : startTime;
+            metrics.recordStage(RenderMetrics.STAGE_PARSE, parseEndTime - startTime);
+            metrics.recordStage(RenderMetrics.STAGE_FORMAT, endTime - parseEndTime);
+            return fop.getResults() != null ? fop.getResults().getPageCount() : 0;
+		}
+		
+		/*
+		 * Reports the failure of the rendering of a document.
+		 */
+		private void fail(Throwable e, File outFile, IProgressMonitor mon) {
+        	Throwable rootCause = e.getCause();
+        	if(rootCause != null) {
+	        	Throwable parCause = rootCause;
+	        	while((parCause = parCause.getCause()) != null) {
+	        		rootCause = parCause;
 	        	}
-				return;
-			} finally {
-	        	try {
-	        		out.close();
-	        	} catch(IOException e) {}
-	        }
-			
+        	}
+        	if(rootCause instanceof CancellationException) {
+        		mon.finish("Document " + outFile.getName() + " rendering cancelled by user.");
+        	} else {
+        		if(e instanceof Exception) {
+        			mon.finish(null, (Exception) e);
+        		} else {
+        			if(e instanceof OutOfMemoryError) {
+        				mon.finish(null, new IOException("The remote render ran out of memory !\n"
+        						+ "Please try to increase the maximum memory allocated to the process by editing \"syd.conf\".", e));
+        			} else {
+        				mon.finish(null, new IOException(e));
+        			}
+        		}
+        	}
+		}
+		
+		/*
+		 * Opens the document just rendered if required and reports the success.
+		 */
+		private void succeed(final File outFile, boolean open, final IProgressMonitor mon, String message) {
 	    	if(open) {
 	        	mon.progress("Opening \"" + outFile.getName() + "\" ...", 0.25);
 	        	try {
@@ -175,10 +456,48 @@ public class EmbedFopRenderer extends Renderer {
 	        }
 	    	
 	    	if(!mon.isFinished())
-	    		mon.finish("Document " + outFile.getName() + " rendered successfully.");
+	    		mon.finish(message);
+		}
+	}
+	
+	/**
+	 * Gets the number of documents rendered simultaneously.
+	 * 
+	 * @return The number of render threads.
+	 */
+	int getPoolSize() {
+		return ((ThreadPoolExecutor) service).getMaximumPoolSize();
+	}
+	
+	/**
+	 * Changes the number of documents rendered simultaneously, the documents
+	 * being rendered finishing normally.
+	 * 
+	 * @param size
+	 *            The number of render threads, at least 1.
+	 */
+	synchronized void setPoolSize(int size) {
+		ThreadPoolExecutor executor = (ThreadPoolExecutor) service;
+		size = Math.max(1, size);
+		if(size > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(size);
+			executor.setCorePoolSize(size);
+		} else {
+			executor.setCorePoolSize(size);
+			executor.setMaximumPoolSize(size);
 		}
 	}
 	
+	/*
+	 * Creates a transformer factory, caching the templates unless another factory is configured,
+	 * as when the renderer is embedded in the JVM of a client.
+	 */
+	private static TransformerFactory newTransformerFactory() {
+		if(System.getProperty(TransformerFactory.class.getName()) != null)
+			return TransformerFactory.newInstance();
+		return new CachingTransformerFactory();
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see com.leanpulse.syd.api.Renderer#asyncRender(java.io.File, java.io.File, java.lang.String[], java.io.File, com.leanpulse.syd.api.PdfSecurityOptions, boolean, com.leanpulse.syd.api.progress.IProgressMonitor)
@@ -186,7 +505,18 @@ public class EmbedFopRenderer extends Renderer {
 	@Override
 	public void asyncRender(File xmlFile, File xslFile, String[] xslParams, File outFile, PdfSecurityOptions secOptions,
 			boolean open, IProgressMonitor mon) {
-		service.submit(new EmbedFopRunnable(xmlFile, xslFile, xslParams, outFile, secOptions, open, mon));
+		schedule(xmlFile, outFile, new EmbedFopRunnable(xmlFile, xslFile, xslParams, new File[] {outFile},
+				new PdfSecurityOptions[] {secOptions}, new boolean[] {open}, new IProgressMonitor[] {mon}));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Renderer#asyncRender(java.io.File, java.io.File, java.lang.String[], java.io.File[], com.leanpulse.syd.api.PdfSecurityOptions[], boolean[], com.leanpulse.syd.api.progress.IProgressMonitor[])
+	 */
+	@Override
+	public void asyncRender(File xmlFile, File xslFile, String[] xslParams, File[] outFiles, PdfSecurityOptions[] secOptions,
+			boolean[] open, IProgressMonitor[] mons) {
+		schedule(xmlFile, outFiles[0], new EmbedFopRunnable(xmlFile, xslFile, xslParams, outFiles, secOptions, open, mons));
 	}
 	
 	
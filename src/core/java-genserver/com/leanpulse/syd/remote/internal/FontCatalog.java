@@ -0,0 +1,426 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.avalon.framework.configuration.Configuration;
+import org.apache.avalon.framework.configuration.ConfigurationException;
+import org.apache.avalon.framework.configuration.DefaultConfiguration;
+import org.apache.fop.fonts.EmbedFontInfo;
+import org.apache.fop.fonts.FontManager;
+import org.apache.fop.fonts.FontTriplet;
+import org.apache.fop.fonts.autodetect.FontFinder;
+import org.apache.fop.fonts.autodetect.FontInfoFinder;
+import org.apache.fop.fonts.autodetect.MacFontDirFinder;
+import org.apache.fop.fonts.autodetect.UnixFontDirFinder;
+import org.apache.fop.fonts.autodetect.WindowsFontDirFinder;
+
+/**
+ * Persistent catalogue of the fonts installed on the system.
+ * <p>
+ * When the FOP configuration requests the auto-detection of fonts, FOP scans
+ * and parses every system font before the first document can be laid out.
+ * This catalogue is saved on disk and remembers, for each font directory, its
+ * date of last modification and the fonts it contains. At startup, only the
+ * directories whose date changed are listed again and only the new fonts are
+ * parsed.<br>
+ * The fonts of the catalogue are then explicitly declared in the FOP
+ * configuration in place of the <code>auto-detect</code> element, FOP loading
+ * them lazily when they are actually used.
+ * <p>
+ * The catalogue is stored in the directory given by the
+ * <code>syd.rmrender.fontcache</code> system property or, by default, next to
+ * the remote renderer library.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+public class FontCatalog implements Serializable {
+
+	private static final long serialVersionUID = 4816427713585240157L;
+
+	/**
+	 * System property defining the directory where the catalogue is stored.
+	 */
+	public static final String CACHE_DIR_PROPERTY = "syd.rmrender.fontcache";
+
+	/**
+	 * Name of the file in which the catalogue is stored.
+	 */
+	public static final String CATALOG_FILE_NAME = "fop-fonts.catalog";
+
+	private static final String[] FONT_EXTENSIONS = new String[] {".ttf", ".otf", ".pfb", ".ttc"};
+
+	private static final String TAG_FONTS = "fonts";
+	private static final String TAG_AUTODETECT = "auto-detect";
+
+
+	/**
+	 * Gets the file in which the catalogue is stored.
+	 * <p>
+	 * If no cache directory is configured and the directory of the remote
+	 * renderer library isn't writable, the temporary directory is used.
+	 *
+	 * @return The catalogue file.
+	 */
+	public static File getCatalogFile() {
+		String cacheDir = System.getProperty(CACHE_DIR_PROPERTY);
+		File dir = null;
+		if(cacheDir != null && cacheDir.length() > 0) {
+			dir = new File(cacheDir);
+			dir.mkdirs();
+		} else {
+			File libFile = FopRendererServer.getLibFile();
+			if(libFile != null)
+				dir = libFile.getParentFile();
+			if(dir == null || !dir.canWrite())
+				dir = new File(System.getProperty("java.io.tmpdir"));
+		}
+		return new File(dir, CATALOG_FILE_NAME);
+	}
+
+	/**
+	 * Loads the catalogue from the given file.
+	 * <p>
+	 * An empty catalogue is returned if the file doesn't exist or can't be
+	 * read, for instance because it was written by an incompatible version.
+	 *
+	 * @param catalogFile
+	 *            The catalogue file.
+	 * @return The catalogue.
+	 */
+	public static FontCatalog load(File catalogFile) {
+		if(catalogFile.exists()) {
+			ObjectInputStream in = null;
+			try {
+				in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(catalogFile)));
+				return (FontCatalog) in.readObject();
+			} catch (Exception e) {
+				System.err.println("Font catalogue \"" + catalogFile + "\" can't be read and will be rebuilt.");
+			} finally {
+				try {
+					if(in != null) in.close();
+				} catch (IOException e) {}
+			}
+		}
+		return new FontCatalog();
+	}
+
+
+	/* Content of a font directory as it was when last listed. */
+	private static class DirEntry implements Serializable {
+		private static final long serialVersionUID = -2300514416262925271L;
+		private long lastModified;
+		private String[] subDirs;
+		private String[] fontFiles;
+	}
+
+	/* Fonts found in a font file as it was when last parsed. */
+	private static class FontEntry implements Serializable {
+		private static final long serialVersionUID = 3471093361254698720L;
+		private long lastModified;
+		private EmbedFontInfo[] infos; // null if the font can't be loaded
+	}
+
+
+	private Map<String,DirEntry> dirs = new HashMap<String,DirEntry>();
+	private Map<String,FontEntry> fonts = new HashMap<String,FontEntry>();
+
+	private transient boolean changed;
+	private transient int dirHits;
+	private transient int dirMisses;
+	private transient int fontHits;
+	private transient int fontMisses;
+
+
+	/**
+	 * Updates the catalogue with the fonts currently installed on the system.
+	 * <p>
+	 * Directories which weren't modified since the last update are not listed
+	 * again and fonts already parsed are reused.
+	 *
+	 * @return The information of all the fonts installed.
+	 * @throws IOException
+	 *             If the system font directories can't be determined.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<EmbedFontInfo> update() throws IOException {
+		dirHits = dirMisses = fontHits = fontMisses = 0;
+		Map<String,DirEntry> visitedDirs = new HashMap<String,DirEntry>();
+		Map<String,FontEntry> visitedFonts = new HashMap<String,FontEntry>();
+		FontInfoFinder infoFinder = new FontInfoFinder();
+		List<File> rootDirs = getFontDirFinder().find();
+		for(File rootDir : rootDirs) {
+			updateDir(rootDir, visitedDirs, visitedFonts, infoFinder);
+		}
+		if(visitedDirs.size() != dirs.size() || visitedFonts.size() != fonts.size())
+			changed = true; // Some directories or fonts were removed.
+		dirs = visitedDirs;
+		fonts = visitedFonts;
+
+		List<EmbedFontInfo> infos = new ArrayList<EmbedFontInfo>();
+		Set<String> embedFiles = new HashSet<String>();
+		for(FontEntry fontEntry : fonts.values()) {
+			if(fontEntry.infos != null) {
+				for(EmbedFontInfo info : fontEntry.infos) {
+					String key = info.getEmbedFile() + "|" + info.getSubFontName();
+					if(embedFiles.add(key))
+						infos.add(info);
+				}
+			}
+		}
+		return infos;
+	}
+
+	/*
+	 * Recursively updates a font directory, only listing its content again if
+	 * it was modified.
+	 */
+	private void updateDir(File dir, Map<String,DirEntry> visitedDirs, Map<String,FontEntry> visitedFonts, FontInfoFinder infoFinder) {
+		String dirPath;
+		try {
+			dirPath = dir.getCanonicalPath();
+		} catch (IOException e) {
+			return;
+		}
+		if(visitedDirs.containsKey(dirPath) || !dir.isDirectory())
+			return;
+
+		DirEntry dirEntry = dirs.get(dirPath);
+		long lastModified = dir.lastModified();
+		boolean dirChanged = dirEntry == null || dirEntry.lastModified != lastModified;
+		if(!dirChanged) {
+			dirHits++;
+		} else {
+			dirMisses++;
+			changed = true;
+			dirEntry = new DirEntry();
+			dirEntry.lastModified = lastModified;
+			List<String> subDirs = new ArrayList<String>();
+			List<String> fontFiles = new ArrayList<String>();
+			File[] files = dir.listFiles();
+			if(files != null) {
+				for(File file : files) {
+					if(file.isDirectory()) {
+						if(!file.isHidden())
+							subDirs.add(file.getPath());
+					} else if(isFontFile(file)) {
+						fontFiles.add(file.getPath());
+					}
+				}
+			}
+			dirEntry.subDirs = subDirs.toArray(new String[subDirs.size()]);
+			dirEntry.fontFiles = fontFiles.toArray(new String[fontFiles.size()]);
+		}
+		visitedDirs.put(dirPath, dirEntry);
+
+		for(String fontPath : dirEntry.fontFiles) {
+			File fontFile = new File(fontPath);
+			FontEntry fontEntry = fonts.get(fontPath);
+			if(fontEntry != null && (!dirChanged || fontEntry.lastModified == fontFile.lastModified())) {
+				fontHits++;
+			} else {
+				fontMisses++;
+				changed = true;
+				fontEntry = new FontEntry();
+				fontEntry.lastModified = fontFile.lastModified();
+				try {
+					fontEntry.infos = infoFinder.find(fontFile.toURI().toURL(), FontManager.createMinimalFontResolver(), null);
+				} catch (Exception e) {
+					fontEntry.infos = null;
+				}
+			}
+			visitedFonts.put(fontPath, fontEntry);
+		}
+
+		for(String subDir : dirEntry.subDirs) {
+			updateDir(new File(subDir), visitedDirs, visitedFonts, infoFinder);
+		}
+	}
+
+	/*
+	 * Checks if the file is a font file that FOP would auto-detect.
+	 */
+	private static boolean isFontFile(File file) {
+		String name = file.getName().toLowerCase();
+		for(String ext : FONT_EXTENSIONS) {
+			if(name.endsWith(ext))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Gets the finder of the system font directories for the current platform.
+	 */
+	private static FontFinder getFontDirFinder() {
+		String osName = System.getProperty("os.name");
+		if(osName.startsWith("Windows"))
+			return new WindowsFontDirFinder();
+		else if(osName.startsWith("Mac"))
+			return new MacFontDirFinder();
+		else
+			return new UnixFontDirFinder();
+	}
+
+	/**
+	 * Saves the catalogue to the given file if it changed since it was loaded.
+	 *
+	 * @param catalogFile
+	 *            The catalogue file.
+	 */
+	public synchronized void save(File catalogFile) {
+		if(!changed)
+			return;
+		File tmpFile = new File(catalogFile.getPath() + ".tmp");
+		ObjectOutputStream out = null;
+		try {
+			out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			out.writeObject(this);
+			out.close();
+			out = null;
+			catalogFile.delete();
+			if(tmpFile.renameTo(catalogFile))
+				changed = false;
+		} catch (IOException e) {
+			System.err.println("Font catalogue \"" + catalogFile + "\" can't be saved: " + e.getMessage());
+		} finally {
+			try {
+				if(out != null) out.close();
+			} catch (IOException e) {}
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Gets a report of the catalogue usage during the last update.
+	 *
+	 * @return The number of cache hits and misses for directories and fonts.
+	 */
+	public synchronized String getStatistics() {
+		return "directories " + dirHits + " hit(s) / " + dirMisses + " miss(es), fonts "
+				+ fontHits + " hit(s) / " + fontMisses + " miss(es)";
+	}
+
+	/**
+	 * Gets the counters of the catalogue usage during the last update.
+	 *
+	 * @return The number of cache hits and misses, by key:
+	 *         <code>dirHits</code>, <code>dirMisses</code>,
+	 *         <code>fontHits</code> and <code>fontMisses</code>.
+	 */
+	public synchronized Map<String,Integer> getCounters() {
+		Map<String,Integer> counters = new LinkedHashMap<String,Integer>();
+		counters.put("dirHits", dirHits);
+		counters.put("dirMisses", dirMisses);
+		counters.put("fontHits", fontHits);
+		counters.put("fontMisses", fontMisses);
+		return counters;
+	}
+
+	/**
+	 * Gets the number of fonts known by the catalogue.
+	 *
+	 * @return The number of font files.
+	 */
+	public synchronized int getFontCount() {
+		return fonts.size();
+	}
+
+	/**
+	 * Replaces the <code>auto-detect</code> elements of the given FOP
+	 * configuration by the explicit declaration of the fonts of the catalogue,
+	 * after having updated it.
+	 *
+	 * @param config
+	 *            The FOP configuration.
+	 * @return A new configuration or <code>null</code> if the given one
+	 *         doesn't request font auto-detection.
+	 * @throws ConfigurationException
+	 *             If the configuration can't be read.
+	 * @throws IOException
+	 *             If the system font directories can't be determined.
+	 */
+	public Configuration declareFonts(Configuration config) throws ConfigurationException, IOException {
+		if(!hasAutoDetect(config))
+			return null;
+		return copyDeclaringFonts(config, update());
+	}
+
+	/*
+	 * Checks recursively if the configuration requests font auto-detection.
+	 */
+	private static boolean hasAutoDetect(Configuration config) {
+		if(TAG_FONTS.equals(config.getName()) && config.getChild(TAG_AUTODETECT, false) != null)
+			return true;
+		for(Configuration child : config.getChildren()) {
+			if(hasAutoDetect(child))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Copies the configuration and replaces auto-detect elements by explicit
+	 * font declarations.
+	 */
+	private static DefaultConfiguration copyDeclaringFonts(Configuration config, List<EmbedFontInfo> infos) throws ConfigurationException {
+		DefaultConfiguration copy = new DefaultConfiguration(config.getName(), config.getLocation());
+		copy.addAllAttributes(config);
+		String value = config.getValue(null);
+		if(value != null)
+			copy.setValue(value);
+		boolean isFonts = TAG_FONTS.equals(config.getName());
+		for(Configuration child : config.getChildren()) {
+			if(isFonts && TAG_AUTODETECT.equals(child.getName())) {
+				for(EmbedFontInfo info : infos)
+					copy.addChild(toFontConfiguration(info));
+			} else {
+				copy.addChild(copyDeclaringFonts(child, infos));
+			}
+		}
+		return copy;
+	}
+
+	/*
+	 * Builds the FOP configuration element declaring the given font.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Configuration toFontConfiguration(EmbedFontInfo info) {
+		DefaultConfiguration fontCfg = new DefaultConfiguration("font");
+		if(info.getMetricsFile() != null)
+			fontCfg.setAttribute("metrics-url", info.getMetricsFile());
+		fontCfg.setAttribute("embed-url", info.getEmbedFile());
+		if(info.getSubFontName() != null)
+			fontCfg.setAttribute("sub-font", info.getSubFontName());
+		fontCfg.setAttribute("kerning", info.getKerning());
+		if(info.getEncodingMode() != null)
+			fontCfg.setAttribute("encoding-mode", info.getEncodingMode().getName());
+		for(FontTriplet triplet : (List<FontTriplet>) info.getFontTriplets()) {
+			DefaultConfiguration tripletCfg = new DefaultConfiguration("font-triplet");
+			tripletCfg.setAttribute("name", triplet.getName());
+			tripletCfg.setAttribute("style", triplet.getStyle());
+			tripletCfg.setAttribute("weight", triplet.getWeight());
+			fontCfg.addChild(tripletCfg);
+		}
+		return fontCfg;
+	}
+
+}
@@ -14,21 +14,35 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CancellationException;
 
 import javax.swing.Timer;
 
 import com.leanpulse.syd.api.PdfSecurityOptions;
 import com.leanpulse.syd.api.progress.IProgressMonitor;
-import com.leanpulse.syd.remote.IProgressMonitorRm;
+import com.leanpulse.syd.remote.IProgressChannelRm;
 import com.leanpulse.syd.remote.IRendererRm;
+import com.leanpulse.syd.remote.ProgressEventRm;
+import com.leanpulse.syd.remote.RenderJob;
+import com.leanpulse.syd.remote.RenderJobStatus;
+import com.leanpulse.syd.remote.RenderLoad;
 
 /**
  * Implementation of the remote rendering server.
  * <p>
  * The server enables to remotely render several documents in parallel and
  * includes features to release memory after renderings finished and to
- * automatically shut down if idle for too long.<br>
+ * automatically shut down if idle for too long, the delay growing with the
+ * warm state kept by the server.<br>
+ * Jobs are started only when enough heap is available to render them,
+ * otherwise they are queued, so that running out of memory doesn't make all
+ * the renderings in progress fail.<br>
+ * When configured with workers, the server supervises a pool of worker
+ * processes to which it delegates the renderings, each worker being itself a
+ * rendering server bound under its own name.<br>
  * The main method of this class fully setups the rendering server, including
  * the binding to the RMI registry.
  * 
@@ -38,19 +52,22 @@ public class FopRendererServer extends UnicastRemoteObject implements IRendererR
 
 	private static final long serialVersionUID = -1079404354464192784L;
 	
-	/* Delay in seconds after which the server will shuts itself down if in idle. */
-	private static final int IDLE_SHUTDOWN_DELAY = 300;
-	
 	/*
-	 * Time in seconds during which garbage collection will be requested each
-	 * second to release memory after a rendering and while in idle.
+	 * Delay in seconds after which the server will shuts itself down if in
+	 * idle, never if not positive.
 	 */
-	private static final int GARBAGE_COLLECTION_TIME = 10;
+	private static final int IDLE_SHUTDOWN_DELAY = Integer.getInteger("syd.rmrender.idletimeout", 300).intValue();
+	
+	/* Port of the RMI registry to which the server is bound. */
+	private static final int REGISTRY_PORT = Integer.getInteger("syd.rmrender.port", Registry.REGISTRY_PORT).intValue();
 	
 	private static File libFile = null;
 	private static int genJobsRunning = 0;
-	private static ForceGcThread gcThread = null;
+	private static MemoryGovernor governor = new MemoryGovernor();
 	private static Timer shutDownTimer;
+	private static AdmissionController admission = new AdmissionController();
+	private static volatile String status = STATUS_WARM;
+	private static WorkerPool pool = null;
 	
 	/**
 	 * The main method for the command line interface.
@@ -71,14 +88,18 @@ public class FopRendererServer extends UnicastRemoteObject implements IRendererR
 			System.exit(1);
 		}
 		
-		// Adds a shutdown hook to the JRE to stop the RMI registry process when the server shuts down.
+		// Adds a shutdown hook to the JRE to stop the RMI registry when the server shuts down.
 		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
 			public void run() {
 				RmiRegistryManager.getDefault().stopRegistry();
 			}
 		}, "Rmiregistry Shutdown"));
-		// Ensures the RMI registry process is started to be able to connect to the server.
-		RmiRegistryManager.getDefault().startRegistry();
+		// Ensures the RMI registry is started to be able to connect to the server.
+		boolean worker = WorkerPool.isWorker();
+		if(worker)
+			watchSupervisor(); // The registry is started by the supervisor.
+		else
+			RmiRegistryManager.getDefault().startRegistry(REGISTRY_PORT);
 		
 		// Sets up the shutdown timer to automatically stops the server if idle for too long.
 		shutDownTimer = new Timer(IDLE_SHUTDOWN_DELAY * 1000, new ActionListener() {
@@ -87,18 +108,41 @@ public class FopRendererServer extends UnicastRemoteObject implements IRendererR
 			}
 		});
 		
-		// Binds the remote renderer server.
+		// Binds the remote renderer server, then warms it up in the background.
 		try {
-			Registry registry = LocateRegistry.getRegistry();
-			registry.rebind(SERVICE_NAME, new FopRendererServer());
-			System.out.println("RemoteRenderer bound");
+			FopRendererServer server = new FopRendererServer();
+			int workerCount = WorkerPool.getWorkerCount();
+			if(workerCount > 0) { // The workers are warmed up by themselves.
+				pool = new WorkerPool(workerCount, REGISTRY_PORT);
+				Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+					public void run() {
+						pool.shutDown();
+					}
+				}, "Render Workers Shutdown"));
+			}
+			boolean warmUp = pool == null && ServerWarmUp.isEnabled();
+			if(warmUp)
+				status = STATUS_WARMING;
+			String serviceName = worker ? WorkerPool.getServiceName(System.getProperty(WorkerPool.WORKER_ID_PROPERTY)) : SERVICE_NAME;
+			Registry registry = LocateRegistry.getRegistry(REGISTRY_PORT);
+			registry.rebind(serviceName, server);
+			System.out.println("RemoteRenderer bound on port " + REGISTRY_PORT + (worker ? " as " + serviceName : ""));
+			new RenderServerManagement(admission, governor, pool, server.renderer)
+					.register(worker ? System.getProperty(WorkerPool.WORKER_ID_PROPERTY) : null);
+			System.out.println(READY_MESSAGE); // Tells the process starting the server it can connect.
+			System.out.flush();
+			if(warmUp)
+				new ServerWarmUp(server.renderer).start();
+			if(!worker)
+				server.jobQueue.resume();
 		} catch (Exception e) {
 			System.err.println("RemoteRenderer exception:");
 			e.printStackTrace();
 			System.exit(2);
 		}
 		
-		shutDownTimer.start();
+		if(IDLE_SHUTDOWN_DELAY > 0)
+			shutDownTimer.start();
 	}
 	
 	/**
@@ -114,149 +158,184 @@ public class FopRendererServer extends UnicastRemoteObject implements IRendererR
 		return libFile;
 	}
 	
+	/*
+	 * Exits a worker process when its supervisor exits, which closes the
+	 * standard input of the worker.
+	 */
+	private static void watchSupervisor() {
+		Thread watchThread = new Thread("Supervisor Watch") {
+			@Override
+			public void run() {
+				try {
+					while(System.in.read() >= 0);
+				} catch (IOException e) {}
+				System.exit(0);
+			}
+		};
+		watchThread.setDaemon(true);
+		watchThread.start();
+	}
+	
+	/* Called when the warm-up of the server ended. */
+	static void warmUpEnded() {
+		status = STATUS_WARM;
+	}
+	
 	/* Called when a new render job is started. */
 	private static synchronized void renderJobStarted() {
 		shutDownTimer.stop(); // Stop the shutdown time while a document is rendered.
 		genJobsRunning++;
-		if(gcThread != null && gcThread.isAlive()) { // Interrupt and reset the garbage collection thread.
-			gcThread.interrupt();
-			gcThread = null;
-		}
+		governor.jobStarted(); // Interrupts the shrinking of the heap.
 	}
 	
 	/* Called when a render job finished. */
 	private static synchronized void renderJobEnded() {
 		genJobsRunning--;
-		if(genJobsRunning == 0) { // No more documents are rendering.
-			gcThread = new ForceGcThread();
-			gcThread.start(); // Force garbage collection.
-			shutDownTimer.restart(); // Restart the shutdown timer.
-		}
+		// Releases memory, and once idle shrinks the heap then adapts the shutdown delay to the warm state left.
+		governor.jobEnded(genJobsRunning, new Runnable() {
+			public void run() {
+				restartShutDownTimer();
+			}
+		});
+		if(genJobsRunning == 0) // No more documents are rendering.
+			restartShutDownTimer();
 	}
 	
-	/* Daemon thread to force garbage collection when renderings finished. */
-	private static class ForceGcThread extends Thread {
-		private int itNum = 0;
-		public ForceGcThread() {
-			super("Forced Garbage Collection");
-			setDaemon(true);
-		}
-		@Override
-		public void run() {
-			while(itNum < GARBAGE_COLLECTION_TIME) {
-				Runtime runtime = Runtime.getRuntime();
-				runtime.gc();
-				try {
-					Thread.sleep(1000L);
-				} catch (InterruptedException e) {
-					return;
-				}
-				itNum++;
-			}
-		}
+	/* Restarts the shutdown timer if idle, with a delay adapted to the warm state of the server. */
+	private static synchronized void restartShutDownTimer() {
+		if(genJobsRunning > 0 || IDLE_SHUTDOWN_DELAY <= 0)
+			return;
+		shutDownTimer.setInitialDelay(governor.getIdleDelay(IDLE_SHUTDOWN_DELAY) * 1000);
+		shutDownTimer.restart();
 	}
 	
-	/* A simple progress monitor implementation that delegates to a remote sibling. */
+	/*
+	 * A progress monitor reporting to the channel of a client. The state of the
+	 * monitor is kept locally, so that checking it never calls the client.
+	 */
 	private static class ProgressMonitorClient implements IProgressMonitor {
-		private IProgressMonitorRm delegate;
-		ProgressMonitorClient(IProgressMonitorRm delegate) {
-			this.delegate = delegate;
+		private final ProgressChannelClient channel;
+		private final String id;
+		private final ProgressMonitorClient parent;
+		private final List<ProgressMonitorClient> children = new ArrayList<ProgressMonitorClient>();
+		private volatile boolean canceled = false;
+		private boolean started = false;
+		private boolean finished = false;
+		private boolean error = false;
+		private AdmissionController.Ticket ticket;
+		ProgressMonitorClient(IProgressChannelRm channel, String id) {
+			this.channel = ProgressChannelClient.register(channel, id, this);
+			this.id = id;
+			this.parent = null;
+		}
+		private ProgressMonitorClient(ProgressMonitorClient parent, String id) {
+			this.channel = parent.channel;
+			this.id = id;
+			this.parent = parent;
 		}
 		public void start(String message, double totalWork) {
-			try {
-				delegate.start(message, totalWork);
-			} catch (RemoteException e) {}
+			synchronized(this) {
+				started = true;
+			}
+			channel.post(new ProgressEventRm(ProgressEventRm.START, id, message, totalWork, null, null));
 		}
 		public void progress(double work) {
-			try {
-				delegate.progress(work);
-			} catch (RemoteException e) {}
+			channel.postProgress(id, null, work);
 		}
 		public void progress(String description) {
-			try {
-				delegate.progress(description);
-			} catch (RemoteException e) {}
+			channel.postProgress(id, description, 0.0);
 		}
 		public void progress(String description, double work) {
-			try {
-				delegate.progress(description, work);
-			} catch (RemoteException e) {}
+			channel.postProgress(id, description, work);
 		}
 		public void requestCancel() {
-			try {
-				delegate.requestCancel();
-			} catch (RemoteException e) {}
-		}
-		public boolean isRunning() {
-			try {
-				return delegate.isCanceled();
-			} catch (RemoteException e) {
-				return false;
+			List<ProgressMonitorClient> tmpChildren;
+			synchronized(this) {
+				if(canceled)
+					return;
+				canceled = true;
+				tmpChildren = new ArrayList<ProgressMonitorClient>(children);
 			}
+			for(ProgressMonitorClient child : tmpChildren)
+				child.requestCancel();
+			channel.post(new ProgressEventRm(ProgressEventRm.CANCEL, id, null, 0.0, null, null));
+			if(parent == null && pool != null) // Forwards the cancellation to the worker.
+				pool.cancel(this);
+		}
+		public synchronized boolean isRunning() {
+			return started && !finished;
 		}
 		public void checkCanceled() throws CancellationException {
-			try {
-				delegate.checkCanceled();
-			} catch (RemoteException e) {
+			if(canceled)
 				throw new CancellationException();
-			}
 		}
 		public boolean isCanceled() {
-			try {
-				return delegate.isCanceled();
-			} catch (RemoteException e) {
-				return true;
-			}
+			return canceled;
 		}
-		public boolean isFinished() {
-			try {
-				return delegate.isFinished();
-			} catch (RemoteException e) {
-				return true;
-			}
+		public synchronized boolean isFinished() {
+			return finished;
 		}
-		public boolean hasError() {
-			try {
-				return delegate.hasError();
-			} catch (RemoteException e) {
-				return false;
-			}
+		public synchronized boolean hasError() {
+			return error;
 		}
 		public void finish(String message) {
-			renderJobEnded();
-			try {
-				delegate.finish(message);
-			} catch (RemoteException e) {}
+			if(!finished(false))
+				return;
+			if(parent == null)
+				renderJobEnded();
+			if(ticket != null)
+				admission.release(ticket, false);
+			channel.post(new ProgressEventRm(ProgressEventRm.FINISH, id, message, 0.0, null, null));
 		}
 		public void finish(String message, Exception e) {
-			renderJobEnded();
-			try {
-				// Repack the exception as an IOException to ensure the other JVM can load the class
-				IOException ioe = new IOException(e.toString());
-				delegate.finish(message, ioe);
-			} catch (RemoteException re) {}
+			if(!finished(true))
+				return;
+			if(parent == null)
+				renderJobEnded();
+			if(ticket != null)
+				admission.release(ticket, e.getCause() instanceof OutOfMemoryError);
+			// Repack the exception as an IOException to ensure the other JVM can load the class, keeping the
+			// exhaustion of the heap for the servers recycling their render workers
+			IOException ioe = new IOException(e.toString(), e.getCause() instanceof OutOfMemoryError ? e.getCause() : null);
+			channel.post(new ProgressEventRm(ProgressEventRm.FINISH, id, message, 0.0, null, ioe));
 		}
-		public void waitFinish() throws InterruptedException {
-			try {
-				delegate.waitFinish();
-			} catch (RemoteException re) {}
+		private synchronized boolean finished(boolean withError) {
+			if(finished)
+				return false;
+			finished = true;
+			error = withError;
+			notifyAll();
+			return true;
+		}
+		public synchronized void waitFinish() throws InterruptedException {
+			while(!finished)
+				wait();
 		}
 		public IProgressMonitor createSubProgress(String name, double parentWorkUnits) {
-			try {
-				return new ProgressMonitorClient(delegate.createSubProgress(name, parentWorkUnits));
-			} catch (RemoteException e) {
-				return null;
+			ProgressMonitorClient child;
+			synchronized(this) {
+				child = new ProgressMonitorClient(this, id + "." + children.size());
+				children.add(child);
+				if(canceled)
+					child.canceled = true;
 			}
+			channel.post(new ProgressEventRm(ProgressEventRm.SUB_PROGRESS, id, name, parentWorkUnits, child.id, null));
+			return child;
 		}
 		public void waitSubProgessFinish() throws InterruptedException {
-			try {
-				delegate.waitSubProgressFinish();
-			} catch (RemoteException re) {}
+			List<ProgressMonitorClient> tmpChildren;
+			synchronized(this) {
+				tmpChildren = new ArrayList<ProgressMonitorClient>(children);
+			}
+			for(ProgressMonitorClient child : tmpChildren)
+				child.waitFinish();
 		}
 	}
 	
 	
 	private EmbedFopRenderer renderer = new EmbedFopRenderer();
+	private StagingArea staging = StagingArea.getDefault(REGISTRY_PORT);
+	private RenderJobQueue jobQueue = new RenderJobQueue(this);
 	
 	protected FopRendererServer() throws RemoteException {
 		super();
@@ -272,12 +351,168 @@ public class FopRendererServer extends UnicastRemoteObject implements IRendererR
 	
 	/*
 	 * (non-Javadoc)
-	 * @see com.leanpulse.syd.remote.IRendererRm#startRendering(java.io.File, java.io.File, java.lang.String[], java.io.File, com.leanpulse.syd.api.PdfSecurityOptions, boolean, com.leanpulse.syd.remote.IProgressMonitorRm)
+	 * @see com.leanpulse.syd.remote.IRendererRm#getStatus()
+	 */
+	public String getStatus() throws RemoteException {
+		if(pool != null)
+			return pool.getStatus();
+		return status;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.IRendererRm#getLoad()
+	 */
+	public RenderLoad getLoad() throws RemoteException {
+		if(pool != null)
+			return pool.getLoad();
+		return new RenderLoad(admission.getJobCount(), Runtime.getRuntime().availableProcessors(), admission.getHeadroom(),
+				AdmissionController.getRetainedHeap(), Runtime.getRuntime().maxMemory());
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.IRendererRm#getMemoryUsage()
+	 */
+	public Map<String, Long> getMemoryUsage() throws RemoteException {
+		Map<String, Long> usage = governor.getMemoryUsage();
+		if(pool != null)
+			usage.putAll(pool.getMemoryUsage());
+		return usage;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.IRendererRm#getStaged(java.lang.String)
+	 */
+	public File getStaged(String bundle) throws RemoteException {
+		try {
+			return staging.getStaged(bundle);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.IRendererRm#stage(java.lang.String, java.lang.String, long, byte[])
+	 */
+	public void stage(String bundle, String path, long offset, byte[] data) throws IOException {
+		staging.stage(bundle, path, offset, data);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.IRendererRm#commitStaged(java.lang.String)
+	 */
+	public File commitStaged(String bundle) throws IOException {
+		return staging.commitStaged(bundle);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.IRendererRm#createOutputFile(java.lang.String)
+	 */
+	public File createOutputFile(String name) throws IOException {
+		return staging.createOutputFile(name);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.IRendererRm#fetch(java.io.File, long, int)
+	 */
+	public byte[] fetch(File file, long offset, int length) throws IOException {
+		return staging.fetch(file, offset, length);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.IRendererRm#discard(java.io.File)
+	 */
+	public void discard(File file) {
+		try {
+			staging.discard(file);
+		} catch (IOException e) {}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.IRendererRm#startRendering(java.io.File, java.io.File, java.lang.String[], java.io.File, com.leanpulse.syd.api.PdfSecurityOptions, boolean, com.leanpulse.syd.remote.IProgressChannelRm, java.lang.String)
 	 */
-	public synchronized void startRendering(File xmlFile, File xslFile, String[] xslParams, File outFile, PdfSecurityOptions secOptions,
-			boolean open, IProgressMonitorRm mon) {
+	public void startRendering(final File xmlFile, final File xslFile, final String[] xslParams, final File outFile, final PdfSecurityOptions secOptions,
+			final boolean open, IProgressChannelRm channel, String monId) {
 		renderJobStarted();
-		renderer.asyncRender(xmlFile, xslFile, xslParams, outFile, secOptions, open, new ProgressMonitorClient(mon));
+		final ProgressMonitorClient monClient = new ProgressMonitorClient(channel, monId);
+		if(pool != null) {
+			pool.submit(xmlFile, xslFile, xslParams, new File[] {outFile}, new PdfSecurityOptions[] {secOptions}, new boolean[] {open},
+					false, new IProgressMonitor[] {monClient});
+			return;
+		}
+		monClient.ticket = new AdmissionController.Ticket(outFile.getName(), xmlFile.length(), monClient, new Runnable() {
+			public void run() {
+				renderer.asyncRender(xmlFile, xslFile, xslParams, outFile, secOptions, open, monClient);
+			}
+		});
+		admission.submit(monClient.ticket);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.IRendererRm#startRendering(java.io.File, java.io.File, java.lang.String[], java.io.File[], com.leanpulse.syd.api.PdfSecurityOptions[], boolean[], com.leanpulse.syd.remote.IProgressChannelRm, java.lang.String[])
+	 */
+	public void startRendering(final File xmlFile, final File xslFile, final String[] xslParams, final File[] outFiles, final PdfSecurityOptions[] secOptions,
+			final boolean[] open, IProgressChannelRm channel, String[] monIds) {
+		final IProgressMonitor[] monClients = new IProgressMonitor[monIds.length];
+		for(int i=0; i<monIds.length; i++) {
+			renderJobStarted();
+			monClients[i] = new ProgressMonitorClient(channel, monIds[i]);
+		}
+		if(pool != null) {
+			pool.submit(xmlFile, xslFile, xslParams, outFiles, secOptions, open, true, monClients);
+			return;
+		}
+		// The documents are finished in order, so the heap is held by the last one, which reports the queued state.
+		ProgressMonitorClient lastClient = (ProgressMonitorClient) monClients[monIds.length-1];
+		lastClient.ticket = new AdmissionController.Ticket(outFiles[monIds.length-1].getName(), xmlFile.length(), lastClient, new Runnable() {
+			public void run() {
+				renderer.asyncRender(xmlFile, xslFile, xslParams, outFiles, secOptions, open, monClients);
+			}
+		});
+		admission.submit(lastClient.ticket);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.IRendererRm#cancel(com.leanpulse.syd.remote.IProgressChannelRm, java.lang.String[])
+	 */
+	public void cancel(IProgressChannelRm channel, String[] monIds) {
+		ProgressChannelClient channelClient = ProgressChannelClient.find(channel);
+		if(channelClient != null)
+			channelClient.cancel(monIds);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.IRendererRm#submitBatch(java.util.List)
+	 */
+	public String[] submitBatch(List<RenderJob> jobs) {
+		return jobQueue.submit(jobs);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.IRendererRm#queryStatus(java.lang.String[])
+	 */
+	public RenderJobStatus[] queryStatus(String[] jobIds) {
+		return jobQueue.query(jobIds);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.IRendererRm#cancel(java.lang.String)
+	 */
+	public boolean cancel(String jobId) {
+		return jobQueue.cancel(jobId);
 	}
 	
 	/*
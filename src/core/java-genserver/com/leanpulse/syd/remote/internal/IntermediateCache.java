@@ -0,0 +1,151 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A cache on disk of documents laid out in the FOP intermediate format.
+ * <p>
+ * Each entry is a file named after the digest of the content of the
+ * document, so that documents produced from the same XML data, stylesheets
+ * and parameters are laid out only once. The least recently used entries are
+ * deleted when the total size of the cache exceeds its maximum.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+public class IntermediateCache {
+
+	/**
+	 * System property giving the directory of the cache. The cache is
+	 * disabled if it isn't defined.
+	 */
+	public static final String CACHE_DIR_PROPERTY = "syd.rmrender.ifcache";
+
+	/**
+	 * System property giving the maximum size of the cache in megabytes.
+	 */
+	public static final String MAX_SIZE_PROPERTY = "syd.rmrender.ifcache.maxsize";
+
+	private static final String ENTRY_EXT = ".if";
+
+	private static final long DEFAULT_MAX_SIZE = 512L;
+
+	private static IntermediateCache instance = null;
+
+	/**
+	 * Returns the cache configured by the system properties.
+	 *
+	 * @return The cache or <code>null</code> if no cache is configured.
+	 */
+	public static synchronized IntermediateCache getDefault() {
+		if(instance == null) {
+			String dirPath = System.getProperty(CACHE_DIR_PROPERTY);
+			if(dirPath == null || dirPath.length() == 0)
+				return null;
+			long maxSize = DEFAULT_MAX_SIZE;
+			try {
+				maxSize = Long.parseLong(System.getProperty(MAX_SIZE_PROPERTY, Long.toString(DEFAULT_MAX_SIZE)));
+			} catch (NumberFormatException e) {}
+			instance = new IntermediateCache(new File(dirPath), maxSize * 1024L * 1024L);
+		}
+		return instance;
+	}
+
+	private final File dir;
+	private final long maxSize;
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param dir
+	 *            The directory of the cache.
+	 * @param maxSize
+	 *            The maximum size of the cache in bytes.
+	 */
+	public IntermediateCache(File dir, long maxSize) {
+		this.dir = dir;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Looks up a document in the cache.
+	 *
+	 * @param key
+	 *            The digest of the content of the document.
+	 * @return The file of the document laid out, or <code>null</code> if not
+	 *         cached.
+	 */
+	public File lookup(String key) {
+		File entry = new File(dir, key + ENTRY_EXT);
+		if(!entry.isFile())
+			return null;
+		entry.setLastModified(System.currentTimeMillis()); // Marks the entry as recently used.
+		return entry;
+	}
+
+	/**
+	 * Creates a temporary file in the cache directory to lay out a document.
+	 *
+	 * @return The temporary file.
+	 * @throws IOException
+	 *             If the file can't be created.
+	 */
+	public File createTempFile() throws IOException {
+		dir.mkdirs();
+		return File.createTempFile("syd", ".tmp", dir);
+	}
+
+	/**
+	 * Stores a document just laid out in the cache.
+	 *
+	 * @param key
+	 *            The digest of the content of the document.
+	 * @param tmpFile
+	 *            The temporary file in which the document has been laid out.
+	 * @return The file of the cache entry.
+	 */
+	public synchronized File store(String key, File tmpFile) {
+		File entry = new File(dir, key + ENTRY_EXT);
+		if(!tmpFile.renameTo(entry)) { // Concurrently laid out by another job.
+			tmpFile.delete();
+			if(!entry.isFile())
+				return null;
+		}
+		trim(entry);
+		return entry;
+	}
+
+	/*
+	 * Deletes the least recently used entries, except the given one, until the cache fits in its maximum size.
+	 */
+	private void trim(File keptEntry) {
+		File[] entries = dir.listFiles();
+		if(entries == null)
+			return;
+		long size = 0;
+		for(File entry : entries)
+			size += entry.length();
+		if(size <= maxSize)
+			return;
+		Arrays.sort(entries, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				long diff = f1.lastModified() - f2.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		for(int i=0; i<entries.length && size > maxSize; i++) {
+			if(entries[i].getName().endsWith(ENTRY_EXT) && !entries[i].equals(keptEntry)) {
+				long length = entries[i].length();
+				if(entries[i].delete())
+					size -= length;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,241 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Governs the memory of the server between the renderings.
+ * <p>
+ * The warm state of the server is kept in tiers of caches, released in a
+ * defined order when the heap retained after garbage collection exceeds a
+ * given share of the maximum heap: the templates first, then the images and
+ * SVG documents cached by FOP, then, only once idle, the FOP factory and the
+ * fonts it loaded. The heap freed by each tier is measured when released.<br>
+ * Once the server is idle, full garbage collections are requested so that
+ * the JVM uncommits the free heap, according to its
+ * <code>MaxHeapFreeRatio</code> setting.<br>
+ * The delay after which an idle server shuts down grows with the time it
+ * would take to rebuild the warm state still cached.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+class MemoryGovernor {
+
+	/**
+	 * System property giving the percentage of the maximum heap retained after
+	 * garbage collection from which the caches are released.
+	 */
+	static final String PRESSURE_PROPERTY = "syd.rmrender.memory.pressure";
+
+	private static final int PRESSURE = Integer.getInteger(PRESSURE_PROPERTY, 70).intValue();
+
+	/* Number of full garbage collections requested to shrink the heap once idle. */
+	private static final int SHRINK_COLLECTIONS = 3;
+
+	/* Time in milliseconds to rebuild the warm state for which the idle delay is doubled. */
+	private static final long WARM_COST_REFERENCE = 10000L;
+
+	/* Maximum factor applied to the idle delay. */
+	private static final int MAX_DELAY_FACTOR = 4;
+
+	/* A cache of warm state released by the governor. */
+	private abstract static class Tier {
+		final String name;
+		final boolean idleOnly;
+		volatile long freed = -1; // Heap freed when last released, unknown if negative.
+		Tier(String name, boolean idleOnly) {
+			this.name = name;
+			this.idleOnly = idleOnly;
+		}
+		/* Estimated size in bytes of the cache, unknown if negative. */
+		abstract long getSize();
+		/* Time in milliseconds to rebuild the cache once released. */
+		abstract long getRebuildTime();
+		abstract void release();
+	}
+
+	private final Tier[] tiers = new Tier[] {
+		new Tier("templates", false) {
+			long getSize() {
+				return CachingTransformerFactory.getTemplatesWeight();
+			}
+			long getRebuildTime() {
+				return CachingTransformerFactory.getTemplatesLoadTime();
+			}
+			void release() {
+				CachingTransformerFactory.clearTemplates();
+			}
+		},
+		new Tier("images", false) {
+			long getSize() {
+				return -1;
+			}
+			long getRebuildTime() {
+				return 0;
+			}
+			void release() {
+				EmbedFopRenderer.clearImageCache();
+			}
+		},
+		new Tier("fonts", true) {
+			long getSize() {
+				return -1;
+			}
+			long getRebuildTime() {
+				return EmbedFopRenderer.getFopFactoryLoadTime();
+			}
+			void release() {
+				EmbedFopRenderer.releaseFopFactory();
+			}
+		}
+	};
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Memory Governor");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
+	/* Number of the last job ended, so that the idle tasks stop when a new job starts. */
+	private volatile long jobSequence = 0;
+
+	/**
+	 * Called when a job starts, interrupting the shrinking of the heap.
+	 */
+	void jobStarted() {
+		jobSequence++;
+	}
+
+	/**
+	 * Called when a job ended, releasing the caches if the heap is under
+	 * pressure, and shrinking the heap if no job is running anymore.
+	 *
+	 * @param running
+	 *            The number of jobs still running.
+	 * @param idleTask
+	 *            The task to run once the heap is shrunk, if still idle.
+	 */
+	void jobEnded(final int running, final Runnable idleTask) {
+		final long sequence = ++jobSequence;
+		executor.execute(new Runnable() {
+			public void run() {
+				relieve(running == 0);
+				if(running > 0)
+					return;
+				for(int i=0; i<SHRINK_COLLECTIONS && jobSequence == sequence; i++) {
+					System.gc();
+					try {
+						Thread.sleep(1000L);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if(jobSequence == sequence && idleTask != null)
+					idleTask.run();
+			}
+		});
+	}
+
+	/**
+	 * Releases all the tiers of caches in the background, whatever the heap
+	 * retained. The documents being rendered keep the FOP factory they use.
+	 */
+	void flush() {
+		executor.execute(new Runnable() {
+			public void run() {
+				long retained = collect();
+				for(Tier tier : tiers)
+					retained = release(tier, retained);
+			}
+		});
+	}
+
+	/**
+	 * Gets the delay after which the idle server shuts down, grown with the
+	 * time to rebuild the warm state still cached.
+	 *
+	 * @param baseDelay
+	 *            The configured delay in seconds.
+	 * @return The delay in seconds.
+	 */
+	int getIdleDelay(int baseDelay) {
+		long warmCost = 0;
+		for(Tier tier : tiers)
+			warmCost += tier.getRebuildTime();
+		double factor = Math.min(MAX_DELAY_FACTOR, 1.0 + (double) warmCost / WARM_COST_REFERENCE);
+		return (int) (baseDelay * factor);
+	}
+
+	/**
+	 * Reports the heap of the server and the cost of each tier of caches.
+	 * <p>
+	 * The keys are <code>heap.used</code>, <code>heap.committed</code>,
+	 * <code>heap.max</code>, <code>heap.retained</code> and, for each tier,
+	 * <code>&lt;tier&gt;.size</code>, <code>&lt;tier&gt;.rebuildtime</code>
+	 * and <code>&lt;tier&gt;.freed</code>, the heap freed when last released.
+	 * Sizes are in bytes, times in milliseconds, and negative if unknown.
+	 *
+	 * @return The values by key.
+	 */
+	Map<String, Long> getMemoryUsage() {
+		Map<String, Long> usage = new LinkedHashMap<String, Long>();
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		usage.put("heap.used", heap.getUsed());
+		usage.put("heap.committed", heap.getCommitted());
+		usage.put("heap.max", heap.getMax());
+		usage.put("heap.retained", AdmissionController.getRetainedHeap());
+		for(Tier tier : tiers) {
+			usage.put(tier.name + ".size", tier.getSize());
+			usage.put(tier.name + ".rebuildtime", tier.getRebuildTime());
+			usage.put(tier.name + ".freed", tier.freed);
+		}
+		return usage;
+	}
+
+	/*
+	 * Releases the tiers in order while the heap retained exceeds the pressure threshold.
+	 */
+	private void relieve(boolean idle) {
+		long max = Runtime.getRuntime().maxMemory();
+		long retained = idle ? collect() : AdmissionController.getRetainedHeap(); // No full collection while rendering.
+		for(Tier tier : tiers) {
+			if(retained * 100L < max * PRESSURE)
+				return;
+			if(tier.idleOnly && !idle)
+				continue;
+			retained = release(tier, retained);
+		}
+	}
+
+	/*
+	 * Releases a tier, measuring the heap it freed, and returns the heap used afterwards.
+	 */
+	private static long release(Tier tier, long retained) {
+		tier.release();
+		long after = collect();
+		tier.freed = Math.max(0L, retained - after);
+		System.out.println("Released the " + tier.name + " cache, freeing " + (tier.freed / (1024L * 1024L)) + " MB.");
+		return after;
+	}
+
+	/*
+	 * Collects the garbage and returns the heap used afterwards.
+	 */
+	private static long collect() {
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+}
@@ -0,0 +1,199 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.leanpulse.syd.api.progress.IProgressMonitor;
+import com.leanpulse.syd.remote.IProgressChannelRm;
+import com.leanpulse.syd.remote.ProgressEventRm;
+
+/**
+ * The server side of the progress channel of a client.
+ * <p>
+ * Notifications are queued and sent in batches at a bounded rate, the
+ * successive progress of a same monitor being merged into a single
+ * notification. The cancellations pushed by the client are dispatched to the
+ * monitors of the jobs, which therefore never call the client to check them.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+class ProgressChannelClient {
+
+	/* Period in milliseconds at which the notifications are sent to the client. */
+	private static final long FLUSH_PERIOD = 100L;
+
+	private static final Timer flushTimer = new Timer("Progress Channel Flush", true);
+	private static final Map<IProgressChannelRm, ProgressChannelClient> channels = new HashMap<IProgressChannelRm, ProgressChannelClient>();
+
+	/**
+	 * Registers the monitor of a job on the channel of a client, creating the
+	 * channel if required.
+	 *
+	 * @param channel
+	 *            The remote channel exported by the client.
+	 * @param monId
+	 *            The identifier of the monitor.
+	 * @param mon
+	 *            The monitor, to which the cancellation of the job is
+	 *            dispatched.
+	 * @return The channel.
+	 */
+	static ProgressChannelClient register(IProgressChannelRm channel, String monId, IProgressMonitor mon) {
+		synchronized(channels) {
+			ProgressChannelClient channelClient = channels.get(channel);
+			if(channelClient == null) {
+				channelClient = new ProgressChannelClient(channel);
+				channels.put(channel, channelClient);
+			}
+			synchronized(channelClient) {
+				channelClient.jobMonitors.put(monId, mon);
+			}
+			return channelClient;
+		}
+	}
+
+	/**
+	 * Returns the channel of a client if it has jobs running.
+	 *
+	 * @param channel
+	 *            The remote channel exported by the client.
+	 * @return The channel or <code>null</code> if none.
+	 */
+	static ProgressChannelClient find(IProgressChannelRm channel) {
+		synchronized(channels) {
+			return channels.get(channel);
+		}
+	}
+
+	private final IProgressChannelRm channel;
+	private final Map<String, IProgressMonitor> jobMonitors = new HashMap<String, IProgressMonitor>();
+	private List<ProgressEventRm> pending = new ArrayList<ProgressEventRm>();
+	private final Map<String, ProgressEventRm> pendingProgress = new HashMap<String, ProgressEventRm>();
+	private TimerTask flushTask = null;
+	private boolean broken = false;
+
+	private ProgressChannelClient(IProgressChannelRm channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Cancels jobs as requested by the client.
+	 *
+	 * @param monIds
+	 *            The identifiers of the monitors of the jobs.
+	 */
+	void cancel(String[] monIds) {
+		List<IProgressMonitor> mons = new ArrayList<IProgressMonitor>(monIds.length);
+		synchronized(this) {
+			for(String monId : monIds) {
+				IProgressMonitor mon = jobMonitors.get(monId);
+				if(mon != null)
+					mons.add(mon);
+			}
+		}
+		for(IProgressMonitor mon : mons)
+			mon.requestCancel();
+	}
+
+	/**
+	 * Queues a notification.
+	 *
+	 * @param event
+	 *            The notification.
+	 */
+	synchronized void post(ProgressEventRm event) {
+		if(broken)
+			return;
+		pendingProgress.remove(event.getMonitorId());
+		if(event.getType() == ProgressEventRm.FINISH)
+			jobMonitors.remove(event.getMonitorId());
+		pending.add(event);
+		scheduleFlush();
+	}
+
+	/**
+	 * Queues a progress notification, merging it with the one of the same
+	 * monitor still queued if any.
+	 *
+	 * @param monId
+	 *            The identifier of the monitor.
+	 * @param description
+	 *            The updated description, or <code>null</code> if unchanged.
+	 * @param work
+	 *            The number of work units completed.
+	 */
+	synchronized void postProgress(String monId, String description, double work) {
+		if(broken)
+			return;
+		ProgressEventRm event = pendingProgress.get(monId);
+		if(event != null) {
+			event.addProgress(description, work);
+		} else {
+			event = new ProgressEventRm(ProgressEventRm.PROGRESS, monId, description, work, null, null);
+			pendingProgress.put(monId, event);
+			pending.add(event);
+			scheduleFlush();
+		}
+	}
+
+	/*
+	 * Schedules the periodic flush of the notifications if not running.
+	 */
+	private void scheduleFlush() {
+		if(flushTask != null)
+			return;
+		flushTask = new TimerTask() {
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+		flushTimer.schedule(flushTask, FLUSH_PERIOD, FLUSH_PERIOD);
+	}
+
+	/*
+	 * Sends the queued notifications, stopping the flush once no more jobs are running.
+	 */
+	private void flush() {
+		List<ProgressEventRm> events;
+		synchronized(this) {
+			events = pending;
+			pending = new ArrayList<ProgressEventRm>();
+			pendingProgress.clear();
+		}
+		if(!events.isEmpty()) {
+			try {
+				channel.update(events.toArray(new ProgressEventRm[events.size()]));
+			} catch (RemoteException e) { // The client is gone, its jobs are canceled.
+				List<IProgressMonitor> mons;
+				synchronized(this) {
+					broken = true;
+					pending.clear();
+					mons = new ArrayList<IProgressMonitor>(jobMonitors.values());
+				}
+				for(IProgressMonitor mon : mons)
+					mon.requestCancel();
+			}
+		}
+		synchronized(channels) {
+			synchronized(this) {
+				if(pending.isEmpty() && (jobMonitors.isEmpty() || broken)) {
+					flushTask.cancel();
+					flushTask = null;
+					if(channels.get(channel) == this)
+						channels.remove(channel);
+				}
+			}
+		}
+	}
+
+}
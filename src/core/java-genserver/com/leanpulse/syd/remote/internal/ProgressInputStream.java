@@ -21,6 +21,7 @@ public class ProgressInputStream extends FilterInputStream {
 	
 	IProgressMonitor mon;
 	long numBytes;
+	long endTime = 0;
 	
 	/**
 	 * Creates the progress input stream.
@@ -104,11 +105,22 @@ public class ProgressInputStream extends FilterInputStream {
         return false;
     }
     
+	/**
+	 * Gets the time at which the end of the data was reached.
+	 * 
+	 * @return The time in milliseconds, or 0 if the end wasn't reached.
+	 */
+	public long getEndTime() {
+		return endTime;
+	}
+	
 	/*
 	 * Updates the progress monitor according to how many bytes have been read
 	 * and checks cancel isn't requested.
 	 */
     private long updateProgress(long numBytesRead) throws IOException {
+    	if(numBytesRead < 0 && endTime == 0)
+    		endTime = System.currentTimeMillis();
     	try {
 			mon.checkCanceled();
 			if (numBytesRead > 0)
@@ -0,0 +1,329 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.leanpulse.syd.remote.IProgressChannelRm;
+import com.leanpulse.syd.remote.IRendererRm;
+import com.leanpulse.syd.remote.ProgressEventRm;
+import com.leanpulse.syd.remote.RenderJob;
+import com.leanpulse.syd.remote.RenderJobStatus;
+
+/**
+ * The queue of the jobs submitted in batches to the server, whose state is
+ * polled by the clients.
+ * <p>
+ * The jobs are rendered like the ones of the clients holding a progress
+ * channel, the queue acting as a local channel recording the state of its
+ * jobs. The state of a job ended is kept for an hour.<br>
+ * The jobs not ended can be journaled to a file, so that they are rendered
+ * again when the server restarts.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+class RenderJobQueue implements IProgressChannelRm {
+
+	/**
+	 * System property giving the file where the jobs not ended are journaled,
+	 * none if not set.
+	 */
+	static final String JOURNAL_PROPERTY = "syd.rmrender.journal";
+
+	/* Delay in milliseconds during which the state of a job ended is kept. */
+	private static final long RETENTION_DELAY = 3600000L;
+
+	/* A job of the queue and its state. */
+	private static class Entry {
+		final String jobId;
+		final RenderJob job;
+		final String[] monIds;
+		final Map<String, Double> workScales = new HashMap<String, Double>();
+		final Map<String, Double> subShares = new HashMap<String, Double>();
+		int state = RenderJobStatus.QUEUED;
+		String description;
+		double progress = 0.0;
+		int rendered = 0;
+		int ended = 0;
+		boolean canceled = false;
+		IOException error;
+		long endTime;
+		Entry(String jobId, RenderJob job) {
+			this.jobId = jobId;
+			this.job = job;
+			int count = job.getOutFiles().length;
+			this.monIds = new String[count];
+			for(int i=0; i<count; i++)
+				monIds[i] = count == 1 ? jobId : jobId + "-" + i;
+		}
+		RenderJobStatus getStatus() {
+			return new RenderJobStatus(jobId, state, description, Math.min(1.0, progress), rendered, error);
+		}
+	}
+
+	private final IRendererRm server;
+	private final File journalFile;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private final Map<String, Entry> monitors = new HashMap<String, Entry>();
+	private final String idPrefix = "q" + Long.toString(System.currentTimeMillis(), 36) + "_";
+	private int nextId = 1;
+
+	/**
+	 * Creates the queue of a server.
+	 *
+	 * @param server
+	 *            The server rendering the jobs.
+	 */
+	RenderJobQueue(IRendererRm server) {
+		this.server = server;
+		String journalPath = System.getProperty(JOURNAL_PROPERTY);
+		this.journalFile = journalPath != null && journalPath.length() > 0 ? new File(journalPath) : null;
+	}
+
+	/**
+	 * Submits jobs, which are started at once and queued by the server until
+	 * enough heap is available.
+	 *
+	 * @param jobs
+	 *            The jobs.
+	 * @return The identifiers of the jobs.
+	 */
+	String[] submit(List<RenderJob> jobs) {
+		List<Entry> added = new ArrayList<Entry>(jobs.size());
+		String[] jobIds = new String[jobs.size()];
+		synchronized(this) {
+			purge();
+			for(int i=0; i<jobs.size(); i++) {
+				Entry entry = new Entry(idPrefix + (nextId++), jobs.get(i));
+				add(entry);
+				added.add(entry);
+				jobIds[i] = entry.jobId;
+			}
+			writeJournal();
+		}
+		for(Entry entry : added)
+			start(entry);
+		return jobIds;
+	}
+
+	/**
+	 * Renders again the jobs journaled and not ended when the server stopped.
+	 */
+	@SuppressWarnings("unchecked")
+	void resume() {
+		if(journalFile == null || !journalFile.isFile())
+			return;
+		Map<String, RenderJob> journaled;
+		try {
+			ObjectInputStream in = new ObjectInputStream(new FileInputStream(journalFile));
+			try {
+				journaled = (Map<String, RenderJob>) in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			System.err.println("Can't read the journal of the render jobs " + journalFile.getPath() + ": " + e);
+			return;
+		}
+		List<Entry> resumed = new ArrayList<Entry>(journaled.size());
+		synchronized(this) {
+			for(Map.Entry<String, RenderJob> journalEntry : journaled.entrySet()) {
+				if(entries.containsKey(journalEntry.getKey()))
+					continue;
+				Entry entry = new Entry(journalEntry.getKey(), journalEntry.getValue());
+				add(entry);
+				resumed.add(entry);
+			}
+		}
+		if(!resumed.isEmpty())
+			System.out.println("Resuming " + resumed.size() + " render jobs from " + journalFile.getPath());
+		for(Entry entry : resumed)
+			start(entry);
+	}
+
+	/**
+	 * Gets the state of jobs.
+	 *
+	 * @param jobIds
+	 *            The identifiers of the jobs.
+	 * @return The state of each job.
+	 */
+	synchronized RenderJobStatus[] query(String[] jobIds) {
+		RenderJobStatus[] statuses = new RenderJobStatus[jobIds.length];
+		for(int i=0; i<jobIds.length; i++) {
+			Entry entry = entries.get(jobIds[i]);
+			statuses[i] = entry != null ? entry.getStatus()
+					: new RenderJobStatus(jobIds[i], RenderJobStatus.UNKNOWN, null, 0.0, 0, null);
+		}
+		return statuses;
+	}
+
+	/**
+	 * Requests the cancellation of a job.
+	 *
+	 * @param jobId
+	 *            The identifier of the job.
+	 * @return <code>false</code> if the job is unknown or already ended.
+	 */
+	boolean cancel(String jobId) {
+		String[] monIds;
+		synchronized(this) {
+			Entry entry = entries.get(jobId);
+			if(entry == null || entry.ended == entry.monIds.length)
+				return false;
+			monIds = entry.monIds;
+		}
+		ProgressChannelClient channelClient = ProgressChannelClient.find(this);
+		if(channelClient != null)
+			channelClient.cancel(monIds);
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.IProgressChannelRm#update(com.leanpulse.syd.remote.ProgressEventRm[])
+	 */
+	public synchronized void update(ProgressEventRm[] events) {
+		boolean changed = false;
+		for(ProgressEventRm event : events) {
+			String monId = event.getMonitorId();
+			int dot = monId.indexOf('.');
+			Entry entry = monitors.get(dot < 0 ? monId : monId.substring(0, dot));
+			if(entry == null)
+				continue;
+			if(entry.state == RenderJobStatus.QUEUED)
+				entry.state = RenderJobStatus.RUNNING;
+			if(event.getDescription() != null && event.getType() != ProgressEventRm.SUB_PROGRESS)
+				entry.description = event.getDescription();
+			switch(event.getType()) {
+			case ProgressEventRm.START:
+				// The work of a document is a share of the job, the one of a sub-task a share of its parent.
+				double share = dot < 0 ? 1.0 / entry.monIds.length : valueOf(entry.subShares.remove(monId));
+				entry.workScales.put(monId, event.getWork() > 0 ? share / event.getWork() : 0.0);
+				break;
+			case ProgressEventRm.PROGRESS:
+				entry.progress += event.getWork() * valueOf(entry.workScales.get(monId));
+				break;
+			case ProgressEventRm.SUB_PROGRESS:
+				entry.subShares.put(event.getSubMonitorId(), event.getWork() * valueOf(entry.workScales.get(monId)));
+				break;
+			case ProgressEventRm.CANCEL:
+				if(dot < 0)
+					entry.canceled = true;
+				break;
+			case ProgressEventRm.FINISH:
+				if(dot >= 0)
+					break;
+				entry.ended++;
+				if(event.getError() != null) {
+					if(entry.error == null)
+						entry.error = event.getError();
+				} else if(entry.error == null && !entry.canceled) {
+					entry.rendered++;
+				}
+				if(entry.ended == entry.monIds.length) {
+					entry.state = entry.canceled ? RenderJobStatus.CANCELED
+							: (entry.error != null ? RenderJobStatus.FAILED : RenderJobStatus.DONE);
+					entry.progress = 1.0;
+					entry.endTime = System.currentTimeMillis();
+					for(String id : entry.monIds)
+						monitors.remove(id);
+					changed = true;
+				}
+				break;
+			}
+		}
+		if(changed)
+			writeJournal();
+	}
+
+	/*
+	 * Registers a job and its monitors.
+	 */
+	private void add(Entry entry) {
+		entries.put(entry.jobId, entry);
+		for(String monId : entry.monIds)
+			monitors.put(monId, entry);
+	}
+
+	/*
+	 * Starts rendering a job, reporting its progress to this queue.
+	 */
+	private void start(Entry entry) {
+		RenderJob job = entry.job;
+		try {
+			if(entry.monIds.length == 1)
+				server.startRendering(job.getXmlFile(), job.getXslFile(), job.getXslParams(), job.getOutFiles()[0],
+						job.getSecOptions()[0], job.getOpen()[0], this, entry.monIds[0]);
+			else
+				server.startRendering(job.getXmlFile(), job.getXslFile(), job.getXslParams(), job.getOutFiles(),
+						job.getSecOptions(), job.getOpen(), this, entry.monIds);
+		} catch (Exception e) { // Local call, not expected.
+			List<ProgressEventRm> events = new ArrayList<ProgressEventRm>();
+			for(String monId : entry.monIds)
+				events.add(new ProgressEventRm(ProgressEventRm.FINISH, monId, null, 0.0, null, new IOException(e.toString())));
+			update(events.toArray(new ProgressEventRm[events.size()]));
+		}
+	}
+
+	/*
+	 * Forgets the jobs ended for too long.
+	 */
+	private void purge() {
+		long expiry = System.currentTimeMillis() - RETENTION_DELAY;
+		for(Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+			Entry entry = it.next();
+			if(entry.ended == entry.monIds.length && entry.endTime < expiry)
+				it.remove();
+		}
+	}
+
+	/*
+	 * Writes the jobs not ended to the journal, replacing it.
+	 */
+	private void writeJournal() {
+		if(journalFile == null)
+			return;
+		Map<String, RenderJob> journaled = new LinkedHashMap<String, RenderJob>();
+		for(Entry entry : entries.values())
+			if(entry.ended < entry.monIds.length)
+				journaled.put(entry.jobId, entry.job);
+		File tmpFile = new File(journalFile.getPath() + ".tmp");
+		try {
+			if(journalFile.getParentFile() != null)
+				journalFile.getParentFile().mkdirs();
+			ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(tmpFile));
+			try {
+				out.writeObject(journaled);
+			} finally {
+				out.close();
+			}
+			journalFile.delete();
+			if(!tmpFile.renameTo(journalFile))
+				throw new IOException("Can't rename " + tmpFile.getPath());
+		} catch (IOException e) {
+			System.err.println("Can't write the journal of the render jobs " + journalFile.getPath() + ": " + e);
+		}
+	}
+
+	/*
+	 * Unboxes a value missing when the events of a monitor were lost.
+	 */
+	private static double valueOf(Double value) {
+		return value != null ? value.doubleValue() : 0.0;
+	}
+
+}
@@ -0,0 +1,193 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * The statistics of the renderings of the server.
+ * <p>
+ * The latency of each stage of the renderings is recorded in a histogram of
+ * fixed buckets, and the documents produced in the last minute give the
+ * throughput of the server.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+class RenderMetrics {
+
+	/** Stage getting the compiled stylesheet, from the cache or compiling it. */
+	static final String STAGE_STYLESHEET = "stylesheet";
+
+	/** Stage parsing the XML input, until its end is read. */
+	static final String STAGE_PARSE = "parse";
+
+	/** Stage running the XSLT transformation and the FO layout, streamed together. */
+	static final String STAGE_FORMAT = "format";
+
+	/** Stage writing a PDF from the intermediate format. */
+	static final String STAGE_WRITE = "write";
+
+	/** Whole rendering of the documents produced from an XML input. */
+	static final String STAGE_DOCUMENT = "document";
+
+	/** Upper bounds in milliseconds of the latency buckets, the last bucket being unbounded. */
+	static final long[] BUCKET_BOUNDS = new long[] {10L, 50L, 100L, 500L, 1000L, 5000L, 10000L, 60000L};
+
+	/* Period in milliseconds over which the throughput is measured. */
+	private static final long THROUGHPUT_WINDOW = 60000L;
+
+	private static final RenderMetrics instance = new RenderMetrics();
+
+	/**
+	 * Returns the statistics of the server.
+	 *
+	 * @return The singleton.
+	 */
+	static RenderMetrics getDefault() {
+		return instance;
+	}
+
+	private final Map<String, long[]> histograms = new LinkedHashMap<String, long[]>();
+	private final Map<String, long[]> totals = new LinkedHashMap<String, long[]>(); // Count and sum of the latencies.
+	private final LinkedList<long[]> recent = new LinkedList<long[]>(); // Time, pages and input size of the documents.
+	private long documentCount = 0;
+	private long pageCount = 0;
+
+	private RenderMetrics() {
+		reset();
+	}
+
+	/**
+	 * Records the latency of a stage.
+	 *
+	 * @param stage
+	 *            The stage.
+	 * @param millis
+	 *            The latency in milliseconds.
+	 */
+	synchronized void recordStage(String stage, long millis) {
+		int bucket = 0;
+		while(bucket < BUCKET_BOUNDS.length && millis > BUCKET_BOUNDS[bucket])
+			bucket++;
+		histograms.get(stage)[bucket]++;
+		long[] total = totals.get(stage);
+		total[0]++;
+		total[1] += millis;
+	}
+
+	/**
+	 * Records a document produced.
+	 *
+	 * @param xmlSize
+	 *            The size of the XML input of the document.
+	 * @param pages
+	 *            The number of pages of the document.
+	 */
+	synchronized void recordDocument(long xmlSize, int pages) {
+		long now = System.currentTimeMillis();
+		recent.add(new long[] {now, pages, xmlSize});
+		purge(now);
+		documentCount++;
+		pageCount += pages;
+	}
+
+	/**
+	 * Gets the latency histogram of each stage.
+	 *
+	 * @return The count of each bucket of {@link #BUCKET_BOUNDS}, by stage.
+	 */
+	synchronized Map<String, long[]> getHistograms() {
+		Map<String, long[]> copy = new LinkedHashMap<String, long[]>();
+		for(Map.Entry<String, long[]> entry : histograms.entrySet())
+			copy.put(entry.getKey(), entry.getValue().clone());
+		return copy;
+	}
+
+	/**
+	 * Gets the mean latency of each stage.
+	 *
+	 * @return The mean latency in milliseconds, by stage.
+	 */
+	synchronized Map<String, Double> getMeanLatencies() {
+		Map<String, Double> means = new LinkedHashMap<String, Double>();
+		for(Map.Entry<String, long[]> entry : totals.entrySet()) {
+			long[] total = entry.getValue();
+			means.put(entry.getKey(), total[0] > 0 ? (double) total[1] / total[0] : 0.0);
+		}
+		return means;
+	}
+
+	/**
+	 * Gets the number of documents produced.
+	 *
+	 * @return The number of documents.
+	 */
+	synchronized long getDocumentCount() {
+		return documentCount;
+	}
+
+	/**
+	 * Gets the number of pages produced.
+	 *
+	 * @return The number of pages.
+	 */
+	synchronized long getPageCount() {
+		return pageCount;
+	}
+
+	/**
+	 * Gets the pages produced per second over the last minute.
+	 *
+	 * @return The throughput in pages per second.
+	 */
+	synchronized double getPagesPerSecond() {
+		purge(System.currentTimeMillis());
+		long pages = 0;
+		for(long[] doc : recent)
+			pages += doc[1];
+		return pages * 1000.0 / THROUGHPUT_WINDOW;
+	}
+
+	/**
+	 * Gets the XML input rendered per second over the last minute.
+	 *
+	 * @return The throughput in megabytes per second.
+	 */
+	synchronized double getMegabytesPerSecond() {
+		purge(System.currentTimeMillis());
+		long bytes = 0;
+		for(long[] doc : recent)
+			bytes += doc[2];
+		return bytes * 1000.0 / (THROUGHPUT_WINDOW * 1024.0 * 1024.0);
+	}
+
+	/**
+	 * Resets all the statistics.
+	 */
+	synchronized void reset() {
+		for(String stage : new String[] {STAGE_STYLESHEET, STAGE_PARSE, STAGE_FORMAT, STAGE_WRITE, STAGE_DOCUMENT}) {
+			histograms.put(stage, new long[BUCKET_BOUNDS.length + 1]);
+			totals.put(stage, new long[2]);
+		}
+		recent.clear();
+		documentCount = 0;
+		pageCount = 0;
+	}
+
+	/*
+	 * Forgets the documents produced before the throughput window.
+	 */
+	private void purge(long now) {
+		for(Iterator<long[]> it = recent.iterator(); it.hasNext(); ) {
+			if(it.next()[0] >= now - THROUGHPUT_WINDOW)
+				break;
+			it.remove();
+		}
+	}
+
+}
@@ -0,0 +1,175 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import java.util.Map;
+
+/**
+ * Management interface of a rendering server, registered in its platform
+ * MBean server as <code>com.leanpulse.syd:type=RenderServer</code>, with a
+ * <code>name</code> key giving the worker identifier for a render worker.
+ * <p>
+ * The statistics of the renderings are the ones of the process: a server
+ * delegating to render workers only reports the jobs it dispatches, each
+ * worker registering its own MBean.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+public interface RenderServerMXBean {
+
+	/**
+	 * Gets the number of jobs waiting for memory or for a render worker.
+	 *
+	 * @return The number of jobs.
+	 */
+	int getQueueDepth();
+
+	/**
+	 * Gets the number of jobs being rendered.
+	 *
+	 * @return The number of jobs.
+	 */
+	int getRunningJobs();
+
+	/**
+	 * Gets the heap not reserved by the jobs being rendered.
+	 *
+	 * @return The heap headroom in bytes.
+	 */
+	long getHeapHeadroom();
+
+	/**
+	 * Gets the upper bounds of the buckets of the latency histograms, the
+	 * last bucket being unbounded.
+	 *
+	 * @return The bounds in milliseconds.
+	 */
+	long[] getLatencyBucketBounds();
+
+	/**
+	 * Gets the latency histogram of each stage of the renderings:
+	 * <code>stylesheet</code>, <code>parse</code>, <code>format</code> (the
+	 * XSLT transformation and the FO layout, which are streamed together),
+	 * <code>write</code> (a PDF produced from the intermediate format) and
+	 * <code>document</code> (the whole rendering of an XML input).
+	 *
+	 * @return The count of each bucket, by stage.
+	 */
+	Map<String, long[]> getLatencyHistograms();
+
+	/**
+	 * Gets the mean latency of each stage of the renderings.
+	 *
+	 * @return The mean latency in milliseconds, by stage.
+	 */
+	Map<String, Double> getMeanLatencies();
+
+	/**
+	 * Gets the number of documents produced.
+	 *
+	 * @return The number of documents.
+	 */
+	long getDocumentsRendered();
+
+	/**
+	 * Gets the number of pages laid out in the documents produced, the pages
+	 * of layouts reused from the cache of intermediate documents not being
+	 * counted.
+	 *
+	 * @return The number of pages.
+	 */
+	long getPagesRendered();
+
+	/**
+	 * Gets the pages produced per second over the last minute.
+	 *
+	 * @return The throughput in pages per second.
+	 */
+	double getPagesPerSecond();
+
+	/**
+	 * Gets the XML input rendered per second over the last minute.
+	 *
+	 * @return The throughput in megabytes per second.
+	 */
+	double getMegabytesPerSecond();
+
+	/**
+	 * Gets the share of the stylesheets found in the templates cache.
+	 *
+	 * @return The hit rate between 0 and 1.
+	 */
+	double getTemplatesCacheHitRate();
+
+	/**
+	 * Gets the size of the stylesheets cached.
+	 *
+	 * @return The size in bytes.
+	 */
+	long getTemplatesCacheSize();
+
+	/**
+	 * Gets the usage of the font catalogue when FOP was last set up: the
+	 * number of font directories and font files found unchanged in the
+	 * catalogue (<code>dirHits</code>, <code>fontHits</code>) or listed and
+	 * parsed again (<code>dirMisses</code>, <code>fontMisses</code>).
+	 *
+	 * @return The counters by key, empty if FOP isn't set up or doesn't
+	 *         auto-detect the fonts.
+	 */
+	Map<String, Integer> getFontCatalogStatistics();
+
+	/**
+	 * Gets the number of fonts declared to FOP.
+	 *
+	 * @return The number of fonts, 0 if FOP isn't set up.
+	 */
+	int getFontCount();
+
+	/**
+	 * Gets the number of images loaded in the cache of FOP since it was last
+	 * cleared.
+	 *
+	 * @return The number of images.
+	 */
+	int getImageCacheSize();
+
+	/**
+	 * Gets the share of the images found in the cache of FOP.
+	 *
+	 * @return The hit rate between 0 and 1.
+	 */
+	double getImageCacheHitRate();
+
+	/**
+	 * Gets the number of documents rendered simultaneously, or the number of
+	 * render workers if the server delegates to workers.
+	 *
+	 * @return The size of the pool.
+	 */
+	int getPoolSize();
+
+	/**
+	 * Changes the number of documents rendered simultaneously, or the number
+	 * of render workers if the server delegates to workers. The jobs running
+	 * finish normally.
+	 *
+	 * @param size
+	 *            The size of the pool, at least 1.
+	 */
+	void setPoolSize(int size);
+
+	/**
+	 * Releases the stylesheets, the images and the fonts cached, in the
+	 * background.
+	 */
+	void flushCaches();
+
+	/**
+	 * Resets the latency histograms and the throughput.
+	 */
+	void resetStatistics();
+
+}
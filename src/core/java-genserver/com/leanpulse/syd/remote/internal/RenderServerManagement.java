@@ -0,0 +1,243 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.xmlgraphics.image.loader.cache.ImageCacheStatistics;
+
+/**
+ * The MBean managing a rendering server.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see RenderServerMXBean
+ */
+class RenderServerManagement implements RenderServerMXBean {
+
+	private final AdmissionController admission;
+	private final MemoryGovernor governor;
+	private final WorkerPool pool;
+	private final EmbedFopRenderer renderer;
+
+	/**
+	 * Creates the MBean of a server.
+	 *
+	 * @param admission
+	 *            The admission controller of the server.
+	 * @param governor
+	 *            The memory governor of the server.
+	 * @param pool
+	 *            The pool of render workers, <code>null</code> if the server
+	 *            renders the documents itself.
+	 * @param renderer
+	 *            The renderer of the server.
+	 */
+	RenderServerManagement(AdmissionController admission, MemoryGovernor governor, WorkerPool pool, EmbedFopRenderer renderer) {
+		this.admission = admission;
+		this.governor = governor;
+		this.pool = pool;
+		this.renderer = renderer;
+	}
+
+	/**
+	 * Registers the MBean in the platform MBean server, reporting the error
+	 * if it can't be registered.
+	 *
+	 * @param workerId
+	 *            The identifier of the render worker, <code>null</code> if
+	 *            the server isn't a worker.
+	 */
+	void register(String workerId) {
+		try {
+			ObjectName name = new ObjectName("com.leanpulse.syd:type=RenderServer" + (workerId != null ? ",name=" + workerId : ""));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, RenderServerMXBean.class, true), name);
+		} catch (JMException e) {
+			System.err.println("Can't register the management bean of the server: " + e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#getQueueDepth()
+	 */
+	public int getQueueDepth() {
+		return pool != null ? pool.getQueueDepth() : admission.getPendingCount();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#getRunningJobs()
+	 */
+	public int getRunningJobs() {
+		if(pool != null)
+			return pool.getLoad().getJobCount() - pool.getQueueDepth();
+		return admission.getJobCount() - admission.getPendingCount();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#getHeapHeadroom()
+	 */
+	public long getHeapHeadroom() {
+		return pool != null ? pool.getLoad().getHeapHeadroom() : admission.getHeadroom();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#getLatencyBucketBounds()
+	 */
+	public long[] getLatencyBucketBounds() {
+		return RenderMetrics.BUCKET_BOUNDS.clone();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#getLatencyHistograms()
+	 */
+	public Map<String, long[]> getLatencyHistograms() {
+		return RenderMetrics.getDefault().getHistograms();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#getMeanLatencies()
+	 */
+	public Map<String, Double> getMeanLatencies() {
+		return RenderMetrics.getDefault().getMeanLatencies();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#getDocumentsRendered()
+	 */
+	public long getDocumentsRendered() {
+		return RenderMetrics.getDefault().getDocumentCount();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#getPagesRendered()
+	 */
+	public long getPagesRendered() {
+		return RenderMetrics.getDefault().getPageCount();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#getPagesPerSecond()
+	 */
+	public double getPagesPerSecond() {
+		return RenderMetrics.getDefault().getPagesPerSecond();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#getMegabytesPerSecond()
+	 */
+	public double getMegabytesPerSecond() {
+		return RenderMetrics.getDefault().getMegabytesPerSecond();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#getTemplatesCacheHitRate()
+	 */
+	public double getTemplatesCacheHitRate() {
+		return hitRate(CachingTransformerFactory.getTemplatesHits(), CachingTransformerFactory.getTemplatesMisses());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#getTemplatesCacheSize()
+	 */
+	public long getTemplatesCacheSize() {
+		return CachingTransformerFactory.getTemplatesWeight();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#getFontCatalogStatistics()
+	 */
+	public Map<String, Integer> getFontCatalogStatistics() {
+		FontCatalog catalog = EmbedFopRenderer.getFontCatalog();
+		return catalog != null ? catalog.getCounters() : Collections.<String, Integer>emptyMap();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#getFontCount()
+	 */
+	public int getFontCount() {
+		return EmbedFopRenderer.getFontCount();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#getImageCacheSize()
+	 */
+	public int getImageCacheSize() {
+		ImageCacheStatistics statistics = EmbedFopRenderer.getImageStatistics();
+		return statistics != null ? statistics.getImageCacheMissMap().size() : 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#getImageCacheHitRate()
+	 */
+	public double getImageCacheHitRate() {
+		ImageCacheStatistics statistics = EmbedFopRenderer.getImageStatistics();
+		return statistics != null ? hitRate(statistics.getImageCacheHits(), statistics.getImageCacheMisses()) : 0.0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#getPoolSize()
+	 */
+	public int getPoolSize() {
+		return pool != null ? pool.getSize() : renderer.getPoolSize();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#setPoolSize(int)
+	 */
+	public void setPoolSize(int size) {
+		if(pool != null)
+			pool.setSize(size);
+		else
+			renderer.setPoolSize(size);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#flushCaches()
+	 */
+	public void flushCaches() {
+		governor.flush();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.leanpulse.syd.remote.internal.RenderServerMXBean#resetStatistics()
+	 */
+	public void resetStatistics() {
+		RenderMetrics.getDefault().reset();
+	}
+
+	/*
+	 * Computes the share of hits among the accesses to a cache.
+	 */
+	private static double hitRate(long hits, long misses) {
+		return hits + misses > 0 ? (double) hits / (hits + misses) : 0.0;
+	}
+
+}
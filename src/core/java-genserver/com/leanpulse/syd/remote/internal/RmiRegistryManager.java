@@ -4,26 +4,23 @@
  *********************************************/
 package com.leanpulse.syd.remote.internal;
 
-import java.io.File;
-import java.io.IOException;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
 
 /**
  * Simple Manager to start and stop the RMI registry as required to enable the
  * connection between a server and a client via RMI.
+ * <p>
+ * The registry is created in the process of the server, so that no platform
+ * specific executable is required, and lives as long as the server.
  * 
  * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
  */
 public class RmiRegistryManager {
 	
-	/*
-	 * Delay in seconds to wait for the registry to reply after it has been started.
-	 */
-	private static final int START_WAIT_DELAY = 10;
-	
-	
 	private static RmiRegistryManager instance;
 	
 	/**
@@ -38,53 +35,50 @@ public class RmiRegistryManager {
 	}
 	
 	
-	private Process registryProc;
+	private Registry registry;
 	
 	
 	/**
-	 * Ensures the RMI registry process ("rmiregistry.exe") is started.
+	 * Ensures the RMI registry is started on the default port.
 	 * <p>
-	 * A new RMI registry will be started only if no connection can be established
-	 * to an already running process.
+	 * A new RMI registry will be created only if no connection can be
+	 * established to an already running registry.
 	 */
-	public synchronized void startRegistry() {
-		Registry registry = null;
+	public void startRegistry() {
+		startRegistry(Registry.REGISTRY_PORT);
+	}
+	
+	/**
+	 * Ensures the RMI registry is started on a given port.
+	 * <p>
+	 * A new RMI registry will be created only if no connection can be
+	 * established to an already running registry.
+	 * 
+	 * @param port
+	 *            The port of the registry.
+	 */
+	public synchronized void startRegistry(int port) {
 		try { // Verify if registry not already started
-			registry = LocateRegistry.getRegistry();
-			registry.list();
+			LocateRegistry.getRegistry(port).list();
 			return;
-		} catch (Exception e) { // Not started, launch the exe
+		} catch (RemoteException e) { // Not started, create it in this process
 			try {
-				registryProc = Runtime.getRuntime().exec(new String[] {
-						System.getProperty("java.home") + File.separator + "bin" + File.separator + "rmiregistry.exe"
-					});
-			} catch (IOException e1) {
-				return;
-			}
-			int count = 0;
-			while(count < START_WAIT_DELAY) {
-				try {
-					registry = LocateRegistry.getRegistry();
-					registry.list();
-					return;
-				} catch (RemoteException e1) {
-					try {
-						Thread.sleep(1000);
-					} catch (InterruptedException e2) {
-						return;
-					}
-				}
-				count++;
+				registry = LocateRegistry.createRegistry(port);
+			} catch (RemoteException e1) {
+				System.err.println("Can't create the RMI registry on port " + port + ": " + e1);
 			}
 		}
 	}
 	
 	/**
-	 * Stops the RMI registry process that might have been started.
+	 * Stops the RMI registry that might have been created.
 	 */
 	public synchronized void stopRegistry() {
-		if(registryProc != null)
-			registryProc.destroy();
+		if(registry != null)
+			try {
+				UnicastRemoteObject.unexportObject(registry, true);
+			} catch (NoSuchObjectException e) {}
+		registry = null;
 	}
 
 }
@@ -0,0 +1,366 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * A bounded pipe of SAX events between two threads.
+ * <p>
+ * The events received by this content handler in the producing thread are
+ * copied in a ring of preallocated slots and replayed in a consuming thread to
+ * the downstream content handler. This enables the XSLT transformation and
+ * the FO layout of a same document to run on two processors.
+ * <p>
+ * The producer is blocked while the ring is full and the consumer while it is
+ * empty. The slots are handed over by batches to limit the synchronization
+ * between the threads. A failure on one side of the pipe is reported to the
+ * other one: the producer gets a <code>SAXException</code> on its next events
+ * and the consumer stops replaying the events when the pipe is closed.
+ * <p>
+ * The document locator isn't forwarded as it can't be shared between the
+ * threads.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+public class SaxEventPipe implements ContentHandler {
+
+	/* Number of slots in the ring. */
+	private static final int CAPACITY = 4096;
+
+	/* Number of slots handed over at once from a thread to the other. */
+	private static final int BATCH_SIZE = 64;
+
+	private static final int START_DOCUMENT = 0;
+	private static final int END_DOCUMENT = 1;
+	private static final int START_PREFIX_MAPPING = 2;
+	private static final int END_PREFIX_MAPPING = 3;
+	private static final int START_ELEMENT = 4;
+	private static final int END_ELEMENT = 5;
+	private static final int CHARACTERS = 6;
+	private static final int IGNORABLE_WHITESPACE = 7;
+	private static final int PROCESSING_INSTRUCTION = 8;
+	private static final int SKIPPED_ENTITY = 9;
+
+	/* A slot of the ring, reused for all the events stored at its position. */
+	private static class Slot {
+		int type;
+		String str1;
+		String str2;
+		String str3;
+		final AttributesImpl atts = new AttributesImpl();
+		char[] ch = new char[64];
+		int length;
+	}
+
+	private final ContentHandler handler;
+	private final Slot[] ring = new Slot[CAPACITY];
+	private final Thread consumer;
+
+	/* Number of events written by the producer, not all published yet. */
+	private long written = 0;
+	/* Number of events published to the consumer. */
+	private long published = 0;
+	/* Number of events replayed by the consumer. */
+	private volatile long consumed = 0;
+	private boolean ended = false;
+	private boolean aborted = false;
+	private Throwable failure = null;
+
+	/**
+	 * Creates the pipe and starts the consuming thread.
+	 *
+	 * @param handler
+	 *            The downstream content handler to which the events are
+	 *            replayed.
+	 * @param name
+	 *            The name of the consuming thread.
+	 */
+	public SaxEventPipe(ContentHandler handler, String name) {
+		this.handler = handler;
+		for(int i=0; i<CAPACITY; i++)
+			ring[i] = new Slot();
+		consumer = new Thread(new Runnable() {
+			public void run() {
+				consume();
+			}
+		}, name);
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	/**
+	 * Closes the pipe once the producer stopped sending events and waits for
+	 * the consumer to finish.
+	 * <p>
+	 * If the producer stopped before the end of the document, the consumer is
+	 * aborted. If the consumer failed, its failure is thrown so that it
+	 * prevails over the one it caused in the producer.
+	 *
+	 * @throws SAXException
+	 *             If the consumer failed to replay the events.
+	 * @throws InterruptedException
+	 *             If the current thread has been interrupted while waiting.
+	 */
+	public void close() throws SAXException, InterruptedException {
+		synchronized(this) {
+			if(!ended) {
+				aborted = true;
+				notifyAll();
+			}
+		}
+		consumer.join();
+		Throwable cause;
+		synchronized(this) {
+			cause = failure;
+		}
+		if(cause instanceof Error)
+			throw (Error) cause;
+		if(cause instanceof SAXException)
+			throw (SAXException) cause;
+		if(cause instanceof RuntimeException)
+			throw (RuntimeException) cause;
+		if(cause != null)
+			throw new SAXException((Exception) cause);
+	}
+
+	/*
+	 * Replays the events in the consuming thread.
+	 */
+	private void consume() {
+		long next = 0;
+		try {
+			while(true) {
+				long available;
+				synchronized(this) {
+					while(published == next && !ended && !aborted)
+						wait();
+					if(aborted || published == next) // Aborted, or ended and no more events.
+						return;
+					available = published;
+				}
+				while(next < available) {
+					replay(ring[(int) (next % CAPACITY)]);
+					next++;
+					if(next % BATCH_SIZE == 0)
+						release(next);
+				}
+				release(next);
+			}
+		} catch(Throwable e) {
+			synchronized(this) {
+				failure = e;
+				notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * Gives back to the producer the slots of the events replayed.
+	 */
+	private synchronized void release(long next) {
+		consumed = next;
+		notifyAll();
+	}
+
+	/*
+	 * Replays an event to the downstream handler.
+	 */
+	private void replay(Slot slot) throws SAXException {
+		switch(slot.type) {
+			case START_DOCUMENT:
+				handler.startDocument();
+				break;
+			case END_DOCUMENT:
+				handler.endDocument();
+				break;
+			case START_PREFIX_MAPPING:
+				handler.startPrefixMapping(slot.str1, slot.str2);
+				break;
+			case END_PREFIX_MAPPING:
+				handler.endPrefixMapping(slot.str1);
+				break;
+			case START_ELEMENT:
+				handler.startElement(slot.str1, slot.str2, slot.str3, slot.atts);
+				break;
+			case END_ELEMENT:
+				handler.endElement(slot.str1, slot.str2, slot.str3);
+				break;
+			case CHARACTERS:
+				handler.characters(slot.ch, 0, slot.length);
+				break;
+			case IGNORABLE_WHITESPACE:
+				handler.ignorableWhitespace(slot.ch, 0, slot.length);
+				break;
+			case PROCESSING_INSTRUCTION:
+				handler.processingInstruction(slot.str1, slot.str2);
+				break;
+			case SKIPPED_ENTITY:
+				handler.skippedEntity(slot.str1);
+				break;
+		}
+	}
+
+	/*
+	 * Returns the next free slot to write an event, waiting for the consumer
+	 * to free one if the ring is full.
+	 */
+	private Slot nextSlot(int type) throws SAXException {
+		if(written - consumed >= CAPACITY || written % BATCH_SIZE == 0) {
+			synchronized(this) {
+				published = written;
+				notifyAll();
+				while(written - consumed >= CAPACITY && failure == null) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new SAXException(e);
+					}
+				}
+				if(failure != null)
+					throw new SAXException("Document layout aborted.");
+			}
+		}
+		Slot slot = ring[(int) (written % CAPACITY)];
+		slot.type = type;
+		return slot;
+	}
+
+	/*
+	 * Makes the slot just written available to the consumer.
+	 */
+	private void written() {
+		written++;
+	}
+
+	/*
+	 * Copies characters in a slot.
+	 */
+	private static void copyChars(Slot slot, char[] ch, int start, int length) {
+		if(slot.ch.length < length)
+			slot.ch = new char[Math.max(length, 2 * slot.ch.length)];
+		System.arraycopy(ch, start, slot.ch, 0, length);
+		slot.length = length;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.xml.sax.ContentHandler#setDocumentLocator(org.xml.sax.Locator)
+	 */
+	public void setDocumentLocator(Locator locator) {}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.xml.sax.ContentHandler#startDocument()
+	 */
+	public void startDocument() throws SAXException {
+		nextSlot(START_DOCUMENT);
+		written();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.xml.sax.ContentHandler#endDocument()
+	 */
+	public void endDocument() throws SAXException {
+		nextSlot(END_DOCUMENT);
+		written();
+		synchronized(this) {
+			published = written;
+			ended = true;
+			notifyAll();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.xml.sax.ContentHandler#startPrefixMapping(java.lang.String, java.lang.String)
+	 */
+	public void startPrefixMapping(String prefix, String uri) throws SAXException {
+		Slot slot = nextSlot(START_PREFIX_MAPPING);
+		slot.str1 = prefix;
+		slot.str2 = uri;
+		written();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.xml.sax.ContentHandler#endPrefixMapping(java.lang.String)
+	 */
+	public void endPrefixMapping(String prefix) throws SAXException {
+		Slot slot = nextSlot(END_PREFIX_MAPPING);
+		slot.str1 = prefix;
+		written();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.xml.sax.ContentHandler#startElement(java.lang.String, java.lang.String, java.lang.String, org.xml.sax.Attributes)
+	 */
+	public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+		Slot slot = nextSlot(START_ELEMENT);
+		slot.str1 = uri;
+		slot.str2 = localName;
+		slot.str3 = qName;
+		slot.atts.setAttributes(atts);
+		written();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.xml.sax.ContentHandler#endElement(java.lang.String, java.lang.String, java.lang.String)
+	 */
+	public void endElement(String uri, String localName, String qName) throws SAXException {
+		Slot slot = nextSlot(END_ELEMENT);
+		slot.str1 = uri;
+		slot.str2 = localName;
+		slot.str3 = qName;
+		written();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.xml.sax.ContentHandler#characters(char[], int, int)
+	 */
+	public void characters(char[] ch, int start, int length) throws SAXException {
+		copyChars(nextSlot(CHARACTERS), ch, start, length);
+		written();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.xml.sax.ContentHandler#ignorableWhitespace(char[], int, int)
+	 */
+	public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+		copyChars(nextSlot(IGNORABLE_WHITESPACE), ch, start, length);
+		written();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.xml.sax.ContentHandler#processingInstruction(java.lang.String, java.lang.String)
+	 */
+	public void processingInstruction(String target, String data) throws SAXException {
+		Slot slot = nextSlot(PROCESSING_INSTRUCTION);
+		slot.str1 = target;
+		slot.str2 = data;
+		written();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.xml.sax.ContentHandler#skippedEntity(java.lang.String)
+	 */
+	public void skippedEntity(String name) throws SAXException {
+		Slot slot = nextSlot(SKIPPED_ENTITY);
+		slot.str1 = name;
+		written();
+	}
+
+}
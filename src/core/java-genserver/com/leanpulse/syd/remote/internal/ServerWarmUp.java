@@ -0,0 +1,193 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.stream.StreamSource;
+
+import com.leanpulse.syd.api.GenProfile;
+import com.leanpulse.syd.api.GenProfileRenderConf;
+import com.leanpulse.syd.api.progress.IProgressMonitor;
+
+/**
+ * Background thread warming up the rendering server once bound, so that the
+ * first documents requested don't pay for the initialization of the server.
+ * <p>
+ * The stylesheets referenced by the generation profiles are compiled, the FOP
+ * factory and its fonts are loaded, then a small synthetic document is
+ * rendered through the whole pipeline to let the JIT compiler optimize it.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+class ServerWarmUp extends Thread {
+
+	/**
+	 * System property disabling the warm-up when set to <code>false</code>.
+	 */
+	static final String WARMUP_PROPERTY = "syd.rmrender.warmup";
+
+	private static final String SYNTHETIC_DOCUMENT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<syd:model xmlns:syd=\"http://www.leanpulse.com/schemas/syd/2011/core\" snapver=\"1.4\" id=\"SyDWarmUp\"/>\n";
+
+	/*
+	 * A progress monitor only recording the end of the synthetic rendering.
+	 */
+	private static class WarmUpMonitor implements IProgressMonitor {
+		private boolean finished = false;
+		private Exception error = null;
+		public void start(String message, double totalWork) {}
+		public void progress(double work) {}
+		public void progress(String description) {}
+		public void progress(String description, double work) {}
+		public void requestCancel() {}
+		public boolean isRunning() {
+			return !isFinished();
+		}
+		public void checkCanceled() throws CancellationException {}
+		public boolean isCanceled() {
+			return false;
+		}
+		public synchronized boolean isFinished() {
+			return finished;
+		}
+		public synchronized boolean hasError() {
+			return error != null;
+		}
+		public void finish(String message) {
+			finish(message, null);
+		}
+		public synchronized void finish(String message, Exception e) {
+			finished = true;
+			error = e;
+			notifyAll();
+		}
+		public synchronized void waitFinish() throws InterruptedException {
+			while(!finished)
+				wait();
+		}
+		public IProgressMonitor createSubProgress(String name, double parentWorkUnits) {
+			return new WarmUpMonitor();
+		}
+		public void waitSubProgessFinish() {}
+	}
+
+	/**
+	 * Tells if the warm-up is enabled by the system properties.
+	 *
+	 * @return <code>true</code> if the server must be warmed up.
+	 */
+	static boolean isEnabled() {
+		return !"false".equalsIgnoreCase(System.getProperty(WARMUP_PROPERTY));
+	}
+
+	private final EmbedFopRenderer renderer;
+
+	/**
+	 * Creates the warm-up thread.
+	 *
+	 * @param renderer
+	 *            The renderer used by the server.
+	 */
+	ServerWarmUp(EmbedFopRenderer renderer) {
+		super("Server Warm-Up");
+		this.renderer = renderer;
+		setDaemon(true);
+		setPriority(Thread.MIN_PRIORITY);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+		long startTime = System.currentTimeMillis();
+		try {
+			List<File> stylesheets = getProfileStylesheets();
+			for(File xslFile : stylesheets) {
+				try {
+					new CachingTransformerFactory().newTransformer(new StreamSource(xslFile));
+				} catch (TransformerConfigurationException e) {
+					System.err.println("Warm-up: can't compile the stylesheet " + xslFile.getName() + ": " + e.getMessage());
+				}
+			}
+			try {
+				EmbedFopRenderer.getFopFactory();
+			} catch (Exception e) {
+				System.err.println("Warm-up: can't configure the renderer factory: " + e.getMessage());
+			}
+			if(!stylesheets.isEmpty())
+				renderSyntheticDocument(stylesheets.get(0));
+		} catch (InterruptedException e) {
+			return;
+		} finally {
+			FopRendererServer.warmUpEnded();
+		}
+		System.out.println("RemoteRenderer warm (" + (System.currentTimeMillis() - startTime) + " ms)");
+	}
+
+	/*
+	 * Lists the stylesheets referenced by the generation profiles.
+	 */
+	private static List<File> getProfileStylesheets() {
+		Set<File> stylesheets = new LinkedHashSet<File>();
+		GenProfile[] profiles = GenProfile.getGenProfiles();
+		if(profiles != null) {
+			for(GenProfile profile : profiles) {
+				for(GenProfileRenderConf renderConf : profile.getRenderConfs()) {
+					File xslFile = renderConf.getStyle();
+					if(xslFile != null && xslFile.isFile())
+						stylesheets.add(xslFile);
+				}
+			}
+		}
+		return new ArrayList<File>(stylesheets);
+	}
+
+	/*
+	 * Renders a synthetic document in a temporary directory deleted afterwards.
+	 */
+	private void renderSyntheticDocument(File xslFile) throws InterruptedException {
+		File tmpDir = null;
+		try {
+			tmpDir = File.createTempFile("syd-warmup", "");
+			tmpDir.delete();
+			tmpDir.mkdir();
+			File xmlFile = new File(tmpDir, "SyDWarmUp.xml");
+			OutputStream out = new FileOutputStream(xmlFile);
+			try {
+				out.write(SYNTHETIC_DOCUMENT.getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+			WarmUpMonitor mon = new WarmUpMonitor();
+			renderer.asyncRender(xmlFile, xslFile, null, new File(tmpDir, "SyDWarmUp.pdf"), null, false, mon);
+			mon.waitFinish();
+			if(mon.hasError())
+				System.err.println("Warm-up: the synthetic document failed to render: " + mon.error.getMessage());
+		} catch (IOException e) {
+			System.err.println("Warm-up: can't write the synthetic document: " + e.getMessage());
+		} finally {
+			if(tmpDir != null) {
+				File[] files = tmpDir.listFiles();
+				if(files != null)
+					for(File file : files)
+						file.delete();
+				tmpDir.delete();
+			}
+		}
+	}
+
+}
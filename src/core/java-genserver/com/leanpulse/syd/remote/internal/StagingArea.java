@@ -0,0 +1,240 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * The directory where the clients not sharing their file system with the
+ * server ship the files to render and fetch the documents rendered.
+ * <p>
+ * Files are shipped in bundles identified by a key computed by the clients,
+ * so that a bundle already staged, like a directory of stylesheets, isn't
+ * shipped again. Bundles not used for a day are deleted.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+class StagingArea {
+
+	/**
+	 * System property giving the directory of the staging area.
+	 */
+	static final String STAGING_DIR_PROPERTY = "syd.rmrender.staging";
+
+	/* Delay in milliseconds after which an unused bundle is deleted. */
+	private static final long BUNDLE_EXPIRY = 24L * 3600L * 1000L;
+
+	private static final String PART_EXT = ".part";
+	private static final String OUTPUT_DIR_NAME = "out";
+
+	private static StagingArea instance = null;
+
+	/**
+	 * Returns the staging area located according to the system properties.
+	 *
+	 * @param port
+	 *            The port of the registry of the server, distinguishing the
+	 *            servers running on a same host.
+	 * @return The staging area.
+	 */
+	static synchronized StagingArea getDefault(int port) {
+		if(instance == null) {
+			String dirPath = System.getProperty(STAGING_DIR_PROPERTY);
+			File dir;
+			if(dirPath != null && dirPath.length() > 0)
+				dir = new File(dirPath);
+			else
+				dir = new File(System.getProperty("java.io.tmpdir"), "syd-staging-" + port);
+			instance = new StagingArea(dir);
+		}
+		return instance;
+	}
+
+	private final File dir;
+	private long nextOutputId = System.currentTimeMillis();
+
+	private StagingArea(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Gets a bundle already staged.
+	 *
+	 * @param bundle
+	 *            The key of the bundle.
+	 * @return The directory of the bundle, or <code>null</code> if not staged.
+	 * @throws IOException
+	 *             If the key is invalid.
+	 */
+	File getStaged(String bundle) throws IOException {
+		File bundleDir = new File(dir, checkKey(bundle));
+		if(!bundleDir.isDirectory())
+			return null;
+		bundleDir.setLastModified(System.currentTimeMillis()); // Marks the bundle as recently used.
+		return bundleDir;
+	}
+
+	/**
+	 * Writes a part of a file of a bundle being staged.
+	 *
+	 * @param bundle
+	 *            The key of the bundle.
+	 * @param path
+	 *            The path of the file in the bundle, with '/' separators.
+	 * @param offset
+	 *            The position of the data in the file.
+	 * @param data
+	 *            The data.
+	 * @throws IOException
+	 *             If the path is invalid or the file can't be written.
+	 */
+	void stage(String bundle, String path, long offset, byte[] data) throws IOException {
+		File file = new File(dir, checkKey(bundle) + PART_EXT);
+		for(String name : path.split("/")) {
+			if(name.length() == 0 || name.equals(".") || name.equals(".."))
+				throw new IOException("Invalid staged path " + path);
+			file = new File(file, name);
+		}
+		file.getParentFile().mkdirs();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(offset);
+			raf.write(data);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Ends the staging of a bundle.
+	 *
+	 * @param bundle
+	 *            The key of the bundle.
+	 * @return The directory of the bundle.
+	 * @throws IOException
+	 *             If the bundle can't be stored.
+	 */
+	synchronized File commitStaged(String bundle) throws IOException {
+		File partDir = new File(dir, checkKey(bundle) + PART_EXT);
+		File bundleDir = new File(dir, bundle);
+		if(bundleDir.isDirectory()) { // Concurrently staged by another client.
+			delete(partDir);
+		} else if(!partDir.renameTo(bundleDir)) {
+			throw new IOException("Can't store the staged files in " + bundleDir.getPath());
+		}
+		deleteExpired();
+		return bundleDir;
+	}
+
+	/**
+	 * Creates a location where to render a document to fetch afterwards.
+	 *
+	 * @param name
+	 *            The name of the document.
+	 * @return The document file.
+	 * @throws IOException
+	 *             If the name is invalid or the location can't be created.
+	 */
+	File createOutputFile(String name) throws IOException {
+		if(name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.equals(".."))
+			throw new IOException("Invalid document name " + name);
+		File outDir;
+		synchronized(this) {
+			outDir = new File(new File(dir, OUTPUT_DIR_NAME), Long.toString(nextOutputId++));
+		}
+		if(!outDir.mkdirs())
+			throw new IOException("Can't create the directory " + outDir.getPath());
+		return new File(outDir, name);
+	}
+
+	/**
+	 * Reads a part of a document rendered.
+	 *
+	 * @param file
+	 *            The document file.
+	 * @param offset
+	 *            The position of the data to read.
+	 * @param length
+	 *            The maximum number of bytes to read.
+	 * @return The data read, empty at the end of the file.
+	 * @throws IOException
+	 *             If the file isn't in the staging area or can't be read.
+	 */
+	byte[] fetch(File file, long offset, int length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(checkOutputFile(file), "r");
+		try {
+			int count = (int) Math.max(0L, Math.min(length, raf.length() - offset));
+			byte[] data = new byte[count];
+			raf.seek(offset);
+			raf.readFully(data);
+			return data;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Deletes the location of a document rendered.
+	 *
+	 * @param file
+	 *            The document file.
+	 * @throws IOException
+	 *             If the file isn't in the staging area.
+	 */
+	void discard(File file) throws IOException {
+		delete(checkOutputFile(file).getParentFile());
+	}
+
+	/*
+	 * Checks a bundle key is only made of hexadecimal digits.
+	 */
+	private static String checkKey(String bundle) throws IOException {
+		if(!bundle.matches("[0-9a-f]+"))
+			throw new IOException("Invalid bundle key " + bundle);
+		return bundle;
+	}
+
+	/*
+	 * Checks a file is a document rendered in the staging area.
+	 */
+	private File checkOutputFile(File file) throws IOException {
+		File outDir = new File(dir, OUTPUT_DIR_NAME).getCanonicalFile();
+		File parent = file.getCanonicalFile().getParentFile();
+		if(parent == null || !outDir.equals(parent.getParentFile()))
+			throw new IOException("Not a staged document " + file.getPath());
+		return file;
+	}
+
+	/*
+	 * Deletes the bundles and the documents not used for too long.
+	 */
+	private void deleteExpired() {
+		long expiry = System.currentTimeMillis() - BUNDLE_EXPIRY;
+		File[] bundleDirs = dir.listFiles();
+		if(bundleDirs != null)
+			for(File bundleDir : bundleDirs)
+				if(!bundleDir.getName().equals(OUTPUT_DIR_NAME) && bundleDir.lastModified() < expiry)
+					delete(bundleDir);
+		File[] outDirs = new File(dir, OUTPUT_DIR_NAME).listFiles();
+		if(outDirs != null)
+			for(File outDir : outDirs)
+				if(outDir.lastModified() < expiry)
+					delete(outDir);
+	}
+
+	/*
+	 * Deletes a file or a directory and its content.
+	 */
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null)
+			for(File child : children)
+				delete(child);
+		file.delete();
+	}
+
+}
@@ -0,0 +1,755 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.leanpulse.syd.api.PdfSecurityOptions;
+import com.leanpulse.syd.api.progress.IProgressMonitor;
+import com.leanpulse.syd.remote.IProgressChannelRm;
+import com.leanpulse.syd.remote.IRendererRm;
+import com.leanpulse.syd.remote.ProgressEventRm;
+import com.leanpulse.syd.remote.RenderLoad;
+
+/**
+ * The pool of worker processes to which a supervisor server delegates the
+ * renderings, each worker having its own heap.
+ * <p>
+ * The documents larger than a given size are rendered by a dedicated worker,
+ * so that they don't delay the other documents. A worker is recycled after a
+ * given number of jobs or once the heap retained after garbage collection
+ * reaches a high-water mark, so that the memory leaked by the renderings
+ * doesn't accumulate. A worker crashing only fails its own jobs and is
+ * replaced.<br>
+ * The progress of the workers is reported to a channel exported by the
+ * supervisor and forwarded to the monitors of the clients.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ */
+class WorkerPool {
+
+	/**
+	 * System property giving the number of worker processes, the server
+	 * rendering the documents itself if not positive.
+	 */
+	static final String WORKERS_PROPERTY = "syd.rmrender.workers";
+
+	/**
+	 * System property identifying a worker process, set by the supervisor.
+	 */
+	static final String WORKER_ID_PROPERTY = "syd.rmrender.workerid";
+
+	/* Maximum heap of a worker. */
+	private static final String WORKER_MAX_MEM = System.getProperty("syd.rmrender.workers.maxmem", "1024m");
+
+	/* Number of jobs after which a worker is recycled, never if not positive. */
+	private static final int MAX_JOBS = Integer.getInteger("syd.rmrender.workers.maxjobs", 50).intValue();
+
+	/* Percentage of the heap retained after garbage collection from which a worker is recycled. */
+	private static final int HIGH_WATER = Integer.getInteger("syd.rmrender.workers.highwater", 60).intValue();
+
+	/* Size in bytes from which a document is rendered by the worker dedicated to large documents. */
+	private static final long LARGE_SIZE = Long.getLong("syd.rmrender.workers.largesize", 20L).longValue() * 1024L * 1024L;
+
+	/* Delay in milliseconds to wait for a worker to tell it is bound after it has been started. */
+	private static final long START_TIMEOUT = 60000L;
+
+	/* Period in milliseconds at which the heap of the workers is checked. */
+	private static final long CHECK_PERIOD = 5000L;
+
+	/**
+	 * Gets the number of worker processes to which the renderings are
+	 * delegated.
+	 *
+	 * @return The number of workers, zero if this server renders the
+	 *         documents itself.
+	 */
+	static int getWorkerCount() {
+		if(isWorker())
+			return 0;
+		return Math.max(0, Integer.getInteger(WORKERS_PROPERTY, 0).intValue());
+	}
+
+	/**
+	 * Tells if this server is a worker process started by a supervisor.
+	 *
+	 * @return <code>true</code> if this server is a worker.
+	 */
+	static boolean isWorker() {
+		return System.getProperty(WORKER_ID_PROPERTY) != null;
+	}
+
+	/**
+	 * Gets the name to which a worker process is bound in the registry.
+	 *
+	 * @param workerId
+	 *            The identifier of the worker.
+	 * @return The name of the worker.
+	 */
+	static String getServiceName(String workerId) {
+		return IRendererRm.SERVICE_NAME + "/" + workerId;
+	}
+
+	/* A worker process. */
+	private class Worker {
+		final String id;
+		final boolean large;
+		Process process;
+		IRendererRm remote;
+		RenderLoad load;
+		int running = 0;
+		int jobsDone = 0;
+		boolean retiring = false;
+		Worker(String id, boolean large) {
+			this.id = id;
+			this.large = large;
+		}
+	}
+
+	/* A rendering delegated to a worker. */
+	private class Job {
+		final File xmlFile;
+		final File xslFile;
+		final String[] xslParams;
+		final File[] outFiles;
+		final PdfSecurityOptions[] secOptions;
+		final boolean[] open;
+		final boolean multi;
+		final IProgressMonitor[] mons;
+		final String[] proxyIds;
+		Worker worker;
+		int unfinished;
+		Job(File xmlFile, File xslFile, String[] xslParams, File[] outFiles, PdfSecurityOptions[] secOptions, boolean[] open,
+				boolean multi, IProgressMonitor[] mons) {
+			this.xmlFile = xmlFile;
+			this.xslFile = xslFile;
+			this.xslParams = xslParams;
+			this.outFiles = outFiles;
+			this.secOptions = secOptions;
+			this.open = open;
+			this.multi = multi;
+			this.mons = mons;
+			this.proxyIds = new String[mons.length];
+			this.unfinished = mons.length;
+		}
+	}
+
+	/*
+	 * The channel to which the workers report the progress, forwarding it to
+	 * the monitors of the clients.
+	 */
+	private class ProxyChannel extends UnicastRemoteObject implements IProgressChannelRm {
+		private static final long serialVersionUID = 2946210851932766312L;
+		ProxyChannel() throws RemoteException {
+			super();
+		}
+		public void update(ProgressEventRm[] events) {
+			for(ProgressEventRm event : events)
+				forward(event);
+		}
+	}
+
+	private int size;
+	private final int port;
+	private final ProxyChannel channel;
+	private final List<Worker> workers = new ArrayList<Worker>();
+	private final LinkedList<Job> queue = new LinkedList<Job>();
+	private final Map<String, Job> jobs = new HashMap<String, Job>();
+	private final Map<String, IProgressMonitor> monitors = new HashMap<String, IProgressMonitor>();
+	private final Timer checkTimer = new Timer("Render Workers Check", true);
+	private int nextWorkerId = 1;
+	private int nextJobId = 1;
+	private boolean shutDown = false;
+
+	/**
+	 * Creates the pool and starts its workers.
+	 *
+	 * @param size
+	 *            The number of workers.
+	 * @param port
+	 *            The port of the registry to which the workers are bound.
+	 * @throws RemoteException
+	 *             If the progress channel can't be exported.
+	 */
+	WorkerPool(int size, int port) throws RemoteException {
+		this.size = size;
+		this.port = port;
+		this.channel = new ProxyChannel();
+		synchronized(this) {
+			ensureWorkers();
+		}
+		checkTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				checkWorkers();
+			}
+		}, CHECK_PERIOD, CHECK_PERIOD);
+	}
+
+	/**
+	 * Delegates the rendering of documents to a worker.
+	 * <p>
+	 * The job waits if no worker is ready, and is failed if none can be
+	 * started.
+	 *
+	 * @param xmlFile
+	 *            The XML file to render.
+	 * @param xslFile
+	 *            The stylesheet.
+	 * @param xslParams
+	 *            The parameters of the stylesheet.
+	 * @param outFiles
+	 *            The documents to render.
+	 * @param secOptions
+	 *            The security options of the documents.
+	 * @param open
+	 *            If the documents must be opened once rendered.
+	 * @param multi
+	 *            If the documents are rendered from a single transformation.
+	 * @param mons
+	 *            The monitors of the documents, whose cancellation must be
+	 *            forwarded with {@link #cancel(IProgressMonitor)}.
+	 */
+	synchronized void submit(File xmlFile, File xslFile, String[] xslParams, File[] outFiles, PdfSecurityOptions[] secOptions, boolean[] open,
+			boolean multi, IProgressMonitor[] mons) {
+		Job job = new Job(xmlFile, xslFile, xslParams, outFiles, secOptions, open, multi, mons);
+		String prefix = "j" + (nextJobId++);
+		for(int i=0; i<mons.length; i++) {
+			job.proxyIds[i] = mons.length == 1 ? prefix : prefix + "-" + i;
+			jobs.put(job.proxyIds[i], job);
+			monitors.put(job.proxyIds[i], mons[i]);
+		}
+		queue.add(job);
+		ensureWorkers();
+		dispatch();
+	}
+
+	/**
+	 * Forwards the cancellation of a document to the worker rendering it.
+	 *
+	 * @param mon
+	 *            The monitor of the document.
+	 */
+	void cancel(IProgressMonitor mon) {
+		Worker worker;
+		String proxyId = null;
+		synchronized(this) {
+			for(Map.Entry<String, IProgressMonitor> entry : monitors.entrySet())
+				if(entry.getValue() == mon && jobs.containsKey(entry.getKey()))
+					proxyId = entry.getKey();
+			if(proxyId == null)
+				return;
+			Job job = jobs.get(proxyId);
+			if(job.worker == null) { // Not dispatched yet.
+				queue.remove(job);
+				cancelJob(job);
+				return;
+			}
+			worker = job.worker;
+		}
+		try {
+			worker.remote.cancel(channel, new String[] {proxyId});
+		} catch (RemoteException e) {} // The crash of the worker fails the job.
+	}
+
+	/**
+	 * Gets the load of the pool, summing the load of its workers.
+	 *
+	 * @return The load.
+	 */
+	synchronized RenderLoad getLoad() {
+		int jobCount = queue.size();
+		long headroom = 0, retained = 0, max = 0;
+		for(Worker worker : workers) {
+			jobCount += worker.running;
+			if(worker.load != null && !worker.retiring) {
+				headroom += worker.load.getHeapHeadroom();
+				retained += worker.load.getRetainedHeap();
+				max += worker.load.getMaxHeap();
+			}
+		}
+		return new RenderLoad(jobCount, Runtime.getRuntime().availableProcessors(), headroom, retained, max);
+	}
+
+	/**
+	 * Gets the number of jobs waiting for a worker.
+	 *
+	 * @return The number of jobs.
+	 */
+	synchronized int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Gets the number of workers of the pool.
+	 *
+	 * @return The number of workers.
+	 */
+	synchronized int getSize() {
+		return size;
+	}
+
+	/**
+	 * Changes the number of workers of the pool, starting the missing ones
+	 * or retiring the last ones started, which finish their jobs first.
+	 *
+	 * @param size
+	 *            The number of workers, at least 1.
+	 */
+	synchronized void setSize(int size) {
+		this.size = Math.max(1, size);
+		int active = 0;
+		for(Worker worker : workers)
+			if(!worker.retiring)
+				active++;
+		for(int i=workers.size()-1; i>=0 && active>this.size; i--) {
+			Worker worker = workers.get(i);
+			if(worker.retiring || (worker.large && this.size > 1)) // Keeps the large lane while several workers remain.
+				continue;
+			worker.retiring = true;
+			active--;
+			System.out.println("Stopping the render worker " + worker.id + " to shrink the pool.");
+			stopIfRetired(worker);
+		}
+		ensureWorkers();
+		dispatch();
+	}
+
+	/**
+	 * Gets the status of the pool, warm once a worker is warm.
+	 *
+	 * @return {@link IRendererRm#STATUS_WARMING} or
+	 *         {@link IRendererRm#STATUS_WARM}.
+	 */
+	String getStatus() {
+		List<Worker> tmpWorkers;
+		synchronized(this) {
+			tmpWorkers = new ArrayList<Worker>(workers);
+		}
+		for(Worker worker : tmpWorkers)
+			if(worker.remote != null && !worker.retiring)
+				try {
+					if(IRendererRm.STATUS_WARM.equals(worker.remote.getStatus()))
+						return IRendererRm.STATUS_WARM;
+				} catch (RemoteException e) {}
+		return IRendererRm.STATUS_WARMING;
+	}
+
+	/**
+	 * Reports the memory of the workers, the keys being prefixed by the
+	 * identifier of each worker.
+	 *
+	 * @return The values by key.
+	 * @see IRendererRm#getMemoryUsage()
+	 */
+	Map<String, Long> getMemoryUsage() {
+		List<Worker> tmpWorkers;
+		synchronized(this) {
+			tmpWorkers = new ArrayList<Worker>(workers);
+		}
+		Map<String, Long> usage = new LinkedHashMap<String, Long>();
+		for(Worker worker : tmpWorkers)
+			if(worker.remote != null)
+				try {
+					for(Map.Entry<String, Long> entry : worker.remote.getMemoryUsage().entrySet())
+						usage.put(worker.id + "." + entry.getKey(), entry.getValue());
+				} catch (RemoteException e) {}
+		return usage;
+	}
+
+	/**
+	 * Stops all the workers.
+	 */
+	void shutDown() {
+		List<Worker> tmpWorkers;
+		synchronized(this) {
+			shutDown = true;
+			tmpWorkers = new ArrayList<Worker>(workers);
+			workers.clear();
+		}
+		checkTimer.cancel();
+		for(Worker worker : tmpWorkers)
+			worker.process.destroy();
+	}
+
+	/*
+	 * Starts workers until the pool is full.
+	 */
+	private void ensureWorkers() {
+		if(shutDown)
+			return;
+		boolean largeLane = false;
+		int active = 0;
+		for(Worker worker : workers)
+			if(!worker.retiring) {
+				active++;
+				largeLane |= worker.large;
+			}
+		while(active < size) {
+			// With several workers, the first one is dedicated to the large documents.
+			Worker worker = new Worker("worker" + (nextWorkerId++), size > 1 && !largeLane);
+			largeLane |= worker.large;
+			try {
+				startWorker(worker);
+				workers.add(worker);
+			} catch (IOException e) {
+				System.err.println("Can't start the render worker " + worker.id + ": " + e);
+				failQueue(e);
+				return;
+			}
+			active++;
+		}
+	}
+
+	/*
+	 * Launches the process of a worker and a thread waiting for it to be bound then to exit.
+	 */
+	private void startWorker(final Worker worker) throws IOException {
+		try {
+			LocateRegistry.getRegistry(port).unbind(getServiceName(worker.id)); // Cleans up the registry
+		} catch (Exception e) {}
+		List<String> cmdList = new ArrayList<String>();
+		cmdList.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		cmdList.add("-Xmx" + WORKER_MAX_MEM);
+		cmdList.add("-XX:MinHeapFreeRatio=10"); // Lets the JVM uncommit the heap freed between the jobs.
+		cmdList.add("-XX:MaxHeapFreeRatio=30");
+		cmdList.add("-Djavax.xml.transform.TransformerFactory=com.leanpulse.syd.remote.internal.CachingTransformerFactory");
+		cmdList.add("-Dorg.apache.commons.logging.Log=org.apache.commons.logging.impl.NoOpLog");
+		for(String key : System.getProperties().stringPropertyNames()) { // Forwards the other server settings.
+			if(key.startsWith("syd.rmrender.") && !key.startsWith(WORKERS_PROPERTY) && !key.equals("syd.rmrender.idletimeout")
+					&& !key.equals(RenderJobQueue.JOURNAL_PROPERTY))
+				cmdList.add("-D" + key + "=" + System.getProperty(key));
+		}
+		cmdList.add("-Dsyd.rmrender.port=" + port);
+		cmdList.add("-Dsyd.rmrender.idletimeout=0"); // The supervisor recycles its workers.
+		cmdList.add("-D" + WORKER_ID_PROPERTY + "=" + worker.id);
+		cmdList.add("-jar");
+		cmdList.add(FopRendererServer.getLibFile().getPath());
+		ProcessBuilder builder = new ProcessBuilder(cmdList);
+		builder.redirectErrorStream(true);
+		worker.process = builder.start();
+
+		Thread outputThread = new Thread("Render Worker Output " + worker.id) {
+			@Override
+			public void run() {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(worker.process.getInputStream()));
+				try {
+					String line;
+					while((line = reader.readLine()) != null) {
+						if(line.equals(IRendererRm.READY_MESSAGE))
+							workerBound(worker);
+						else
+							System.out.println("[" + worker.id + "] " + line);
+					}
+				} catch (IOException e) {}
+			}
+		};
+		outputThread.setDaemon(true);
+		outputThread.start();
+
+		checkTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				synchronized(WorkerPool.this) {
+					if(worker.remote != null)
+						return;
+				}
+				System.err.println("The render worker " + worker.id + " didn't start in time.");
+				worker.process.destroy();
+			}
+		}, START_TIMEOUT);
+
+		Thread watchThread = new Thread("Render Worker Watch " + worker.id) {
+			@Override
+			public void run() {
+				try {
+					worker.process.waitFor();
+				} catch (InterruptedException e) {
+					return;
+				}
+				workerExited(worker);
+			}
+		};
+		watchThread.setDaemon(true);
+		watchThread.start();
+	}
+
+	/*
+	 * Called when a worker tells it is bound, connecting to it at once.
+	 */
+	private void workerBound(Worker worker) {
+		try {
+			IRendererRm remote = (IRendererRm) LocateRegistry.getRegistry(port).lookup(getServiceName(worker.id));
+			synchronized(this) {
+				worker.remote = remote;
+				dispatch();
+			}
+		} catch (Exception e) {
+			System.err.println("Can't connect to the render worker " + worker.id + ": " + e);
+			worker.process.destroy();
+		}
+	}
+
+	/*
+	 * Called when the process of a worker exited, failing its jobs and replacing it.
+	 */
+	private synchronized void workerExited(Worker worker) {
+		boolean crashed = workers.remove(worker) && !worker.retiring;
+		List<Job> lost = new ArrayList<Job>();
+		for(Job job : jobs.values())
+			if(job.worker == worker && !lost.contains(job))
+				lost.add(job);
+		for(Job job : lost)
+			failJob(job, new IOException("The render worker " + worker.id + " crashed"));
+		if(shutDown)
+			return;
+		if(crashed && worker.remote == null && !hasReadyWorker()) {
+			failQueue(new IOException("Can't start the render worker " + worker.id));
+			return; // Started again by the next job.
+		}
+		ensureWorkers();
+		dispatch();
+	}
+
+	/*
+	 * Tells if a worker can accept jobs.
+	 */
+	private boolean hasReadyWorker() {
+		for(Worker worker : workers)
+			if(worker.remote != null && !worker.retiring)
+				return true;
+		return false;
+	}
+
+	/*
+	 * Sends the queued jobs to the least loaded workers of their lane.
+	 */
+	private void dispatch() {
+		while(!queue.isEmpty()) {
+			Job job = queue.getFirst();
+			boolean large = job.xmlFile.length() >= LARGE_SIZE;
+			Worker selected = null;
+			for(Worker worker : workers)
+				if(worker.remote != null && !worker.retiring && worker.large == large
+						&& (selected == null || worker.running < selected.running))
+					selected = worker;
+			if(selected == null) // No worker of the lane ready.
+				for(Worker worker : workers)
+					if(worker.remote != null && !worker.retiring && (selected == null || worker.running < selected.running))
+						selected = worker;
+			if(selected == null)
+				return;
+			queue.removeFirst();
+			job.worker = selected;
+			selected.running++;
+			post(job);
+		}
+	}
+
+	/*
+	 * Sends a job to its worker in a separate thread, not to block the pool.
+	 */
+	private void post(final Job job) {
+		Thread postThread = new Thread("Render Worker Post " + job.worker.id) {
+			@Override
+			public void run() {
+				try {
+					if(job.multi)
+						job.worker.remote.startRendering(job.xmlFile, job.xslFile, job.xslParams, job.outFiles, job.secOptions,
+								job.open, channel, job.proxyIds);
+					else
+						job.worker.remote.startRendering(job.xmlFile, job.xslFile, job.xslParams, job.outFiles[0], job.secOptions[0],
+								job.open[0], channel, job.proxyIds[0]);
+				} catch (RemoteException e) { // The worker is dead, its watch thread fails the job.
+					job.worker.process.destroy();
+				}
+			}
+		};
+		postThread.setDaemon(true);
+		postThread.start();
+	}
+
+	/*
+	 * Applies a notification of a worker to the monitor of the client.
+	 */
+	private void forward(ProgressEventRm event) {
+		IProgressMonitor mon;
+		synchronized(this) {
+			mon = monitors.get(event.getMonitorId());
+		}
+		if(mon == null)
+			return;
+		switch(event.getType()) {
+		case ProgressEventRm.START:
+			mon.start(event.getDescription(), event.getWork());
+			break;
+		case ProgressEventRm.PROGRESS:
+			if(event.getDescription() != null)
+				mon.progress(event.getDescription(), event.getWork());
+			else
+				mon.progress(event.getWork());
+			break;
+		case ProgressEventRm.SUB_PROGRESS:
+			IProgressMonitor subMon = mon.createSubProgress(event.getDescription(), event.getWork());
+			synchronized(this) {
+				monitors.put(event.getSubMonitorId(), subMon);
+			}
+			break;
+		case ProgressEventRm.CANCEL:
+			mon.requestCancel();
+			break;
+		case ProgressEventRm.FINISH:
+			if(event.getError() != null)
+				mon.finish(event.getDescription(), event.getError());
+			else
+				mon.finish(event.getDescription());
+			synchronized(this) {
+				Job job = jobs.get(event.getMonitorId());
+				if(job != null)
+					jobFinished(job, event.getMonitorId(), event.getError());
+			}
+			break;
+		}
+	}
+
+	/*
+	 * Called when a document of a job finished, recycling the worker when required.
+	 */
+	private void jobFinished(Job job, String proxyId, IOException error) {
+		jobs.remove(proxyId);
+		removeMonitors(proxyId);
+		if(--job.unfinished > 0)
+			return;
+		Worker worker = job.worker;
+		worker.running--;
+		worker.jobsDone++;
+		if(error != null && error.getCause() instanceof OutOfMemoryError)
+			retire(worker, "ran out of memory");
+		else if(MAX_JOBS > 0 && worker.jobsDone >= MAX_JOBS)
+			retire(worker, "rendered " + worker.jobsDone + " jobs");
+		stopIfRetired(worker);
+		dispatch();
+	}
+
+	/*
+	 * Fails the documents of a job not finished yet.
+	 */
+	private void failJob(Job job, IOException error) {
+		for(int i=0; i<job.mons.length; i++) {
+			if(jobs.remove(job.proxyIds[i]) != null) {
+				removeMonitors(job.proxyIds[i]);
+				job.mons[i].finish("Rendering of " + job.outFiles[job.multi ? i : 0].getName() + " failed.", error);
+			}
+		}
+		job.unfinished = 0;
+	}
+
+	/*
+	 * Finishes the documents of a job cancelled before being dispatched, as the renderer reports a cancellation.
+	 */
+	private void cancelJob(Job job) {
+		for(int i=0; i<job.mons.length; i++) {
+			if(jobs.remove(job.proxyIds[i]) != null) {
+				removeMonitors(job.proxyIds[i]);
+				job.mons[i].finish("Document " + job.outFiles[job.multi ? i : 0].getName() + " rendering cancelled by user.");
+			}
+		}
+		job.unfinished = 0;
+	}
+
+	/*
+	 * Fails the jobs waiting for a worker.
+	 */
+	private void failQueue(IOException error) {
+		while(!queue.isEmpty())
+			failJob(queue.removeFirst(), error);
+	}
+
+	/*
+	 * Forgets a monitor and its sub-monitors.
+	 */
+	private void removeMonitors(String proxyId) {
+		Iterator<String> it = monitors.keySet().iterator();
+		while(it.hasNext()) {
+			String id = it.next();
+			if(id.equals(proxyId) || id.startsWith(proxyId + "."))
+				it.remove();
+		}
+	}
+
+	/*
+	 * Stops giving jobs to a worker and starts its replacement.
+	 */
+	private void retire(Worker worker, String reason) {
+		if(worker.retiring || shutDown)
+			return;
+		System.out.println("Recycling the render worker " + worker.id + " which " + reason + ".");
+		worker.retiring = true;
+		ensureWorkers();
+	}
+
+	/*
+	 * Stops a retiring worker once its jobs finished.
+	 */
+	private void stopIfRetired(final Worker worker) {
+		if(!worker.retiring || worker.running > 0 || !workers.remove(worker))
+			return;
+		Thread stopThread = new Thread("Render Worker Stop " + worker.id) {
+			@Override
+			public void run() {
+				try {
+					if(worker.remote != null)
+						worker.remote.shutDown();
+				} catch (RemoteException e) {} // Exited while replying.
+				worker.process.destroy();
+			}
+		};
+		stopThread.setDaemon(true);
+		stopThread.start();
+	}
+
+	/*
+	 * Checks the heap of the workers, recycling the ones retaining too much.
+	 */
+	private void checkWorkers() {
+		List<Worker> tmpWorkers;
+		synchronized(this) {
+			tmpWorkers = new ArrayList<Worker>(workers);
+		}
+		for(Worker worker : tmpWorkers) {
+			if(worker.remote == null || worker.retiring)
+				continue;
+			RenderLoad load;
+			try {
+				load = worker.remote.getLoad();
+			} catch (RemoteException e) { // Hung or dead, its watch thread fails its jobs.
+				worker.process.destroy();
+				continue;
+			}
+			synchronized(this) {
+				worker.load = load;
+				if(load.getMaxHeap() > 0 && load.getRetainedHeap() * 100L >= load.getMaxHeap() * HIGH_WATER)
+					retire(worker, "retains " + (load.getRetainedHeap() / (1024L * 1024L)) + " MB");
+				stopIfRetired(worker);
+			}
+		}
+	}
+
+}
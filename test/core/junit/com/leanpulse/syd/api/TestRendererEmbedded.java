@@ -0,0 +1,103 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.api;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Locale;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.runners.Parameterized;
+
+import com.leanpulse.syd.internal.RendererImplEmbedded;
+import com.leanpulse.syd.internal.Utils;
+
+/**
+ * Tests the renderer embedded in the JVM of the caller.
+ * 
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ * 
+ * @see Renderer
+ * @see RendererManager
+ */
+public class TestRendererEmbedded extends AbsTestRenderer {
+	
+	static {
+		System.setProperty(RendererManager.RENDERER_PROPERTY, RendererManager.RENDERER_EMBEDDED);
+	}
+	
+	/**
+	 * Sets the test cases to test the embedded renderer.
+	 * <p>
+	 * The test cases check if the embedded renderer can be loaded and if it
+	 * can simultaneously render the same XML input file with 2 different
+	 * formats.
+	 * 
+	 * @return The collection of array of arguments to be passed to the
+	 *         constructor to set each test case.
+	 */
+	@Parameterized.Parameters
+    public static Collection<Object[]> parameters() {
+    	String resPath = Utils.getAbsolutePath("styles" + File.separator + "resources");
+    	String dateStr = new SimpleDateFormat("dd MMM yyyy", Locale.ENGLISH).format(new Date());
+    	String[] xslPortraitParams = new String[] {"resourcespath", resPath,
+				"currentdate", dateStr,
+				"refmdlpaths", ""};
+    	String[] xslLandscapeParams = new String[] {"resourcespath", resPath,
+				"currentdate", dateStr,
+				"refmdlpaths", "",
+				"pageheight", "210",
+				"pagewidth", "297"};
+    	return Arrays.asList(new Object[][] {
+    			{new File("SyDdemo.xml").getAbsoluteFile(),
+    				new File("../../../src/core/styles/template.xsl").getAbsoluteFile(),
+    				new String[][] {xslPortraitParams, xslLandscapeParams},
+	    			new File[] {new File("Embedded1.pdf").getAbsoluteFile(),
+    					new File("Embedded2.pdf").getAbsoluteFile()}}
+    	});
+	}
+	
+    /**
+     * Default constructor.
+     * 
+	 * @param xmlFile
+	 *            The test XML file to render.
+	 * @param xslFile
+	 *            The test stylesheet to format the document.
+	 * @param xslParams
+	 *            An array of sets of stylesheet parameters to perform several
+	 *            rendering with various configurations.
+	 * @param outFiles
+	 *            The corresponding array of output files.
+	 */
+	public TestRendererEmbedded(File xmlFile, File xslFile,
+			String[][] xslParams, File[] outFiles) {
+		super(RendererManager.getRenderer(), xmlFile, xslFile, xslParams, outFiles);
+	}
+
+	/**
+	 * Checks if the <code>Renderer</code> selected by the
+	 * {@link RendererManager} is the embedded renderer.
+	 */
+	@Test
+	public void testEmbeddedRendererLaunch() {
+		assertTrue(renderer instanceof RendererImplEmbedded);
+	}
+	
+	/**
+	 * Restores the selection of the rendering server.
+	 */
+	@AfterClass
+    public static void tearDownAfterClass() {
+        System.clearProperty(RendererManager.RENDERER_PROPERTY);
+    }
+
+}
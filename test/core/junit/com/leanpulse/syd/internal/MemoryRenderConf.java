@@ -0,0 +1,97 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.internal;
+
+import java.awt.Window;
+import java.io.File;
+import java.util.List;
+
+import com.leanpulse.syd.api.GenProfileRenderConf;
+import com.leanpulse.syd.api.PdfSecurityOptions;
+import com.leanpulse.syd.api.progress.IProgressMonitor;
+
+/**
+ * Render configuration generating each model in the directory of the model,
+ * without any stylesheet nor parameter.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see GenProfileRenderConf
+ */
+public class MemoryRenderConf extends GenProfileRenderConf {
+
+	private final int gendep;
+
+	/**
+	 * Creates a configuration generating the referenced models as requested.
+	 *
+	 * @param gendep
+	 *            How the referenced models are generated, one of the
+	 *            <code>GENDEP_*</code> constants.
+	 */
+	public MemoryRenderConf(int gendep) {
+		this.gendep = gendep;
+	}
+
+	public File getStyle() {
+		return new File("template.xsl");
+	}
+
+	public File getOutputDir() {
+		return new File(".");
+	}
+
+	public int getRelativeTo() {
+		return RELTO_MODEL;
+	}
+
+	public String getSuffix() {
+		return "";
+	}
+
+	public File computeOutput(File mdlFile, File parDir) {
+		return new File(mdlFile.getParentFile(), Utils.getFileNameWithoutExtension(mdlFile) + ".pdf");
+	}
+
+	public PdfSecurityOptions getSecurityOptions() {
+		return new PdfSecurityOptions();
+	}
+
+	public int getPostGenAction() {
+		return ACTION_NOP;
+	}
+
+	public int getGenDependencies() {
+		return gendep;
+	}
+
+	public GenProfileRenderConf getSubRenderConf(File refMdlFile) {
+		return this;
+	}
+
+	public File getSubParentDir(File outFile, File parDir) {
+		return parDir;
+	}
+
+	public String[] getStyleParams(File xmlFile, File outFile, List<File> refMdls, File subParDir, List<File> refOutFiles) {
+		if(refOutFiles != null)
+			for(File refMdlFile : refMdls)
+				refOutFiles.add(computeOutput(refMdlFile, subParDir));
+		return new String[0];
+	}
+
+	public boolean render(File xmlFile, List<File> refMdls, IProgressMonitor mon) {
+		throw new UnsupportedOperationException();
+	}
+
+	public void render(File xmlFile, List<File> refMdls) throws Exception {
+		throw new UnsupportedOperationException();
+	}
+
+	public boolean renderUI(File xmlFile, List<File> refMdls, Window appwin) {
+		throw new UnsupportedOperationException();
+	}
+
+}
@@ -0,0 +1,240 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.leanpulse.syd.api.Snapper;
+import com.leanpulse.syd.api.progress.IProgressMonitor;
+
+/**
+ * In-memory stand-in for a <code>Snapper</code>, extracting synthetic model
+ * hierarchies without any modeling environment.
+ * <p>
+ * The models are only defined by the models they reference, nothing is
+ * written on the disk. The snapper records how many times each model is
+ * extracted and the number of extractions running simultaneously.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see Snapper
+ */
+public class MemorySnapper extends Snapper {
+
+	/**
+	 * Gets the file of a synthetic model.
+	 *
+	 * @param index
+	 *            The index of the model in the hierarchy.
+	 * @return The model file.
+	 */
+	public static File model(int index) {
+		return Utils.getCanonicalFile(new File("mdl" + index + ".mdl"));
+	}
+
+	private final boolean threadSafe;
+	private final long snapDelay;
+	private final Map<File, List<File>> hierarchy = new HashMap<File, List<File>>();
+	private final Set<File> failures = new HashSet<File>();
+	private final Map<File, Integer> snapCounts = new HashMap<File, Integer>();
+	private final Set<File> snappedXmlFiles = new HashSet<File>();
+	private int runningSnaps = 0;
+	private int maxRunningSnaps = 0;
+
+	/**
+	 * Creates a snapper without any model.
+	 *
+	 * @param threadSafe
+	 *            If the models can be extracted concurrently.
+	 * @param snapDelay
+	 *            The duration in milliseconds of an extraction.
+	 */
+	public MemorySnapper(boolean threadSafe, long snapDelay) {
+		this.threadSafe = threadSafe;
+		this.snapDelay = snapDelay;
+	}
+
+	/**
+	 * Defines a tree of models, the model <code>i</code> referencing the
+	 * models <code>fanOut*i+1</code> to <code>fanOut*i+fanOut</code>.
+	 *
+	 * @param count
+	 *            The number of models.
+	 * @param fanOut
+	 *            The number of models referenced by each model.
+	 */
+	public void buildTree(int count, int fanOut) {
+		for(int i=0; i<count; i++) {
+			List<File> refMdls = new ArrayList<File>();
+			for(int j=fanOut*i+1; j<=fanOut*i+fanOut && j<count; j++)
+				refMdls.add(model(j));
+			hierarchy.put(model(i), refMdls);
+		}
+	}
+
+	/**
+	 * Defines a lattice of models, the model <code>i</code> referencing the
+	 * models <code>i+1</code> and <code>i+2</code>, so that most models are
+	 * referenced twice.
+	 *
+	 * @param count
+	 *            The number of models.
+	 */
+	public void buildLattice(int count) {
+		for(int i=0; i<count; i++) {
+			List<File> refMdls = new ArrayList<File>();
+			for(int j=i+1; j<=i+2 && j<count; j++)
+				refMdls.add(model(j));
+			hierarchy.put(model(i), refMdls);
+		}
+	}
+
+	/**
+	 * Adds a reference to a model of the hierarchy.
+	 *
+	 * @param index
+	 *            The index of the model referencing the other one.
+	 * @param refMdlFile
+	 *            The referenced model file, as returned by the extraction.
+	 */
+	public void addReference(int index, File refMdlFile) {
+		hierarchy.get(model(index)).add(refMdlFile);
+	}
+
+	/**
+	 * Makes the extraction of a model fail.
+	 *
+	 * @param mdlFile
+	 *            The model file.
+	 */
+	public synchronized void addFailure(File mdlFile) {
+		failures.add(mdlFile);
+	}
+
+	/**
+	 * Gets the number of times a model was extracted.
+	 *
+	 * @param mdlFile
+	 *            The model file.
+	 * @return The number of extractions.
+	 */
+	public synchronized int getSnapCount(File mdlFile) {
+		Integer count = snapCounts.get(mdlFile);
+		return count != null ? count : 0;
+	}
+
+	/**
+	 * Gets the number of models extracted.
+	 *
+	 * @return The number of distinct models extracted.
+	 */
+	public synchronized int getSnappedCount() {
+		return snappedXmlFiles.size();
+	}
+
+	/**
+	 * Checks if an XML file was extracted.
+	 *
+	 * @param xmlFile
+	 *            The XML file.
+	 * @return True if the extraction producing the file is finished.
+	 */
+	public synchronized boolean isSnapped(File xmlFile) {
+		return snappedXmlFiles.contains(xmlFile);
+	}
+
+	/**
+	 * Gets the highest number of extractions which ran simultaneously.
+	 *
+	 * @return The number of extractions.
+	 */
+	public synchronized int getMaxRunningSnaps() {
+		return maxRunningSnaps;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Snapper#isThreadSafe()
+	 */
+	@Override
+	public boolean isThreadSafe() {
+		return threadSafe;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Snapper#getDefaultSnapFile(java.io.File)
+	 */
+	@Override
+	public File getDefaultSnapFile(File mdlFile) {
+		return new File(mdlFile.getParentFile(), Utils.getFileNameWithoutExtension(mdlFile) + ".xml");
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Snapper#getCurDir()
+	 */
+	@Override
+	public String getCurDir() {
+		return System.getProperty("user.dir");
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Snapper#resnap(java.io.File, boolean, boolean, java.util.Map, java.io.File, com.leanpulse.syd.api.progress.IProgressMonitor)
+	 */
+	@Override
+	protected List<File> resnap(File mdlFile, boolean followLinks, boolean lookUnderMasks, Map<String, String> params, File xmlFile, IProgressMonitor mon) {
+		synchronized(this) {
+			Integer count = snapCounts.get(mdlFile);
+			snapCounts.put(mdlFile, count != null ? count + 1 : 1);
+			maxRunningSnaps = Math.max(maxRunningSnaps, ++runningSnaps);
+		}
+		try {
+			if(snapDelay > 0)
+				Thread.sleep(snapDelay);
+		} catch (InterruptedException e) {}
+		synchronized(this) {
+			runningSnaps--;
+			if(failures.contains(mdlFile) || !hierarchy.containsKey(mdlFile)) {
+				mon.finish(null, new Exception("Can't extract model \"" + mdlFile.getName() + "\""));
+				return null;
+			}
+			snappedXmlFiles.add(xmlFile);
+		}
+		mon.finish("Model \"" + mdlFile.getName() + "\" extracted.");
+		return new ArrayList<File>(hierarchy.get(mdlFile));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Snapper#isDirty(java.io.File)
+	 */
+	@Override
+	protected boolean isDirty(File mdlFile) {
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Snapper#getVersion(java.io.File)
+	 */
+	@Override
+	protected String getVersion(File mdlFile) {
+		return null;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Snapper#locateModels(java.lang.String[])
+	 */
+	@Override
+	protected List<File> locateModels(String[] mdlNames) {
+		List<File> mdlFiles = new ArrayList<File>(mdlNames.length);
+		for(String mdlName : mdlNames)
+			mdlFiles.add(new File(mdlName + ".mdl").getAbsoluteFile());
+		return mdlFiles;
+	}
+
+}
@@ -0,0 +1,203 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.leanpulse.syd.api.PdfSecurityOptions;
+import com.leanpulse.syd.api.Renderer;
+import com.leanpulse.syd.api.progress.IProgressMonitor;
+
+/**
+ * Stand-in for a <code>Renderer</code>, recording the documents posted
+ * instead of rendering them.
+ * <p>
+ * Each request is checked against a {@link MemorySnapper}: its XML file must
+ * have been extracted when it is posted.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see Renderer
+ */
+public class RecordingRenderer extends Renderer {
+
+	private final MemorySnapper snapper;
+	private final long renderDelay;
+	private final List<File> outFiles = new ArrayList<File>();
+	private final List<Integer> snappedCounts = new ArrayList<Integer>();
+	private int earlyRequests = 0;
+	private int runningRenders = 0;
+	private int maxRunningRenders = 0;
+	private List<Runnable> batch = null; // Requests buffered, null if no batch is started.
+	private int flushCount = 0;
+
+	/**
+	 * Creates a renderer checking the requests against a snapper, finishing
+	 * the requests as soon as they are posted.
+	 *
+	 * @param snapper
+	 *            The snapper extracting the XML files.
+	 */
+	public RecordingRenderer(MemorySnapper snapper) {
+		this(snapper, 0);
+	}
+
+	/**
+	 * Creates a renderer checking the requests against a snapper.
+	 *
+	 * @param snapper
+	 *            The snapper extracting the XML files.
+	 * @param renderDelay
+	 *            The duration in milliseconds of a rendering, run in a
+	 *            separate thread if not 0.
+	 */
+	public RecordingRenderer(MemorySnapper snapper, long renderDelay) {
+		super(null);
+		this.snapper = snapper;
+		this.renderDelay = renderDelay;
+	}
+
+	/**
+	 * Gets the documents posted, in the posting order.
+	 *
+	 * @return The document files.
+	 */
+	public synchronized List<File> getOutFiles() {
+		return new ArrayList<File>(outFiles);
+	}
+
+	/**
+	 * Gets the number of models extracted when each document was posted.
+	 *
+	 * @return The numbers of models, in the posting order.
+	 */
+	public synchronized List<Integer> getSnappedCounts() {
+		return new ArrayList<Integer>(snappedCounts);
+	}
+
+	/**
+	 * Gets the number of documents posted before their XML file was
+	 * extracted.
+	 *
+	 * @return The number of documents.
+	 */
+	public synchronized int getEarlyRequests() {
+		return earlyRequests;
+	}
+
+	/**
+	 * Gets the highest number of renderings which ran simultaneously.
+	 *
+	 * @return The number of renderings.
+	 */
+	public synchronized int getMaxRunningRenders() {
+		return maxRunningRenders;
+	}
+
+	/**
+	 * Gets the number of times a batch was flushed with requests buffered.
+	 *
+	 * @return The number of flushes.
+	 */
+	public synchronized int getFlushCount() {
+		return flushCount;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Renderer#asyncRender(java.io.File, java.io.File, java.lang.String[], java.io.File, com.leanpulse.syd.api.PdfSecurityOptions, boolean, com.leanpulse.syd.api.progress.IProgressMonitor)
+	 */
+	@Override
+	public void asyncRender(final File xmlFile, File xslFile, String[] xslParams, final File outFile, PdfSecurityOptions secOptions, boolean open, final IProgressMonitor mon) {
+		synchronized(this) {
+			if(batch != null) {
+				batch.add(new Runnable() {
+					public void run() {
+						record(xmlFile, outFile, mon);
+					}
+				});
+				return;
+			}
+		}
+		record(xmlFile, outFile, mon);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Renderer#beginBatch()
+	 */
+	@Override
+	public synchronized void beginBatch() {
+		batch = new ArrayList<Runnable>();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Renderer#endBatch()
+	 */
+	@Override
+	public void endBatch() {
+		List<Runnable> requests;
+		synchronized(this) {
+			requests = batch;
+			batch = null;
+		}
+		for(Runnable request : requests)
+			request.run();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.leanpulse.syd.api.Renderer#flushBatch()
+	 */
+	@Override
+	public void flushBatch() {
+		List<Runnable> requests;
+		synchronized(this) {
+			if(batch == null || batch.isEmpty())
+				return;
+			requests = batch;
+			batch = new ArrayList<Runnable>();
+			flushCount++;
+		}
+		for(Runnable request : requests)
+			request.run();
+	}
+
+	/*
+	 * Records a document posted, and starts its rendering.
+	 */
+	private void record(File xmlFile, final File outFile, final IProgressMonitor mon) {
+		mon.start("Rendering document \"" + outFile.getName() + "\"...", 1.0);
+		synchronized(this) {
+			if(!snapper.isSnapped(xmlFile))
+				earlyRequests++;
+			outFiles.add(outFile);
+			snappedCounts.add(snapper.getSnappedCount());
+			maxRunningRenders = Math.max(maxRunningRenders, ++runningRenders);
+		}
+		if(renderDelay > 0) {
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						Thread.sleep(renderDelay);
+					} catch (InterruptedException e) {}
+					finish(outFile, mon);
+				}
+			}).start();
+		} else {
+			finish(outFile, mon);
+		}
+	}
+
+	/*
+	 * Finishes the rendering of a document.
+	 */
+	private void finish(File outFile, IProgressMonitor mon) {
+		synchronized(this) {
+			runningRenders--;
+		}
+		mon.finish("Document \"" + outFile.getName() + "\" recorded.");
+	}
+
+}
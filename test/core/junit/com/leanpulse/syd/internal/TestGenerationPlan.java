@@ -0,0 +1,204 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.leanpulse.syd.api.GenProfileRenderConf;
+import com.leanpulse.syd.api.PdfSecurityOptions;
+import com.leanpulse.syd.api.Renderer;
+import com.leanpulse.syd.api.progress.IProgressMonitor;
+import com.leanpulse.syd.internal.progress.ThrowExStubMonitor;
+
+/**
+ * Tests the planning of generations from the index of the models, on a tree
+ * of 100 models read from XML files by a {@link XmlDirSnapper}.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see GenerationPlan
+ * @see ModelIndex
+ */
+public class TestGenerationPlan {
+
+	private static final int MODEL_COUNT = 100;
+
+	/*
+	 * Renderer writing an empty document for each request.
+	 */
+	private static class FileRenderer extends Renderer {
+		FileRenderer() {
+			super(null);
+		}
+
+		public void asyncRender(File xmlFile, File xslFile, String[] xslParams, File outFile, PdfSecurityOptions secOptions, boolean open, IProgressMonitor mon) {
+			mon.start("Rendering document \"" + outFile.getName() + "\"...", 1.0);
+			try {
+				writeFile(outFile, "");
+				mon.finish("Document \"" + outFile.getName() + "\" written.");
+			} catch (IOException e) {
+				mon.finish(null, e);
+			}
+		}
+	}
+
+	private File xmlDir;
+	private File outDir;
+	private XmlDirSnapper snapper;
+	private GenProfileRenderConf[] renderConfs;
+	private List<File> roots;
+
+	@Before
+	public void setUp() throws IOException {
+		xmlDir = File.createTempFile("sydplan", "");
+		xmlDir.delete();
+		xmlDir.mkdir();
+		outDir = new File(xmlDir, "out");
+		outDir.mkdir();
+		for(int i=0; i<MODEL_COUNT; i++) {
+			StringBuilder deps = new StringBuilder();
+			for(int j=4*i+1; j<=4*i+4 && j<MODEL_COUNT; j++)
+				deps.append(deps.length() > 0 ? "|" : "").append("mdl").append(j);
+			writeFile(new File(xmlDir, "mdl" + i + ".xml"), "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+					+ "<syd:model name=\"mdl" + i + "\" mdlversion=\"1." + i + "\"" + (deps.length() > 0 ? " mdldep=\"" + deps + "\"" : "") + ">\n"
+					+ "</syd:model>\n");
+		}
+		snapper = new XmlDirSnapper(xmlDir, outDir);
+		renderConfs = new GenProfileRenderConf[] {new MemoryRenderConf(GenProfileRenderConf.GENDEP_SEPDOCS)};
+		roots = Collections.singletonList(snapper.getModel("mdl0"));
+	}
+
+	@After
+	public void tearDown() {
+		delete(xmlDir);
+	}
+
+	/**
+	 * Checks that a generation can't be fully planned before the models are
+	 * indexed.
+	 */
+	@Test
+	public void testEmptyIndex() {
+		GenerationPlan plan = new ModelIndex().plan(roots, renderConfs, 1, 1);
+		assertFalse(plan.isComplete());
+		assertEquals(Collections.singleton(Utils.getCanonicalFile(roots.get(0))), plan.getUnknownModels());
+		assertEquals(1, plan.getDocuments().size());
+	}
+
+	/**
+	 * Checks that the models and documents are indexed during a generation,
+	 * the next generation being fully planned, with all its documents up to
+	 * date.
+	 */
+	@Test
+	public void testIndexedGeneration() {
+		ModelIndex index = new ModelIndex();
+		assertTrue(generate(index, null));
+		assertEquals("1.7", index.getModel(snapper.getModel("mdl7")).version);
+
+		GenerationPlan plan = index.plan(roots, renderConfs, 4, 4);
+		assertTrue(plan.isComplete());
+		assertEquals(MODEL_COUNT, plan.getDocuments().size());
+		assertTrue(plan.getStaleModels().isEmpty());
+		assertEquals(MODEL_COUNT, plan.getSkippedDocuments().size());
+		assertShares(plan);
+	}
+
+	/**
+	 * Checks that a model whose XML file changed is stale, its document
+	 * being rendered again and the others skipped.
+	 */
+	@Test
+	public void testStaleModel() {
+		ModelIndex index = new ModelIndex();
+		assertTrue(generate(index, null));
+		File xmlFile = new File(xmlDir, "mdl5.xml");
+		assertTrue(xmlFile.setLastModified(xmlFile.lastModified() + 10000));
+
+		GenerationPlan plan = index.plan(roots, renderConfs, 4, 4);
+		assertEquals(Collections.singleton(Utils.getCanonicalFile(snapper.getModel("mdl5"))), plan.getStaleModels());
+		assertEquals(MODEL_COUNT - 1, plan.getSkippedDocuments().size());
+		assertFalse(plan.getSkippedDocuments().contains(Utils.getCanonicalFile(new File(outDir, "mdl5.pdf"))));
+	}
+
+	/**
+	 * Checks that the index is saved and loaded back, and that a generation
+	 * weighted by a plan reports its progress.
+	 */
+	@Test
+	public void testSavedIndex() {
+		ModelIndex index = new ModelIndex();
+		assertTrue(generate(index, null));
+		File indexFile = new File(xmlDir, ModelIndex.INDEX_FILE_NAME);
+		index.save(indexFile);
+		assertTrue(indexFile.isFile());
+
+		ModelIndex loaded = ModelIndex.load(indexFile);
+		GenerationPlan plan = loaded.plan(roots, renderConfs, 4, 4);
+		assertTrue(plan.isComplete());
+		assertEquals(MODEL_COUNT, plan.getSkippedDocuments().size());
+		assertTrue(generate(loaded, plan));
+	}
+
+	/*
+	 * Generates the tree of models, recording it in the index, possibly weighted by a plan.
+	 */
+	private boolean generate(ModelIndex index, GenerationPlan plan) {
+		GenerationScheduler scheduler = new GenerationScheduler(snapper, new GenProfileSnapConfImpl(), new FileRenderer(), new ThrowExStubMonitor(), 4);
+		scheduler.setIndex(index);
+		if(plan != null)
+			scheduler.setPlan(plan, 95.0);
+		scheduler.scheduleRoot(roots.get(0), renderConfs, 25.0, 70.0);
+		return scheduler.await();
+	}
+
+	/*
+	 * Checks that the shares of the extractions and renderings of a plan add up to 1.
+	 */
+	private void assertShares(GenerationPlan plan) {
+		double total = 0.0;
+		for(int i=0; i<MODEL_COUNT; i++) {
+			total += plan.getSnapShare(snapper.getModel("mdl" + i));
+			total += plan.getRenderShare(new File(outDir, "mdl" + i + ".pdf"));
+		}
+		assertEquals(1.0, total, 1e-9);
+	}
+
+	/*
+	 * Writes a file with the given content.
+	 */
+	private static void writeFile(File file, String content) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(content);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/*
+	 * Deletes a directory and its content.
+	 */
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null)
+			for(File child : children)
+				delete(child);
+		file.delete();
+	}
+
+}
@@ -0,0 +1,263 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.leanpulse.syd.api.GenProfileRenderConf;
+import com.leanpulse.syd.api.progress.IProgressMonitor;
+import com.leanpulse.syd.internal.progress.ThrowExStubMonitor;
+
+/**
+ * Tests the scheduling of the extractions and renderings of a model
+ * hierarchy on synthetic hierarchies of 1000 models, extracted by a
+ * {@link MemorySnapper} and rendered by a {@link RecordingRenderer}.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see GenerationScheduler
+ */
+public class TestGenerationScheduler {
+
+	private static final int MODEL_COUNT = 1000;
+
+	/**
+	 * Checks that a tree of models is generated with a snapper which isn't
+	 * thread-safe, each model being extracted once by the calling thread.
+	 */
+	@Test
+	public void testSequentialTree() {
+		MemorySnapper snapper = new MemorySnapper(false, 0);
+		snapper.buildTree(MODEL_COUNT, 4);
+		RecordingRenderer renderer = new RecordingRenderer(snapper);
+
+		assertTrue(generate(snapper, renderer, GenProfileRenderConf.GENDEP_SEPDOCS));
+		checkAllRendered(snapper, renderer);
+		assertEquals(1, snapper.getMaxRunningSnaps());
+	}
+
+	/**
+	 * Checks that a tree of models is extracted concurrently with a
+	 * thread-safe snapper, the documents being posted while the extraction of
+	 * the hierarchy is still running.
+	 */
+	@Test
+	public void testConcurrentTree() {
+		MemorySnapper snapper = new MemorySnapper(true, 2);
+		snapper.buildTree(MODEL_COUNT, 4);
+		RecordingRenderer renderer = new RecordingRenderer(snapper);
+
+		assertTrue(generate(snapper, renderer, GenProfileRenderConf.GENDEP_SEPDOCS));
+		checkAllRendered(snapper, renderer);
+		assertTrue(snapper.getMaxRunningSnaps() > 1);
+		assertTrue(renderer.getSnappedCounts().get(1) < MODEL_COUNT);
+	}
+
+	/**
+	 * Checks that a document embedding a hierarchy where models are
+	 * referenced several times is only posted once all the models are
+	 * extracted, each of them once.
+	 */
+	@Test
+	public void testEmbeddedLattice() {
+		MemorySnapper snapper = new MemorySnapper(true, 0);
+		snapper.buildLattice(MODEL_COUNT);
+		RecordingRenderer renderer = new RecordingRenderer(snapper);
+
+		assertTrue(generate(snapper, renderer, GenProfileRenderConf.GENDEP_EMBED));
+		assertEquals(1, renderer.getOutFiles().size());
+		assertEquals(MODEL_COUNT, (int) renderer.getSnappedCounts().get(0));
+		for(int i=0; i<MODEL_COUNT; i++)
+			assertEquals(1, snapper.getSnapCount(MemorySnapper.model(i)));
+	}
+
+	/**
+	 * Checks that the models referenced several times by a hierarchy of
+	 * separate documents are extracted and rendered once.
+	 */
+	@Test
+	public void testSeparateLattice() {
+		MemorySnapper snapper = new MemorySnapper(true, 0);
+		snapper.buildLattice(MODEL_COUNT);
+		RecordingRenderer renderer = new RecordingRenderer(snapper);
+
+		assertTrue(generate(snapper, renderer, GenProfileRenderConf.GENDEP_SEPDOCS));
+		checkAllRendered(snapper, renderer);
+	}
+
+	/**
+	 * Checks that the references to a model through different paths are
+	 * recognized as the same model.
+	 */
+	@Test
+	public void testCanonicalReferences() {
+		MemorySnapper snapper = new MemorySnapper(false, 0);
+		snapper.buildTree(MODEL_COUNT, 4);
+		File mdlDir = MemorySnapper.model(6).getParentFile();
+		snapper.addReference(1, new File(new File(mdlDir, "sub"), ".." + File.separator + "mdl6.mdl"));
+		snapper.addReference(2, new File(new File(mdlDir, "sub"), ".." + File.separator + "mdl6.mdl"));
+		RecordingRenderer renderer = new RecordingRenderer(snapper);
+
+		assertTrue(generate(snapper, renderer, GenProfileRenderConf.GENDEP_SEPDOCS));
+		checkAllRendered(snapper, renderer);
+	}
+
+	/**
+	 * Checks that a cycle of references is reported as an error, for both
+	 * separate and embedded documents.
+	 */
+	@Test
+	public void testCycle() {
+		for(int gendep : new int[] {GenProfileRenderConf.GENDEP_SEPDOCS, GenProfileRenderConf.GENDEP_EMBED}) {
+			MemorySnapper snapper = new MemorySnapper(true, 0);
+			snapper.buildTree(MODEL_COUNT, 4);
+			snapper.addReference(999, MemorySnapper.model(62));
+			RecordingRenderer renderer = new RecordingRenderer(snapper);
+
+			ThrowExStubMonitor mon = new ThrowExStubMonitor();
+			assertFalse(generate(snapper, renderer, gendep, mon));
+			assertTrue(mon.getStoppingException().getMessage().contains("mdl999.mdl > mdl62.mdl > mdl249.mdl > mdl999.mdl"));
+			assertFalse(renderer.getOutFiles().contains(new File(MemorySnapper.model(999).getParentFile(), "mdl999.pdf")));
+		}
+	}
+
+	/**
+	 * Checks that the hierarchies of several root models sharing most of
+	 * their models are generated in a single batch, each model being
+	 * extracted and rendered once, with a limited number of renderings at
+	 * once.
+	 */
+	@Test
+	public void testSeveralRoots() {
+		MemorySnapper snapper = new MemorySnapper(true, 0);
+		snapper.buildLattice(MODEL_COUNT);
+		RecordingRenderer renderer = new RecordingRenderer(snapper, 1);
+
+		ThrowExStubMonitor mon = new ThrowExStubMonitor();
+		GenerationScheduler scheduler = new GenerationScheduler(snapper, new GenProfileSnapConfImpl(), renderer, mon, 8);
+		scheduler.setMaxRenders(4);
+		GenProfileRenderConf[] renderConfs = new GenProfileRenderConf[] {new MemoryRenderConf(GenProfileRenderConf.GENDEP_SEPDOCS)};
+		for(int i=0; i<10; i++)
+			scheduler.scheduleRoot(MemorySnapper.model(i), renderConfs, 25.0 / 10, 70.0 / 10);
+		assertTrue(scheduler.await());
+
+		checkAllRendered(snapper, renderer);
+		assertTrue(renderer.getMaxRunningRenders() <= 4);
+	}
+
+	/**
+	 * Checks that the render requests beyond the limit are queued without
+	 * blocking the extractions, all the models being extracted before the
+	 * first renderings finish.
+	 */
+	@Test
+	public void testQueuedRenders() {
+		MemorySnapper snapper = new MemorySnapper(false, 0);
+		snapper.buildTree(MODEL_COUNT, 4);
+		RecordingRenderer renderer = new RecordingRenderer(snapper, 200);
+
+		ThrowExStubMonitor mon = new ThrowExStubMonitor();
+		GenerationScheduler scheduler = new GenerationScheduler(snapper, new GenProfileSnapConfImpl(), renderer, mon, 1);
+		scheduler.setMaxRenders(100);
+		scheduler.scheduleRoot(MemorySnapper.model(0), new GenProfileRenderConf[] {new MemoryRenderConf(GenProfileRenderConf.GENDEP_SEPDOCS)}, 25.0, 70.0);
+		assertTrue(scheduler.await());
+
+		checkAllRendered(snapper, renderer);
+		assertTrue(renderer.getMaxRunningRenders() <= 100);
+		assertEquals(MODEL_COUNT, (int) renderer.getSnappedCounts().get(100));
+	}
+
+	/**
+	 * Checks that the requests buffered by a batch of the renderer are
+	 * submitted while the hierarchy is still extracted, the requests queued
+	 * by the limit of renderings not waiting for the end of the batch.
+	 */
+	@Test(timeout = 60000)
+	public void testBatchedRenders() {
+		MemorySnapper snapper = new MemorySnapper(false, 0);
+		snapper.buildTree(MODEL_COUNT, 4);
+		RecordingRenderer renderer = new RecordingRenderer(snapper, 1);
+
+		ThrowExStubMonitor mon = new ThrowExStubMonitor();
+		GenerationScheduler scheduler = new GenerationScheduler(snapper, new GenProfileSnapConfImpl(), renderer, mon, 1);
+		scheduler.setMaxRenders(4);
+		renderer.beginBatch();
+		try {
+			scheduler.scheduleRoot(MemorySnapper.model(0), new GenProfileRenderConf[] {new MemoryRenderConf(GenProfileRenderConf.GENDEP_SEPDOCS)}, 25.0, 70.0);
+			assertTrue(scheduler.await());
+		} finally {
+			renderer.endBatch();
+		}
+
+		checkAllRendered(snapper, renderer);
+		assertTrue(renderer.getMaxRunningRenders() <= 4);
+		assertTrue(renderer.getFlushCount() > 1);
+	}
+
+	/**
+	 * Checks that the generation stops when the extraction of a model fails,
+	 * its references not being extracted.
+	 */
+	@Test
+	public void testFailedSnap() {
+		MemorySnapper snapper = new MemorySnapper(true, 0);
+		snapper.buildTree(MODEL_COUNT, 4);
+		snapper.addFailure(MemorySnapper.model(1));
+		RecordingRenderer renderer = new RecordingRenderer(snapper);
+
+		assertFalse(generate(snapper, renderer, GenProfileRenderConf.GENDEP_SEPDOCS));
+		assertEquals(0, snapper.getSnapCount(MemorySnapper.model(5)));
+		assertFalse(renderer.getOutFiles().contains(new File(MemorySnapper.model(1).getParentFile(), "mdl1.pdf")));
+	}
+
+	/*
+	 * Extracts the root model of the hierarchy and schedules its generation.
+	 */
+	private static boolean generate(MemorySnapper snapper, RecordingRenderer renderer, int gendep) {
+		return generate(snapper, renderer, gendep, new ThrowExStubMonitor());
+	}
+
+	/*
+	 * Extracts the root model of the hierarchy and schedules its generation, reporting to the given monitor.
+	 */
+	private static boolean generate(MemorySnapper snapper, RecordingRenderer renderer, int gendep, IProgressMonitor mon) {
+		File mdlFile = MemorySnapper.model(0);
+		File xmlFile = snapper.getDefaultSnapFile(mdlFile);
+		List<File> refMdls = snapper.snap(mdlFile, false, false, new HashMap<String, String>(0), xmlFile, mon.createSubProgress("Extracting...", 25.0));
+		assertTrue(refMdls != null);
+
+		GenProfileRenderConf renderConf = new MemoryRenderConf(gendep);
+		File outFile = renderConf.computeOutput(mdlFile, mdlFile.getParentFile());
+		GenerationScheduler scheduler = new GenerationScheduler(snapper, new GenProfileSnapConfImpl(), renderer, mon, 8);
+		if(!scheduler.addModel(mdlFile, xmlFile, refMdls))
+			return false;
+		scheduler.schedule(renderConf, new ArrayList<GenProfileRenderConf>(0), xmlFile, outFile, new ArrayList<File>(0),
+				refMdls, renderConf.getSubParentDir(outFile, mdlFile.getParentFile()), 70.0);
+		return scheduler.await();
+	}
+
+	/*
+	 * Checks that each model was extracted once and rendered once, after its extraction.
+	 */
+	private static void checkAllRendered(MemorySnapper snapper, RecordingRenderer renderer) {
+		List<File> outFiles = renderer.getOutFiles();
+		assertEquals(MODEL_COUNT, outFiles.size());
+		assertEquals(MODEL_COUNT, new HashSet<File>(outFiles).size());
+		assertEquals(0, renderer.getEarlyRequests());
+		for(int i=0; i<MODEL_COUNT; i++)
+			assertEquals(1, snapper.getSnapCount(MemorySnapper.model(i)));
+	}
+
+}
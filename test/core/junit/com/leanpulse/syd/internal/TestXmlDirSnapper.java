@@ -0,0 +1,113 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.leanpulse.syd.internal.progress.ThrowExStubMonitor;
+
+/**
+ * Tests the rebuilding of model hierarchies from the XML files of a
+ * directory.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see XmlDirSnapper
+ */
+public class TestXmlDirSnapper {
+
+	private File xmlDir;
+	private File outDir;
+
+	@Before
+	public void setUp() throws IOException {
+		xmlDir = File.createTempFile("sydxml", "");
+		xmlDir.delete();
+		xmlDir.mkdir();
+		outDir = new File(xmlDir, "out");
+		writeXml("top", "mid1|mid2");
+		writeXml("mid1", "leaf");
+		writeXml("mid2", "leaf");
+		writeXml("leaf", null);
+	}
+
+	@After
+	public void tearDown() {
+		for(File file : xmlDir.listFiles())
+			file.delete();
+		xmlDir.delete();
+	}
+
+	/**
+	 * Checks that the models referenced by an XML file are read from its
+	 * <code>mdldep</code> attribute, and located in the output directory.
+	 */
+	@Test
+	public void testReadReferences() {
+		XmlDirSnapper snapper = new XmlDirSnapper(xmlDir, outDir);
+		File mdlFile = snapper.getModel("top");
+		File xmlFile = snapper.getDefaultSnapFile(mdlFile);
+		assertEquals(new File(xmlDir, "top.xml"), xmlFile);
+
+		List<File> refMdls = snapper.snap(mdlFile, false, false, new HashMap<String, String>(0), xmlFile, new ThrowExStubMonitor());
+		assertEquals(Arrays.asList(snapper.getModel("mid1"), snapper.getModel("mid2")), refMdls);
+		assertEquals(Utils.getCanonicalFile(outDir), refMdls.get(0).getParentFile());
+
+		File leafFile = snapper.getModel("leaf");
+		assertTrue(snapper.snap(leafFile, false, false, new HashMap<String, String>(0), snapper.getDefaultSnapFile(leafFile), new ThrowExStubMonitor()).isEmpty());
+	}
+
+	/**
+	 * Checks that a model without XML file fails to be extracted.
+	 */
+	@Test
+	public void testMissingXml() {
+		XmlDirSnapper snapper = new XmlDirSnapper(xmlDir, outDir);
+		File mdlFile = snapper.getModel("other");
+		ThrowExStubMonitor mon = new ThrowExStubMonitor();
+		assertNull(snapper.snap(mdlFile, false, false, new HashMap<String, String>(0), snapper.getDefaultSnapFile(mdlFile), mon));
+		assertTrue(mon.hasError());
+	}
+
+	/**
+	 * Checks the reading of the dependencies of the XML files.
+	 */
+	@Test
+	public void testReadDependencies() {
+		assertArrayEquals(new String[] {"mid1", "mid2"}, XmlDirSnapper.readDependencies(new File(xmlDir, "top.xml")));
+		assertArrayEquals(new String[0], XmlDirSnapper.readDependencies(new File(xmlDir, "leaf.xml")));
+		assertNull(XmlDirSnapper.readDependencies(new File(xmlDir, "other.xml")));
+	}
+
+	/*
+	 * Writes the XML file of a model with the given references.
+	 */
+	private void writeXml(String mdlName, String mdlDeps) throws IOException {
+		FileWriter writer = new FileWriter(new File(xmlDir, mdlName + ".xml"));
+		try {
+			writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			writer.write("<syd:model xmlns:syd=\"http://www.leanpulse.com/schemas/syd/2011/core\" name=\"" + mdlName + "\""
+					+ (mdlDeps != null ? " mdldep=\"" + mdlDeps + "\"" : "") + ">\n");
+			writer.write("</syd:model>\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+}
@@ -0,0 +1,158 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.leanpulse.syd.internal.progress.ThrowExStubMonitor;
+
+/**
+ * Tests the admission of the render jobs according to the heap budget of the
+ * rendering server, and the queue of the jobs waiting for memory.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see AdmissionController
+ */
+public class TestAdmissionController {
+
+	private static final long MB = 1024L * 1024L;
+
+	/*
+	 * Heap needed by a job whose input XML is 1MB large, with the default ratio.
+	 */
+	private static final long JOB_ESTIMATE = 16L * MB + 20L * MB;
+
+	private static final long BUDGET = 100L * MB;
+
+	/*
+	 * Monitor recording the messages reported to it.
+	 */
+	private static class RecordingMonitor extends ThrowExStubMonitor {
+		final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public void progress(String description) {
+			messages.add(description);
+		}
+	}
+
+	private AdmissionController controller;
+	private List<String> started;
+
+	@Before
+	public void setUp() {
+		controller = new AdmissionController(BUDGET);
+		started = Collections.synchronizedList(new ArrayList<String>());
+	}
+
+	/**
+	 * Checks that a job is admitted when no other job is running, even if its
+	 * estimate exceeds the budget.
+	 */
+	@Test
+	public void testAlone() {
+		AdmissionController.Ticket ticket = newTicket("big", 10L * MB, new RecordingMonitor());
+		controller.submit(ticket);
+		assertEquals(Arrays.asList("big"), started);
+		assertEquals(0, controller.getPendingCount());
+		assertTrue(controller.getHeadroom() < 0);
+
+		controller.release(ticket, true);
+		assertEquals(0, controller.getJobCount());
+		assertEquals(BUDGET, controller.getHeadroom());
+	}
+
+	/**
+	 * Checks that the jobs exceeding the budget wait for the running ones, and
+	 * are started in the order of their submission, a small job not
+	 * overtaking a larger one queued before it.
+	 */
+	@Test
+	public void testQueue() {
+		AdmissionController.Ticket a = newTicket("a", MB, new RecordingMonitor());
+		AdmissionController.Ticket b = newTicket("b", MB, new RecordingMonitor());
+		RecordingMonitor cMon = new RecordingMonitor();
+		AdmissionController.Ticket c = newTicket("c", MB, cMon);
+		RecordingMonitor dMon = new RecordingMonitor();
+		AdmissionController.Ticket d = newTicket("d", 0L, dMon);
+		controller.submit(a);
+		controller.submit(b);
+		controller.submit(c);
+		controller.submit(d); // Would fit, but c is queued before it.
+		assertEquals(Arrays.asList("a", "b"), started);
+		assertEquals(2, controller.getPendingCount());
+		assertEquals(4, controller.getJobCount());
+		assertEquals(BUDGET - 2 * JOB_ESTIMATE, controller.getHeadroom());
+		assertEquals(Arrays.asList("Waiting for memory to render \"c\"..."), cMon.messages);
+		assertEquals(Arrays.asList("Waiting for memory to render \"d\"..."), dMon.messages);
+
+		controller.release(a, false);
+		assertEquals(Arrays.asList("a", "b", "c", "d"), started);
+		assertEquals(0, controller.getPendingCount());
+		assertEquals(BUDGET - 2 * JOB_ESTIMATE - 16L * MB, controller.getHeadroom());
+		assertEquals("Rendering \"c\"...", cMon.messages.get(1));
+		assertEquals("Rendering \"d\"...", dMon.messages.get(1));
+
+		// Releasing twice has no effect.
+		controller.release(a, false);
+		assertEquals(3, controller.getJobCount());
+	}
+
+	/**
+	 * Checks that a job finished while still queued is removed from the queue
+	 * and never started.
+	 */
+	@Test
+	public void testCancelQueued() {
+		AdmissionController.Ticket a = newTicket("a", 10L * MB, new RecordingMonitor());
+		AdmissionController.Ticket b = newTicket("b", MB, new RecordingMonitor());
+		controller.submit(a);
+		controller.submit(b);
+		assertEquals(1, controller.getPendingCount());
+
+		controller.release(b, false);
+		assertEquals(0, controller.getPendingCount());
+		controller.release(a, true);
+		assertEquals(Arrays.asList("a"), started);
+		assertEquals(0, controller.getJobCount());
+	}
+
+	/**
+	 * Checks that the heap ratio is doubled when a job exhausted the heap.
+	 */
+	@Test
+	public void testOutOfMemory() {
+		AdmissionController.Ticket a = newTicket("a", MB, new RecordingMonitor());
+		controller.submit(a);
+		controller.release(a, true);
+
+		AdmissionController.Ticket b = newTicket("b", MB, new RecordingMonitor());
+		controller.submit(b);
+		assertEquals(BUDGET - 16L * MB - 40L * MB, controller.getHeadroom());
+		controller.release(b, true);
+	}
+
+	/*
+	 * Creates the ticket of a job recording its start.
+	 */
+	private AdmissionController.Ticket newTicket(final String name, long xmlSize, RecordingMonitor mon) {
+		return new AdmissionController.Ticket(name, xmlSize, mon, new Runnable() {
+			public void run() {
+				started.add(name);
+			}
+		});
+	}
+
+}
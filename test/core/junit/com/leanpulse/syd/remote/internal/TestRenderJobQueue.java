@@ -0,0 +1,217 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.leanpulse.syd.api.PdfSecurityOptions;
+import com.leanpulse.syd.remote.IRendererRm;
+import com.leanpulse.syd.remote.ProgressEventRm;
+import com.leanpulse.syd.remote.RenderJob;
+import com.leanpulse.syd.remote.RenderJobStatus;
+
+/**
+ * Tests the state of the jobs submitted in batches to a rendering server,
+ * aggregated from the progress events of their documents, and the journal
+ * of the jobs not ended.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see RenderJobQueue
+ */
+public class TestRenderJobQueue {
+
+	private static final double EPSILON = 1e-9;
+
+	/*
+	 * Server recording the monitors of the documents it is requested to render, without rendering them.
+	 */
+	private static class ServerStub implements InvocationHandler {
+		final List<String> startedMonIds = new ArrayList<String>();
+
+		IRendererRm newProxy() {
+			return (IRendererRm) Proxy.newProxyInstance(IRendererRm.class.getClassLoader(), new Class<?>[] {IRendererRm.class}, this);
+		}
+
+		public synchronized Object invoke(Object proxy, Method method, Object[] args) {
+			if(method.getName().equals("startRendering")) {
+				Object monIds = args[args.length-1];
+				if(monIds instanceof String[])
+					startedMonIds.addAll(Arrays.asList((String[]) monIds));
+				else
+					startedMonIds.add((String) monIds);
+			}
+			return null;
+		}
+	}
+
+	private File journalFile;
+
+	@Before
+	public void setUp() throws IOException {
+		journalFile = File.createTempFile("sydjobs", ".journal");
+		journalFile.delete();
+	}
+
+	@After
+	public void tearDown() {
+		System.clearProperty(RenderJobQueue.JOURNAL_PROPERTY);
+		journalFile.delete();
+	}
+
+	/**
+	 * Checks that the progress of a job rendered to several documents is
+	 * aggregated from the work of each document and of their sub-tasks.
+	 */
+	@Test
+	public void testProgress() {
+		ServerStub server = new ServerStub();
+		RenderJobQueue queue = new RenderJobQueue(server.newProxy());
+		String jobId = queue.submit(Collections.singletonList(newJob(2)))[0];
+		assertEquals(Arrays.asList(jobId + "-0", jobId + "-1"), server.startedMonIds);
+		assertEquals(RenderJobStatus.QUEUED, query(queue, jobId).getState());
+
+		queue.update(new ProgressEventRm[] {
+				new ProgressEventRm(ProgressEventRm.START, jobId + "-0", "Rendering doc0...", 1.0, null, null),
+				new ProgressEventRm(ProgressEventRm.PROGRESS, jobId + "-0", null, 0.5, null, null)});
+		RenderJobStatus status = query(queue, jobId);
+		assertEquals(RenderJobStatus.RUNNING, status.getState());
+		assertEquals("Rendering doc0...", status.getDescription());
+		assertEquals(0.25, status.getProgress(), EPSILON);
+
+		// Half of the second document is done by a sub-task.
+		queue.update(new ProgressEventRm[] {
+				new ProgressEventRm(ProgressEventRm.START, jobId + "-1", "Rendering doc1...", 2.0, null, null),
+				new ProgressEventRm(ProgressEventRm.SUB_PROGRESS, jobId + "-1", "Layout", 1.0, jobId + "-1.0", null),
+				new ProgressEventRm(ProgressEventRm.START, jobId + "-1.0", null, 4.0, null, null),
+				new ProgressEventRm(ProgressEventRm.PROGRESS, jobId + "-1.0", null, 4.0, null, null),
+				new ProgressEventRm(ProgressEventRm.FINISH, jobId + "-1.0", null, 0.0, null, null)});
+		status = query(queue, jobId);
+		assertEquals("Rendering doc1...", status.getDescription());
+		assertEquals(0.5, status.getProgress(), EPSILON);
+
+		queue.update(new ProgressEventRm[] {new ProgressEventRm(ProgressEventRm.FINISH, jobId + "-0", "doc0 rendered.", 0.0, null, null)});
+		status = query(queue, jobId);
+		assertEquals(RenderJobStatus.RUNNING, status.getState());
+		assertEquals(1, status.getRenderedCount());
+
+		queue.update(new ProgressEventRm[] {new ProgressEventRm(ProgressEventRm.FINISH, jobId + "-1", "doc1 rendered.", 0.0, null, null)});
+		status = query(queue, jobId);
+		assertEquals(RenderJobStatus.DONE, status.getState());
+		assertTrue(status.isEnded());
+		assertEquals(2, status.getRenderedCount());
+		assertEquals(1.0, status.getProgress(), EPSILON);
+		assertNull(status.getError());
+	}
+
+	/**
+	 * Checks that a job fails with the first error of its documents.
+	 */
+	@Test
+	public void testFailure() {
+		RenderJobQueue queue = new RenderJobQueue(new ServerStub().newProxy());
+		String jobId = queue.submit(Collections.singletonList(newJob(2)))[0];
+		IOException error = new IOException("Layout failure");
+		queue.update(new ProgressEventRm[] {
+				new ProgressEventRm(ProgressEventRm.FINISH, jobId + "-0", null, 0.0, null, error),
+				new ProgressEventRm(ProgressEventRm.FINISH, jobId + "-1", null, 0.0, null, new IOException("Other failure"))});
+		RenderJobStatus status = query(queue, jobId);
+		assertEquals(RenderJobStatus.FAILED, status.getState());
+		assertEquals(0, status.getRenderedCount());
+		assertNotNull(status.getError());
+		assertEquals("Layout failure", status.getError().getMessage());
+	}
+
+	/**
+	 * Checks that a job is only cancelled while not ended, and ends as
+	 * cancelled once its documents are finished.
+	 */
+	@Test
+	public void testCancel() {
+		RenderJobQueue queue = new RenderJobQueue(new ServerStub().newProxy());
+		assertFalse(queue.cancel("unknown"));
+		assertEquals(RenderJobStatus.UNKNOWN, query(queue, "unknown").getState());
+
+		String jobId = queue.submit(Collections.singletonList(newJob(1)))[0];
+		assertTrue(queue.cancel(jobId));
+		queue.update(new ProgressEventRm[] {
+				new ProgressEventRm(ProgressEventRm.CANCEL, jobId, null, 0.0, null, null),
+				new ProgressEventRm(ProgressEventRm.FINISH, jobId, "Rendering cancelled by user.", 0.0, null, null)});
+		RenderJobStatus status = query(queue, jobId);
+		assertEquals(RenderJobStatus.CANCELED, status.getState());
+		assertEquals(0, status.getRenderedCount());
+		assertFalse(queue.cancel(jobId));
+	}
+
+	/**
+	 * Checks that the jobs not ended are journaled and rendered again by the
+	 * queue of the next server.
+	 */
+	@Test
+	public void testJournal() {
+		System.setProperty(RenderJobQueue.JOURNAL_PROPERTY, journalFile.getPath());
+		RenderJobQueue queue = new RenderJobQueue(new ServerStub().newProxy());
+		String[] jobIds = queue.submit(Arrays.asList(newJob(1), newJob(2)));
+		assertTrue(journalFile.isFile());
+		queue.update(new ProgressEventRm[] {new ProgressEventRm(ProgressEventRm.FINISH, jobIds[0], null, 0.0, null, null)});
+
+		ServerStub nextServer = new ServerStub();
+		RenderJobQueue nextQueue = new RenderJobQueue(nextServer.newProxy());
+		nextQueue.resume();
+		assertEquals(Arrays.asList(jobIds[1] + "-0", jobIds[1] + "-1"), nextServer.startedMonIds);
+		assertEquals(RenderJobStatus.UNKNOWN, query(nextQueue, jobIds[0]).getState());
+		assertEquals(RenderJobStatus.QUEUED, query(nextQueue, jobIds[1]).getState());
+
+		// Resuming twice doesn't render the job again.
+		nextQueue.resume();
+		assertEquals(2, nextServer.startedMonIds.size());
+
+		nextQueue.update(new ProgressEventRm[] {
+				new ProgressEventRm(ProgressEventRm.FINISH, jobIds[1] + "-0", null, 0.0, null, null),
+				new ProgressEventRm(ProgressEventRm.FINISH, jobIds[1] + "-1", null, 0.0, null, null)});
+		ServerStub lastServer = new ServerStub();
+		new RenderJobQueue(lastServer.newProxy()).resume();
+		assertTrue(lastServer.startedMonIds.isEmpty());
+	}
+
+	/*
+	 * Creates a job rendering a document to the given number of outputs.
+	 */
+	private static RenderJob newJob(int outputs) {
+		File[] outFiles = new File[outputs];
+		PdfSecurityOptions[] secOptions = new PdfSecurityOptions[outputs];
+		for(int i=0; i<outputs; i++) {
+			outFiles[i] = new File("doc" + i + ".pdf");
+			secOptions[i] = new PdfSecurityOptions();
+		}
+		return new RenderJob(new File("doc.xml"), new File("doc.xsl"), new String[0], outFiles, secOptions, new boolean[outputs]);
+	}
+
+	/*
+	 * Gets the state of a job.
+	 */
+	private static RenderJobStatus query(RenderJobQueue queue, String jobId) {
+		return queue.query(new String[] {jobId})[0];
+	}
+
+}
@@ -0,0 +1,157 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Tests the replay of SAX events in a consuming thread, the failures on each
+ * side of the pipe being reported to the other one.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see SaxEventPipe
+ */
+public class TestSaxEventPipe {
+
+	/*
+	 * Number of events sent, several times the capacity of the ring.
+	 */
+	private static final int EVENT_COUNT = 20000;
+
+	/*
+	 * Content handler recording the events replayed, and failing on a given element if required.
+	 */
+	private static class RecordingHandler extends DefaultHandler {
+		private final List<String> events = new ArrayList<String>();
+		private final int failingElement;
+
+		RecordingHandler(int failingElement) {
+			this.failingElement = failingElement;
+		}
+
+		public void startDocument() {
+			events.add("startDocument");
+		}
+
+		public void endDocument() {
+			events.add("endDocument");
+		}
+
+		public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+			if(events.size() == failingElement)
+				throw new SAXException("Layout failure");
+			events.add("<" + qName + " id=" + atts.getValue("id") + ">");
+		}
+
+		public void endElement(String uri, String localName, String qName) {
+			events.add("</" + qName + ">");
+		}
+
+		public void characters(char[] ch, int start, int length) {
+			events.add(new String(ch, start, length));
+		}
+	}
+
+	/**
+	 * Checks that the events are replayed in order when the ring wraps
+	 * around several times, the attributes and characters of each event
+	 * being copied before their slot is reused.
+	 */
+	@Test(timeout = 30000)
+	public void testOrder() throws Exception {
+		RecordingHandler handler = new RecordingHandler(-1);
+		SaxEventPipe pipe = new SaxEventPipe(handler, "TestSaxConsumer");
+		char[] text = new char[256];
+		pipe.startDocument();
+		for(int i=0; i<EVENT_COUNT; i++)
+			sendElement(pipe, i, text);
+		pipe.endDocument();
+		pipe.close();
+
+		assertEquals(3 * EVENT_COUNT + 2, handler.events.size());
+		assertEquals("startDocument", handler.events.get(0));
+		for(int i=0; i<EVENT_COUNT; i++) {
+			assertEquals("<elt id=" + i + ">", handler.events.get(3 * i + 1));
+			assertEquals("text" + i, handler.events.get(3 * i + 2));
+			assertEquals("</elt>", handler.events.get(3 * i + 3));
+		}
+		assertEquals("endDocument", handler.events.get(3 * EVENT_COUNT + 1));
+	}
+
+	/**
+	 * Checks that a failure of the consumer stops the producer, and is thrown
+	 * when the pipe is closed.
+	 */
+	@Test(timeout = 30000)
+	public void testConsumerFailure() throws Exception {
+		RecordingHandler handler = new RecordingHandler(301);
+		SaxEventPipe pipe = new SaxEventPipe(handler, "TestSaxConsumer");
+		char[] text = new char[16];
+		int sent = 0;
+		try {
+			pipe.startDocument();
+			for(; sent<EVENT_COUNT; sent++)
+				sendElement(pipe, sent, text);
+			pipe.endDocument();
+			fail("The producer wasn't aborted.");
+		} catch (SAXException e) {
+			assertTrue(sent < EVENT_COUNT);
+		}
+
+		try {
+			pipe.close();
+			fail("The failure of the consumer wasn't thrown.");
+		} catch (SAXException e) {
+			assertEquals("Layout failure", e.getMessage());
+		}
+		assertEquals(301, handler.events.size());
+	}
+
+	/**
+	 * Checks that the consumer is aborted if the producer stops before the
+	 * end of the document, the pipe being closed without failure.
+	 */
+	@Test(timeout = 30000)
+	public void testProducerAbort() throws Exception {
+		RecordingHandler handler = new RecordingHandler(-1);
+		SaxEventPipe pipe = new SaxEventPipe(handler, "TestSaxConsumer");
+		char[] text = new char[16];
+		pipe.startDocument();
+		for(int i=0; i<1000; i++)
+			sendElement(pipe, i, text);
+		pipe.close();
+
+		assertFalse(handler.events.contains("endDocument"));
+	}
+
+	/*
+	 * Sends an element with an attribute and a text, reusing the same buffers as a parser would.
+	 */
+	private static void sendElement(SaxEventPipe pipe, int i, char[] text) throws SAXException {
+		AttributesImpl atts = new AttributesImpl();
+		atts.addAttribute("", "id", "id", "CDATA", Integer.toString(i));
+		pipe.startElement("", "elt", "elt", atts);
+		atts.clear();
+		String str = "text" + i;
+		str.getChars(0, str.length(), text, 0);
+		pipe.characters(text, 0, str.length());
+		text[0] = '#';
+		pipe.endElement("", "elt", "elt");
+	}
+
+}
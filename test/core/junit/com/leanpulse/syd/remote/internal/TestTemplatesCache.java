@@ -0,0 +1,159 @@
+/*********************************************
+ * Copyright (c) 2014 LeanPulse.
+ * All rights reserved.
+ *********************************************/
+package com.leanpulse.syd.remote.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the eviction of the least recently used templates when the size of
+ * the stylesheets cached exceeds its maximum.
+ *
+ * @author <a href="mailto:a.prost@leanpulse.com">Aurlien PROST</a>
+ *
+ * @see CachingTransformerFactory
+ */
+public class TestTemplatesCache {
+
+	/*
+	 * Size of the stylesheets, padded by a comment.
+	 */
+	private static final int STYLESHEET_SIZE = 10000;
+
+	private File xslDir;
+	private CachingTransformerFactory factory;
+	private long defaultMaxWeight;
+
+	@Before
+	public void setUp() throws IOException {
+		xslDir = File.createTempFile("sydxsl", "");
+		xslDir.delete();
+		xslDir.mkdir();
+		for(String name : new String[] {"a", "b", "c"}) {
+			File xslFile = new File(xslDir, name + ".xsl");
+			writeStylesheet(xslFile);
+			xslFile.setLastModified(System.currentTimeMillis() - 60000L); // Not evicted as modified while loaded.
+		}
+		factory = new CachingTransformerFactory();
+		defaultMaxWeight = CachingTransformerFactory.getMaxWeight();
+		CachingTransformerFactory.clearTemplates();
+	}
+
+	@After
+	public void tearDown() {
+		CachingTransformerFactory.setMaxWeight(defaultMaxWeight);
+		CachingTransformerFactory.clearTemplates();
+		for(File file : xslDir.listFiles())
+			file.delete();
+		xslDir.delete();
+	}
+
+	/**
+	 * Checks that the least recently used templates are evicted first, the
+	 * ones used since they were loaded being kept.
+	 */
+	@Test
+	public void testLeastRecentlyUsed() throws Exception {
+		CachingTransformerFactory.setMaxWeight(2 * STYLESHEET_SIZE + STYLESHEET_SIZE / 2);
+		assertMiss("a");
+		assertMiss("b");
+		assertHit("a");
+		assertMiss("c"); // Evicts b.
+		assertEquals(2 * STYLESHEET_SIZE, CachingTransformerFactory.getTemplatesWeight());
+
+		assertHit("a");
+		assertHit("c");
+		assertMiss("b"); // Evicts a.
+		assertHit("c");
+		assertHit("b");
+		assertMiss("a"); // Evicts c.
+		assertMiss("c");
+	}
+
+	/**
+	 * Checks that templates heavier than the maximum are kept until other
+	 * templates are loaded.
+	 */
+	@Test
+	public void testHeavyTemplates() throws Exception {
+		CachingTransformerFactory.setMaxWeight(STYLESHEET_SIZE / 2);
+		assertMiss("a");
+		assertHit("a");
+		assertMiss("b"); // Evicts a.
+		assertEquals(STYLESHEET_SIZE, CachingTransformerFactory.getTemplatesWeight());
+		assertHit("b");
+		assertMiss("a");
+	}
+
+	/**
+	 * Checks that templates loaded from a file which may have been modified
+	 * while they were loaded are evicted by the next check, the others being
+	 * kept.
+	 */
+	@Test
+	public void testModifiedWhileLoaded() throws Exception {
+		writeStylesheet(new File(xslDir, "d.xsl")); // Modified just now.
+		assertMiss("a");
+		assertMiss("d");
+		Thread.sleep(5000L); // Two check periods.
+		assertHit("a");
+		assertMiss("d");
+	}
+
+	/*
+	 * Checks that the templates of a stylesheet are reused from the cache.
+	 */
+	private void assertHit(String name) throws TransformerConfigurationException {
+		long hits = CachingTransformerFactory.getTemplatesHits();
+		long misses = CachingTransformerFactory.getTemplatesMisses();
+		assertNotNull(factory.newTransformer(new StreamSource(new File(xslDir, name + ".xsl"))));
+		assertEquals("Hit of " + name, hits + 1, CachingTransformerFactory.getTemplatesHits());
+		assertEquals(misses, CachingTransformerFactory.getTemplatesMisses());
+	}
+
+	/*
+	 * Checks that the templates of a stylesheet are loaded, not being cached.
+	 */
+	private void assertMiss(String name) throws TransformerConfigurationException {
+		long hits = CachingTransformerFactory.getTemplatesHits();
+		long misses = CachingTransformerFactory.getTemplatesMisses();
+		assertNotNull(factory.newTransformer(new StreamSource(new File(xslDir, name + ".xsl"))));
+		assertEquals(hits, CachingTransformerFactory.getTemplatesHits());
+		assertEquals("Miss of " + name, misses + 1, CachingTransformerFactory.getTemplatesMisses());
+	}
+
+	/*
+	 * Writes a stylesheet of the test size.
+	 */
+	private static void writeStylesheet(File file) throws IOException {
+		StringBuilder xsl = new StringBuilder();
+		xsl.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xsl.append("<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">\n");
+		xsl.append("<xsl:template match=\"/\"><doc/></xsl:template>\n");
+		String end = "-->\n</xsl:stylesheet>\n";
+		xsl.append("<!--");
+		while(xsl.length() < STYLESHEET_SIZE - end.length())
+			xsl.append(' ');
+		xsl.append(end);
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(xsl.toString());
+		} finally {
+			writer.close();
+		}
+	}
+
+}